@@ -1,21 +1,47 @@
 package org.commacq.client;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.commacq.CsvLine;
 import org.commacq.BlockCallback;
 import org.commacq.CsvUpdateBlockException;
 import org.commacq.layer.SubscribeLayer;
 
+import com.google.common.base.Function;
+import com.google.common.collect.Maps;
+
 /**
  * Converts a CsvDataSource into a source of beans.
  * 
  * Fetches all info from the data source when init() is called.
+ * 
+ * Given a pool, the lines of the initial load are handed to the pool's threads in
+ * batches as they arrive, so they are converted while the rest are still being
+ * received, and the load finishes once every batch has been converted. The
+ * converter's strategy must then be thread safe (see CsvToBeanStrategyPerThread).
+ * Live updates are always converted one at a time, in order, on the thread that
+ * delivers them.
+ * 
+ * A lazy cache holds each line in its compact UTF-8 form and converts it the first
+ * time the bean is asked for, remembering the result. An update replaces only the
+ * entries it touches. Start-up time and memory then depend on the beans actually used
+ * rather than the size of the entity. Readers convert the beans, so the strategy must
+ * be thread safe here too.
+ * 
+ * The beans are held in an immutable BeanCacheSnapshot. Each update block builds
+ * the next snapshot and publishes it in one go through a volatile field, so readers
+ * never lock and never see half of a block. {@link #getSnapshot()} is as cheap as
+ * reading that field.
  */
 public class BeanCache<BeanType> {
 
@@ -23,17 +49,57 @@ public class BeanCache<BeanType> {
 	private final String entityId;
 	private final CsvToBeanConverter<BeanType> csvToBeanConverter;
 	
-	final Map<String, BeanType> cache = new HashMap<String, BeanType>();
+	private final boolean lazy;
+	
+	/**
+	 * Only replaced by the thread applying an update block
+	 */
+	private volatile BeanCacheSnapshot<BeanType> snapshot = new BeanCacheSnapshot<BeanType>();
+	private final boolean frozen;
+	
+	private final Function<BeanHolder<BeanType>, BeanType> holderToBean = new Function<BeanHolder<BeanType>, BeanType>() {
+		@Override
+		public BeanType apply(BeanHolder<BeanType> holder) {
+			return holder.get();
+		}
+	};
+	
+	/**
+	 * Lines are handed to the pool in batches of this size when the initial
+	 * load is spread across a pool.
+	 */
+	static final int INITIAL_LOAD_BATCH_SIZE = 1024;
 	
 	public BeanCache(final SubscribeLayer layer, final String entityId, final CsvToBeanConverter<BeanType> csvToBeanConverter) {
+		this(layer, entityId, csvToBeanConverter, null, false);
+	}
+	
+	public BeanCache(final SubscribeLayer layer, final String entityId, final CsvToBeanConverter<BeanType> csvToBeanConverter, final ForkJoinPool initialLoadPool) {
+		this(layer, entityId, csvToBeanConverter, initialLoadPool, false);
+	}
+	
+	/**
+	 * @param initialLoadPool converts the lines of the initial load in parallel; null to convert them on this thread
+	 * @param lazy converts each bean when it's first asked for, in which case there's nothing for the pool to do
+	 */
+	public BeanCache(final SubscribeLayer layer, final String entityId, final CsvToBeanConverter<BeanType> csvToBeanConverter, final ForkJoinPool initialLoadPool, final boolean lazy) {
 		this.layer = layer;
 		this.entityId = entityId;
 		this.csvToBeanConverter = csvToBeanConverter;
+		this.lazy = lazy;
+		this.frozen = false;
 		//Trigger the callback for every line from the CsvDataSource
 		
+		//Live blocks wait in start() until the initial load has finished
 		try {
 			beanCsvLineCallback.start(Collections.singleton(entityId));
-			layer.getAllCsvLinesAndSubscribe(entityId, beanCsvLineCallback);
+			beanCsvLineCallback.initialLoadPool = lazy ? null : initialLoadPool;
+			try {
+				layer.getAllCsvLinesAndSubscribe(entityId, beanCsvLineCallback);
+			} catch (RuntimeException ex) {
+				beanCsvLineCallback.cancel();
+				throw ex;
+			}
 			beanCsvLineCallback.finish();
 		} catch (CsvUpdateBlockException ex) {
 			throw new RuntimeException(ex);
@@ -41,9 +107,24 @@ public class BeanCache<BeanType> {
 		
 	}
 	
+	/**
+	 * A cache that holds a single snapshot and never changes.
+	 */
+	private BeanCache(BeanCache<BeanType> beanCache) {
+		this.layer = beanCache.layer;
+		this.entityId = beanCache.entityId;
+		this.csvToBeanConverter = beanCache.csvToBeanConverter;
+		this.lazy = beanCache.lazy;
+		this.frozen = true;
+		this.snapshot = beanCache.snapshot;
+	}
+	
 	protected Set<CacheObserver<BeanType>> cacheObservers = new HashSet<>();
 	
 	public void addCacheObserver(CacheObserver<BeanType> cacheObserver) {
+		if(frozen) {
+			throw new UnsupportedOperationException("Cannot register an observer on a snapshot");
+		}
 		synchronized(cacheObservers) {
 			cacheObservers.add(cacheObserver);
 		}
@@ -55,11 +136,14 @@ public class BeanCache<BeanType> {
 		}
 	}
 	
-	private void notifyCacheObservers(Map<String, BeanType> updated, Set<String> deleted) {
+	/**
+	 * Observers of a lazy cache only cause the beans they look at to be converted.
+	 */
+	private void notifyCacheObservers(Map<String, BeanHolder<BeanType>> updated, Set<String> deleted) {
 		synchronized(cacheObservers) {
 			for(CacheObserver<BeanType> cacheObserver : cacheObservers) {
 				if(!updated.isEmpty()) {
-					cacheObserver.beansUpdated(updated);
+					cacheObserver.beansUpdated(Collections.unmodifiableMap(Maps.transformValues(updated, holderToBean)));
 				}
 				if(!deleted.isEmpty()) {
 					cacheObserver.beansDeleted(deleted);
@@ -69,11 +153,32 @@ public class BeanCache<BeanType> {
 	}
 	
 	public BeanType get(String id) {
-		return cache.get(id);
+		BeanHolder<BeanType> holder = snapshot.get(id);
+		return holder == null ? null : holder.get();
 	}
 	
+	/**
+	 * The beans as they were at the end of the last update block. The map doesn't
+	 * change, however long it's held on to. For a lazy cache, beans are converted
+	 * as the map's values are read.
+	 */
 	public Map<String, BeanType> getAllMappings() {
-		return Collections.unmodifiableMap(cache);
+		return Collections.unmodifiableMap(Maps.transformValues(snapshot, holderToBean));
+	}
+	
+	/**
+	 * @return a cache that will always return the beans as they are now
+	 */
+	public BeanCache<BeanType> getSnapshot() {
+		return frozen ? this : new BeanCache<BeanType>(this);
+	}
+	
+	public boolean isSnapshot() {
+		return frozen;
+	}
+	
+	public boolean isLazy() {
+		return lazy;
 	}
 	
 	public Class<BeanType> getBeanType() {
@@ -87,14 +192,83 @@ public class BeanCache<BeanType> {
 	private BeanCsvLineCallback beanCsvLineCallback = new BeanCsvLineCallback();
 	
 	private class BeanCsvLineCallback implements BlockCallback {
+		/**
+		 * Held from start() to finish() or cancel(), so that a live block delivered
+		 * while the initial load is still being converted waits for it to finish.
+		 */
+		private final ReentrantLock blockLock = new ReentrantLock();
+		
 		private boolean bulkUpdate;
-		private Map<String, BeanType> updated = new HashMap<String, BeanType>();
+		private Map<String, BeanHolder<BeanType>> updated = new HashMap<String, BeanHolder<BeanType>>();
 		private Set<String> deleted = new HashSet<String>();
 		
+		/**
+		 * Only set during the initial load
+		 */
+		private ForkJoinPool initialLoadPool;
+		private String pendingColumnNamesCsv;
+		private List<CsvLine> pendingLines = new ArrayList<CsvLine>();
+		//Batches handed to the pool, in the order the lines arrived
+		private final List<ConvertTask> convertTasks = new ArrayList<ConvertTask>();
+		
 		@Override
 		public void processUpdate(String entityId, String columnNamesCsv, CsvLine csvLine) throws CsvUpdateBlockException {
+			if(initialLoadPool != null) {
+				if(!columnNamesCsv.equals(pendingColumnNamesCsv)) {
+					convertPendingLines();
+					pendingColumnNamesCsv = columnNamesCsv;
+				}
+				pendingLines.add(csvLine);
+				if(pendingLines.size() >= INITIAL_LOAD_BATCH_SIZE) {
+					convertPendingLines();
+				}
+				return;
+			}
+			if(lazy) {
+				updated.put(csvLine.getId(), new BeanHolder<BeanType>(columnNamesCsv, csvLine, csvToBeanConverter));
+				return;
+			}
 			BeanType bean = csvToBeanConverter.getBean(columnNamesCsv, csvLine);
-			updated.put(csvLine.getId(), bean);
+			updated.put(csvLine.getId(), new BeanHolder<BeanType>(bean));
+		}
+		
+		/**
+		 * Hands the batch to the pool without waiting for it to be converted.
+		 */
+		private void convertPendingLines() {
+			if(pendingLines.isEmpty()) {
+				return;
+			}
+			ConvertTask task = new ConvertTask(pendingColumnNamesCsv, pendingLines);
+			initialLoadPool.execute(task);
+			convertTasks.add(task);
+			pendingLines = new ArrayList<CsvLine>();
+		}
+		
+		/**
+		 * The batches are joined and put into the map in the order the lines arrived,
+		 * so a repeated id ends up with its last line, as it would on a single thread.
+		 */
+		private void joinConvertTasks() {
+			try {
+				for(ConvertTask task : convertTasks) {
+					task.join();
+					for(int i = 0; i < task.holders.length; i++) {
+						updated.put(task.csvLines.get(i).getId(), task.holders[i]);
+					}
+				}
+			} finally {
+				//Stops the rest if a batch failed
+				cancelConvertTasks();
+			}
+		}
+		
+		private void cancelConvertTasks() {
+			for(ConvertTask task : convertTasks) {
+				task.cancel(false);
+			}
+			convertTasks.clear();
+			pendingLines.clear();
 		}
 		
 		@Override
@@ -104,11 +278,13 @@ public class BeanCache<BeanType> {
 		
 		@Override
 		public void startBulkUpdate(String entityId, String columnNamesCsv) throws CsvUpdateBlockException {
-			cache.clear();
+			//Readers keep the old beans until the block finishes
+			bulkUpdate = true;
 		}
 		
 		@Override
 		public void start(Collection<String> entityId) throws CsvUpdateBlockException {
+			blockLock.lock();
 			if(!updated.isEmpty()) {
 				throw new RuntimeException("Map of updated beans should have been cleared down after the last update block");
 			}
@@ -122,21 +298,41 @@ public class BeanCache<BeanType> {
 		
 		@Override
 		public void finish() throws CsvUpdateBlockException {
-			//TODO make this update transactional
-			cache.putAll(updated);
-			for(String id : deleted) {
-				cache.remove(id);
+			try {
+				if(initialLoadPool != null) {
+					convertPendingLines();
+					joinConvertTasks();
+					//Everything after the initial load stays on the ordered path
+					initialLoadPool = null;
+					pendingColumnNamesCsv = null;
+				}
+				snapshot = snapshot.apply(bulkUpdate, updated, deleted);
+				
+				notifyCacheObservers(updated, deleted);
+			} finally {
+				updated.clear();
+				deleted.clear();
+				bulkUpdate = false;
+				unlockBlock();
 			}
-			
-			notifyCacheObservers(updated, deleted);
+		}
+		
+		@Override
+		public void cancel() {
+			//Nothing has been published yet
 			updated.clear();
 			deleted.clear();
+			cancelConvertTasks();
+			initialLoadPool = null;
+			pendingColumnNamesCsv = null;
 			bulkUpdate = false;
+			unlockBlock();
 		}
 		
-		@Override
-		public void cancel() {
-			throw new RuntimeException("Update is not transactional so can't cancel");
+		private void unlockBlock() {
+			if(blockLock.isHeldByCurrentThread()) {
+				blockLock.unlock();
+			}
 		}
 		
 		@Override
@@ -146,4 +342,29 @@ public class BeanCache<BeanType> {
 		}
 	}
 	
+	/**
+	 * Converts one batch of lines, putting each line's holder at the same position in the array.
+	 */
+	private class ConvertTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final String columnNamesCsv;
+		private final List<CsvLine> csvLines;
+		private final BeanHolder<BeanType>[] holders;
+		
+		@SuppressWarnings("unchecked")
+		ConvertTask(String columnNamesCsv, List<CsvLine> csvLines) {
+			this.columnNamesCsv = columnNamesCsv;
+			this.csvLines = csvLines;
+			this.holders = new BeanHolder[csvLines.size()];
+		}
+		
+		@Override
+		protected void compute() {
+			for(int i = 0; i < holders.length; i++) {
+				holders[i] = new BeanHolder<BeanType>(csvToBeanConverter.getBean(columnNamesCsv, csvLines.get(i)));
+			}
+		}
+	}
+	
 }
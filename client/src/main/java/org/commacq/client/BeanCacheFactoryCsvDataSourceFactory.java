@@ -1,5 +1,7 @@
 package org.commacq.client;
 
+import java.util.concurrent.ForkJoinPool;
+
 import org.commacq.layer.SubscribeLayer;
 
 /**
@@ -11,29 +13,63 @@ public class BeanCacheFactoryCsvDataSourceFactory implements BeanCacheFactory {
 
 	final SubscribeLayer layer;
 	final CsvToBeanConverterFactory csvToBeanConverterFactory;
+	ForkJoinPool initialLoadPool;
+	boolean lazy;
+	private CsvToBeanConverterFactory threadSafeConverterFactory;
 	
 	public BeanCacheFactoryCsvDataSourceFactory(SubscribeLayer layer, CsvToBeanConverterFactory csvToBeanConverterFactory) {
 		this.layer = layer;
 		this.csvToBeanConverterFactory = csvToBeanConverterFactory;
 	}
+	
+	/**
+	 * Converts the initial load of each bean cache across the pool. The converter
+	 * factory's strategy is then given an instance per thread unless it's already
+	 * a CsvToBeanStrategyPerThread.
+	 */
+	public void setInitialLoadPool(ForkJoinPool initialLoadPool) {
+		this.initialLoadPool = initialLoadPool;
+	}
+	
+	/**
+	 * Bean caches convert each bean the first time it's asked for rather than up front,
+	 * on whichever thread asks. As with the initial load pool, the converter factory's
+	 * strategy is then given an instance per thread.
+	 */
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
 
 	@Override
 	public BeanCache<?> createBeanCache(String entityId) throws Exception {
 		CsvToBeanConverter<?> csvToBeanConverter;
 		try {
-			csvToBeanConverter = csvToBeanConverterFactory.getCsvBeanConverter(entityId);
+			csvToBeanConverter = getConverterFactory().getCsvBeanConverter(entityId);
 		} catch (ClassNotFoundException ex) {
 			throw new RuntimeException("Could not find bean class", ex);
 		}
-		BeanCache<?> beanCache = new BeanCache<>(layer, entityId, csvToBeanConverter);
+		BeanCache<?> beanCache = new BeanCache<>(layer, entityId, csvToBeanConverter, initialLoadPool, lazy);
 		return beanCache;
 	}
 
 	@Override
 	public <BeanType> BeanCache<BeanType> createBeanCache(String entityId, Class<BeanType> beanType) throws Exception {
-		CsvToBeanConverter<BeanType> csvToBeanConverter = csvToBeanConverterFactory.getCsvBeanConverter(entityId, beanType);
-		BeanCache<BeanType> beanCache = new BeanCache<>(layer, entityId, csvToBeanConverter);
+		CsvToBeanConverter<BeanType> csvToBeanConverter = getConverterFactory().getCsvBeanConverter(entityId, beanType);
+		BeanCache<BeanType> beanCache = new BeanCache<>(layer, entityId, csvToBeanConverter, initialLoadPool, lazy);
 		return beanCache;
 	}
 
+	/**
+	 * Bean caches that convert on more than one thread share a single thread safe factory.
+	 */
+	private synchronized CsvToBeanConverterFactory getConverterFactory() {
+		if(!lazy && initialLoadPool == null) {
+			return csvToBeanConverterFactory;
+		}
+		if(threadSafeConverterFactory == null) {
+			threadSafeConverterFactory = csvToBeanConverterFactory.threadSafe();
+		}
+		return threadSafeConverterFactory;
+	}
+
 }
@@ -0,0 +1,198 @@
+package org.commacq.client;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * An immutable version of the beans held by a BeanCache, which is also an
+ * unmodifiable Map of id to bean holder.
+ *
+ * The beans are held in a large base map plus a small delta containing the
+ * changes made since the delta was last merged into the base, as the server's
+ * CsvCacheSnapshot does. Neither is modified once the snapshot has been published,
+ * so any number of readers can use a snapshot without locking while the thread
+ * applying updates prepares the next one. Each block copies only the delta, so
+ * the cost of a block is proportional to the number of changes rather than to
+ * the size of the cache, until the delta is merged.
+ *
+ * A null value in the delta marks an id that has been removed.
+ */
+@Immutable
+final class BeanCacheSnapshot<BeanType> extends AbstractMap<String, BeanHolder<BeanType>> {
+
+	/**
+	 * The delta is merged into the base once it grows past this size or a fraction
+	 * of the base, whichever is larger, so merging costs a constant amount per change.
+	 */
+	static final int MIN_COMPACTION_THRESHOLD = 4096;
+	static final int COMPACTION_FRACTION = 32;
+
+	private final Map<String, BeanHolder<BeanType>> base;
+	private final Map<String, BeanHolder<BeanType>> delta;
+	private final int size;
+
+	BeanCacheSnapshot() {
+		this(Collections.<String, BeanHolder<BeanType>>emptyMap(), Collections.<String, BeanHolder<BeanType>>emptyMap(), 0);
+	}
+
+	private BeanCacheSnapshot(Map<String, BeanHolder<BeanType>> base, Map<String, BeanHolder<BeanType>> delta, int size) {
+		this.base = base;
+		this.delta = delta;
+		this.size = size;
+	}
+
+	@Override
+	public BeanHolder<BeanType> get(Object id) {
+		BeanHolder<BeanType> holder = delta.get(id);
+		if(holder != null || delta.containsKey(id)) {
+			return holder;
+		}
+		return base.get(id);
+	}
+
+	@Override
+	public boolean containsKey(Object id) {
+		return get(id) != null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Produces the next version. This snapshot is left untouched.
+	 *
+	 * @param replaceAll true if the updates replace everything, as for a bulk update
+	 * @param updated the holders of the beans updated in the block
+	 * @param deleted the ids removed in the block, which win over any update to the same id
+	 */
+	BeanCacheSnapshot<BeanType> apply(boolean replaceAll, Map<String, BeanHolder<BeanType>> updated, Set<String> deleted) {
+		if(replaceAll) {
+			Map<String, BeanHolder<BeanType>> newBase = new HashMap<String, BeanHolder<BeanType>>(updated);
+			newBase.keySet().removeAll(deleted);
+			return new BeanCacheSnapshot<BeanType>(newBase, Collections.<String, BeanHolder<BeanType>>emptyMap(), newBase.size());
+		}
+		if(updated.isEmpty() && deleted.isEmpty()) {
+			return this;
+		}
+
+		int compactionThreshold = Math.max(MIN_COMPACTION_THRESHOLD, base.size() / COMPACTION_FRACTION);
+		if(updated.size() > compactionThreshold) {
+			//The delta would be merged straight away, so skip copying the updates into it
+			Map<String, BeanHolder<BeanType>> newBase = new HashMap<String, BeanHolder<BeanType>>(base);
+			mergeInto(newBase, delta);
+			newBase.putAll(updated);
+			newBase.keySet().removeAll(deleted);
+			return new BeanCacheSnapshot<BeanType>(newBase, Collections.<String, BeanHolder<BeanType>>emptyMap(), newBase.size());
+		}
+
+		Map<String, BeanHolder<BeanType>> newDelta = new HashMap<String, BeanHolder<BeanType>>(delta);
+		int newSize = size;
+		for(Entry<String, BeanHolder<BeanType>> update : updated.entrySet()) {
+			if(deleted.contains(update.getKey())) {
+				continue;
+			}
+			if(get(update.getKey()) == null) {
+				newSize++;
+			}
+			newDelta.put(update.getKey(), update.getValue());
+		}
+		for(String id : deleted) {
+			if(get(id) != null) {
+				newSize--;
+			}
+			if(base.containsKey(id)) {
+				newDelta.put(id, null);
+			} else {
+				newDelta.remove(id);
+			}
+		}
+
+		if(newDelta.size() <= compactionThreshold) {
+			return new BeanCacheSnapshot<BeanType>(base, newDelta, newSize);
+		}
+		Map<String, BeanHolder<BeanType>> newBase = new HashMap<String, BeanHolder<BeanType>>(base);
+		mergeInto(newBase, newDelta);
+		return new BeanCacheSnapshot<BeanType>(newBase, Collections.<String, BeanHolder<BeanType>>emptyMap(), newSize);
+	}
+
+	private static <BeanType> void mergeInto(Map<String, BeanHolder<BeanType>> newBase, Map<String, BeanHolder<BeanType>> changes) {
+		for(Entry<String, BeanHolder<BeanType>> change : changes.entrySet()) {
+			if(change.getValue() == null) {
+				newBase.remove(change.getKey());
+			} else {
+				newBase.put(change.getKey(), change.getValue());
+			}
+		}
+	}
+
+	/**
+	 * The base entries that haven't been replaced, followed by the delta.
+	 */
+	@Override
+	public Set<Entry<String, BeanHolder<BeanType>>> entrySet() {
+		return new AbstractSet<Entry<String, BeanHolder<BeanType>>>() {
+			@Override
+			public Iterator<Entry<String, BeanHolder<BeanType>>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private class EntryIterator implements Iterator<Entry<String, BeanHolder<BeanType>>> {
+		private final Iterator<Entry<String, BeanHolder<BeanType>>> baseIterator = base.entrySet().iterator();
+		private final Iterator<Entry<String, BeanHolder<BeanType>>> deltaIterator = delta.entrySet().iterator();
+		private Entry<String, BeanHolder<BeanType>> next = advance();
+
+		private Entry<String, BeanHolder<BeanType>> advance() {
+			while(baseIterator.hasNext()) {
+				Entry<String, BeanHolder<BeanType>> entry = baseIterator.next();
+				if(!delta.containsKey(entry.getKey())) {
+					return new SimpleImmutableEntry<String, BeanHolder<BeanType>>(entry);
+				}
+			}
+			while(deltaIterator.hasNext()) {
+				Entry<String, BeanHolder<BeanType>> entry = deltaIterator.next();
+				if(entry.getValue() != null) {
+					return new SimpleImmutableEntry<String, BeanHolder<BeanType>>(entry);
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Entry<String, BeanHolder<BeanType>> next() {
+			if(next == null) {
+				throw new NoSuchElementException();
+			}
+			Entry<String, BeanHolder<BeanType>> result = next;
+			next = advance();
+			return result;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Snapshots are immutable");
+		}
+	}
+
+}
@@ -0,0 +1,53 @@
+package org.commacq.client;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.commacq.CsvLine;
+
+/**
+ * Holds a cached bean, or the line it will be converted from the first time
+ * it's asked for.
+ *
+ * The bean is published through a volatile field, so a reader either sees the
+ * finished bean or converts it under the holder's lock. The line is dropped once
+ * it has been converted. A holder is never updated; a new line gets a new holder.
+ */
+@ThreadSafe
+final class BeanHolder<BeanType> {
+
+	private volatile BeanType bean;
+	private CsvLine csvLine;
+	private String columnNamesCsv;
+	private CsvToBeanConverter<BeanType> csvToBeanConverter;
+
+	BeanHolder(BeanType bean) {
+		this.bean = bean;
+	}
+
+	/**
+	 * Lines held as a String are re-encoded as UTF-8, which for CSV is typically
+	 * half the size.
+	 */
+	BeanHolder(String columnNamesCsv, CsvLine csvLine, CsvToBeanConverter<BeanType> csvToBeanConverter) {
+		this.columnNamesCsv = columnNamesCsv;
+		this.csvLine = csvLine.isUtf8() ? csvLine.compact() : CsvLine.utf8(csvLine.getId(), csvLine.getCsvLine(), csvLine.getGroupValues());
+		this.csvToBeanConverter = csvToBeanConverter;
+	}
+
+	BeanType get() {
+		BeanType result = bean;
+		if(result != null) {
+			return result;
+		}
+		synchronized(this) {
+			if(bean == null) {
+				bean = csvToBeanConverter.getBean(columnNamesCsv, csvLine);
+				csvLine = null;
+				columnNamesCsv = null;
+				csvToBeanConverter = null;
+			}
+			return bean;
+		}
+	}
+
+}
@@ -12,6 +12,17 @@ public class CsvToBeanConverterFactory {
 		this.beanTypeSelectionStrategy = beanTypeSelectionStrategy;
 	}
 	
+	/**
+	 * @return a factory whose converters can be used from any number of threads at once
+	 */
+	public CsvToBeanConverterFactory threadSafe() {
+		CsvToBeanStrategy threadSafeStrategy = CsvToBeanStrategyPerThread.threadSafe(csvToBeanStrategy);
+		if(threadSafeStrategy == csvToBeanStrategy) {
+			return this;
+		}
+		return new CsvToBeanConverterFactory(threadSafeStrategy, beanTypeSelectionStrategy);
+	}
+
 	public CsvToBeanConverter<?> getCsvBeanConverter(String entityId) throws ClassNotFoundException {
 		Class<?> beanType = beanTypeSelectionStrategy.chooseBeanType(entityId);
 		return new CsvToBeanConverterImpl<>(beanType, csvToBeanStrategy);
@@ -0,0 +1,453 @@
+package org.commacq.client;
+
+import java.beans.ConstructorProperties;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.xml.bind.annotation.XmlAttribute;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.commacq.CsvLine;
+import org.commacq.CsvTokenizer;
+import org.commacq.client.csv.StringToLocalDateConverter;
+import org.joda.time.LocalDate;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.core.convert.TypeDescriptor;
+import org.springframework.core.convert.support.DefaultConversionService;
+
+/**
+ * Converts CSV to beans using a plan that is worked out once for each bean type
+ * and header, rather than for each row.
+ *
+ * The plan maps each column index straight to a MethodHandle and a typed conversion
+ * from the column's text. Beans with a no-args constructor (of any visibility) are
+ * constructed and then populated through their setters, or through their fields,
+ * which may be named by a JAXB XmlAttribute annotation. Beans without one are
+ * constructed by calling the constructor with the most parameters, whose names
+ * come from ConstructorProperties (as generated by Lombok) or from the debug information.
+ * Constructor parameters with no column are passed null, or the default for a primitive.
+ *
+ * Columns that the bean has nowhere to put are ignored. An empty value is converted
+ * to null for every type other than String.
+ *
+ * NOT THREADSAFE
+ */
+@NotThreadSafe
+@Slf4j
+public class CsvToBeanStrategyMethodHandles implements CsvToBeanStrategy {
+
+	private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+	private static final MethodType NO_ARGS_CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+	private static final MethodType SPREAD_CONSTRUCTOR_TYPE = MethodType.methodType(Object.class, Object[].class);
+
+	private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+	private final ParameterNameDiscoverer parameterNameDiscoverer = new DefaultParameterNameDiscoverer();
+	private final DefaultConversionService conversionService = new DefaultConversionService();
+
+	private final Map<Class<?>, Map<String, BeanPlan>> plans = new HashMap<>();
+	private final CsvTokenizer tokenizer = new CsvTokenizer();
+
+	public CsvToBeanStrategyMethodHandles() {
+		conversionService.addConverter(new StringToLocalDateConverter());
+	}
+
+	/**
+	 * Leaves the tokenizer on the line, so that the plan can pick the fields out of it.
+	 */
+	private void tokenize(String csv) {
+		try {
+			tokenizer.reset(csv).nextLine();
+		} catch(IOException ex) {
+			throw new RuntimeException("Error parsing CSV: " + csv, ex);
+		}
+	}
+
+	@Override
+	public <BeanType> BeanType getBean(Class<BeanType> beanType, String columnNamesCsv, CsvLine csvLine) {
+		return createBean(getPlan(beanType, columnNamesCsv), beanType, csvLine);
+	}
+
+	@Override
+	public <BeanType> Map<String, BeanType> getBeans(Class<BeanType> beanType, String columnNamesCsv, Collection<CsvLine> csvLines) {
+		BeanPlan plan = getPlan(beanType, columnNamesCsv);
+		Map<String, BeanType> beans = new HashMap<>(csvLines.size());
+		for(CsvLine csvLine : csvLines) {
+			beans.put(csvLine.getId(), createBean(plan, beanType, csvLine));
+		}
+		return beans;
+	}
+
+	private <BeanType> BeanType createBean(BeanPlan plan, Class<BeanType> beanType, CsvLine csvLine) {
+		tokenize(csvLine.getCsvLine());
+		try {
+			return beanType.cast(plan.create(tokenizer));
+		} catch(Throwable ex) {
+			throw new RuntimeException("Error creating " + beanType.getName() + " from: " + tokenizer.getLine(), ex);
+		}
+	}
+
+	BeanPlan getPlan(Class<?> beanType, String columnNamesCsv) {
+		Map<String, BeanPlan> plansForType = plans.get(beanType);
+		if(plansForType == null) {
+			plansForType = new HashMap<>();
+			plans.put(beanType, plansForType);
+		}
+		BeanPlan plan = plansForType.get(columnNamesCsv);
+		if(plan == null) {
+			tokenize(columnNamesCsv);
+			List<String> columnNames = new ArrayList<>(tokenizer.getFieldCount());
+			tokenizer.getFields(columnNames);
+			plan = createPlan(beanType, columnNames);
+			plansForType.put(columnNamesCsv, plan);
+		}
+		return plan;
+	}
+
+	private BeanPlan createPlan(Class<?> beanType, List<String> columnNames) {
+		try {
+			Constructor<?> noArgsConstructor = findNoArgsConstructor(beanType);
+			if(noArgsConstructor != null) {
+				return createPropertyPlan(beanType, noArgsConstructor, columnNames);
+			}
+			return createConstructorPlan(beanType, columnNames);
+		} catch(IllegalAccessException ex) {
+			throw new RuntimeException("Cannot access members of " + beanType.getName(), ex);
+		}
+	}
+
+	private static Constructor<?> findNoArgsConstructor(Class<?> beanType) {
+		for(Constructor<?> constructor : beanType.getDeclaredConstructors()) {
+			if(constructor.getParameterTypes().length == 0) {
+				return constructor;
+			}
+		}
+		return null;
+	}
+
+	private BeanPlan createPropertyPlan(Class<?> beanType, Constructor<?> constructor, List<String> columnNames) throws IllegalAccessException {
+		constructor.setAccessible(true);
+		MethodHandle constructorHandle = lookup.unreflectConstructor(constructor).asType(NO_ARGS_CONSTRUCTOR_TYPE);
+
+		int columnCount = columnNames.size();
+		MethodHandle[] setters = new MethodHandle[columnCount];
+		Conversion[] conversions = new Conversion[columnCount];
+		List<String> ignored = new ArrayList<>();
+		for(int i = 0; i < columnCount; i++) {
+			String columnName = columnNames.get(i);
+			Method setter = findSetter(beanType, columnName);
+			if(setter != null) {
+				setter.setAccessible(true);
+				setters[i] = lookup.unreflect(setter).asType(SETTER_TYPE);
+				conversions[i] = conversionFor(setter.getParameterTypes()[0]);
+				continue;
+			}
+			Field field = findField(beanType, columnName);
+			if(field != null) {
+				field.setAccessible(true);
+				setters[i] = lookup.unreflectSetter(field).asType(SETTER_TYPE);
+				conversions[i] = conversionFor(field.getType());
+				continue;
+			}
+			ignored.add(columnName);
+		}
+		logIgnored(beanType, ignored);
+		return new PropertyPlan(constructorHandle, setters, conversions);
+	}
+
+	private static Method findSetter(Class<?> beanType, String columnName) {
+		String setterName = "set" + Character.toUpperCase(columnName.charAt(0)) + columnName.substring(1);
+		for(Method method : beanType.getMethods()) {
+			if(method.getName().equals(setterName) && method.getParameterTypes().length == 1 && !Modifier.isStatic(method.getModifiers())) {
+				return method;
+			}
+		}
+		return null;
+	}
+
+	private static Field findField(Class<?> beanType, String columnName) {
+		Field byName = null;
+		for(Class<?> type = beanType; type != null && type != Object.class; type = type.getSuperclass()) {
+			for(Field field : type.getDeclaredFields()) {
+				int modifiers = field.getModifiers();
+				if(Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers)) {
+					continue;
+				}
+				XmlAttribute xmlAttribute = field.getAnnotation(XmlAttribute.class);
+				if(xmlAttribute != null && xmlAttribute.name().equals(columnName)) {
+					return field;
+				}
+				if(byName == null && field.getName().equals(columnName)) {
+					byName = field;
+				}
+			}
+		}
+		return byName;
+	}
+
+	private BeanPlan createConstructorPlan(Class<?> beanType, List<String> columnNames) throws IllegalAccessException {
+		Constructor<?> chosen = null;
+		String[] chosenNames = null;
+		for(Constructor<?> constructor : beanType.getDeclaredConstructors()) {
+			String[] names = getParameterNames(constructor);
+			if(names != null && (chosen == null || names.length > chosenNames.length)) {
+				chosen = constructor;
+				chosenNames = names;
+			}
+		}
+		if(chosen == null) {
+			throw new RuntimeException("No constructor of " + beanType.getName() + " has known parameter names. " +
+			                           "Add a no-args constructor, ConstructorProperties or debug information.");
+		}
+
+		chosen.setAccessible(true);
+		Class<?>[] parameterTypes = chosen.getParameterTypes();
+		MethodHandle constructorHandle = lookup.unreflectConstructor(chosen)
+				.asSpreader(Object[].class, parameterTypes.length)
+				.asType(SPREAD_CONSTRUCTOR_TYPE);
+
+		Object[] defaults = new Object[parameterTypes.length];
+		for(int i = 0; i < parameterTypes.length; i++) {
+			defaults[i] = defaultValue(parameterTypes[i]);
+		}
+
+		int columnCount = columnNames.size();
+		int[] parameterIndexes = new int[columnCount];
+		Conversion[] conversions = new Conversion[columnCount];
+		List<String> ignored = new ArrayList<>();
+		for(int i = 0; i < columnCount; i++) {
+			parameterIndexes[i] = -1;
+			for(int j = 0; j < chosenNames.length; j++) {
+				if(chosenNames[j].equals(columnNames.get(i))) {
+					parameterIndexes[i] = j;
+					conversions[i] = conversionFor(parameterTypes[j]);
+					break;
+				}
+			}
+			if(parameterIndexes[i] == -1) {
+				ignored.add(columnNames.get(i));
+			}
+		}
+		logIgnored(beanType, ignored);
+		return new ConstructorPlan(constructorHandle, defaults, parameterIndexes, conversions);
+	}
+
+	private String[] getParameterNames(Constructor<?> constructor) {
+		ConstructorProperties constructorProperties = constructor.getAnnotation(ConstructorProperties.class);
+		if(constructorProperties != null) {
+			return constructorProperties.value();
+		}
+		return parameterNameDiscoverer.getParameterNames(constructor);
+	}
+
+	private static void logIgnored(Class<?> beanType, List<String> ignored) {
+		if(!ignored.isEmpty()) {
+			log.info("Columns {} have nowhere to go in {} and will be ignored", ignored, beanType.getName());
+		}
+	}
+
+	/**
+	 * @return null, or the boxed default of a primitive type
+	 */
+	private static Object defaultValue(Class<?> type) {
+		return type.isPrimitive() ? Array.get(Array.newInstance(type, 1), 0) : null;
+	}
+
+	/**
+	 * Chooses the conversion for a target type once, when the plan is made.
+	 */
+	private Conversion conversionFor(final Class<?> type) {
+		if(type == String.class) {
+			return new Conversion(true) {
+				@Override
+				Object convert(String value) {
+					return value;
+				}
+			};
+		}
+		if(type == int.class || type == Integer.class) {
+			return new Conversion() {
+				@Override
+				Object convert(String value) {
+					return Integer.valueOf(value);
+				}
+			};
+		}
+		if(type == long.class || type == Long.class) {
+			return new Conversion() {
+				@Override
+				Object convert(String value) {
+					return Long.valueOf(value);
+				}
+			};
+		}
+		if(type == double.class || type == Double.class) {
+			return new Conversion() {
+				@Override
+				Object convert(String value) {
+					return Double.valueOf(value);
+				}
+			};
+		}
+		if(type == boolean.class || type == Boolean.class) {
+			return new Conversion() {
+				//Excel saves booleans in upper case
+				@Override
+				Object convert(String value) {
+					return Boolean.valueOf(value.equalsIgnoreCase("true") || value.equals("1"));
+				}
+			};
+		}
+		if(type == BigDecimal.class) {
+			return new Conversion() {
+				@Override
+				Object convert(String value) {
+					return new BigDecimal(value);
+				}
+			};
+		}
+		if(type == BigInteger.class) {
+			return new Conversion() {
+				@Override
+				Object convert(String value) {
+					return new BigInteger(value);
+				}
+			};
+		}
+		if(type == LocalDate.class) {
+			return new Conversion() {
+				@Override
+				Object convert(String value) {
+					return new LocalDate(value);
+				}
+			};
+		}
+		if(type.isEnum()) {
+			return new Conversion() {
+				@SuppressWarnings({ "unchecked", "rawtypes" })
+				@Override
+				Object convert(String value) {
+					return Enum.valueOf((Class<? extends Enum>)type, value);
+				}
+			};
+		}
+
+		final TypeDescriptor sourceType = TypeDescriptor.valueOf(String.class);
+		final TypeDescriptor targetType = TypeDescriptor.valueOf(type);
+		if(!conversionService.canConvert(sourceType, targetType)) {
+			throw new RuntimeException("Don't know how to convert CSV values to " + type.getName());
+		}
+		return new Conversion() {
+			@Override
+			Object convert(String value) {
+				return conversionService.convert(value, sourceType, targetType);
+			}
+		};
+	}
+
+	private static abstract class Conversion {
+		private final boolean keepEmpty;
+
+		Conversion() {
+			this(false);
+		}
+
+		Conversion(boolean keepEmpty) {
+			this.keepEmpty = keepEmpty;
+		}
+
+		/**
+		 * @param value never null
+		 */
+		abstract Object convert(String value);
+
+		/**
+		 * @return null for a null value, or for an empty value unless converting to a String
+		 */
+		final Object convertNullable(String value) {
+			if(value == null || (value.isEmpty() && !keepEmpty)) {
+				return null;
+			}
+			return convert(value);
+		}
+	}
+
+	static abstract class BeanPlan {
+		abstract Object create(CsvTokenizer values) throws Throwable;
+	}
+
+	private static final class PropertyPlan extends BeanPlan {
+		private final MethodHandle constructor;
+		private final MethodHandle[] setters;
+		private final Conversion[] conversions;
+
+		PropertyPlan(MethodHandle constructor, MethodHandle[] setters, Conversion[] conversions) {
+			this.constructor = constructor;
+			this.setters = setters;
+			this.conversions = conversions;
+		}
+
+		@Override
+		Object create(CsvTokenizer values) throws Throwable {
+			Object bean = (Object)constructor.invokeExact();
+			int count = Math.min(setters.length, values.getFieldCount());
+			for(int i = 0; i < count; i++) {
+				MethodHandle setter = setters[i];
+				if(setter != null) {
+					Object value = conversions[i].convertNullable(values.getField(i));
+					if(value != null) {
+						setter.invokeExact(bean, value);
+					}
+				}
+			}
+			return bean;
+		}
+	}
+
+	private static final class ConstructorPlan extends BeanPlan {
+		private final MethodHandle constructor;
+		private final Object[] defaults;
+		private final int[] parameterIndexes;
+		private final Conversion[] conversions;
+
+		ConstructorPlan(MethodHandle constructor, Object[] defaults, int[] parameterIndexes, Conversion[] conversions) {
+			this.constructor = constructor;
+			this.defaults = defaults;
+			this.parameterIndexes = parameterIndexes;
+			this.conversions = conversions;
+		}
+
+		@Override
+		Object create(CsvTokenizer values) throws Throwable {
+			Object[] arguments = defaults.clone();
+			int count = Math.min(parameterIndexes.length, values.getFieldCount());
+			for(int i = 0; i < count; i++) {
+				int parameterIndex = parameterIndexes[i];
+				if(parameterIndex != -1) {
+					Object value = conversions[i].convertNullable(values.getField(i));
+					if(value != null) {
+						arguments[parameterIndex] = value;
+					}
+				}
+			}
+			return (Object)constructor.invokeExact(arguments);
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package org.commacq.client;
+
+import java.util.Collection;
+import java.util.Map;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.commacq.CsvLine;
+
+/**
+ * Makes any strategy safe to share between threads by giving each thread
+ * its own instance, created the first time the thread converts a line.
+ *
+ * The strategies all cache the work they do for each bean type and header,
+ * so an instance per thread is much cheaper than an instance per line.
+ */
+@ThreadSafe
+public class CsvToBeanStrategyPerThread implements CsvToBeanStrategy {
+
+	private final ThreadLocal<CsvToBeanStrategy> strategies;
+
+	/**
+	 * @param strategyType must have a public no-args constructor
+	 */
+	public CsvToBeanStrategyPerThread(final Class<? extends CsvToBeanStrategy> strategyType) {
+		strategies = new ThreadLocal<CsvToBeanStrategy>() {
+			@Override
+			protected CsvToBeanStrategy initialValue() {
+				try {
+					return strategyType.newInstance();
+				} catch (InstantiationException | IllegalAccessException ex) {
+					throw new RuntimeException("Could not create strategy: " + strategyType, ex);
+				}
+			}
+		};
+	}
+
+	/**
+	 * None of the other strategies can be shared between threads, so any other
+	 * strategy is replaced by an instance per thread of its type. The instance
+	 * passed in is not itself used.
+	 *
+	 * @throws IllegalArgumentException if the strategy can't be created per thread
+	 */
+	public static CsvToBeanStrategy threadSafe(CsvToBeanStrategy strategy) {
+		if(strategy instanceof CsvToBeanStrategyPerThread) {
+			return strategy;
+		}
+		try {
+			strategy.getClass().getConstructor();
+		} catch (NoSuchMethodException ex) {
+			throw new IllegalArgumentException("Strategy is not thread safe and has no public no-args constructor to create one per thread: " + strategy.getClass(), ex);
+		}
+		return new CsvToBeanStrategyPerThread(strategy.getClass());
+	}
+
+	@Override
+	public <BeanType> BeanType getBean(Class<BeanType> beanType, String columnNamesCsv, CsvLine csvLine) {
+		return strategies.get().getBean(beanType, columnNamesCsv, csvLine);
+	}
+
+	@Override
+	public <BeanType> Map<String, BeanType> getBeans(Class<BeanType> beanType, String columnNamesCsv, Collection<CsvLine> csvLines) {
+		return strategies.get().getBeans(beanType, columnNamesCsv, csvLines);
+	}
+
+}
@@ -2,6 +2,7 @@ package org.commacq.client;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -13,12 +14,11 @@ import javax.annotation.concurrent.NotThreadSafe;
 import lombok.extern.slf4j.Slf4j;
 
 import org.commacq.CsvLine;
+import org.commacq.CsvTokenizer;
 import org.springframework.beans.factory.config.ConstructorArgumentValues;
 import org.springframework.beans.factory.config.ConstructorArgumentValues.ValueHolder;
 import org.springframework.beans.factory.support.GenericBeanDefinition;
 import org.springframework.context.support.GenericXmlApplicationContext;
-import org.supercsv.io.CsvListReader;
-import org.supercsv.prefs.CsvPreference;
 
 /**
  * Converts fully formed CSV to a map of beans. The CSV must have the header row on it.
@@ -39,7 +39,7 @@ public class CsvToBeanStrategySpringConstructor implements CsvToBeanStrategy {
 	private final ConstructorArgumentValues cav = new ConstructorArgumentValues();
 	private final GenericBeanDefinition beanDef = new GenericBeanDefinition();
 	
-	private final CsvListReaderUtil csvListReaderUtil = new CsvListReaderUtil();
+	private final CsvTokenizer tokenizer = new CsvTokenizer();
 
 	public CsvToBeanStrategySpringConstructor() {
 		context = new GenericXmlApplicationContext("classpath:org/commacq/client/csv/csvConversionService.xml");
@@ -48,8 +48,10 @@ public class CsvToBeanStrategySpringConstructor implements CsvToBeanStrategy {
 	
 	private List<String> splitCsv(String columnNamesCsv) {
 		try {
-			csvListReaderUtil.appendLine(columnNamesCsv);
-			return csvListReaderUtil.getParser().read();
+			tokenizer.reset(columnNamesCsv).nextLine();
+			List<String> fields = new ArrayList<>(tokenizer.getFieldCount());
+			tokenizer.getFields(fields);
+			return fields;
 		} catch(IOException ex) {
 			throw new RuntimeException("Error parsing CSV column names: " + columnNamesCsv);
 		}
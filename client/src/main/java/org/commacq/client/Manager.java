@@ -30,8 +30,8 @@ public class Manager<BeanType> {
 	private final Class<BeanType> beanType;
 	private final String entityId;
 	
-	//Will be a ConcurrentHashMap in normal operation or a
-	//copy (HashMap) if in snapshot operation.
+	//Updated by the server in normal operation, or a frozen
+	//snapshot of it if in snapshot operation.
 	protected final BeanCache<BeanType> beanCache;
 	
 	protected CompositeIdEncoding compositeIdEncoding;
@@ -51,17 +51,12 @@ public class Manager<BeanType> {
 	/**
 	 * For use with getSnapshot()
 	 */
-	/*
-	protected Manager(Class<BeanType> beanType, String entityId, Map<String, BeanType> beanCache) {
-		this.beanType = beanType;
-		this.entityId = entityId;
-		this.beanCache = null;
-		
-		//shallow copy that doesn't have an updater associated
-		//with it and therefore does not need to support concurrency
-		this.beanCache = new HashMap<String, BeanType>(beanCache.getAllMappings()); 
+	protected Manager(Manager<BeanType> manager) {
+		this.beanCache = manager.beanCache.getSnapshot();
+		this.beanType = manager.beanType;
+		this.entityId = manager.entityId;
+		this.compositeIdEncoding = manager.compositeIdEncoding;
 	}
-	*/
 
 	/**
 	 * Returns the bean using its identifier, or null if the bean is not
@@ -111,26 +106,27 @@ public class Manager<BeanType> {
 	 * Do not hold a reference to this snapshot for longer than a single
 	 * atomic transaction. Release it and let it be garbage collected once
 	 * you've finished with it.
+	 * 
+	 * Taking a snapshot doesn't copy anything, so it's cheap enough to do
+	 * for every transaction.
 	 */
-	/*
 	public final Manager<BeanType> getSnapshot() {
-		return new Manager<BeanType>(this.beanType, this.entityId, this.beanCache);
+		return new Manager<BeanType>(this);
 	}
-	*/
 	
 	public Class<BeanType> getBeanType() {
 		return beanType;
 	}
 	
 	public void addCacheObserver(CacheObserver<BeanType> cacheObserver) {
-		if(beanCache == null) {
+		if(beanCache.isSnapshot()) {
 			throw new UnsupportedOperationException("Cannot register an observer on a snapshot");	
 		}
 		beanCache.addCacheObserver(cacheObserver);
 	}
 	
 	public void removeCacheObserver(CacheObserver<BeanType> cacheObserver) {
-		if(beanCache == null) {
+		if(beanCache.isSnapshot()) {
 			throw new UnsupportedOperationException("Cannot remove an observer on a snapshot");	
 		}
 		beanCache.removeCacheObserver(cacheObserver);
@@ -25,7 +25,7 @@ import javax.xml.stream.events.XMLEvent;
 
 import org.apache.commons.lang3.StringUtils;
 import org.commacq.CsvLine;
-import org.commacq.client.CsvListReaderUtil;
+import org.commacq.CsvTokenizer;
 import org.commacq.client.CsvToBeanStrategy;
 
 /**
@@ -37,7 +37,7 @@ public class JaxbAttributeWriterStrategy implements CsvToBeanStrategy {
     protected final Map<Class<?>, AttributeEventReader> attributeEventReaderMap = new HashMap<Class<?>, AttributeEventReader>();
     protected final Map<Class<?>, Unmarshaller> unmarshallerMap = new HashMap<Class<?>, Unmarshaller>();
     
-    protected final CsvListReaderUtil csvListReaderUtil = new CsvListReaderUtil();
+    protected final CsvTokenizer tokenizer = new CsvTokenizer();
     
     private <BeanType> AttributeEventReader getAttributeEventReader(Class<BeanType> beanType) {
     	AttributeEventReader cached = attributeEventReaderMap.get(beanType);
@@ -95,8 +95,10 @@ public class JaxbAttributeWriterStrategy implements CsvToBeanStrategy {
     
 	private List<String> splitCsv(String columnNamesCsv) {
 		try {
-			csvListReaderUtil.appendLine(columnNamesCsv);
-			return csvListReaderUtil.getParser().read();
+			tokenizer.reset(columnNamesCsv).nextLine();
+			List<String> fields = new ArrayList<>(tokenizer.getFieldCount());
+			tokenizer.getFields(fields);
+			return fields;
 		} catch(IOException ex) {
 			throw new RuntimeException("Error parsing CSV column names: " + columnNamesCsv);
 		}
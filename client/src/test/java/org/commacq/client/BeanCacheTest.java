@@ -0,0 +1,311 @@
+package org.commacq.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.commacq.BlockCallback;
+import org.commacq.CsvLine;
+import org.commacq.CsvUpdateBlockException;
+import org.commacq.layer.SubscribeLayer;
+import org.commacq.testclient.CompositeEntity;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class BeanCacheTest {
+
+	private static final String COLUMNS = "id,site,year,month,revenue";
+	private static final int LINES = BeanCache.INITIAL_LOAD_BATCH_SIZE * 10 + 3;
+	
+	private final ForkJoinPool pool = new ForkJoinPool(4);
+	private BlockCallback subscriber;
+	
+	@After
+	public void shutdownPool() {
+		pool.shutdown();
+	}
+	
+	@Test
+	public void testParallelInitialLoad() throws Exception {
+		SubscribeLayer layer = initialLoad();
+		
+		CsvToBeanStrategy strategy = new CsvToBeanStrategyPerThread(CsvToBeanStrategyMethodHandles.class);
+		BeanCache<CompositeEntity> beanCache = new BeanCache<>(layer, "composite", new CsvToBeanConverterImpl<>(CompositeEntity.class, strategy), pool);
+		
+		assertEquals(LINES, beanCache.getAllMappings().size());
+		assertEquals(new CompositeEntity("7", "London", 2014, 8, new BigDecimal("7.5")), beanCache.get("7"));
+		assertEquals(new CompositeEntity("0", "Paris", 2015, 1, new BigDecimal("1")), beanCache.get("0"));
+		
+		//Live updates go straight through
+		subscriber.start(Collections.singleton("composite"));
+		subscriber.processUpdate("composite", COLUMNS, new CsvLine("7", "7,Rome,2014,8,2"));
+		subscriber.finish();
+		assertEquals("Rome", beanCache.get("7").getSite());
+	}
+	
+	@Test
+	public void testLiveBlockWaitsForInitialLoad() throws Exception {
+		final SubscribeLayer initialLoad = initialLoad();
+		final Thread[] publisher = new Thread[1];
+		SubscribeLayer layer = mock(SubscribeLayer.class);
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				initialLoad.getAllCsvLinesAndSubscribe("composite", (BlockCallback)invocation.getArguments()[1]);
+				//Delivered while the initial load is still to be converted
+				publisher[0] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							subscriber.start(Collections.singleton("composite"));
+							subscriber.processUpdate("composite", COLUMNS, new CsvLine("7", "7,Rome,2014,8,2"));
+							subscriber.finish();
+						} catch(CsvUpdateBlockException ex) {
+							throw new RuntimeException(ex);
+						}
+					}
+				};
+				publisher[0].start();
+				return null;
+			}
+		}).when(layer).getAllCsvLinesAndSubscribe(eq("composite"), any(BlockCallback.class));
+		
+		CsvToBeanStrategy strategy = new CsvToBeanStrategyPerThread(CsvToBeanStrategyMethodHandles.class);
+		BeanCache<CompositeEntity> beanCache = new BeanCache<>(layer, "composite", new CsvToBeanConverterImpl<>(CompositeEntity.class, strategy), pool);
+		publisher[0].join(5000);
+		
+		assertEquals(LINES, beanCache.getAllMappings().size());
+		assertEquals("Rome", beanCache.get("7").getSite());
+	}
+	
+	@Test
+	public void testInitialLoadConvertedAsLinesArrive() throws Exception {
+		final CountDownLatch converted = new CountDownLatch(1);
+		final boolean[] convertedWhileReceiving = new boolean[1];
+		SubscribeLayer layer = mock(SubscribeLayer.class);
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				BlockCallback callback = (BlockCallback)invocation.getArguments()[1];
+				for(int i = 0; i < BeanCache.INITIAL_LOAD_BATCH_SIZE; i++) {
+					callback.processUpdate("composite", COLUMNS, new CsvLine(String.valueOf(i), i + ",London,2014,1,1"));
+				}
+				//The first batch is converted before the rest of the load arrives
+				convertedWhileReceiving[0] = converted.await(5, TimeUnit.SECONDS);
+				callback.processUpdate("composite", COLUMNS, new CsvLine("last", "last,Paris,2015,1,1"));
+				return null;
+			}
+		}).when(layer).getAllCsvLinesAndSubscribe(eq("composite"), any(BlockCallback.class));
+		
+		CsvToBeanStrategy strategy = new CsvToBeanStrategyPerThread(CsvToBeanStrategyMethodHandles.class) {
+			@Override
+			public <BeanType> BeanType getBean(Class<BeanType> beanType, String columnNamesCsv, CsvLine csvLine) {
+				converted.countDown();
+				return super.getBean(beanType, columnNamesCsv, csvLine);
+			}
+		};
+		BeanCache<CompositeEntity> beanCache = new BeanCache<>(layer, "composite", new CsvToBeanConverterImpl<>(CompositeEntity.class, strategy), pool);
+		
+		assertTrue(convertedWhileReceiving[0]);
+		assertEquals(BeanCache.INITIAL_LOAD_BATCH_SIZE + 1, beanCache.getAllMappings().size());
+		assertEquals("Paris", beanCache.get("last").getSite());
+	}
+	
+	@Test
+	public void testLazy() throws Exception {
+		SubscribeLayer layer = initialLoad();
+		final AtomicInteger conversions = new AtomicInteger();
+		CsvToBeanConverter<CompositeEntity> converter = new CsvToBeanConverterImpl<CompositeEntity>(CompositeEntity.class, new CsvToBeanStrategyMethodHandles()) {
+			@Override
+			public CompositeEntity getBean(String columnNamesCsv, CsvLine csvLine) {
+				conversions.incrementAndGet();
+				return super.getBean(columnNamesCsv, csvLine);
+			}
+		};
+		BeanCache<CompositeEntity> beanCache = new BeanCache<>(layer, "composite", converter, pool, true);
+		assertEquals(0, conversions.get());
+		
+		CompositeEntity bean = beanCache.get("7");
+		assertEquals(new CompositeEntity("7", "London", 2014, 8, new BigDecimal("7.5")), bean);
+		assertSame(bean, beanCache.get("7"));
+		assertNull(beanCache.get("missing"));
+		assertEquals(1, conversions.get());
+		
+		beanCache.get("8");
+		subscriber.start(Collections.singleton("composite"));
+		subscriber.processUpdate("composite", COLUMNS, new CsvLine("7", "7,Rome,2014,8,2"));
+		subscriber.finish();
+		assertEquals(2, conversions.get());
+		assertEquals("Rome", beanCache.get("7").getSite());
+		assertEquals("London", beanCache.get("8").getSite());
+		assertEquals(3, conversions.get());
+	}
+	
+	/**
+	 * The factory gives lazy caches a strategy per thread, so readers can convert at the same time.
+	 */
+	@Test
+	public void testLazyFactoryConvertsOnManyThreads() throws Exception {
+		SubscribeLayer layer = initialLoad();
+		CsvToBeanConverterFactory converterFactory = new CsvToBeanConverterFactory(new CsvToBeanStrategyMethodHandles(), null);
+		BeanCacheFactoryCsvDataSourceFactory beanCacheFactory = new BeanCacheFactoryCsvDataSourceFactory(layer, converterFactory);
+		beanCacheFactory.setLazy(true);
+		final BeanCache<CompositeEntity> beanCache = beanCacheFactory.createBeanCache("composite", CompositeEntity.class);
+		
+		final AtomicInteger mismatches = new AtomicInteger();
+		Thread[] readers = new Thread[4];
+		for(int t = 0; t < readers.length; t++) {
+			readers[t] = new Thread() {
+				@Override
+				public void run() {
+					for(int i = 0; i < LINES; i++) {
+						if(!String.valueOf(i).equals(beanCache.get(String.valueOf(i)).getId())) {
+							mismatches.incrementAndGet();
+						}
+					}
+				}
+			};
+			readers[t].start();
+		}
+		for(Thread reader : readers) {
+			reader.join(10000);
+		}
+		assertEquals(0, mismatches.get());
+		assertTrue(CsvToBeanStrategyPerThread.threadSafe(new CsvToBeanStrategyMethodHandles()) instanceof CsvToBeanStrategyPerThread);
+	}
+	
+	@Test
+	public void testSnapshot() throws Exception {
+		SubscribeLayer layer = initialLoad();
+		BeanCache<CompositeEntity> beanCache = new BeanCache<>(layer, "composite", new CsvToBeanConverterImpl<>(CompositeEntity.class, new CsvToBeanStrategyMethodHandles()));
+		Manager<CompositeEntity> manager = new Manager<>(beanCache);
+		Manager<CompositeEntity> snapshot = manager.getSnapshot();
+		Map<String, CompositeEntity> allMappings = beanCache.getAllMappings();
+		
+		subscriber.start(Collections.singleton("composite"));
+		subscriber.processUpdate("composite", COLUMNS, new CsvLine("7", "7,Rome,2014,8,2"));
+		subscriber.processRemove("composite", COLUMNS, "8");
+		subscriber.processUpdate("composite", COLUMNS, new CsvLine("new", "new,Rome,2014,8,2"));
+		//Nothing is visible until the block finishes
+		assertEquals("London", manager.get("7").getSite());
+		assertEquals("London", manager.get("8").getSite());
+		subscriber.finish();
+		
+		assertEquals("Rome", manager.get("7").getSite());
+		assertNull(manager.get("8"));
+		//One added and one removed
+		assertEquals(LINES, beanCache.getAllMappings().size());
+		assertEquals("London", snapshot.get("7").getSite());
+		assertEquals("London", snapshot.get("8").getSite());
+		assertNull(snapshot.get("new"));
+		assertEquals(LINES, allMappings.size());
+		assertEquals("London", allMappings.get("7").getSite());
+		
+		//A bulk update replaces everything at once
+		Manager<CompositeEntity> snapshot2 = manager.getSnapshot();
+		subscriber.start(Collections.singleton("composite"));
+		subscriber.startBulkUpdate("composite", COLUMNS);
+		assertEquals("Rome", manager.get("7").getSite());
+		subscriber.processUpdate("composite", COLUMNS, new CsvLine("1", "1,Oslo,2014,1,1"));
+		subscriber.finish();
+		assertEquals(Collections.singleton("1"), beanCache.getAllMappings().keySet());
+		assertEquals("Rome", snapshot2.get("7").getSite());
+		assertNull(snapshot2.get("8"));
+	}
+	
+	@Test(expected=UnsupportedOperationException.class)
+	public void testNoObserversOnSnapshot() throws Exception {
+		BeanCache<CompositeEntity> beanCache = new BeanCache<>(initialLoad(), "composite", new CsvToBeanConverterImpl<>(CompositeEntity.class, new CsvToBeanStrategyMethodHandles()));
+		new Manager<>(beanCache).getSnapshot().addCacheObserver(null);
+	}
+	
+	/**
+	 * Enough blocks for the changes to be merged into the base more than once.
+	 */
+	@Test
+	public void testManyBlocks() throws Exception {
+		BeanCache<CompositeEntity> beanCache = new BeanCache<>(initialLoad(), "composite", new CsvToBeanConverterImpl<>(CompositeEntity.class, new CsvToBeanStrategyMethodHandles()));
+		int blocks = BeanCacheSnapshot.MIN_COMPACTION_THRESHOLD * 2 + 1;
+		for(int i = 0; i < blocks; i++) {
+			subscriber.start(Collections.singleton("composite"));
+			if(i % 2 == 0) {
+				subscriber.processUpdate("composite", COLUMNS, new CsvLine("extra" + i, "extra" + i + ",Rome,2014,1,1"));
+			} else {
+				subscriber.processRemove("composite", COLUMNS, String.valueOf(i));
+			}
+			subscriber.finish();
+		}
+		
+		Map<String, CompositeEntity> allMappings = beanCache.getAllMappings();
+		//One more line added than removed
+		assertEquals(LINES + 1, allMappings.size());
+		int count = 0;
+		for(Map.Entry<String, CompositeEntity> entry : allMappings.entrySet()) {
+			assertEquals(entry.getKey(), entry.getValue().getId());
+			count++;
+		}
+		assertEquals(allMappings.size(), count);
+		assertNull(beanCache.get("1"));
+		assertEquals("London", beanCache.get("2").getSite());
+		assertEquals("Rome", beanCache.get("extra" + (blocks - 1)).getSite());
+	}
+	
+	/**
+	 * A block too big for the delta goes straight into a new base, on top of any earlier changes.
+	 */
+	@Test
+	public void testLargeBlock() throws Exception {
+		BeanCache<CompositeEntity> beanCache = new BeanCache<>(initialLoad(), "composite", new CsvToBeanConverterImpl<>(CompositeEntity.class, new CsvToBeanStrategyMethodHandles()));
+		subscriber.start(Collections.singleton("composite"));
+		subscriber.processUpdate("composite", COLUMNS, new CsvLine("extra", "extra,Rome,2014,1,1"));
+		subscriber.processRemove("composite", COLUMNS, "1");
+		subscriber.finish();
+		
+		subscriber.start(Collections.singleton("composite"));
+		for(int i = 0; i <= BeanCacheSnapshot.MIN_COMPACTION_THRESHOLD; i++) {
+			subscriber.processUpdate("composite", COLUMNS, new CsvLine(String.valueOf(i), i + ",Oslo,2014,1,1"));
+		}
+		subscriber.processRemove("composite", COLUMNS, "2");
+		subscriber.finish();
+		
+		//Extra added, line 1 back again and line 2 gone
+		assertEquals(LINES, beanCache.getAllMappings().size());
+		assertEquals("Oslo", beanCache.get("1").getSite());
+		assertNull(beanCache.get("2"));
+		assertEquals("Rome", beanCache.get("extra").getSite());
+		assertEquals("London", beanCache.get(String.valueOf(LINES - 1)).getSite());
+	}
+	
+	private SubscribeLayer initialLoad() {
+		SubscribeLayer layer = mock(SubscribeLayer.class);
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				subscriber = (BlockCallback)invocation.getArguments()[1];
+				for(int i = 0; i < LINES; i++) {
+					subscriber.processUpdate("composite", COLUMNS, new CsvLine(String.valueOf(i), i + ",London,2014," + (i % 12 + 1) + "," + i + ".5"));
+				}
+				//Repeated ids keep their last line
+				subscriber.processUpdate("composite", COLUMNS, new CsvLine("0", "0,Paris,2015,1,1"));
+				return null;
+			}
+		}).when(layer).getAllCsvLinesAndSubscribe(eq("composite"), any(BlockCallback.class));
+		return layer;
+	}
+	
+}
@@ -0,0 +1,101 @@
+package org.commacq.client.csvtobean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+import org.commacq.CsvDataSourceResource;
+import org.commacq.CsvLine;
+import org.commacq.CsvLineCallbackListImpl;
+import org.commacq.CsvTextBlockToCallback;
+import org.commacq.client.BeanCache;
+import org.commacq.client.CsvToBeanConverterImpl;
+import org.commacq.client.CsvToBeanStrategyMethodHandles;
+import org.commacq.client.Manager;
+import org.commacq.client.csvtobean.xml.BeanWithXmlAnnotations;
+import org.commacq.client.csvtobean.xml.BeanWithXmlAnnotationsBoolean;
+import org.commacq.layer.DataSourceCollectionLayer;
+import org.commacq.layer.SubscribeLayer;
+import org.commacq.testclient.CompositeEntity;
+import org.commacq.testclient.Customer;
+import org.joda.time.LocalDate;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+public class CsvToBeanStrategyMethodHandlesTest {
+
+	private final CsvToBeanStrategyMethodHandles strategy = new CsvToBeanStrategyMethodHandles();
+	
+	@Test
+	public void testFields() {
+		String csv = "id,name" + "\n" +
+		             "BMW,A car" + "\n" +
+		             "MERC,";
+		
+		Map<String, BeanWithXmlAnnotations> output = getBeans(BeanWithXmlAnnotations.class, csv);
+		
+		assertEquals("BMW", output.get("BMW").getId());
+		assertEquals("A car", output.get("BMW").getName());
+		assertNull(output.get("MERC").getName());
+	}
+	
+	@Test
+	public void testUppercaseBooleanField() {
+		String csv = "id,active" + "\n" +
+		             "ABC,TRUE" + "\n" +
+		             "DEF,FALSE";
+		
+		Map<String, BeanWithXmlAnnotationsBoolean> output = getBeans(BeanWithXmlAnnotationsBoolean.class, csv);
+		
+		assertTrue(output.get("ABC").isActive());
+		assertFalse(output.get("DEF").isActive());
+	}
+	
+	@Test
+	public void testConstructor() {
+		String csv = "id,description,active,accountOpeningDate,currentBalance,unknown" + "\n" +
+		             "BMW,BMW Motors,false,2011-01-01,345.660000,x" + "\n" +
+		             "MERC,,true,,,";
+		
+		Map<String, Customer> output = getBeans(Customer.class, csv);
+		
+		assertEquals(new Customer("BMW", "BMW Motors", false, new LocalDate(2011, 1, 1), new BigDecimal("345.660000")), output.get("BMW"));
+		assertEquals(new Customer("MERC", null, true, null, null), output.get("MERC"));
+	}
+	
+	@Test
+	public void testCustomerBeanCache() {
+		CsvDataSourceResource resource = new CsvDataSourceResource("customer", new ClassPathResource("/customer.csv"));
+		SubscribeLayer layer = new DataSourceCollectionLayer(resource);
+		
+		BeanCache<Customer> beanCache = new BeanCache<>(layer, "customer", new CsvToBeanConverterImpl<>(Customer.class, strategy));
+		Manager<Customer> customerManager = new Manager<>(beanCache);
+		
+		assertEquals(new Customer("BMW", "BMW Motors", false, new LocalDate(2011, 1, 1), new BigDecimal("345.660000")), customerManager.mustGet("BMW"));
+		assertEquals(new Customer("MERC", "Mercedes Motors", true, new LocalDate(2012, 2, 2), new BigDecimal("14032.000000")), customerManager.mustGet("MERC"));
+	}
+	
+	@Test
+	public void testMissingPrimitiveGetsDefault() {
+		CompositeEntity entity = strategy.getBean(CompositeEntity.class, "id,site,month", new CsvLine("A", "A,London,3"));
+		
+		assertEquals(new CompositeEntity("A", "London", 0, 3, null), entity);
+	}
+	
+	@Test(expected=RuntimeException.class)
+	public void testBadValue() {
+		strategy.getBean(CompositeEntity.class, "id,year", new CsvLine("A", "A,notANumber"));
+	}
+	
+	private <BeanType> Map<String, BeanType> getBeans(Class<BeanType> beanType, String csvHeaderAndBody) {
+		CsvTextBlockToCallback csvTextBlockToCallback = new CsvTextBlockToCallback();
+		CsvLineCallbackListImpl callbackListImpl = new CsvLineCallbackListImpl();
+		csvTextBlockToCallback.presentTextBlockToCsvLineCallback("testEntity", csvHeaderAndBody, callbackListImpl);
+		return strategy.getBeans(beanType, callbackListImpl.getColumnNamesCsv(), callbackListImpl.getUpdateList());
+	}
+	
+}
@@ -14,6 +14,7 @@ import org.commacq.CsvTextBlockToCallback;
 import org.commacq.CsvUpdateBlockException;
 import org.commacq.LineCallback;
 import org.commacq.client.CsvToBeanStrategy;
+import org.commacq.client.CsvToBeanStrategyMethodHandles;
 import org.commacq.client.CsvToBeanStrategySpringConstructor;
 import org.commacq.client.csvtobean.xml.JaxbAttributeWriterStrategy;
 import org.junit.BeforeClass;
@@ -70,6 +71,12 @@ public class CsvToBeanStrategyPerformanceTest {
 		System.out.println("Jaxb took " + milliseconds + " milliseconds");
 	}
 	
+	@Test
+	public void testMethodHandlesPerformance() throws Exception {
+		long milliseconds = testWriterPerformance(new CsvToBeanStrategyMethodHandles());
+		System.out.println("Method handles took " + milliseconds + " milliseconds");
+	}
+	
 	@Ignore //Not performant. Needs significant work.
 	@Test
 	public void testSpringConstructorWriterPerformance() throws Exception {
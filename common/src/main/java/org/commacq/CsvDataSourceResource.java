@@ -4,7 +4,6 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.Collection;
 
-import org.apache.commons.io.IOUtils;
 import org.springframework.core.io.Resource;
 
 /**
@@ -44,14 +43,15 @@ public class CsvDataSourceResource implements CsvDataSource {
 	}
 	
 	private void presentAllLinesToCallback(LineCallback callback) {
-		String initialLoadText;
+		InputStreamReader reader;
 		try {
-			initialLoadText = IOUtils.toString(resource.getInputStream());
+			reader = new InputStreamReader(resource.getInputStream());
 		} catch(IOException ex) {
 			throw new RuntimeException(ex);
 		}
 		
-		csvTextBlockToCallback.presentTextBlockToCsvLineCallback(entityId, initialLoadText, callback);
+		//Streams the file rather than reading it all into memory first
+		csvTextBlockToCallback.presentTextBlockToCsvLineCallback(entityId, reader, callback);
 	}
 	
 	@Override
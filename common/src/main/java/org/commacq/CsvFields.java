@@ -0,0 +1,100 @@
+package org.commacq;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Finds fields within a CSV line held as UTF-8 bytes. The separators and quotes
+ * are all ASCII, so the bytes can be scanned directly without decoding the line.
+ */
+final class CsvFields {
+
+	private CsvFields() {
+	}
+	
+	/**
+	 * Picks out a single field of a line, removing any quoting.
+	 * 
+	 * @return null for an empty field or one beyond the end of the line
+	 */
+	static String field(byte[] line, int index) {
+		int position = 0;
+		for(int i = 0; i < index; i++) {
+			position = skipField(line, position);
+			if(position >= line.length) {
+				return null;
+			}
+			position++; //The comma
+		}
+		if(position >= line.length || line[position] == ',') {
+			return null;
+		}
+		if(line[position] != '"') {
+			int end = position;
+			while(end < line.length && line[end] != ',') {
+				end++;
+			}
+			return new String(line, position, end - position, CsvLine.UTF8);
+		}
+		
+		ByteArrayOutputStream unquoted = new ByteArrayOutputStream(32);
+		for(int i = position + 1; i < line.length; i++) {
+			if(line[i] == '"') {
+				if(i + 1 < line.length && line[i + 1] == '"') {
+					i++;
+				} else {
+					break;
+				}
+			}
+			unquoted.write(line[i]);
+		}
+		return new String(unquoted.toByteArray(), CsvLine.UTF8);
+	}
+	
+	/**
+	 * Finds where each field up to lastIndex starts and ends, in a single pass.
+	 * The field is left exactly as it appears on the line, quotes and all.
+	 * Fields beyond the end of the line are empty.
+	 * 
+	 * @param starts receives the position of the first byte of each field
+	 * @param ends receives the position after the last byte of each field
+	 */
+	static void offsets(byte[] line, int lastIndex, int[] starts, int[] ends) {
+		int position = 0;
+		for(int i = 0; i <= lastIndex; i++) {
+			if(position > line.length) {
+				starts[i] = line.length;
+				ends[i] = line.length;
+				continue;
+			}
+			starts[i] = position;
+			position = skipField(line, position);
+			ends[i] = position;
+			position++; //The comma
+		}
+	}
+	
+	/**
+	 * @return the position of the comma after the field, or the end of the line
+	 */
+	static int skipField(byte[] line, int position) {
+		if(position < line.length && line[position] == '"') {
+			position++;
+			while(position < line.length) {
+				if(line[position] == '"') {
+					if(position + 1 < line.length && line[position + 1] == '"') {
+						position += 2;
+						continue;
+					}
+					position++;
+					break;
+				}
+				position++;
+			}
+		}
+		while(position < line.length && line[position] != ',') {
+			position++;
+		}
+		return position;
+	}
+	
+}
@@ -1,29 +1,181 @@
 package org.commacq;
 
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
 
-import lombok.EqualsAndHashCode;
 import lombok.Getter;
-import lombok.ToString;
 
-@ToString
-@EqualsAndHashCode
+/**
+ * A single line of CSV, held either as a String or as UTF-8 bytes.
+ *
+ * Lines read from a database are encoded to UTF-8 once, when the line is
+ * built, and stay as bytes. Writers that deal in bytes (files, sockets,
+ * BytesMessages) copy them straight out using {@link #getCsvLineUtf8()}.
+ * Asking for the other representation converts on every call rather than
+ * holding both, so that cached lines stay compact. A line handed to several
+ * callbacks in turn goes as a {@link #shared()} copy, which is decoded at most
+ * once however many of them ask for the String.
+ */
 @Getter
 public class CsvLine {
+
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+
 	private final String id;
 	private final String csvLine;
+	private final byte[] csvLineUtf8;
 	private final Map<String, String> groupValues;
-	
+
 	public CsvLine(String id, String csvLine, Map<String, String> groupValues) {
 		this.id = id;
 		this.csvLine = csvLine;
+		this.csvLineUtf8 = null;
 		this.groupValues = groupValues;
 	}
-		
+
 	@SuppressWarnings("unchecked")
 	public CsvLine(String id, String csvLine) {
 		this(id, csvLine, Collections.EMPTY_MAP);
 	}
 
+	/**
+	 * @param csvLineUtf8 owned by the line from now on; must not be modified
+	 */
+	public CsvLine(String id, byte[] csvLineUtf8, Map<String, String> groupValues) {
+		this.id = id;
+		this.csvLine = null;
+		this.csvLineUtf8 = csvLineUtf8;
+		this.groupValues = groupValues;
+	}
+
+	/**
+	 * Encodes the characters to UTF-8 without going via an intermediate String
+	 * when they are all ASCII, which is the common case for CSV.
+	 */
+	public static CsvLine utf8(String id, CharSequence csvLine, Map<String, String> groupValues) {
+		int length = csvLine.length();
+		byte[] bytes = new byte[length];
+		for(int i = 0; i < length; i++) {
+			char c = csvLine.charAt(i);
+			if(c >= 0x80) {
+				return new CsvLine(id, csvLine.toString().getBytes(UTF8), groupValues);
+			}
+			bytes[i] = (byte)c;
+		}
+		return new CsvLine(id, bytes, groupValues);
+	}
+
+	/**
+	 * @return the line, or null for a line that only records the removal of an id
+	 */
+	public String getCsvLine() {
+		if(csvLineUtf8 == null) {
+			return csvLine;
+		}
+		return new String(csvLineUtf8, UTF8);
+	}
+
+	/**
+	 * @return the line encoded as UTF-8, which the caller must not modify
+	 */
+	public byte[] getCsvLineUtf8() {
+		if(csvLine == null) {
+			return csvLineUtf8;
+		}
+		return csvLine.getBytes(UTF8);
+	}
+
+	/**
+	 * True if the line is held as bytes, in which case {@link #getCsvLineUtf8()} is free.
+	 */
+	public boolean isUtf8() {
+		return csvLineUtf8 != null;
+	}
+
+	/**
+	 * A copy to hand to several callbacks in turn, which decodes the bytes the first
+	 * time one of them asks for the String and keeps the result. The copy is only for
+	 * passing on; anything that keeps the line keeps {@link #compact()} instead.
+	 */
+	public CsvLine shared() {
+		return csvLineUtf8 == null ? this : new Shared(this);
+	}
+	
+	/**
+	 * @return the line without the String that a shared copy may have decoded
+	 */
+	public CsvLine compact() {
+		return this;
+	}
+	
+	private static final class Shared extends CsvLine {
+		/**
+		 * Racy but safe to publish, as Strings are immutable
+		 */
+		private String decoded;
+		
+		private Shared(CsvLine csvLine) {
+			super(csvLine.id, csvLine.csvLineUtf8, csvLine.groupValues);
+		}
+		
+		@Override
+		public String getCsvLine() {
+			String result = decoded;
+			if(result == null) {
+				result = super.getCsvLine();
+				decoded = result;
+			}
+			return result;
+		}
+		
+		@Override
+		public CsvLine compact() {
+			return new CsvLine(getId(), getCsvLineUtf8(), getGroupValues());
+		}
+	}
+
+	/**
+	 * Compares the text of the lines without converting either
+	 * when they are held the same way.
+	 */
+	public boolean contentEquals(CsvLine other) {
+		if(csvLineUtf8 != null && other.csvLineUtf8 != null) {
+			return Arrays.equals(csvLineUtf8, other.csvLineUtf8);
+		}
+		if(csvLineUtf8 == null && other.csvLineUtf8 == null) {
+			return csvLine == null ? other.csvLine == null : csvLine.equals(other.csvLine);
+		}
+		String text = getCsvLine();
+		return text == null ? other.getCsvLine() == null : text.equals(other.getCsvLine());
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(obj == this) {
+			return true;
+		}
+		if(!(obj instanceof CsvLine)) {
+			return false;
+		}
+		CsvLine other = (CsvLine)obj;
+		return (id == null ? other.id == null : id.equals(other.id))
+				&& (groupValues == null ? other.groupValues == null : groupValues.equals(other.groupValues))
+				&& contentEquals(other);
+	}
+
+	@Override
+	public int hashCode() {
+		int result = id == null ? 0 : id.hashCode();
+		result = 31 * result + Arrays.hashCode(getCsvLineUtf8());
+		result = 31 * result + (groupValues == null ? 0 : groupValues.hashCode());
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "CsvLine(id=" + id + ", csvLine=" + getCsvLine() + ", groupValues=" + groupValues + ")";
+	}
+
 }
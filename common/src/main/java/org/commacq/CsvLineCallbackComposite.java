@@ -1,17 +1,27 @@
 package org.commacq;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Composite callback that calls back each of the observers in turn.
+ * 
+ * Each line is only passed to the callbacks interested in its entity. A routing
+ * table from entity id to an array of callbacks is rebuilt whenever a callback
+ * is added or removed, so delivering a line is an array lookup and a loop over
+ * the interested callbacks, with no scanning of each callback's entity ids.
  */
 public class CsvLineCallbackComposite implements BlockCallback {
 
+	private static final BlockCallback[] NO_CALLBACKS = new BlockCallback[0];
+	
 	/**
 	 * Lock ensures that a callback can't be added or removed half
 	 * way through an update batch.
@@ -22,8 +32,11 @@ public class CsvLineCallbackComposite implements BlockCallback {
 	 * Maintains active callbacks along with a list of entities that each
 	 * callback is interested in.
 	 * null means all entities.
+	 * Only changed while holding the lock.
 	 */
-	private final Map<BlockCallback, Collection<String>> callbacks = new HashMap<BlockCallback, Collection<String>>();
+	private final Map<BlockCallback, Collection<String>> callbacks = new LinkedHashMap<BlockCallback, Collection<String>>();
+	
+	private volatile Routes routes = new Routes(callbacks);
 	
 	public void addCallback(BlockCallback callback) {
 		addCallback((Collection<String>)null, callback);
@@ -33,24 +46,21 @@ public class CsvLineCallbackComposite implements BlockCallback {
 		lock.lock();
 		try {
 			callbacks.put(callback, entityIds);
+			routes = new Routes(callbacks);
 		} finally {
 			lock.unlock();
 		}
 	}
 	
 	public void addCallback(String entityId, BlockCallback callback) {
-		lock.lock();
-		try {
-			callbacks.put(callback, Collections.singletonList(entityId));
-		} finally {
-			lock.unlock();
-		}
+		addCallback(Collections.singletonList(entityId), callback);
 	}
 	
 	public void removeCallback(BlockCallback callback) {
 		lock.lock();
 		try {
 			callbacks.remove(callback);
+			routes = new Routes(callbacks);
 		} finally {
 			lock.unlock();
 		}
@@ -63,8 +73,8 @@ public class CsvLineCallbackComposite implements BlockCallback {
 	@Override
 	public void start(final Collection<String> entityIds) throws CsvUpdateBlockException {
 		lock.lock();
-		for(Entry<BlockCallback, Collection<String>> entry : callbacks.entrySet()) {
-			entry.getKey().start(entityIds);
+		for(BlockCallback callback : routes.all) {
+			callback.start(entityIds);
 		}
 	}
 	
@@ -74,7 +84,7 @@ public class CsvLineCallbackComposite implements BlockCallback {
 	 */
 	@Override
 	public void finish() throws CsvUpdateBlockException {
-		for(BlockCallback callback : callbacks.keySet()) {
+		for(BlockCallback callback : routes.all) {
 			callback.finish();
 		}
 		lock.unlock();
@@ -86,7 +96,7 @@ public class CsvLineCallbackComposite implements BlockCallback {
 	 */
 	@Override
 	public void cancel() {
-		for(BlockCallback callback : callbacks.keySet()) {
+		for(BlockCallback callback : routes.all) {
 			callback.cancel();
 		}
 		lock.unlock();
@@ -94,45 +104,34 @@ public class CsvLineCallbackComposite implements BlockCallback {
 	
 	@Override
 	public void processRemove(String entityId, String columnNamesCsv, String id) throws CsvUpdateBlockException {
-		for(Entry<BlockCallback, Collection<String>> entry : callbacks.entrySet()) {
-			Collection<String> entityIds = entry.getValue();
-			if(entityIds == null || entityIds.contains(entityId)) {
-				BlockCallback callback = entry.getKey();
-				callback.processRemove(entityId, columnNamesCsv, id);
-			}
+		for(BlockCallback callback : routes.forEntity(entityId)) {
+			callback.processRemove(entityId, columnNamesCsv, id);
 		}
 	}
 	
+	/**
+	 * A line going to more than one callback is decoded at most once between them.
+	 */
 	@Override
 	public void processUpdate(String entityId, String columnNamesCsv, CsvLine csvLine) throws CsvUpdateBlockException {
-		for(Entry<BlockCallback, Collection<String>> entry : callbacks.entrySet()) {
-			Collection<String> entityIds = entry.getValue();
-			if(entityIds == null || entityIds.contains(entityId)) {
-				BlockCallback callback = entry.getKey();
-				callback.processUpdate(entityId, columnNamesCsv, csvLine);
-			}
-		}			
+		BlockCallback[] interested = routes.forEntity(entityId);
+		CsvLine line = interested.length > 1 ? csvLine.shared() : csvLine;
+		for(BlockCallback callback : interested) {
+			callback.processUpdate(entityId, columnNamesCsv, line);
+		}
 	}
 	
 	@Override
 	public void startBulkUpdate(String entityId, String columnNamesCsv) throws CsvUpdateBlockException {
-		for(Entry<BlockCallback, Collection<String>> entry : callbacks.entrySet()) {
-			Collection<String> entityIds = entry.getValue();
-			if(entityIds == null || entityIds.contains(entityId)) {
-				BlockCallback callback = entry.getKey();
-				callback.startBulkUpdate(entityId, columnNamesCsv);
-			}
+		for(BlockCallback callback : routes.forEntity(entityId)) {
+			callback.startBulkUpdate(entityId, columnNamesCsv);
 		}
 	}
 	
 	@Override
 	public void startBulkUpdateForGroup(String entityId, String group, String idWithinGroup) throws CsvUpdateBlockException {
-		for(Entry<BlockCallback, Collection<String>> entry : callbacks.entrySet()) {
-			Collection<String> entityIds = entry.getValue();
-			if(entityIds == null || entityIds.contains(entityId)) {
-				BlockCallback callback = entry.getKey();
-				callback.startBulkUpdateForGroup(entityId, group, idWithinGroup);
-			}
+		for(BlockCallback callback : routes.forEntity(entityId)) {
+			callback.startBulkUpdateForGroup(entityId, group, idWithinGroup);
 		}
 	}
 	
@@ -140,4 +139,53 @@ public class CsvLineCallbackComposite implements BlockCallback {
 	public String toString() {
 		return "CsvLineCallbackComposite - " + callbacks;
 	}
+	
+	/**
+	 * Immutable routing table, replaced as a whole when the callbacks change.
+	 */
+	private static final class Routes {
+		private final BlockCallback[] all;
+		/**
+		 * Callbacks interested in every entity, used for entities that
+		 * no callback has asked for by name.
+		 */
+		private final BlockCallback[] allEntities;
+		private final Map<String, BlockCallback[]> byEntity;
+		
+		private Routes(Map<BlockCallback, Collection<String>> callbacks) {
+			all = callbacks.keySet().toArray(NO_CALLBACKS);
+			
+			List<BlockCallback> allEntitiesList = new ArrayList<BlockCallback>();
+			Map<String, List<BlockCallback>> byEntityList = new HashMap<String, List<BlockCallback>>();
+			for(Entry<BlockCallback, Collection<String>> entry : callbacks.entrySet()) {
+				if(entry.getValue() == null) {
+					allEntitiesList.add(entry.getKey());
+					continue;
+				}
+				for(String entityId : entry.getValue()) {
+					List<BlockCallback> list = byEntityList.get(entityId);
+					if(list == null) {
+						list = new ArrayList<BlockCallback>();
+						byEntityList.put(entityId, list);
+					}
+					if(!list.contains(entry.getKey())) {
+						list.add(entry.getKey());
+					}
+				}
+			}
+			allEntities = allEntitiesList.toArray(NO_CALLBACKS);
+			
+			byEntity = new HashMap<String, BlockCallback[]>(byEntityList.size() * 2);
+			for(Entry<String, List<BlockCallback>> entry : byEntityList.entrySet()) {
+				List<BlockCallback> list = entry.getValue();
+				list.addAll(0, allEntitiesList);
+				byEntity.put(entry.getKey(), list.toArray(NO_CALLBACKS));
+			}
+		}
+		
+		private BlockCallback[] forEntity(String entityId) {
+			BlockCallback[] callbacks = byEntity.get(entityId);
+			return callbacks != null ? callbacks : allEntities;
+		}
+	}
 }
@@ -0,0 +1,114 @@
+package org.commacq;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Only passes on the lines of an entity that match a predicate.
+ * 
+ * Remembers which ids it has passed on, so that a line which used to match
+ * and no longer does is passed on as a removal, and removals of ids the
+ * subscriber never saw are dropped. For this to work the callback has to see
+ * every line of the entity from the start, so it should be subscribed
+ * together with an initial load.
+ */
+@ThreadSafe
+public class CsvLineCallbackFiltered implements BlockCallback {
+
+	private final String entityId;
+	private final CsvLinePredicate predicate;
+	private final BlockCallback callback;
+	
+	//Guarded by this
+	private final Set<String> matchingIds = new HashSet<String>();
+	private String compiledColumnNamesCsv;
+	private CsvLinePredicate.Compiled compiled;
+	
+	public CsvLineCallbackFiltered(String entityId, CsvLinePredicate predicate, BlockCallback callback) {
+		this.entityId = entityId;
+		this.predicate = predicate;
+		this.callback = callback;
+	}
+	
+	/**
+	 * Compiles the predicate against the entity's columns straight away, so that a
+	 * predicate naming a column that isn't there fails here rather than on the
+	 * thread publishing updates.
+	 * 
+	 * @throws IllegalArgumentException if the predicate names a missing column
+	 */
+	public CsvLineCallbackFiltered(String entityId, CsvLinePredicate predicate, String columnNamesCsv, BlockCallback callback) {
+		this(entityId, predicate, callback);
+		compile(columnNamesCsv);
+	}
+	
+	@Override
+	public synchronized void processUpdate(String entityId, String columnNamesCsv, CsvLine csvLine) throws CsvUpdateBlockException {
+		if(!this.entityId.equals(entityId)) {
+			return;
+		}
+		if(compile(columnNamesCsv).matches(csvLine)) {
+			matchingIds.add(csvLine.getId());
+			callback.processUpdate(entityId, columnNamesCsv, csvLine);
+		} else if(matchingIds.remove(csvLine.getId())) {
+			callback.processRemove(entityId, columnNamesCsv, csvLine.getId());
+		}
+	}
+	
+	@Override
+	public synchronized void processRemove(String entityId, String columnNamesCsv, String id) throws CsvUpdateBlockException {
+		if(this.entityId.equals(entityId) && matchingIds.remove(id)) {
+			callback.processRemove(entityId, columnNamesCsv, id);
+		}
+	}
+	
+	@Override
+	public synchronized void startBulkUpdate(String entityId, String columnNamesCsv) throws CsvUpdateBlockException {
+		if(this.entityId.equals(entityId)) {
+			matchingIds.clear();
+			callback.startBulkUpdate(entityId, columnNamesCsv);
+		}
+	}
+	
+	@Override
+	public void startBulkUpdateForGroup(String entityId, String group, String idWithinGroup) throws CsvUpdateBlockException {
+		if(this.entityId.equals(entityId)) {
+			callback.startBulkUpdateForGroup(entityId, group, idWithinGroup);
+		}
+	}
+	
+	@Override
+	public void start(Collection<String> entityIds) throws CsvUpdateBlockException {
+		callback.start(entityIds);
+	}
+	
+	@Override
+	public void finish() throws CsvUpdateBlockException {
+		callback.finish();
+	}
+	
+	@Override
+	public void cancel() {
+		callback.cancel();
+	}
+	
+	/**
+	 * Compiled again only if the columns change.
+	 */
+	private CsvLinePredicate.Compiled compile(String columnNamesCsv) {
+		if(!columnNamesCsv.equals(compiledColumnNamesCsv)) {
+			compiled = predicate.compile(columnNamesCsv);
+			compiledColumnNamesCsv = columnNamesCsv;
+		}
+		return compiled;
+	}
+	
+	@Override
+	public String toString() {
+		return "CsvLineCallbackFiltered(" + entityId + " where " + predicate + ") - " + callback;
+	}
+	
+}
@@ -0,0 +1,69 @@
+package org.commacq;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+
+/**
+ * Writes lines to a byte stream as UTF-8. Lines that are already held
+ * as UTF-8 are copied straight to the stream without being decoded.
+ * 
+ * The counterpart of CsvLineCallbackWriter for sockets and files.
+ */
+public class CsvLineCallbackOutputStream implements BlockCallback {
+	
+	private static final byte NEWLINE = '\n';
+	
+	private final OutputStream outputStream;
+	
+	public CsvLineCallbackOutputStream(OutputStream outputStream, String columnNamesCsv) throws IOException {
+		this.outputStream = outputStream;
+		outputStream.write(columnNamesCsv.getBytes(CsvLine.UTF8));
+		outputStream.write(NEWLINE);
+	}
+	
+	@Override
+	public void processUpdate(String entityId, String columnNamesCsv, CsvLine csvLine) throws CsvUpdateBlockException {
+		try {
+			outputStream.write(csvLine.getCsvLineUtf8());
+			outputStream.write(NEWLINE);
+		} catch (IOException ex) {
+			throw new CsvUpdateBlockException(ex);
+		}
+	}
+	
+	@Override
+	public void processRemove(String entityId, String columnNamesCsv, String id) throws CsvUpdateBlockException {
+		try {
+			outputStream.write(id.getBytes(CsvLine.UTF8));
+			outputStream.write(NEWLINE);
+		} catch (IOException ex) {
+			throw new CsvUpdateBlockException(ex);
+		}
+	}
+	
+	@Override
+	public void start(Collection<String> entityIds) throws CsvUpdateBlockException {		
+		//No behaviour defined.
+	}
+	
+	@Override
+	public final void finish() throws CsvUpdateBlockException {
+		//No behaviour defined.
+	}
+	
+	@Override
+	public final void startBulkUpdate(String entityId, String columnNamesCsv) throws CsvUpdateBlockException {
+		//No behaviour defined.
+	}
+	
+	@Override
+	public final void startBulkUpdateForGroup(String entityId, String group, String idWithinGroup) throws CsvUpdateBlockException {
+		//No behaviour defined.
+	}
+	
+	@Override
+	public void cancel() {
+		//No behaviour defined.		
+	}
+}
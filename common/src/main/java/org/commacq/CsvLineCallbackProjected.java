@@ -0,0 +1,98 @@
+package org.commacq;
+
+import java.util.Collection;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Passes on the lines of an entity cut down to a subset of their columns,
+ * with the column names to match. Lines of other entities are passed on as they are.
+ */
+@ThreadSafe
+public class CsvLineCallbackProjected implements BlockCallback {
+
+	private final String entityId;
+	private final Collection<String> columns;
+	private final BlockCallback callback;
+	private volatile CsvLineProjection projection;
+	
+	public CsvLineCallbackProjected(String entityId, Collection<String> columns, BlockCallback callback) {
+		this.entityId = entityId;
+		this.columns = columns;
+		this.callback = callback;
+	}
+	
+	/**
+	 * Works out the projection from the entity's columns straight away, so that
+	 * a missing column fails here rather than on the thread publishing updates.
+	 * 
+	 * @throws IllegalArgumentException if a column isn't there
+	 */
+	public CsvLineCallbackProjected(String entityId, Collection<String> columns, String columnNamesCsv, BlockCallback callback) {
+		this(entityId, columns, callback);
+		projection(columnNamesCsv);
+	}
+	
+	@Override
+	public void processUpdate(String entityId, String columnNamesCsv, CsvLine csvLine) throws CsvUpdateBlockException {
+		if(!this.entityId.equals(entityId)) {
+			callback.processUpdate(entityId, columnNamesCsv, csvLine);
+			return;
+		}
+		CsvLineProjection projection = projection(columnNamesCsv);
+		callback.processUpdate(entityId, projection.getColumnNamesCsv(), projection.project(csvLine));
+	}
+	
+	@Override
+	public void processRemove(String entityId, String columnNamesCsv, String id) throws CsvUpdateBlockException {
+		if(!this.entityId.equals(entityId)) {
+			callback.processRemove(entityId, columnNamesCsv, id);
+			return;
+		}
+		callback.processRemove(entityId, projection(columnNamesCsv).getColumnNamesCsv(), id);
+	}
+	
+	@Override
+	public void startBulkUpdate(String entityId, String columnNamesCsv) throws CsvUpdateBlockException {
+		if(!this.entityId.equals(entityId)) {
+			callback.startBulkUpdate(entityId, columnNamesCsv);
+			return;
+		}
+		callback.startBulkUpdate(entityId, projection(columnNamesCsv).getColumnNamesCsv());
+	}
+	
+	@Override
+	public void startBulkUpdateForGroup(String entityId, String group, String idWithinGroup) throws CsvUpdateBlockException {
+		callback.startBulkUpdateForGroup(entityId, group, idWithinGroup);
+	}
+	
+	@Override
+	public void start(Collection<String> entityIds) throws CsvUpdateBlockException {
+		callback.start(entityIds);
+	}
+	
+	@Override
+	public void finish() throws CsvUpdateBlockException {
+		callback.finish();
+	}
+	
+	@Override
+	public void cancel() {
+		callback.cancel();
+	}
+	
+	private CsvLineProjection projection(String columnNamesCsv) {
+		CsvLineProjection current = projection;
+		if(current == null || !current.getSourceColumnNamesCsv().equals(columnNamesCsv)) {
+			current = CsvLineProjection.forColumns(columnNamesCsv, columns);
+			projection = current;
+		}
+		return current;
+	}
+	
+	@Override
+	public String toString() {
+		return "CsvLineCallbackProjected(" + entityId + " " + columns + ") - " + callback;
+	}
+	
+}
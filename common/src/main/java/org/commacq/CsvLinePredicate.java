@@ -0,0 +1,168 @@
+package org.commacq;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.concurrent.Immutable;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * A condition on the values of named columns, used to subscribe to
+ * only the lines of an entity that match it.
+ * 
+ * A predicate is compiled against the column names of an entity, which works out
+ * where each column sits on the line once. Testing a line then picks out just the
+ * columns the predicate needs rather than splitting the whole line.
+ * 
+ * Empty (null) values never match.
+ */
+@Immutable
+public abstract class CsvLinePredicate {
+
+	/**
+	 * A predicate bound to the columns of one entity.
+	 */
+	public interface Compiled {
+		boolean matches(CsvLine csvLine);
+	}
+	
+	/**
+	 * @throws IllegalArgumentException if the predicate refers to a column that isn't there
+	 */
+	public abstract Compiled compile(String columnNamesCsv);
+	
+	public static CsvLinePredicate equalTo(String column, String value) {
+		return in(column, Arrays.asList(value));
+	}
+	
+	public static CsvLinePredicate in(String column, Collection<String> values) {
+		final Set<String> valueSet = new HashSet<String>(values);
+		return new ColumnPredicate(column) {
+			@Override
+			boolean test(String value) {
+				return valueSet.contains(value);
+			}
+			
+			@Override
+			public String toString() {
+				return column + " in " + valueSet;
+			}
+		};
+	}
+	
+	public static CsvLinePredicate startsWith(String column, final String prefix) {
+		return new ColumnPredicate(column) {
+			@Override
+			boolean test(String value) {
+				return value.startsWith(prefix);
+			}
+			
+			@Override
+			public String toString() {
+				return column + " starts with " + prefix;
+			}
+		};
+	}
+	
+	/**
+	 * Bounds that are both numbers compare values as numbers, and values that
+	 * aren't numbers don't match. Otherwise values are compared as strings.
+	 * 
+	 * @param lowerInclusive null for no lower bound
+	 * @param upperInclusive null for no upper bound
+	 */
+	public static CsvLinePredicate between(String column, final String lowerInclusive, final String upperInclusive) {
+		final BigDecimal lowerNumber = lowerInclusive == null ? null : toNumber(lowerInclusive);
+		final BigDecimal upperNumber = upperInclusive == null ? null : toNumber(upperInclusive);
+		final boolean numeric = (lowerInclusive == null || lowerNumber != null) && (upperInclusive == null || upperNumber != null);
+		return new ColumnPredicate(column) {
+			@Override
+			boolean test(String value) {
+				if(numeric) {
+					BigDecimal number = toNumber(value);
+					return number != null
+					    && (lowerNumber == null || number.compareTo(lowerNumber) >= 0)
+					    && (upperNumber == null || number.compareTo(upperNumber) <= 0);
+				}
+				return (lowerInclusive == null || value.compareTo(lowerInclusive) >= 0)
+				    && (upperInclusive == null || value.compareTo(upperInclusive) <= 0);
+			}
+			
+			@Override
+			public String toString() {
+				return column + " between " + lowerInclusive + " and " + upperInclusive;
+			}
+		};
+	}
+	
+	public static CsvLinePredicate and(final CsvLinePredicate... predicates) {
+		Validate.notEmpty(predicates);
+		return new CsvLinePredicate() {
+			@Override
+			public Compiled compile(String columnNamesCsv) {
+				final Compiled[] compiled = new Compiled[predicates.length];
+				for(int i = 0; i < predicates.length; i++) {
+					compiled[i] = predicates[i].compile(columnNamesCsv);
+				}
+				return new Compiled() {
+					@Override
+					public boolean matches(CsvLine csvLine) {
+						for(Compiled predicate : compiled) {
+							if(!predicate.matches(csvLine)) {
+								return false;
+							}
+						}
+						return true;
+					}
+				};
+			}
+			
+			@Override
+			public String toString() {
+				return Arrays.toString(predicates);
+			}
+		};
+	}
+	
+	private static BigDecimal toNumber(String value) {
+		try {
+			return new BigDecimal(value);
+		} catch(NumberFormatException ex) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Tests the value of a single column.
+	 */
+	private abstract static class ColumnPredicate extends CsvLinePredicate {
+		final String column;
+		
+		ColumnPredicate(String column) {
+			this.column = Validate.notEmpty(column);
+		}
+		
+		/**
+		 * @param value never null
+		 */
+		abstract boolean test(String value);
+		
+		@Override
+		public Compiled compile(String columnNamesCsv) {
+			final int index = Arrays.asList(columnNamesCsv.split(",")).indexOf(column);
+			Validate.isTrue(index >= 0, "No column %s in %s", column, columnNamesCsv);
+			return new Compiled() {
+				@Override
+				public boolean matches(CsvLine csvLine) {
+					String value = CsvFields.field(csvLine.getCsvLineUtf8(), index);
+					return value != null && test(value);
+				}
+			};
+		}
+	}
+	
+}
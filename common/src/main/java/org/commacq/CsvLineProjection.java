@@ -0,0 +1,116 @@
+package org.commacq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.concurrent.Immutable;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Cuts lines down to a subset of their columns, for consumers that only need a few
+ * of an entity's columns.
+ * 
+ * The position of each requested column is worked out once from the column names.
+ * Projecting a line finds the boundaries of the fields it needs in one pass over
+ * the UTF-8 bytes and copies those fields across exactly as they are, so nothing
+ * is unquoted, decoded or re-escaped.
+ * 
+ * The id column always comes first, followed by the requested columns in the
+ * order they were asked for. Projections are shared between everyone asking for
+ * the same columns of the same entity.
+ */
+@Immutable
+public final class CsvLineProjection {
+
+	private static final int MAX_CACHED_PROJECTIONS = 1000;
+	private static final ConcurrentMap<String, CsvLineProjection> projections = new ConcurrentHashMap<String, CsvLineProjection>();
+	
+	private final String sourceColumnNamesCsv;
+	private final String columnNamesCsv;
+	private final int[] indexes;
+	private final int lastIndex;
+	
+	private CsvLineProjection(String sourceColumnNamesCsv, Collection<String> columns) {
+		this.sourceColumnNamesCsv = sourceColumnNamesCsv;
+		List<String> sourceColumns = Arrays.asList(sourceColumnNamesCsv.split(","));
+		List<String> projectedColumns = new ArrayList<String>(columns.size() + 1);
+		projectedColumns.add("id");
+		for(String column : columns) {
+			if(!projectedColumns.contains(column)) {
+				projectedColumns.add(column);
+			}
+		}
+		
+		indexes = new int[projectedColumns.size()];
+		int last = 0;
+		for(int i = 0; i < indexes.length; i++) {
+			indexes[i] = sourceColumns.indexOf(projectedColumns.get(i));
+			Validate.isTrue(indexes[i] >= 0, "No column %s in %s", projectedColumns.get(i), sourceColumnNamesCsv);
+			last = Math.max(last, indexes[i]);
+		}
+		lastIndex = last;
+		columnNamesCsv = StringUtils.join(projectedColumns, ',');
+	}
+	
+	/**
+	 * @param columnNamesCsv the columns of the entity's lines
+	 * @param columns the columns wanted; id is always included
+	 * @throws IllegalArgumentException if a column isn't there
+	 */
+	public static CsvLineProjection forColumns(String columnNamesCsv, Collection<String> columns) {
+		String key = columnNamesCsv + '\n' + StringUtils.join(columns, ',');
+		CsvLineProjection projection = projections.get(key);
+		if(projection == null) {
+			projection = new CsvLineProjection(columnNamesCsv, columns);
+			if(projections.size() >= MAX_CACHED_PROJECTIONS) {
+				projections.clear();
+			}
+			projections.put(key, projection);
+		}
+		return projection;
+	}
+	
+	/**
+	 * The columns of the lines being projected.
+	 */
+	public String getSourceColumnNamesCsv() {
+		return sourceColumnNamesCsv;
+	}
+	
+	/**
+	 * The header of the projected lines.
+	 */
+	public String getColumnNamesCsv() {
+		return columnNamesCsv;
+	}
+	
+	public CsvLine project(CsvLine csvLine) {
+		byte[] line = csvLine.getCsvLineUtf8();
+		int[] starts = new int[lastIndex + 1];
+		int[] ends = new int[lastIndex + 1];
+		CsvFields.offsets(line, lastIndex, starts, ends);
+		
+		int length = indexes.length - 1;
+		for(int index : indexes) {
+			length += ends[index] - starts[index];
+		}
+		byte[] projected = new byte[length];
+		int position = 0;
+		for(int i = 0; i < indexes.length; i++) {
+			if(i > 0) {
+				projected[position++] = ',';
+			}
+			int index = indexes[i];
+			System.arraycopy(line, starts[index], projected, position, ends[index] - starts[index]);
+			position += ends[index] - starts[index];
+		}
+		return new CsvLine(csvLine.getId(), projected, csvLine.getGroupValues());
+	}
+	
+}
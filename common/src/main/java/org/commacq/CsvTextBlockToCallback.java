@@ -2,62 +2,71 @@ package org.commacq;
 
 import java.io.IOException;
 import java.io.Reader;
-import java.io.StringReader;
-import java.util.List;
 
 import lombok.extern.slf4j.Slf4j;
 
 import org.apache.commons.lang3.Validate;
-import org.supercsv.io.CsvListReader;
-import org.supercsv.prefs.CsvPreference;
 
 @Slf4j
 public class CsvTextBlockToCallback {
 	
 	public String getCsvColumnNames(Reader text) {
-		CsvListReader parser = new CsvListReader(text, CsvPreference.STANDARD_PREFERENCE);
+		CsvTokenizer tokenizer = new CsvTokenizer().reset(text);
 		//Try-with-resources when upgrading to Java 7
 		try {
-			parser.read();
-			return parser.getUntokenizedRow();
+			return tokenizer.nextLine() ? tokenizer.getLine() : null;
 		} catch (IOException ex) {
 			throw new RuntimeException(ex);
 		} finally {
 			try {
-				parser.close();
+				text.close();
 			} catch(IOException ex) {
 			}
 		}
 	}
 	
 	public void presentTextBlockToCsvLineCallback(String entityId, String text, LineCallback callback) {
-		presentTextBlockToCsvLineCallback(entityId, new StringReader(text), callback);
+		presentTokenizedLinesToCsvLineCallback(entityId, new CsvTokenizer().reset(text), callback);
 	}
 	
 	public void presentTextBlockToCsvLineCallback(String entityId, Reader textReader, LineCallback callback) {
-		
-		CsvListReader parser = new CsvListReader(textReader, CsvPreference.STANDARD_PREFERENCE);
 		try {
-			final String[] header = parser.getHeader(true);
-			final String columnNamesCsv = parser.getUntokenizedRow();		
-			Validate.notEmpty(columnNamesCsv, "At least the header row is required in the CSV text");
-			final String firstColumnHeader = header[0];
+			presentTokenizedLinesToCsvLineCallback(entityId, new CsvTokenizer().reset(textReader), callback);
+		} finally {
+			try {
+				textReader.close();
+			} catch (IOException ex) {
+				log.warn("Error closing CSV reader", ex);
+			}
+		}
+	}
+	
+	/**
+	 * @param tokenizer positioned before the header row, or on it if it has already been read
+	 */
+	public void presentTokenizedLinesToCsvLineCallback(String entityId, CsvTokenizer tokenizer, LineCallback callback) {
+		try {
+			if(tokenizer.getFieldCount() == 0) {
+				tokenizer.nextLine();
+			}
+			Validate.isTrue(tokenizer.getLineLength() > 0, "At least the header row is required in the CSV text");
+			final String columnNamesCsv = tokenizer.getLine();
+			final String firstColumnHeader = tokenizer.getField(0);
 			Validate.notEmpty(firstColumnHeader, "The CSV header row must contain at least one column");
+			final boolean idFirst = firstColumnHeader.equals("id");
 			
 			try {				
-				List<String> csv;
-				while((csv = parser.read()) != null) {
-					String csvLine = parser.getUntokenizedRow();
-					
-					if(firstColumnHeader.equals("id")) {
-						if(csv.size() > 1) {
-							callback.processUpdate(entityId, columnNamesCsv, new CsvLine(csv.get(0), csvLine));				
-						} else {
-							callback.processRemove(entityId, columnNamesCsv, csv.get(0));
-						}
+				while(tokenizer.nextLine()) {
+					if(!idFirst) {
+						//Groups are refreshed by asking an UpdatableLayer to reload them, which
+						//queries all the members; a text block of lines must start with the id
+						throw new RuntimeException("The first column must be id, not " + firstColumnHeader
+								+ "; reload a group with UpdatableLayer.reloadGroup");
+					}
+					if(tokenizer.getFieldCount() > 1) {
+						callback.processUpdate(entityId, columnNamesCsv, new CsvLine(tokenizer.getField(0), tokenizer.getLine()));				
 					} else {
-						//TODO the CsvDataSource should query all members of the group and push them to their subscribers.
-						throw new RuntimeException("Update by group not yet supported");
+						callback.processRemove(entityId, columnNamesCsv, tokenizer.getField(0));
 					}
 				}
 			} catch(CsvUpdateBlockException ex) {
@@ -66,12 +75,6 @@ public class CsvTextBlockToCallback {
 			
 		} catch (IOException ex) {
 			throw new RuntimeException("Error parsing CSV", ex);
-		} finally {
-			try {
-				parser.close();
-			} catch (IOException ex) {
-				log.warn("Error closing CSV parser", ex);
-			}
 		}
 	}
 	
@@ -0,0 +1,290 @@
+package org.commacq;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Splits CSV text into lines and fields in a single pass.
+ *
+ * The tokenizer is a reusable cursor over its own character buffer. Each call to
+ * {@link #nextLine()} moves on to the next line and records where each of its
+ * fields starts and ends; nothing is allocated per line or per field. Callers pick
+ * out just the parts they need: the whole line with {@link #getLine()}, a single
+ * field with {@link #getField(int)}, or the raw characters with {@link #getBuffer()}.
+ *
+ * Quoted fields may contain commas, doubled quotes and line breaks. Lines may end
+ * with \n, \r\n or \r, and empty lines are skipped. An unquoted empty field is null,
+ * whereas a quoted empty field is an empty String.
+ *
+ * Lines held as UTF-8 bytes are split by CsvFields instead.
+ */
+@NotThreadSafe
+public final class CsvTokenizer {
+
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+	private static final int INITIAL_FIELDS = 16;
+
+	private Reader reader;
+	private char[] buffer;
+	private int limit;
+	private boolean endOfInput;
+
+	private int lineStart;
+	private int lineLength;
+	private int nextLineStart;
+
+	private int fieldCount;
+	//Relative to lineStart, so they stay valid when the buffer is compacted
+	private int[] starts = new int[INITIAL_FIELDS];
+	private int[] ends = new int[INITIAL_FIELDS];
+
+	/**
+	 * Tokenizes the whole of the text, which is copied once into the buffer.
+	 */
+	public CsvTokenizer reset(String text) {
+		this.reader = null;
+		this.buffer = text.toCharArray();
+		this.limit = buffer.length;
+		this.endOfInput = true;
+		return start();
+	}
+
+	/**
+	 * Reads text from the reader as it is needed. The reader is not closed.
+	 */
+	public CsvTokenizer reset(Reader reader) {
+		this.reader = reader;
+		if(buffer == null || buffer.length < INITIAL_BUFFER_SIZE) {
+			buffer = new char[INITIAL_BUFFER_SIZE];
+		}
+		this.limit = 0;
+		this.endOfInput = false;
+		return start();
+	}
+
+	private CsvTokenizer start() {
+		lineStart = 0;
+		lineLength = 0;
+		nextLineStart = 0;
+		fieldCount = 0;
+		return this;
+	}
+
+	/**
+	 * Moves on to the next line that isn't empty.
+	 *
+	 * @return false at the end of the text
+	 */
+	public boolean nextLine() throws IOException {
+		do {
+			lineStart = nextLineStart;
+			lineLength = 0;
+			fieldCount = 0;
+			if(!available(0)) {
+				return false;
+			}
+			scanLine();
+		} while(fieldCount == 1 && lineLength == 0);
+		return true;
+	}
+
+	private void scanLine() throws IOException {
+		int position = 0;
+		while(true) {
+			int fieldStart = position;
+			if(available(position) && buffer[lineStart + position] == '"') {
+				position++;
+				while(available(position)) {
+					if(buffer[lineStart + position] == '"') {
+						if(available(position + 1) && buffer[lineStart + position + 1] == '"') {
+							position += 2;
+							continue;
+						}
+						position++;
+						break;
+					}
+					position++;
+				}
+			}
+			while(available(position)) {
+				char c = buffer[lineStart + position];
+				if(c == ',' || c == '\n' || c == '\r') {
+					break;
+				}
+				position++;
+			}
+			addField(fieldStart, position);
+
+			if(available(position) && buffer[lineStart + position] == ',') {
+				position++;
+				continue;
+			}
+
+			lineLength = position;
+			if(available(position) && buffer[lineStart + position] == '\r') {
+				position++;
+			}
+			if(available(position) && buffer[lineStart + position] == '\n') {
+				position++;
+			}
+			nextLineStart = lineStart + position;
+			return;
+		}
+	}
+
+	private void addField(int start, int end) {
+		if(fieldCount == starts.length) {
+			int[] newStarts = new int[fieldCount * 2];
+			int[] newEnds = new int[fieldCount * 2];
+			System.arraycopy(starts, 0, newStarts, 0, fieldCount);
+			System.arraycopy(ends, 0, newEnds, 0, fieldCount);
+			starts = newStarts;
+			ends = newEnds;
+		}
+		starts[fieldCount] = start;
+		ends[fieldCount] = end;
+		fieldCount++;
+	}
+
+	/**
+	 * Reads more text if the character at this position within the current line
+	 * hasn't been read yet.
+	 */
+	private boolean available(int position) throws IOException {
+		while(lineStart + position >= limit) {
+			if(endOfInput) {
+				return false;
+			}
+			fill();
+		}
+		return true;
+	}
+
+	private void fill() throws IOException {
+		if(lineStart > 0) {
+			//Keep only the current line
+			System.arraycopy(buffer, lineStart, buffer, 0, limit - lineStart);
+			limit -= lineStart;
+			nextLineStart -= lineStart;
+			lineStart = 0;
+		}
+		if(limit == buffer.length) {
+			char[] newBuffer = new char[buffer.length * 2];
+			System.arraycopy(buffer, 0, newBuffer, 0, limit);
+			buffer = newBuffer;
+		}
+		int read = reader.read(buffer, limit, buffer.length - limit);
+		if(read == -1) {
+			endOfInput = true;
+		} else {
+			limit += read;
+		}
+	}
+
+	public int getFieldCount() {
+		return fieldCount;
+	}
+
+	/**
+	 * @return the current line exactly as it appeared, without its line break
+	 */
+	public String getLine() {
+		return new String(buffer, lineStart, lineLength);
+	}
+
+	/**
+	 * The buffer holding the current line from {@link #getLineStart()}. Only valid
+	 * until the next call to {@link #nextLine()}, and must not be modified.
+	 */
+	public char[] getBuffer() {
+		return buffer;
+	}
+
+	public int getLineStart() {
+		return lineStart;
+	}
+
+	public int getLineLength() {
+		return lineLength;
+	}
+
+	/**
+	 * @return the position of the field within the buffer, including any quotes
+	 */
+	public int getFieldStart(int index) {
+		return lineStart + starts[index];
+	}
+
+	/**
+	 * @return the position after the end of the field within the buffer
+	 */
+	public int getFieldEnd(int index) {
+		return lineStart + ends[index];
+	}
+
+	/**
+	 * @return the field with any quoting removed; null if the field is empty or missing
+	 */
+	public String getField(int index) {
+		if(index >= fieldCount) {
+			return null;
+		}
+		int start = lineStart + starts[index];
+		int end = lineStart + ends[index];
+		if(start == end) {
+			return null;
+		}
+		if(buffer[start] != '"') {
+			return new String(buffer, start, end - start);
+		}
+
+		StringBuilder unquoted = new StringBuilder(end - start);
+		boolean inQuotes = true;
+		for(int i = start + 1; i < end; i++) {
+			char c = buffer[i];
+			if(inQuotes && c == '"') {
+				if(i + 1 < end && buffer[i + 1] == '"') {
+					i++;
+				} else {
+					inQuotes = false;
+					continue;
+				}
+			}
+			unquoted.append(c);
+		}
+		return unquoted.toString();
+	}
+
+	/**
+	 * Compares an unquoted field with the text without creating a String.
+	 */
+	public boolean fieldEquals(int index, String text) {
+		if(index >= fieldCount) {
+			return false;
+		}
+		int start = lineStart + starts[index];
+		int length = ends[index] - starts[index];
+		if(length != text.length()) {
+			return false;
+		}
+		for(int i = 0; i < length; i++) {
+			if(buffer[start + i] != text.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Adds every field of the current line to the list, for callers that want them all.
+	 */
+	public void getFields(List<String> fields) {
+		for(int i = 0; i < fieldCount; i++) {
+			fields.add(getField(i));
+		}
+	}
+
+}
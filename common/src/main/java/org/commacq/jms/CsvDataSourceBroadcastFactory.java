@@ -4,7 +4,9 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
@@ -16,6 +18,7 @@ import javax.jms.TemporaryQueue;
 import javax.jms.TextMessage;
 
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 
 import org.apache.commons.lang3.StringUtils;
 import org.commacq.CsvDataSource;
@@ -38,6 +41,16 @@ public class CsvDataSourceBroadcastFactory {
 	private final String broadcastTopicPattern;
 	private final int timeoutInSeconds;
 	
+	/**
+	 * "deflate" to ask the server for compressed query replies
+	 */
+	@Setter private String acceptEncoding;
+	
+	/**
+	 * Greater than 0 to have initial loads streamed in chunks of about this many characters
+	 */
+	@Setter private int streamChunkChars = 0;
+	
 	/**
 	 * Creates a proxy layer by requesting all entity ids from the upstream server
 	 * and creating a data source for each entity.
@@ -92,24 +105,27 @@ public class CsvDataSourceBroadcastFactory {
 		}
 		
 		List<CsvDataSource> sources = new ArrayList<CsvDataSource>();
+		Map<String, CsvDataSourceJmsQuery> queries = new HashMap<String, CsvDataSourceJmsQuery>();
 		for(String entityId : entityIds) {
-			final CsvDataSourceJmsQuery jmsQuery = new CsvDataSourceJmsQuery(entityId, connectionFactory, queryQueue);
-			sources.add(jmsQuery);			
+			final CsvDataSourceJmsQuery jmsQuery = new CsvDataSourceJmsQuery(entityId, connectionFactory, queryQueue, acceptEncoding);
+			jmsQuery.setStreamChunkChars(streamChunkChars);
+			sources.add(jmsQuery);
+			queries.put(entityId, jmsQuery);			
 		}
 		
 		UpdatableLayer outputLayer = new DataSourceCollectionLayer(sources);
 		
 		for(String entityId : entityIds) {
-			createBroadcastListener(entityId, outputLayer);
+			createBroadcastListener(entityId, outputLayer, queries.get(entityId));
 		}
 		
 		return outputLayer;
 	}
 	
-	private void createBroadcastListener(final String entityId, final UpdatableLayer layer) throws JMSException {
+	private void createBroadcastListener(final String entityId, final UpdatableLayer layer, CsvDataSourceJmsQuery replaySource) throws JMSException {
 		String broadcastTopic = String.format(broadcastTopicPattern, entityId);
 		
-		JmsBroadcastClient broadcastClient = new JmsBroadcastClient(entityId, layer, connectionFactory, broadcastTopic);
+		JmsBroadcastClient broadcastClient = new JmsBroadcastClient(entityId, layer, connectionFactory, broadcastTopic, replaySource);
 		broadcastClient.init();
 		broadcastClient.start();
 		
@@ -1,9 +1,8 @@
 package org.commacq.jms;
 
 import java.io.IOException;
-import java.io.StringReader;
 import java.util.Collection;
-import java.util.List;
+import java.util.UUID;
 
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
@@ -14,16 +13,18 @@ import javax.jms.TextMessage;
 
 import lombok.extern.slf4j.Slf4j;
 
+import org.apache.commons.lang3.StringUtils;
 import org.commacq.CsvDataSource;
 import org.commacq.CsvLine;
 import org.commacq.CsvLineCallbackListImpl;
+import org.commacq.CsvTextBlockToCallback;
+import org.commacq.CsvTokenizer;
 import org.commacq.CsvUpdateBlockException;
 import org.commacq.LineCallback;
+import org.commacq.layer.ReplayResult;
 import org.springframework.jms.core.JmsTemplate;
 import org.springframework.jms.core.MessageCreator;
 import org.springframework.jms.core.SessionCallback;
-import org.supercsv.io.CsvListReader;
-import org.supercsv.prefs.CsvPreference;
 
 @Slf4j
 public class CsvDataSourceJmsQuery implements CsvDataSource {
@@ -33,9 +34,21 @@ public class CsvDataSourceJmsQuery implements CsvDataSource {
 	private final String queryQueue;
 	private final JmsTemplate jmsTemplate;
 	private final Queue replyQueue;
+	private final String acceptEncoding;
+	private final CsvTextBlockToCallback csvTextBlockToCallback = new CsvTextBlockToCallback();
+	private volatile int streamChunkChars = 0;
+	private volatile String columns;
 	
 	public CsvDataSourceJmsQuery(String entityId, ConnectionFactory connectionFactory, String initialLoadQueue) {
+		this(entityId, connectionFactory, initialLoadQueue, null);
+	}
+	
+	/**
+	 * @param acceptEncoding "deflate" to ask the server for compressed replies, or null for plain text
+	 */
+	public CsvDataSourceJmsQuery(String entityId, ConnectionFactory connectionFactory, String initialLoadQueue, String acceptEncoding) {
 		this.entityId = entityId;
+		this.acceptEncoding = acceptEncoding;
 		this.connectionFactory = connectionFactory;
 		this.queryQueue = initialLoadQueue;
 		
@@ -49,6 +62,28 @@ public class CsvDataSourceJmsQuery implements CsvDataSource {
 		});
 	}
 	
+	/**
+	 * Asks the server to send initial loads as a stream of messages of about this
+	 * many characters each, which are handed to the callback as they arrive.
+	 * 0, the default, asks for a single message.
+	 */
+	public void setStreamChunkChars(int streamChunkChars) {
+		this.streamChunkChars = streamChunkChars;
+	}
+	
+	public int getStreamChunkChars() {
+		return streamChunkChars;
+	}
+	
+	/**
+	 * Asks the server for only the id and these columns of each line, or every
+	 * column if null. Broadcasts always carry every column, so this is for
+	 * clients that only query.
+	 */
+	public void setColumns(Collection<String> columns) {
+		this.columns = columns == null ? null : StringUtils.join(columns, ',');
+	}
+	
 	public int getTimeoutInSeconds() {
 		return (int)(jmsTemplate.getReceiveTimeout() / 1000);
 	}
@@ -126,42 +161,118 @@ public class CsvDataSourceJmsQuery implements CsvDataSource {
 		return listCallback.getColumnNamesCsv();
 	}
 	
+	/**
+	 * Asks the server for the changes made to the entity since the given epoch and sequence,
+	 * which are presented to the callback as updates and removals. If the server can't replay
+	 * them, nothing is presented and the caller has to load the whole entity again.
+	 */
+	public ReplayResult replaySince(final long epoch, final long sequence, LineCallback callback) {
+		String selector = sendRequest(new MessageSetter() {
+			@Override
+			public void addProperties(TextMessage message) throws JMSException {
+				message.setStringProperty(MessageFields.command, MessageFields.command_replay);
+				message.setLongProperty(MessageFields.sequenceEpoch, epoch);
+				message.setLongProperty(MessageFields.sequence, sequence);
+			}
+		});
+		
+		Message reply = receiveReply(selector);
+		try {
+			if(!reply.propertyExists(MessageFields.replayed)) {
+				log.info("Server does not support replay: {}", entityId);
+				return new ReplayResult(false, 0, -1);
+			}
+			ReplayResult result = new ReplayResult(reply.getBooleanProperty(MessageFields.replayed),
+					                               reply.getLongProperty(MessageFields.sequenceEpoch),
+					                               reply.getLongProperty(MessageFields.sequence));
+			if(result.isReplayed()) {
+				String text = CsvMessageEncoding.getText(reply);
+				if(!text.isEmpty()) {
+					csvTextBlockToCallback.presentTextBlockToCsvLineCallback(entityId, text, callback);
+				}
+			}
+			return result;
+		} catch (JMSException ex) {
+			throw new RuntimeException("Could not read replay from server", ex);
+		}
+	}
+	
 	private void makeRequest(final LineCallback callback, final MessageSetter messageSetter) {
+		String selector = sendRequest(messageSetter);
+		for(int expectedChunk = 0; ; expectedChunk++) {
+			Message reply = receiveReply(selector);
+			
+			String text;
+			boolean endOfStream;
+			try {
+				//Servers that don't stream, or replies that aren't streamed, come as a single message
+				endOfStream = !reply.propertyExists(MessageFields.endOfStream) || reply.getBooleanProperty(MessageFields.endOfStream);
+				if(reply.propertyExists(MessageFields.chunkIndex)) {
+					int chunkIndex = reply.getIntProperty(MessageFields.chunkIndex);
+					if(chunkIndex != expectedChunk) {
+						throw new RuntimeException("Reply chunk " + chunkIndex + " arrived out of sequence, expected " + expectedChunk + ": " + entityId);
+					}
+				}
+				
+				text = CsvMessageEncoding.getText(reply);
+			} catch (JMSException ex) {
+				throw new RuntimeException("Could not read reply from server", ex);
+			}
+			
+			processResult(callback, text);
+			if(endOfStream) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * @return the selector that picks out the replies to the request
+	 */
+	private String sendRequest(final MessageSetter messageSetter) {
+		//Replies are picked out by correlation id so that stragglers
+		//from an earlier request that failed part way through are ignored
+		final String correlationId = UUID.randomUUID().toString();
 		jmsTemplate.send(queryQueue, new MessageCreator() {
 			@Override
 			public Message createMessage(Session session) throws JMSException {
 				TextMessage message = session.createTextMessage();
 				message.setJMSReplyTo(replyQueue);
+				message.setJMSCorrelationID(correlationId);
 				message.setStringProperty(MessageFields.entityId, entityId);
+				if(acceptEncoding != null) {
+					message.setStringProperty(MessageFields.acceptEncoding, acceptEncoding);
+				}
+				if(streamChunkChars > 0) {
+					message.setIntProperty(MessageFields.streamChunkChars, streamChunkChars);
+				}
+				if(columns != null) {
+					message.setStringProperty(MessageFields.columns, columns);
+				}
 				if(messageSetter != null) {
 					messageSetter.addProperties(message);
 				}
 				return message;
 			}
 		});
-		
-		TextMessage initialLoad = (TextMessage)jmsTemplate.receive(replyQueue);
-		if(initialLoad == null) {
+		return "JMSCorrelationID = '" + correlationId + "'";
+	}
+	
+	private Message receiveReply(String selector) {
+		Message reply = jmsTemplate.receiveSelected(replyQueue, selector);
+		if(reply == null) {
 			throw new RuntimeException("No data returned from server (timed out): " + entityId);
 		}
 		String error;
 		try {
-			error = initialLoad.getStringProperty("error");
+			error = reply.getStringProperty("error");
 		} catch (JMSException ex) {
 			throw new RuntimeException("Could not read error property", ex);
 		}
 		if(error != null) {
 			throw new RuntimeException("Error returned from server: " + error);
 		}
-		
-		String text;
-		try {
-			text = initialLoad.getText();
-		} catch (JMSException ex) {
-			throw new RuntimeException("Could not get text from message", ex);
-		}
-		
-		processResult(callback, text);
+		return reply;
 	}
 	
 	private interface MessageSetter {
@@ -169,18 +280,15 @@ public class CsvDataSourceJmsQuery implements CsvDataSource {
 	}
 	
 	private void processResult(LineCallback callback, String text) {
-		CsvListReader parser = new CsvListReader(new StringReader(text), CsvPreference.STANDARD_PREFERENCE);
+		CsvTokenizer tokenizer = new CsvTokenizer().reset(text);
 		
 		try {
 		
-			parser.getHeader(true);
-			String columnNamesCsv = parser.getUntokenizedRow();
+			tokenizer.nextLine();
+			String columnNamesCsv = tokenizer.getLine();
 			
-			List<String> body;
-			
-			while((body = parser.read()) != null) {
-				String line = parser.getUntokenizedRow();
-				CsvLine csvLine = new CsvLine(body.get(0), line);
+			while(tokenizer.nextLine()) {
+				CsvLine csvLine = new CsvLine(tokenizer.getField(0), tokenizer.getLine());
 				callback.processUpdate(entityId, columnNamesCsv, csvLine);
 			}
 			
@@ -188,12 +296,6 @@ public class CsvDataSourceJmsQuery implements CsvDataSource {
 			throw new RuntimeException(ex);
 		} catch(IOException ex) {
 			throw new RuntimeException("Error parsing CSV", ex);
-		} finally {
-			try {
-				parser.close();
-			} catch (IOException ex) {
-				log.warn("Error closing CSV parser", ex);
-			}
 		}
 	}
 	
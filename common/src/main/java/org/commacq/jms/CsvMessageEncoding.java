@@ -0,0 +1,151 @@
+package org.commacq.jms;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.commacq.CsvLine;
+
+/**
+ * Reads and writes the body of messages carrying CSV text.
+ * 
+ * By default the CSV travels as a TextMessage. With the "deflate" encoding
+ * it travels as a BytesMessage holding the UTF-8 text compressed with Deflate,
+ * behind an 8 byte header:
+ * 
+ * <pre>
+ * 'C' 'Q'  magic
+ * 1        format version
+ * 1        codec (1 = Deflate)
+ * int      length of the uncompressed UTF-8 text, big endian
+ * </pre>
+ * 
+ * The encoding is also set on the message as the encoding property.
+ * Readers should use {@link #getText(Message)}, which handles either form.
+ */
+public final class CsvMessageEncoding {
+
+	public static final String TEXT = "text";
+	public static final String DEFLATE = "deflate";
+	
+	static final int HEADER_LENGTH = 8;
+	private static final byte MAGIC_0 = 'C';
+	private static final byte MAGIC_1 = 'Q';
+	private static final byte VERSION = 1;
+	private static final byte CODEC_DEFLATE = 1;
+	
+	private CsvMessageEncoding() {
+	}
+	
+	/**
+	 * @param encoding null or blank for a plain TextMessage
+	 */
+	public static Message createMessage(Session session, String text, String encoding) throws JMSException {
+		if(!isDeflate(encoding)) {
+			TextMessage message = session.createTextMessage();
+			message.setText(text);
+			return message;
+		}
+		BytesMessage message = session.createBytesMessage();
+		message.writeBytes(encode(text));
+		message.setStringProperty(MessageFields.encoding, DEFLATE);
+		return message;
+	}
+	
+	public static String getText(Message message) throws JMSException {
+		if(message instanceof TextMessage) {
+			return ((TextMessage)message).getText();
+		}
+		if(message instanceof BytesMessage) {
+			BytesMessage bytesMessage = (BytesMessage)message;
+			byte[] body = new byte[(int)bytesMessage.getBodyLength()];
+			bytesMessage.readBytes(body);
+			return decode(body);
+		}
+		throw new JMSException("Unsupported message type for CSV: " + message.getClass().getName());
+	}
+	
+	/**
+	 * True if the encoding asked for, such as the acceptEncoding
+	 * property of a request, includes deflate.
+	 */
+	public static boolean isDeflate(String encoding) {
+		return encoding != null && encoding.trim().equalsIgnoreCase(DEFLATE);
+	}
+	
+	static byte[] encode(String text) {
+		byte[] utf8 = text.getBytes(CsvLine.UTF8);
+		
+		ByteArrayOutputStream output = new ByteArrayOutputStream(HEADER_LENGTH + utf8.length / 4 + 64);
+		output.write(MAGIC_0);
+		output.write(MAGIC_1);
+		output.write(VERSION);
+		output.write(CODEC_DEFLATE);
+		output.write(utf8.length >>> 24);
+		output.write(utf8.length >>> 16);
+		output.write(utf8.length >>> 8);
+		output.write(utf8.length);
+		
+		//CSV compresses well even at the fastest level, and the server does this for every block
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(utf8);
+			deflater.finish();
+			byte[] buffer = new byte[64 * 1024];
+			while(!deflater.finished()) {
+				int length = deflater.deflate(buffer);
+				output.write(buffer, 0, length);
+			}
+		} finally {
+			deflater.end();
+		}
+		return output.toByteArray();
+	}
+	
+	static String decode(byte[] body) throws JMSException {
+		if(body.length < HEADER_LENGTH || body[0] != MAGIC_0 || body[1] != MAGIC_1) {
+			throw new JMSException("Message body is not encoded CSV");
+		}
+		if(body[2] != VERSION || body[3] != CODEC_DEFLATE) {
+			throw new JMSException("Unsupported CSV encoding version " + body[2] + ", codec " + body[3]);
+		}
+		int length = ((body[4] & 0xFF) << 24) | ((body[5] & 0xFF) << 16) | ((body[6] & 0xFF) << 8) | (body[7] & 0xFF);
+		
+		byte[] utf8 = new byte[length];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(body, HEADER_LENGTH, body.length - HEADER_LENGTH);
+			int offset = 0;
+			byte[] overflow = new byte[1];
+			//Carry on until the end of the stream so that the checksum is checked
+			while(!inflater.finished()) {
+				int inflated = offset < length ? inflater.inflate(utf8, offset, length - offset) : inflater.inflate(overflow);
+				if(inflated == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new JMSException("Compressed CSV is truncated: expected " + length + " bytes, got " + offset);
+				}
+				offset += inflated;
+				if(offset > length) {
+					throw new JMSException("Compressed CSV is longer than its header says: " + length);
+				}
+			}
+			if(offset != length) {
+				throw new JMSException("Compressed CSV is truncated: expected " + length + " bytes, got " + offset);
+			}
+		} catch(DataFormatException ex) {
+			JMSException jmsException = new JMSException("Compressed CSV is corrupt: " + ex.getMessage());
+			jmsException.setLinkedException(ex);
+			throw jmsException;
+		} finally {
+			inflater.end();
+		}
+		return new String(utf8, CsvLine.UTF8);
+	}
+	
+}
@@ -1,18 +1,20 @@
 package org.commacq.jms;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageListener;
-import javax.jms.TextMessage;
 
 import lombok.extern.slf4j.Slf4j;
 
 import org.apache.commons.lang3.Validate;
 import org.commacq.CsvTextBlockToCallback;
 import org.commacq.CsvUpdateBlockException;
+import org.commacq.layer.ReplayResult;
 import org.commacq.layer.UpdatableLayer;
 import org.springframework.jms.listener.SimpleMessageListenerContainer;
 
@@ -25,6 +27,19 @@ import org.springframework.jms.listener.SimpleMessageListenerContainer;
  * 
  * Encapsulates the format of the incoming message, where an id with no additional
  * details and no trailing commas means a delete.
+ * 
+ * A large block arrives as several chunks. They are held until the last one
+ * arrives and then applied together as one block, so the layer never sees
+ * part of a block. If a chunk goes missing or the server cancels the block,
+ * the chunks received so far are thrown away.
+ * 
+ * Messages may be plain text or compressed; see CsvMessageEncoding.
+ * 
+ * Broadcasts from a server that keeps a journal carry the epoch and sequence that they
+ * bring the entity up to. Broadcasts that have already been covered by a replay are skipped.
+ * When the connection to the broker is recovered, broadcasts may have been missed, so
+ * the client catches up by asking the query source to replay the changes since the last
+ * sequence seen, and falls back to reloading the whole entity if it can't.
  */
 @Slf4j
 public class JmsBroadcastClient {
@@ -34,19 +49,45 @@ public class JmsBroadcastClient {
 	private final String broadcastTopic;
 	private final CsvTextBlockToCallback csvTextBlockToCallback = new CsvTextBlockToCallback();
 	private final UpdatableLayer csvUpdatableLayer;
+	private final CsvDataSourceJmsQuery replaySource; //null to always reload
 	
 	SimpleMessageListenerContainer broadcastUpdateListener;
 	
+	private final List<String> chunks = new ArrayList<String>();
+	private long chunkedBlockSequence = -1;
+	
+	//The point that the layer has been brought up to, if known
+	private long lastEpoch = 0;
+	private long lastSequence = -1;
+	
 	public JmsBroadcastClient(final String entityId, final UpdatableLayer csvUpdatableLayer,
 			                  final ConnectionFactory connectionFactory, final String broadcastTopic) {
+		this(entityId, csvUpdatableLayer, connectionFactory, broadcastTopic, null);
+	}
+	
+	/**
+	 * @param replaySource used to catch up after a reconnect; null to reload the entity instead
+	 */
+	public JmsBroadcastClient(final String entityId, final UpdatableLayer csvUpdatableLayer,
+			                  final ConnectionFactory connectionFactory, final String broadcastTopic,
+			                  final CsvDataSourceJmsQuery replaySource) {
 		this.entityId = entityId;
 		this.csvUpdatableLayer = csvUpdatableLayer;
 		this.connectionFactory = connectionFactory;
 		this.broadcastTopic = broadcastTopic;
+		this.replaySource = replaySource;
 	}
 	
 	public void init() throws JMSException {
-		broadcastUpdateListener = new SimpleMessageListenerContainer();
+		broadcastUpdateListener = new SimpleMessageListenerContainer() {
+			@Override
+			public void onException(JMSException ex) {
+				//Re-establishes the connection and the consumer
+				super.onException(ex);
+				log.warn("Connection for entity {} was recovered, catching up on missed broadcasts", entityId);
+				catchUpInBackground();
+			}
+		};
 		broadcastUpdateListener.setConnectionFactory(connectionFactory);
 		broadcastUpdateListener.setPubSubDomain(true);
 		broadcastUpdateListener.setDestinationName(broadcastTopic);
@@ -64,11 +105,7 @@ public class JmsBroadcastClient {
 				try {
 					String entityId = message.getStringProperty(MessageFields.entityId);
 					Validate.notNull(entityId, "entityId must be present on incoming messages");
-					String text = ((TextMessage)message).getText();
-					
-					csvUpdatableLayer.start(Collections.singleton(entityId));
-			    	csvTextBlockToCallback.presentTextBlockToCsvLineCallback(entityId, text, csvUpdatableLayer);
-			    	csvUpdatableLayer.finish();
+					onBroadcast(entityId, message);
 				} catch (JMSException ex) {
 					throw new RuntimeException(ex);
 				} catch (CsvUpdateBlockException ex) {
@@ -81,6 +118,129 @@ public class JmsBroadcastClient {
 		//topic are consumed.
 	}
 	
+	private synchronized void onBroadcast(String entityId, Message message) throws JMSException, CsvUpdateBlockException {
+		if(!message.propertyExists(MessageFields.blockSequence)) {
+			applyBlock(entityId, Collections.singletonList(CsvMessageEncoding.getText(message)), message);
+			return;
+		}
+		
+		long blockSequence = message.getLongProperty(MessageFields.blockSequence);
+		if(message.propertyExists(MessageFields.cancelBlock) && message.getBooleanProperty(MessageFields.cancelBlock)) {
+			if(blockSequence == chunkedBlockSequence) {
+				log.info("Block {} for entity {} was cancelled, discarding {} chunks", blockSequence, entityId, chunks.size());
+				discardChunks();
+			}
+			return;
+		}
+		
+		int chunkIndex = message.getIntProperty(MessageFields.chunkIndex);
+		if(chunkIndex == 0) {
+			if(!chunks.isEmpty()) {
+				log.error("Block {} for entity {} never completed, discarding {} chunks", chunkedBlockSequence, entityId, chunks.size());
+				discardChunks();
+				//The discarded block's changes have to come from the server instead
+				catchUpInBackground();
+			}
+			chunkedBlockSequence = blockSequence;
+		} else if(blockSequence != chunkedBlockSequence || chunkIndex != chunks.size()) {
+			log.error("Chunk {} of block {} for entity {} arrived out of sequence, discarding the block", chunkIndex, blockSequence, entityId);
+			discardChunks();
+			catchUpInBackground();
+			return;
+		}
+		
+		chunks.add(CsvMessageEncoding.getText(message));
+		if(message.getBooleanProperty(MessageFields.lastChunk)) {
+			try {
+				applyBlock(entityId, chunks, message);
+			} finally {
+				discardChunks();
+			}
+		}
+	}
+	
+	/**
+	 * @param last the message that completes the block, which carries its sequence if there is one
+	 */
+	private void applyBlock(String entityId, List<String> texts, Message last) throws JMSException, CsvUpdateBlockException {
+		boolean sequenced = last.propertyExists(MessageFields.sequence);
+		long epoch = sequenced ? last.getLongProperty(MessageFields.sequenceEpoch) : 0;
+		long sequence = sequenced ? last.getLongProperty(MessageFields.sequence) : -1;
+		if(sequenced && epoch == lastEpoch && sequence <= lastSequence) {
+			log.debug("Skipping broadcast {} for entity {}, already up to {}", sequence, entityId, lastSequence);
+			return;
+		}
+		
+		csvUpdatableLayer.start(Collections.singleton(entityId));
+		try {
+			for(String text : texts) {
+				csvTextBlockToCallback.presentTextBlockToCsvLineCallback(entityId, text, csvUpdatableLayer);
+			}
+		} catch(RuntimeException ex) {
+			csvUpdatableLayer.cancel();
+			throw ex;
+		}
+		csvUpdatableLayer.finish();
+		
+		if(sequenced) {
+			lastEpoch = epoch;
+			lastSequence = sequence;
+		}
+	}
+	
+	/**
+	 * Brings the layer up to date when broadcasts may have been missed. Replays the
+	 * changes since the last sequence seen if the server can, otherwise reloads the entity.
+	 */
+	public synchronized void catchUp() throws CsvUpdateBlockException {
+		discardChunks();
+		
+		ReplayResult result = null;
+		if(replaySource != null) {
+			csvUpdatableLayer.start(Collections.singleton(entityId));
+			try {
+				result = replaySource.replaySince(lastEpoch, lastSequence, csvUpdatableLayer);
+			} catch(RuntimeException ex) {
+				csvUpdatableLayer.cancel();
+				throw ex;
+			}
+			if(result.isReplayed()) {
+				csvUpdatableLayer.finish();
+				lastEpoch = result.getEpoch();
+				lastSequence = result.getSequence();
+				log.info("Caught up entity {} to sequence {} by replay", entityId, lastSequence);
+				return;
+			}
+			csvUpdatableLayer.cancel();
+		}
+		
+		log.info("Reloading entity {} to catch up", entityId);
+		csvUpdatableLayer.reload(entityId);
+		//The reload happened after the server reported this sequence, so it covers at least that much
+		lastEpoch = result != null ? result.getEpoch() : 0;
+		lastSequence = result != null ? result.getSequence() : -1;
+	}
+	
+	private void catchUpInBackground() {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					catchUp();
+				} catch(Exception ex) {
+					log.error("Could not catch up entity " + entityId, ex);
+				}
+			}
+		}, "catchUp-" + entityId);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	private void discardChunks() {
+		chunks.clear();
+		chunkedBlockSequence = -1;
+	}
+	
 	public void stop() {
 		broadcastUpdateListener.stop();
 	}
@@ -9,6 +9,19 @@ public interface MessageFields {
 	String bulkUpdate = "bulkUpdate";
 	String columnNamesOnly = "columnNamesOnly";
 	String command = "command";
+	String blockSequence = "blockSequence";
+	String chunkIndex = "chunkIndex";
+	String lastChunk = "lastChunk";
+	String cancelBlock = "cancelBlock";
+	String acceptEncoding = "acceptEncoding";
+	String encoding = "encoding";
+	String streamChunkChars = "streamChunkChars";
+	String endOfStream = "endOfStream";
+	String sequence = "sequence";
+	String sequenceEpoch = "sequenceEpoch";
+	String replayed = "replayed";
+	String columns = "columns";
 	
 	String command_listEntityIds = "listEntityIds";
+	String command_replay = "replay";
 }
@@ -1,52 +1,166 @@
 package org.commacq.layer;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import lombok.Getter;
+import lombok.Setter;
 
 import org.commacq.BlockCallback;
 import org.commacq.CsvLineCallbackComposite;
+import org.commacq.CsvLineCallbackFiltered;
+import org.commacq.CsvLineCallbackProjected;
+import org.commacq.CsvLinePredicate;
 
 //TODO how do we protect against updates going to the new subscriber before all the results
 //have been fetched?
 public abstract class AbstractSubscribeLayer implements SubscribeLayer {
 
 	protected final CsvLineCallbackComposite composite = new CsvLineCallbackComposite();
+	
+	/**
+	 * 0, the default, calls each subscriber in turn on the publishing thread.
+	 * Otherwise each subscriber is given a queue of this size and a thread of its
+	 * own, starting from the next subscription.
+	 */
+	@Getter
+	@Setter
+	private int subscriberQueueCapacity = 0;
+	
+	@Getter
+	@Setter
+	private SlowSubscriberPolicy slowSubscriberPolicy = SlowSubscriberPolicy.BLOCK;
+	
+	private final ConcurrentMap<BlockCallback, CsvLineCallbackQueued> queuedSubscribers = new ConcurrentHashMap<BlockCallback, CsvLineCallbackQueued>();
+	//Subscribers that asked for a predicate or projection, and the callback that stands in for each
+	private final ConcurrentMap<BlockCallback, BlockCallback> wrappedSubscribers = new ConcurrentHashMap<BlockCallback, BlockCallback>();
 
     @Override
     public final void getAllCsvLinesAndSubscribe(BlockCallback callback) {
-    	composite.addCallback(callback);
-    	getAllCsvLines(callback);
+    	CsvLineCallbackQueued queued = addCallback(null, callback);
+    	try {
+    		getAllCsvLines(callback);
+    	} finally {
+    		resume(queued);
+    	}
     }
     
     @Override
     public final void getAllCsvLinesAndSubscribe(Collection<String> entityIds, BlockCallback callback) {
-    	composite.addCallback(entityIds, callback);
-    	getAllCsvLines(entityIds, callback);
+    	CsvLineCallbackQueued queued = addCallback(entityIds, callback);
+    	try {
+    		getAllCsvLines(entityIds, callback);
+    	} finally {
+    		resume(queued);
+    	}
     }
     
     @Override
     public final void getAllCsvLinesAndSubscribe(String entityId, BlockCallback callback) {
-    	composite.addCallback(entityId, callback);
-    	getAllCsvLines(entityId, callback);
+    	CsvLineCallbackQueued queued = addCallback(Collections.singletonList(entityId), callback);
+    	try {
+    		getAllCsvLines(entityId, callback);
+    	} finally {
+    		resume(queued);
+    	}
+    }
+    
+    @Override
+    public final void getAllCsvLinesAndSubscribe(String entityId, CsvLinePredicate predicate, BlockCallback callback) {
+    	getAllCsvLinesAndSubscribe(entityId, predicate, null, callback);
+    }
+    
+    /**
+     * The predicate and projection are applied here, so only the lines and
+     * columns that the subscriber wants leave the layer.
+     * 
+     * @throws IllegalArgumentException if the predicate or columns name a column
+     *         the entity doesn't have, in which case nothing is subscribed
+     */
+    @Override
+    public final void getAllCsvLinesAndSubscribe(String entityId, CsvLinePredicate predicate, Collection<String> columns, BlockCallback callback) {
+    	if(predicate == null && columns == null) {
+    		getAllCsvLinesAndSubscribe(entityId, callback);
+    		return;
+    	}
+    	String columnNamesCsv = getColumnNamesCsv(entityId);
+    	BlockCallback wrapped = callback;
+    	if(columns != null) {
+    		wrapped = new CsvLineCallbackProjected(entityId, columns, columnNamesCsv, wrapped);
+    	}
+    	if(predicate != null) {
+    		//Filters on the full line, before it is projected
+    		wrapped = new CsvLineCallbackFiltered(entityId, predicate, columnNamesCsv, wrapped);
+    	}
+    	BlockCallback previous = wrappedSubscribers.put(callback, wrapped);
+    	if(previous != null) {
+    		unsubscribe(previous);
+    	}
+    	try {
+    		getAllCsvLinesAndSubscribe(entityId, wrapped);
+    	} catch(RuntimeException ex) {
+    		//Don't leave a subscriber behind that never had its initial load
+    		wrappedSubscribers.remove(callback, wrapped);
+    		unsubscribe(wrapped);
+    		throw ex;
+    	}
     }
     
     @Override
     public final void subscribe(BlockCallback callback) {
-    	composite.addCallback(callback);
+    	resume(addCallback(null, callback));
     }
     
     @Override
     public final void subscribe(Collection<String> entityIds, BlockCallback callback) {
-    	composite.addCallback(entityIds, callback);
+    	resume(addCallback(entityIds, callback));
     }
     
     @Override
     public final void subscribe(String entityId, BlockCallback callback) {
-    	composite.addCallback(entityId, callback);
+    	resume(addCallback(Collections.singletonList(entityId), callback));
     }
     
     @Override
     public final void unsubscribe(BlockCallback callback) {
-    	composite.removeCallback(callback);
+    	BlockCallback wrapped = wrappedSubscribers.remove(callback);
+    	if(wrapped != null) {
+    		callback = wrapped;
+    	}
+    	CsvLineCallbackQueued queued = queuedSubscribers.remove(callback);
+    	if(queued == null) {
+    		composite.removeCallback(callback);
+    		return;
+    	}
+    	composite.removeCallback(queued);
+    	queued.close();
+    }
+    
+    /**
+     * @return the queue standing in for the callback, which is held until resumed,
+     *         or null if the callback is called directly
+     */
+    private CsvLineCallbackQueued addCallback(Collection<String> entityIds, BlockCallback callback) {
+    	if(subscriberQueueCapacity <= 0) {
+    		composite.addCallback(entityIds, callback);
+    		return null;
+    	}
+    	CsvLineCallbackQueued queued = new CsvLineCallbackQueued(callback, entityIds, this, slowSubscriberPolicy, subscriberQueueCapacity);
+    	CsvLineCallbackQueued previous = queuedSubscribers.put(callback, queued);
+    	if(previous != null) {
+    		composite.removeCallback(previous);
+    		previous.close();
+    	}
+    	composite.addCallback(entityIds, queued);
+    	return queued;
+    }
+    
+    private static void resume(CsvLineCallbackQueued queued) {
+    	if(queued != null) {
+    		queued.resume();
+    	}
     }
 
 }
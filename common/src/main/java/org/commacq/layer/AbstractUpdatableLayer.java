@@ -1,6 +1,10 @@
 package org.commacq.layer;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 
 import org.commacq.CsvLine;
 import org.commacq.CsvUpdateBlockException;
@@ -17,41 +21,88 @@ import org.commacq.CsvUpdateBlockException;
  */
 public abstract class AbstractUpdatableLayer extends AbstractSubscribeLayer implements UpdatableLayer {
 
+	/**
+	 * Blocks that have been started by the caller but not yet passed on to the
+	 * subscribers, because nothing has been published in them yet. A block that
+	 * turns out to be empty, for example because all of its untrusted updates
+	 * have been handed to the coalescer, is never seen downstream.
+	 */
+	private final ThreadLocal<Collection<String>> unstartedBlock = new ThreadLocal<Collection<String>>();
+	
+	private volatile UntrustedUpdateCoalescer coalescer;
+	
+	/**
+	 * Collects untrusted updates for up to the given time and publishes
+	 * them together, with a single lookup per entity, in a block of their own.
+	 * Untrusted updates are no longer published as part of the caller's block.
+	 * 
+	 * @param windowMillis 0 to publish untrusted updates immediately, which is the default
+	 * @param maxIds publish early once this many distinct ids are waiting
+	 */
+	public void setUntrustedCoalescing(long windowMillis, int maxIds) {
+		UntrustedUpdateCoalescer previous = coalescer;
+		coalescer = windowMillis > 0 ? new UntrustedUpdateCoalescer(this, windowMillis, maxIds) : null;
+		if(previous != null) {
+			previous.flush();
+			previous.shutdown();
+		}
+	}
+	
 	/**
 	 * Used with a trusted update
 	 */
     @Override
 	public void startBulkUpdate(String entityId, String columnNamesCsv) throws CsvUpdateBlockException {
+    	startIfRequired();
 		composite.startBulkUpdate(entityId, columnNamesCsv);
 	}
 
 	@Override
 	public void startBulkUpdateForGroup(String entityId, String group, String idWithinGroup) throws CsvUpdateBlockException {
+		startIfRequired();
 		composite.startBulkUpdateForGroup(entityId, group, idWithinGroup);
 	}
 
 	@Override
 	public void start(Collection<String> entityIds) throws CsvUpdateBlockException {
-		composite.start(entityIds);
+		unstartedBlock.set(entityIds);
 	}	
 	
 	@Override
 	public void finish() throws CsvUpdateBlockException {
+		if(unstartedBlock.get() != null) {
+			unstartedBlock.remove();
+			return;
+		}
 		composite.finish();
 	}
 	
 	@Override
 	public void cancel() {
+		if(unstartedBlock.get() != null) {
+			unstartedBlock.remove();
+			return;
+		}
 		composite.cancel();
 	}
+	
+	private void startIfRequired() throws CsvUpdateBlockException {
+		Collection<String> entityIds = unstartedBlock.get();
+		if(entityIds != null) {
+			unstartedBlock.remove();
+			composite.start(entityIds);
+		}
+	}
 
 	@Override
 	public void processUpdate(String entityId, String columnNamesCsv, CsvLine csvLine) throws CsvUpdateBlockException {
+		startIfRequired();
 		composite.processUpdate(entityId, columnNamesCsv, csvLine);
 	}
 
 	@Override
 	public void processRemove(String entityId, String columnNamesCsv, String id) throws CsvUpdateBlockException {
+		startIfRequired();
 		composite.processRemove(entityId, columnNamesCsv, id);
 	}
     
@@ -59,20 +110,62 @@ public abstract class AbstractUpdatableLayer extends AbstractSubscribeLayer impl
 	 * TODO optionally allow a reconcile mode
 	 */
     @Override
-    public void updateUntrusted(String entityId, String id) {
-    	getCsvLine(entityId, id, composite);
+    public void updateUntrusted(String entityId, String id) throws CsvUpdateBlockException {
+    	UntrustedUpdateCoalescer coalescer = this.coalescer;
+    	if(coalescer != null) {
+    		coalescer.add(entityId, Collections.singleton(id));
+    		return;
+    	}
+    	updateUntrustedImmediately(entityId, id);
     }
     
     @Override
-    public void updateUntrusted(String entityId, Collection<String> ids) {
+    public void updateUntrusted(String entityId, Collection<String> ids) throws CsvUpdateBlockException {
+    	UntrustedUpdateCoalescer coalescer = this.coalescer;
+    	if(coalescer != null) {
+    		coalescer.add(entityId, ids);
+    		return;
+    	}
+    	startIfRequired();
     	getCsvLines(entityId, ids, composite);
     }
     
+    /**
+     * Looks the id up and publishes it as part of the current block, even if
+     * untrusted updates are being coalesced.
+     */
+    protected void updateUntrustedImmediately(String entityId, String id) throws CsvUpdateBlockException {
+    	startIfRequired();
+    	getCsvLine(entityId, id, composite);
+    }
+    
+    /**
+     * Publishes a batch of coalesced untrusted updates as a single block.
+     */
+    void publishUntrusted(Map<String, Set<String>> idsByEntity) throws CsvUpdateBlockException {
+    	composite.start(idsByEntity.keySet());
+    	try {
+	    	for(Entry<String, Set<String>> entry : idsByEntity.entrySet()) {
+	    		getCsvLines(entry.getKey(), entry.getValue(), composite);
+	    	}
+    	} catch(RuntimeException ex) {
+    		composite.cancel();
+    		throw ex;
+    	}
+    	composite.finish();
+    }
+    
     @Override
     public void reload(String entityId) throws CsvUpdateBlockException {
     	String columnNamesCsv = getCsvDataSource(entityId).getColumnNamesCsv();
-    	composite.startBulkUpdate(entityId, columnNamesCsv);
+    	startBulkUpdate(entityId, columnNamesCsv);
     	getCsvDataSource(entityId).getAllCsvLines(composite);
     }
+    
+    @Override
+    public void reloadGroup(String entityId, String group, String idWithinGroup) throws CsvUpdateBlockException {
+    	startBulkUpdateForGroup(entityId, group, idWithinGroup);
+    	getCsvDataSource(entityId).getCsvLinesForGroup(group, idWithinGroup, composite);
+    }
 
 }
@@ -0,0 +1,302 @@
+package org.commacq.layer;
+
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import org.commacq.BlockCallback;
+import org.commacq.CsvLine;
+import org.commacq.CsvUpdateBlockException;
+
+/**
+ * Stands in for a subscriber in a layer's CsvLineCallbackComposite. The calls made
+ * by the publisher are put on a bounded queue and a thread of the subscriber's
+ * own makes them on the real callback, in the same order. A slow subscriber
+ * then only holds up the publisher, and the other subscribers, when its queue
+ * is full and the policy is {@link SlowSubscriberPolicy#BLOCK}.
+ * 
+ * The producer side is only ever called by the publisher, which holds the
+ * composite's lock for the whole of a block.
+ */
+@Slf4j
+final class CsvLineCallbackQueued implements BlockCallback {
+
+	private static final long OFFER_RETRY_MILLIS = 100;
+	private static final AtomicInteger threadNumber = new AtomicInteger();
+	
+	private enum Type {START, BULK_UPDATE, BULK_UPDATE_FOR_GROUP, UPDATE, REMOVE, FINISH, CANCEL, RESYNC, DISCONNECT, STOP}
+	
+	@RequiredArgsConstructor
+	private static final class Event {
+		private final Type type;
+		private final Collection<String> entityIds;
+		private final String entityId;
+		/**
+		 * Column names or group depending on the type
+		 */
+		private final String text;
+		/**
+		 * Id removed or id within the group depending on the type
+		 */
+		private final String id;
+		private final CsvLine csvLine;
+		
+		private Event(Type type) {
+			this(type, null, null, null, null, null);
+		}
+		
+		private boolean endsBlock() {
+			return type == Type.FINISH || type == Type.CANCEL;
+		}
+	}
+	
+	private static final Event RESYNC = new Event(Type.RESYNC);
+	private static final Event DISCONNECT = new Event(Type.DISCONNECT);
+	private static final Event STOP = new Event(Type.STOP);
+	
+	private final BlockCallback callback;
+	private final Collection<String> entityIds;
+	private final AbstractSubscribeLayer layer;
+	private final SlowSubscriberPolicy policy;
+	private final BlockingQueue<Event> queue;
+	private final CountDownLatch resumed = new CountDownLatch(1);
+	private final Thread thread;
+	
+	private volatile boolean closed;
+	
+	//Producer side
+	private boolean producerInBlock;
+	private boolean droppingBlock;
+	
+	//Consumer side
+	private boolean consumerInBlock;
+	
+	/**
+	 * @param entityIds null if the subscriber is interested in all entities
+	 */
+	CsvLineCallbackQueued(BlockCallback callback, Collection<String> entityIds, AbstractSubscribeLayer layer, SlowSubscriberPolicy policy, int capacity) {
+		this.callback = callback;
+		this.entityIds = entityIds;
+		this.layer = layer;
+		this.policy = policy;
+		this.queue = new ArrayBlockingQueue<Event>(capacity);
+		
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				consume();
+			}
+		}, "subscriber-" + threadNumber.incrementAndGet());
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Nothing is passed on until the subscriber has had its initial load.
+	 */
+	void resume() {
+		resumed.countDown();
+	}
+	
+	/**
+	 * Stops the thread once the calls already queued have been made.
+	 */
+	void close() {
+		closed = true;
+		resume();
+		if(!queue.offer(STOP)) {
+			queue.clear();
+			queue.offer(STOP);
+		}
+	}
+	
+	@Override
+	public void start(Collection<String> entityIds) throws CsvUpdateBlockException {
+		producerInBlock = true;
+		enqueue(new Event(Type.START, entityIds, null, null, null, null));
+	}
+	
+	@Override
+	public void startBulkUpdate(String entityId, String columnNamesCsv) throws CsvUpdateBlockException {
+		enqueue(new Event(Type.BULK_UPDATE, null, entityId, columnNamesCsv, null, null));
+	}
+	
+	@Override
+	public void startBulkUpdateForGroup(String entityId, String group, String idWithinGroup) throws CsvUpdateBlockException {
+		enqueue(new Event(Type.BULK_UPDATE_FOR_GROUP, null, entityId, group, idWithinGroup, null));
+	}
+	
+	@Override
+	public void processUpdate(String entityId, String columnNamesCsv, CsvLine csvLine) throws CsvUpdateBlockException {
+		enqueue(new Event(Type.UPDATE, null, entityId, columnNamesCsv, null, csvLine));
+	}
+	
+	@Override
+	public void processRemove(String entityId, String columnNamesCsv, String id) throws CsvUpdateBlockException {
+		enqueue(new Event(Type.REMOVE, null, entityId, columnNamesCsv, id, null));
+	}
+	
+	@Override
+	public void finish() throws CsvUpdateBlockException {
+		producerInBlock = false;
+		enqueue(new Event(Type.FINISH));
+	}
+	
+	@Override
+	public void cancel() {
+		producerInBlock = false;
+		try {
+			enqueue(new Event(Type.CANCEL));
+		} catch(CsvUpdateBlockException ex) {
+			log.warn("Interrupted while queueing cancel for subscriber {}", callback);
+		}
+	}
+	
+	private void enqueue(Event event) throws CsvUpdateBlockException {
+		if(closed) {
+			return;
+		}
+		if(droppingBlock) {
+			//The rest of a block that was dropped when the queue overflowed
+			if(event.endsBlock()) {
+				droppingBlock = false;
+				//The layer has committed the block by now, so the resync will include it
+				queue.offer(RESYNC);
+			}
+			return;
+		}
+		
+		if(policy == SlowSubscriberPolicy.BLOCK) {
+			try {
+				while(!queue.offer(event, OFFER_RETRY_MILLIS, TimeUnit.MILLISECONDS)) {
+					if(closed) {
+						return;
+					}
+				}
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new CsvUpdateBlockException("Interrupted waiting for slow subscriber " + callback, ex);
+			}
+			return;
+		}
+		
+		if(queue.offer(event)) {
+			return;
+		}
+		
+		queue.clear();
+		if(policy == SlowSubscriberPolicy.DISCONNECT) {
+			log.warn("Disconnecting slow subscriber {}", callback);
+			closed = true;
+			queue.offer(DISCONNECT);
+			return;
+		}
+		
+		log.warn("Subscriber {} is too slow; dropping its updates and resynchronising it", callback);
+		if(producerInBlock && !event.endsBlock()) {
+			//Any part of the current block still to come is dropped too, and the
+			//resync waits for its end, as until then the layer hasn't committed it
+			droppingBlock = true;
+			return;
+		}
+		queue.offer(RESYNC);
+	}
+	
+	private void consume() {
+		try {
+			resumed.await();
+			while(true) {
+				Event event = queue.take();
+				switch(event.type) {
+					case START:
+						consumerInBlock = true;
+						callback.start(event.entityIds);
+						break;
+					case BULK_UPDATE:
+						callback.startBulkUpdate(event.entityId, event.text);
+						break;
+					case BULK_UPDATE_FOR_GROUP:
+						callback.startBulkUpdateForGroup(event.entityId, event.text, event.id);
+						break;
+					case UPDATE:
+						callback.processUpdate(event.entityId, event.text, event.csvLine);
+						break;
+					case REMOVE:
+						callback.processRemove(event.entityId, event.text, event.id);
+						break;
+					case FINISH:
+						consumerInBlock = false;
+						callback.finish();
+						break;
+					case CANCEL:
+						consumerInBlock = false;
+						callback.cancel();
+						break;
+					case RESYNC:
+						cancelOpenBlock();
+						resync();
+						break;
+					case DISCONNECT:
+						cancelOpenBlock();
+						layer.unsubscribe(callback);
+						return;
+					case STOP:
+						cancelOpenBlock();
+						return;
+				}
+			}
+		} catch(InterruptedException ex) {
+			log.info("Subscriber thread interrupted: {}", callback);
+		} catch(CsvUpdateBlockException ex) {
+			//The subscriber is responsible for logging the cause
+			stopAfterError();
+		} catch(RuntimeException ex) {
+			log.error("Subscriber failed and will be unsubscribed: " + callback, ex);
+			stopAfterError();
+		}
+	}
+	
+	private void cancelOpenBlock() {
+		if(consumerInBlock) {
+			consumerInBlock = false;
+			callback.cancel();
+		}
+	}
+	
+	/**
+	 * Sends the subscriber everything, one bulk update per entity, in a single block.
+	 */
+	private void resync() throws CsvUpdateBlockException {
+		Collection<String> resyncEntityIds = entityIds != null ? entityIds : layer.getEntityIds();
+		consumerInBlock = true;
+		callback.start(resyncEntityIds);
+		for(String entityId : resyncEntityIds) {
+			callback.startBulkUpdate(entityId, layer.getColumnNamesCsv(entityId));
+			layer.getAllCsvLines(entityId, callback);
+		}
+		consumerInBlock = false;
+		callback.finish();
+	}
+	
+	/**
+	 * A subscriber that throws from a callback is removed from the layer.
+	 * It's up to the subscriber to resubscribe once it has recovered.
+	 */
+	private void stopAfterError() {
+		closed = true;
+		queue.clear();
+		layer.unsubscribe(callback);
+	}
+	
+	@Override
+	public String toString() {
+		return "CsvLineCallbackQueued: " + callback;
+	}
+	
+}
@@ -94,7 +94,7 @@ public class DataSourceCollectionLayer extends AbstractUpdatableLayer {
 	@ManagedOperation
 	public String pokeCsvEntry(String entityId, String id) throws CsvUpdateBlockException {
 		start(Collections.singleton(entityId));
-		updateUntrusted(entityId, id);
+		updateUntrustedImmediately(entityId, id);
 		finish();
 		
 		return getCsvEntry(entityId, id);
@@ -0,0 +1,31 @@
+package org.commacq.layer;
+
+import org.commacq.LineCallback;
+
+/**
+ * A layer that numbers its update blocks and remembers the most recent ones,
+ * so that a subscriber that has missed a few blocks can catch up without
+ * fetching the whole entity again.
+ * 
+ * Each entity has its own sequence, incremented by every block that changes it.
+ * The epoch identifies the run of the layer that the sequences belong to; sequences
+ * from another epoch, for example from before a restart, can't be replayed.
+ */
+public interface ReplayLayer extends SubscribeLayer {
+
+	long getEpoch();
+	
+	/**
+	 * @return the sequence of the last block to change the entity
+	 */
+	long getSequence(String entityId);
+	
+	/**
+	 * Presents the net changes made to the entity since the given sequence: an update
+	 * for each line that has changed and a removal for each id that has gone.
+	 * Nothing is presented if the layer no longer remembers that far back, a bulk
+	 * update has happened since, or the epoch doesn't match.
+	 */
+	ReplayResult replaySince(String entityId, long epoch, long sequence, LineCallback callback);
+	
+}
@@ -0,0 +1,24 @@
+package org.commacq.layer;
+
+import javax.annotation.concurrent.Immutable;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * The outcome of {@link ReplayLayer#replaySince}. Whether or not the replay
+ * happened, epoch and sequence say where the entity is now; after a full
+ * load instead of a replay, they are a safe place to resume from.
+ */
+@Immutable
+@Getter
+@ToString
+@RequiredArgsConstructor
+public final class ReplayResult {
+
+	private final boolean replayed;
+	private final long epoch;
+	private final long sequence;
+	
+}
@@ -0,0 +1,28 @@
+package org.commacq.layer;
+
+/**
+ * What a layer does when a subscriber's queue is full because the
+ * subscriber isn't keeping up with the updates.
+ */
+public enum SlowSubscriberPolicy {
+	
+	/**
+	 * Wait for space in the queue, holding up the publisher and every other subscriber.
+	 * Nothing is lost; equivalent to calling the subscribers directly but with some slack.
+	 */
+	BLOCK,
+	
+	/**
+	 * Throw away the queued updates. Once the subscriber has caught up, and the
+	 * block being published when the queue filled up has finished, it is sent the
+	 * current state of its entities as bulk updates and carries on from there.
+	 */
+	DROP_AND_RESYNC,
+	
+	/**
+	 * Throw away the queued updates and unsubscribe. The subscriber sees its
+	 * current block, if any, cancelled and then no more calls.
+	 */
+	DISCONNECT
+	
+}
@@ -3,6 +3,7 @@ package org.commacq.layer;
 import java.util.Collection;
 
 import org.commacq.BlockCallback;
+import org.commacq.CsvLinePredicate;
 
 /**
  * Each Layer maintains a list of observers used
@@ -12,6 +13,19 @@ public interface SubscribeLayer extends Layer {
 	void getAllCsvLinesAndSubscribe(String entityId, BlockCallback callback);
 	void getAllCsvLinesAndSubscribe(Collection<String> entityIds, BlockCallback callback);
     void getAllCsvLinesAndSubscribe(BlockCallback callback);
+    /**
+     * Only the lines that match the predicate are passed on. A line that stops
+     * matching is passed on as a removal.
+     */
+    void getAllCsvLinesAndSubscribe(String entityId, CsvLinePredicate predicate, BlockCallback callback);
+    /**
+     * Lines are cut down to the id and the given columns, and the column names
+     * passed to the callback match.
+     * 
+     * @param predicate null for every line
+     * @param columns null for every column
+     */
+    void getAllCsvLinesAndSubscribe(String entityId, CsvLinePredicate predicate, Collection<String> columns, BlockCallback callback);
     void subscribe(String entityId, BlockCallback callback);
     void subscribe(Collection<String> entityIds, BlockCallback callback);
     void subscribe(BlockCallback callback);
@@ -0,0 +1,113 @@
+package org.commacq.layer;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Collects the ids of untrusted updates, per entity, so that a burst of updates
+ * turns into one multi-row lookup per entity and a single update block.
+ * 
+ * The ids are published once the window has passed since the first id arrived,
+ * or straight away once the number of ids waiting reaches the maximum. Publishing
+ * always happens on the coalescer's own thread, never on the thread that
+ * presented the ids, which may be half way through an update block of its own.
+ */
+@ThreadSafe
+@Slf4j
+final class UntrustedUpdateCoalescer {
+
+	private final AbstractUpdatableLayer layer;
+	private final long windowMillis;
+	private final int maxIds;
+	private final ScheduledExecutorService scheduler;
+	
+	private Map<String, Set<String>> pending = new LinkedHashMap<String, Set<String>>();
+	private int pendingCount;
+	private boolean flushScheduled;
+	private boolean immediateFlushRequested;
+	
+	private final Runnable flush = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+	
+	UntrustedUpdateCoalescer(AbstractUpdatableLayer layer, long windowMillis, int maxIds) {
+		this.layer = layer;
+		this.windowMillis = windowMillis;
+		this.maxIds = maxIds;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "untrustedUpdateCoalescer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	void add(String entityId, Iterable<String> ids) {
+		synchronized(this) {
+			Set<String> entityIds = pending.get(entityId);
+			if(entityIds == null) {
+				entityIds = new LinkedHashSet<String>();
+				pending.put(entityId, entityIds);
+			}
+			for(String id : ids) {
+				if(entityIds.add(id)) {
+					pendingCount++;
+				}
+			}
+			
+			if(pendingCount >= maxIds) {
+				if(!immediateFlushRequested) {
+					scheduler.execute(flush);
+					immediateFlushRequested = true;
+				}
+			} else if(!flushScheduled) {
+				scheduler.schedule(flush, windowMillis, TimeUnit.MILLISECONDS);
+				flushScheduled = true;
+			}
+		}
+	}
+	
+	/**
+	 * Publishes whatever is waiting. Also called by the scheduler.
+	 */
+	void flush() {
+		Map<String, Set<String>> batch;
+		synchronized(this) {
+			flushScheduled = false;
+			immediateFlushRequested = false;
+			if(pendingCount == 0) {
+				return;
+			}
+			batch = pending;
+			pending = new LinkedHashMap<String, Set<String>>();
+			pendingCount = 0;
+		}
+		
+		try {
+			layer.publishUntrusted(batch);
+		} catch(Exception ex) {
+			//Keep the scheduler thread alive for the next batch
+			log.error("Could not publish untrusted updates for entities " + batch.keySet(), ex);
+		}
+	}
+	
+	void shutdown() {
+		scheduler.shutdown();
+	}
+	
+}
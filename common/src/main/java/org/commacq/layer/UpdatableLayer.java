@@ -42,6 +42,13 @@ public interface UpdatableLayer extends Layer, BlockCallback {
 	
 	void reload(String entityId) throws CsvUpdateBlockException;
 	
+	/**
+	 * Loads every member of one group of an entity from the data source, as part of the
+	 * current block. Members that are no longer in the group are removed downstream,
+	 * and the rest of the entity is left alone.
+	 */
+	void reloadGroup(String entityId, String group, String idWithinGroup) throws CsvUpdateBlockException;
+	
 	String pokeCsvEntry(String entityId, String id) throws CsvUpdateBlockException;
 	void reloadAll() throws CsvUpdateBlockException;
 	
@@ -0,0 +1,69 @@
+package org.commacq;
+
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CsvLineCallbackCompositeTest {
+
+	@Mock
+	private BlockCallback allEntities;
+	@Mock
+	private BlockCallback entityA;
+	@Mock
+	private BlockCallback entitiesAB;
+	
+	private CsvLineCallbackComposite composite = new CsvLineCallbackComposite();
+	
+	private final CsvLine csvLine = new CsvLine("1", "1,ABC");
+	
+	@Before
+	public void setup() {
+		composite.addCallback(allEntities);
+		composite.addCallback("a", entityA);
+		composite.addCallback(Arrays.asList("a", "b"), entitiesAB);
+	}
+	
+	@Test
+	public void testRouting() throws CsvUpdateBlockException {
+		composite.processUpdate("a", "id,name", csvLine);
+		composite.processRemove("b", "id,name", "2");
+		composite.processUpdate("c", "id,name", csvLine);
+		
+		verify(allEntities).processUpdate("a", "id,name", csvLine);
+		verify(allEntities).processRemove("b", "id,name", "2");
+		verify(allEntities).processUpdate("c", "id,name", csvLine);
+		verify(entityA).processUpdate("a", "id,name", csvLine);
+		verify(entitiesAB).processUpdate("a", "id,name", csvLine);
+		verify(entitiesAB).processRemove("b", "id,name", "2");
+		verifyNoMoreInteractions(allEntities, entityA, entitiesAB);
+	}
+	
+	@Test
+	public void testRemoveCallback() throws CsvUpdateBlockException {
+		composite.removeCallback(allEntities);
+		composite.removeCallback(entitiesAB);
+		
+		composite.start(Collections.singleton("a"));
+		composite.processUpdate("a", "id,name", csvLine);
+		composite.processUpdate("c", "id,name", csvLine);
+		composite.finish();
+		
+		verify(entityA).start(Collections.singleton("a"));
+		verify(entityA).processUpdate("a", "id,name", csvLine);
+		verify(entityA).finish();
+		verifyNoMoreInteractions(entityA);
+		verifyZeroInteractions(allEntities, entitiesAB);
+	}
+	
+}
@@ -0,0 +1,50 @@
+package org.commacq;
+
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CsvLineCallbackFilteredTest {
+
+	private static final String COLUMNS = "id,exchange";
+	
+	@Mock
+	private BlockCallback callback;
+	
+	@Test
+	public void testRowsEnteringAndLeaving() throws CsvUpdateBlockException {
+		CsvLineCallbackFiltered filtered = new CsvLineCallbackFiltered("instrument", CsvLinePredicate.equalTo("exchange", "XLON"), callback);
+		CsvLine vodafoneLondon = new CsvLine("VOD", "VOD,XLON");
+		CsvLine appleNasdaq = new CsvLine("AAPL", "AAPL,XNAS");
+		
+		filtered.processUpdate("instrument", COLUMNS, vodafoneLondon);
+		filtered.processUpdate("instrument", COLUMNS, appleNasdaq);
+		filtered.processUpdate("other", COLUMNS, vodafoneLondon);
+		filtered.processRemove("instrument", COLUMNS, "AAPL");
+		filtered.processUpdate("instrument", COLUMNS, new CsvLine("VOD", "VOD,XNAS"));
+		filtered.processRemove("instrument", COLUMNS, "VOD");
+		
+		verify(callback).processUpdate("instrument", COLUMNS, vodafoneLondon);
+		verify(callback).processRemove("instrument", COLUMNS, "VOD");
+		verifyNoMoreInteractions(callback);
+	}
+	
+	@Test
+	public void testBulkUpdateForgetsMatches() throws CsvUpdateBlockException {
+		CsvLineCallbackFiltered filtered = new CsvLineCallbackFiltered("instrument", CsvLinePredicate.equalTo("exchange", "XLON"), callback);
+		CsvLine vodafoneLondon = new CsvLine("VOD", "VOD,XLON");
+		filtered.processUpdate("instrument", COLUMNS, vodafoneLondon);
+		filtered.startBulkUpdate("instrument", COLUMNS);
+		filtered.processUpdate("instrument", COLUMNS, new CsvLine("VOD", "VOD,XNAS"));
+		
+		verify(callback).processUpdate("instrument", COLUMNS, vodafoneLondon);
+		verify(callback).startBulkUpdate("instrument", COLUMNS);
+		verifyNoMoreInteractions(callback);
+	}
+	
+}
@@ -0,0 +1,61 @@
+package org.commacq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class CsvLinePredicateTest {
+
+	private static final String COLUMNS = "id,exchange,name,price";
+	
+	@Test
+	public void testField() {
+		byte[] line = "1,\"a,\"\"b\"\"\",,\"\",é".getBytes(CsvLine.UTF8);
+		assertEquals("1", CsvFields.field(line, 0));
+		assertEquals("a,\"b\"", CsvFields.field(line, 1));
+		assertNull(CsvFields.field(line, 2));
+		assertEquals("", CsvFields.field(line, 3));
+		assertEquals("é", CsvFields.field(line, 4));
+		assertNull(CsvFields.field(line, 5));
+	}
+	
+	@Test
+	public void testPredicates() {
+		CsvLine vodafone = new CsvLine("VOD", "VOD,XLON,\"Vodafone, plc\",101.5");
+		CsvLine apple = new CsvLine("AAPL", "AAPL,XNAS,Apple,99");
+		CsvLine unpriced = new CsvLine("BP", "BP,XLON,BP,");
+		
+		CsvLinePredicate.Compiled london = CsvLinePredicate.equalTo("exchange", "XLON").compile(COLUMNS);
+		assertTrue(london.matches(vodafone));
+		assertFalse(london.matches(apple));
+		
+		CsvLinePredicate.Compiled exchanges = CsvLinePredicate.in("exchange", Arrays.asList("XNAS", "XNYS")).compile(COLUMNS);
+		assertTrue(exchanges.matches(apple));
+		assertFalse(exchanges.matches(vodafone));
+		
+		assertTrue(CsvLinePredicate.startsWith("name", "Vodafone,").compile(COLUMNS).matches(vodafone));
+		
+		CsvLinePredicate.Compiled over100 = CsvLinePredicate.between("price", "100", null).compile(COLUMNS);
+		assertTrue("Compared as numbers rather than strings", over100.matches(vodafone));
+		assertFalse(over100.matches(apple));
+		assertFalse(over100.matches(unpriced));
+		
+		assertTrue(CsvLinePredicate.between("name", "A", "B").compile(COLUMNS).matches(apple));
+		
+		CsvLinePredicate.Compiled both = CsvLinePredicate.and(CsvLinePredicate.equalTo("exchange", "XLON"),
+		                                                      CsvLinePredicate.between("price", "0", "1000")).compile(COLUMNS);
+		assertTrue(both.matches(vodafone));
+		assertFalse(both.matches(unpriced));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnknownColumn() {
+		CsvLinePredicate.equalTo("currency", "GBP").compile(COLUMNS);
+	}
+	
+}
@@ -0,0 +1,53 @@
+package org.commacq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class CsvLineProjectionTest {
+
+	private static final String COLUMNS = "id,name,description,price,currency";
+	
+	@Test
+	public void testProject() {
+		CsvLineProjection projection = CsvLineProjection.forColumns(COLUMNS, Arrays.asList("currency", "name"));
+		assertEquals("id,currency,name", projection.getColumnNamesCsv());
+		
+		CsvLine projected = projection.project(new CsvLine("1", "1,\"Vodafone, \"\"plc\"\"\",é,101.5,GBP"));
+		assertEquals("1", projected.getId());
+		assertEquals("1,GBP,\"Vodafone, \"\"plc\"\"\"", projected.getCsvLine());
+		
+		assertEquals("Missing trailing fields are empty", "2,,ABC", projection.project(new CsvLine("2", "2,ABC")).getCsvLine());
+		assertEquals("3,,", projection.project(new CsvLine("3", "3,,,,")).getCsvLine());
+	}
+	
+	@Test
+	public void testProjectionsShared() {
+		assertSame(CsvLineProjection.forColumns(COLUMNS, Arrays.asList("price")),
+		           CsvLineProjection.forColumns(COLUMNS, Arrays.asList("price")));
+		assertEquals("id,price", CsvLineProjection.forColumns(COLUMNS, Arrays.asList("id", "price")).getColumnNamesCsv());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnknownColumn() {
+		CsvLineProjection.forColumns(COLUMNS, Collections.singleton("exchange"));
+	}
+	
+	@Test
+	public void testCallback() throws CsvUpdateBlockException {
+		BlockCallback callback = mock(BlockCallback.class);
+		CsvLineCallbackProjected projected = new CsvLineCallbackProjected("a", Collections.singleton("price"), callback);
+		projected.processUpdate("a", COLUMNS, new CsvLine("1", "1,ABC,,101.5,GBP"));
+		projected.processRemove("a", COLUMNS, "2");
+		
+		verify(callback).processUpdate("a", "id,price", new CsvLine("1", "1,101.5"));
+		verify(callback).processRemove("a", "id,price", "2");
+	}
+	
+}
@@ -0,0 +1,61 @@
+package org.commacq;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class CsvLineTest {
+
+	@Test
+	public void testUtf8AndStringLinesAreEqual() {
+		CsvLine stringLine = new CsvLine("1", "1,Café");
+		CsvLine utf8Line = CsvLine.utf8("1", new StringBuilder("1,Café"), Collections.<String, String>emptyMap());
+		
+		assertTrue(utf8Line.isUtf8());
+		assertFalse(stringLine.isUtf8());
+		assertEquals(stringLine, utf8Line);
+		assertEquals(utf8Line, stringLine);
+		assertEquals(stringLine.hashCode(), utf8Line.hashCode());
+		assertEquals("1,Café", utf8Line.getCsvLine());
+		assertArrayEquals(stringLine.getCsvLineUtf8(), utf8Line.getCsvLineUtf8());
+		assertNotEquals(stringLine, new CsvLine("1", "1,Cafe"));
+	}
+	
+	@Test
+	public void testSharedLineDecodedOnce() {
+		CsvLine utf8Line = CsvLine.utf8("1", "1,Café", Collections.<String, String>emptyMap());
+		CsvLine shared = utf8Line.shared();
+		
+		assertSame(shared.getCsvLine(), shared.getCsvLine());
+		assertEquals(utf8Line, shared);
+		assertSame(utf8Line.getCsvLineUtf8(), shared.getCsvLineUtf8());
+		//What's kept doesn't hold on to the decoded String
+		assertEquals(CsvLine.class, shared.compact().getClass());
+		assertEquals(utf8Line, shared.compact());
+		
+		CsvLine stringLine = new CsvLine("1", "1,Café");
+		assertSame(stringLine, stringLine.shared());
+		assertSame(stringLine, stringLine.compact());
+	}
+	
+	@Test
+	public void testRemovalLine() {
+		CsvLine removal = new CsvLine("1", null);
+		assertNull(removal.getCsvLine());
+		assertNull(removal.getCsvLineUtf8());
+		assertEquals(removal, new CsvLine("1", null));
+	}
+	
+	@Test
+	public void testOutputStreamCopiesBytes() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		CsvLineCallbackOutputStream callback = new CsvLineCallbackOutputStream(output, "id,name");
+		callback.processUpdate("test", "id,name", CsvLine.utf8("1", "1,ÄBC", Collections.<String, String>emptyMap()));
+		callback.processRemove("test", "id,name", "2");
+		assertEquals("id,name\n1,ÄBC\n2\n", new String(output.toByteArray(), CsvLine.UTF8));
+	}
+
+}
@@ -0,0 +1,111 @@
+package org.commacq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+public class CsvTokenizerTest {
+
+	private final CsvTokenizer tokenizer = new CsvTokenizer();
+	
+	@Test
+	public void testLinesAndFields() throws IOException {
+		tokenizer.reset("id,name,alias\n1,ABC,ABC1\r\n\n2,,\"\"\r3");
+		
+		assertTrue(tokenizer.nextLine());
+		assertEquals("id,name,alias", tokenizer.getLine());
+		assertEquals(3, tokenizer.getFieldCount());
+		assertTrue(tokenizer.fieldEquals(0, "id"));
+		assertFalse(tokenizer.fieldEquals(1, "nam"));
+		
+		assertTrue(tokenizer.nextLine());
+		assertEquals("1,ABC,ABC1", tokenizer.getLine());
+		assertEquals("ABC", tokenizer.getField(1));
+		
+		//The empty line is skipped
+		assertTrue(tokenizer.nextLine());
+		assertEquals("2,,\"\"", tokenizer.getLine());
+		assertEquals(3, tokenizer.getFieldCount());
+		assertNull(tokenizer.getField(1));
+		assertEquals("", tokenizer.getField(2));
+		assertNull(tokenizer.getField(3));
+		
+		assertTrue(tokenizer.nextLine());
+		assertEquals("3", tokenizer.getLine());
+		assertEquals(1, tokenizer.getFieldCount());
+		
+		assertFalse(tokenizer.nextLine());
+	}
+	
+	@Test
+	public void testQuoted() throws IOException {
+		tokenizer.reset("1,\"A, \"\"quoted\"\"\nvalue\",x\n");
+		
+		assertTrue(tokenizer.nextLine());
+		assertEquals("1,\"A, \"\"quoted\"\"\nvalue\",x", tokenizer.getLine());
+		assertEquals(3, tokenizer.getFieldCount());
+		assertEquals("A, \"quoted\"\nvalue", tokenizer.getField(1));
+		assertEquals("x", tokenizer.getField(2));
+		assertEquals('"', tokenizer.getBuffer()[tokenizer.getFieldStart(1)]);
+		assertFalse(tokenizer.nextLine());
+	}
+	
+	/**
+	 * Lines that span reads and outgrow the buffer are put back together.
+	 */
+	@Test
+	public void testReader() throws IOException {
+		StringBuilder text = new StringBuilder("id,value\n");
+		StringBuilder longValue = new StringBuilder();
+		for(int i = 0; i < 20000; i++) {
+			longValue.append((char)('a' + i % 26));
+		}
+		for(int i = 0; i < 1000; i++) {
+			text.append(i).append(",value").append(i).append('\n');
+		}
+		text.append("long,\"").append(longValue).append("\"\n");
+		
+		tokenizer.reset(new ShortReadReader(text.toString()));
+		assertTrue(tokenizer.nextLine());
+		assertEquals("id,value", tokenizer.getLine());
+		for(int i = 0; i < 1000; i++) {
+			assertTrue(tokenizer.nextLine());
+			assertEquals(String.valueOf(i), tokenizer.getField(0));
+			assertEquals("value" + i, tokenizer.getField(1));
+		}
+		assertTrue(tokenizer.nextLine());
+		assertEquals(longValue.toString(), tokenizer.getField(1));
+		assertFalse(tokenizer.nextLine());
+	}
+	
+	private static class ShortReadReader extends StringReader {
+		ShortReadReader(String text) {
+			super(text);
+		}
+		
+		@Override
+		public int read(char[] buffer, int offset, int length) throws IOException {
+			return super.read(buffer, offset, Math.min(length, 7));
+		}
+	}
+	
+	@Test
+	public void testReuse() throws IOException {
+		Reader reader = new StringReader("a,b");
+		tokenizer.reset(reader);
+		assertTrue(tokenizer.nextLine());
+		tokenizer.reset("c");
+		assertTrue(tokenizer.nextLine());
+		assertEquals("c", tokenizer.getLine());
+		tokenizer.reset("");
+		assertFalse(tokenizer.nextLine());
+	}
+	
+}
@@ -0,0 +1,51 @@
+package org.commacq.jms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import javax.jms.JMSException;
+
+import org.junit.Test;
+
+public class CsvMessageEncodingTest {
+
+	@Test
+	public void testRoundTrip() throws JMSException {
+		StringBuilder text = new StringBuilder("id,name\n");
+		for(int i = 0; i < 10000; i++) {
+			text.append(i).append(",\"Name, ÄBC\"\n");
+		}
+		byte[] encoded = CsvMessageEncoding.encode(text.toString());
+		
+		assertTrue("CSV should compress", encoded.length < text.length() / 4);
+		assertEquals(text.toString(), CsvMessageEncoding.decode(encoded));
+	}
+	
+	@Test
+	public void testEmptyText() throws JMSException {
+		assertEquals("", CsvMessageEncoding.decode(CsvMessageEncoding.encode("")));
+	}
+	
+	@Test(expected=JMSException.class)
+	public void testNotEncoded() throws JMSException {
+		CsvMessageEncoding.decode("id,name\n1,ABC\n".getBytes());
+	}
+	
+	@Test(expected=JMSException.class)
+	public void testTruncated() throws JMSException {
+		byte[] encoded = CsvMessageEncoding.encode("id,name\n1,ABC\n2,DEF\n");
+		CsvMessageEncoding.decode(Arrays.copyOf(encoded, encoded.length - 4));
+	}
+	
+	@Test
+	public void testIsDeflate() {
+		assertTrue(CsvMessageEncoding.isDeflate("deflate"));
+		assertTrue(CsvMessageEncoding.isDeflate(" Deflate "));
+		assertFalse(CsvMessageEncoding.isDeflate(null));
+		assertFalse(CsvMessageEncoding.isDeflate("text"));
+	}
+	
+}
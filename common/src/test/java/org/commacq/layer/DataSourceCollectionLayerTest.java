@@ -0,0 +1,223 @@
+package org.commacq.layer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.commacq.BlockCallback;
+import org.commacq.CsvDataSource;
+import org.commacq.CsvLine;
+import org.commacq.CsvLinePredicate;
+import org.commacq.CsvUpdateBlockException;
+import org.commacq.LineCallback;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DataSourceCollectionLayerTest {
+
+	@Mock
+	private CsvDataSource source;
+	@Mock
+	private BlockCallback callback;
+	
+	private DataSourceCollectionLayer layer;
+	
+	@Before
+	public void setup() {
+		when(source.getEntityId()).thenReturn("test");
+		layer = new DataSourceCollectionLayer(source);
+		layer.subscribe(callback);
+	}
+	
+	@Test
+	public void testEmptyBlockNotPublished() throws CsvUpdateBlockException {
+		layer.start(Collections.singleton("test"));
+		layer.finish();
+		verifyNoMoreInteractions(callback);
+	}
+	
+	@Test
+	public void testUntrustedUpdatesCoalesced() throws CsvUpdateBlockException {
+		layer.setUntrustedCoalescing(60000, 3);
+		
+		layer.start(Collections.singleton("test"));
+		layer.updateUntrusted("test", "1");
+		layer.updateUntrusted("test", "2");
+		layer.updateUntrusted("test", "1");
+		layer.finish();
+		layer.updateUntrusted("test", Arrays.asList("2", "3"));
+		
+		Set<String> expectedIds = new LinkedHashSet<String>(Arrays.asList("1", "2", "3"));
+		verify(source, timeout(5000)).getCsvLines(eq(expectedIds), any(LineCallback.class));
+		verify(callback, timeout(5000)).finish();
+		verify(callback).start(Collections.singleton("test"));
+		verifyNoMoreInteractions(callback);
+	}
+	
+	@Test
+	public void testQueuedSubscriber() throws CsvUpdateBlockException {
+		BlockCallback queuedCallback = mock(BlockCallback.class);
+		layer.setSubscriberQueueCapacity(16);
+		layer.subscribe(queuedCallback);
+		
+		CsvLine csvLine = new CsvLine("1", "1,ABC");
+		layer.start(Collections.singleton("test"));
+		layer.processUpdate("test", "id,name", csvLine);
+		layer.finish();
+		
+		verify(queuedCallback, timeout(5000)).finish();
+		InOrder inOrder = inOrder(queuedCallback);
+		inOrder.verify(queuedCallback).start(Collections.singleton("test"));
+		inOrder.verify(queuedCallback).processUpdate("test", "id,name", csvLine);
+		inOrder.verify(queuedCallback).finish();
+	}
+	
+	@Test
+	public void testSlowSubscriberResynchronised() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		BlockCallback slowCallback = mock(BlockCallback.class);
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				entered.countDown();
+				release.await();
+				return null;
+			}
+		}).when(slowCallback).start(Collections.singleton("test"));
+		when(source.getColumnNamesCsv()).thenReturn("id,name");
+		
+		layer.setSubscriberQueueCapacity(2);
+		layer.setSlowSubscriberPolicy(SlowSubscriberPolicy.DROP_AND_RESYNC);
+		layer.subscribe(slowCallback);
+		
+		layer.start(Collections.singleton("test"));
+		layer.processUpdate("test", "id,name", new CsvLine("0", "0,ABC"));
+		entered.await();
+		for(int i = 1; i < 5; i++) {
+			layer.processUpdate("test", "id,name", new CsvLine(String.valueOf(i), i + ",ABC"));
+		}
+		layer.finish();
+		release.countDown();
+		
+		verify(slowCallback, timeout(5000)).finish();
+		InOrder inOrder = inOrder(slowCallback, source);
+		inOrder.verify(slowCallback).cancel();
+		inOrder.verify(slowCallback).startBulkUpdate("test", "id,name");
+		inOrder.verify(source).getAllCsvLines(slowCallback);
+		inOrder.verify(slowCallback).finish();
+	}
+	
+	/**
+	 * The subscriber catches up while the block that overflowed its queue is still
+	 * being published. The resync must wait for that block to finish, or it would
+	 * read the state from before the block and the dropped changes would be lost.
+	 */
+	@Test
+	public void testSlowSubscriberResynchronisedAfterBlockFinishes() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicBoolean blockFinished = new AtomicBoolean();
+		final List<Boolean> resyncAfterFinish = new CopyOnWriteArrayList<Boolean>();
+		BlockCallback slowCallback = mock(BlockCallback.class);
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				entered.countDown();
+				release.await();
+				return null;
+			}
+		}).when(slowCallback).start(Collections.singleton("test"));
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				resyncAfterFinish.add(blockFinished.get());
+				return null;
+			}
+		}).when(source).getAllCsvLines(slowCallback);
+		when(source.getColumnNamesCsv()).thenReturn("id,name");
+		
+		layer.setSubscriberQueueCapacity(2);
+		layer.setSlowSubscriberPolicy(SlowSubscriberPolicy.DROP_AND_RESYNC);
+		layer.subscribe(slowCallback);
+		
+		layer.start(Collections.singleton("test"));
+		layer.processUpdate("test", "id,name", new CsvLine("0", "0,ABC"));
+		entered.await();
+		for(int i = 1; i < 5; i++) {
+			layer.processUpdate("test", "id,name", new CsvLine(String.valueOf(i), i + ",ABC"));
+		}
+		release.countDown();
+		//Gives the subscriber the chance to resync too early
+		Thread.sleep(200);
+		layer.processUpdate("test", "id,name", new CsvLine("5", "5,ABC"));
+		blockFinished.set(true);
+		layer.finish();
+		
+		verify(slowCallback, timeout(5000)).finish();
+		assertEquals(Arrays.asList(true), resyncAfterFinish);
+	}
+	
+	@Test
+	public void testUnknownColumnRejectedOnSubscribe() throws CsvUpdateBlockException {
+		when(source.getColumnNamesCsv()).thenReturn("id,name");
+		BlockCallback filteredCallback = mock(BlockCallback.class);
+		try {
+			layer.getAllCsvLinesAndSubscribe("test", CsvLinePredicate.equalTo("exchange", "XLON"), filteredCallback);
+			fail("Expected the predicate to be rejected");
+		} catch(IllegalArgumentException ex) {
+			//Expected
+		}
+		
+		layer.start(Collections.singleton("test"));
+		layer.processUpdate("test", "id,name", new CsvLine("1", "1,ABC"));
+		layer.finish();
+		
+		verify(source, never()).getAllCsvLines(any(BlockCallback.class));
+		verifyNoMoreInteractions(filteredCallback);
+	}
+	
+	@Test
+	public void testUnknownProjectedColumnRejectedOnSubscribe() throws CsvUpdateBlockException {
+		when(source.getColumnNamesCsv()).thenReturn("id,name");
+		BlockCallback projectedCallback = mock(BlockCallback.class);
+		try {
+			layer.getAllCsvLinesAndSubscribe("test", null, Arrays.asList("exchange"), projectedCallback);
+			fail("Expected the columns to be rejected");
+		} catch(IllegalArgumentException ex) {
+			//Expected
+		}
+		
+		layer.start(Collections.singleton("test"));
+		layer.processUpdate("test", "id,name", new CsvLine("1", "1,ABC"));
+		layer.finish();
+		
+		verifyNoMoreInteractions(projectedCallback);
+	}
+	
+}
@@ -1,10 +1,20 @@
 package org.commacq.cache.csv;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -13,29 +23,91 @@ import org.commacq.CsvLine;
 import org.commacq.CsvUpdateBlockException;
 import org.commacq.LineCallback;
 import org.commacq.layer.AbstractSubscribeLayer;
+import org.commacq.layer.ReplayLayer;
+import org.commacq.layer.ReplayResult;
 import org.commacq.layer.SubscribeLayer;
+import org.commacq.layer.UpdatableLayer;
 import org.springframework.jmx.export.annotation.ManagedOperation;
 
 /**
  * Takes a collection of CsvDataSources and prepares a Cache implementation
  * that wraps them.
+ * 
+ * Every block that changes an entity is given the next sequence number for that
+ * entity, and its changes are kept in a bounded journal so that subscribers that
+ * have missed a few blocks can catch up with replaySince.
+ * 
+ * Given somewhere to keep snapshot files, the cache is written to disk periodically.
+ * A restarted server starts from the snapshots, which is much quicker than loading
+ * everything from the source, and then reloads from the source in the background.
+ * Subscribers only hear about the differences.
+ * 
+ * Alongside snapshots, every committed block can be written to a CsvWriteAheadLog before
+ * it is passed on to subscribers. The blocks logged after each snapshot are applied
+ * to it on startup, and the log is compacted as new snapshots are written.
+ * 
+ * Lines that are identical to the ones already cached, and removals of ids that
+ * aren't cached, are dropped rather than passed on. A reload of an entity that is
+ * already cached, with the same columns, is turned into a refresh: only the lines
+ * that changed are passed on, followed by removals of the ids that weren't sent again.
  */
 @Slf4j
-public class CacheLayer extends AbstractSubscribeLayer {
+public class CacheLayer extends AbstractSubscribeLayer implements ReplayLayer {
 	
     private final Object csvCacheMonitor = new Object(); //Switching the csvCache reference synchronises on this monitor
     private final Map<String, CsvDataSourceCache> caches;
     private final SortedSet<String> entityIds;
+    private final CsvLineStoreFactory csvLineStoreFactory;
+    private final Map<String, CsvJournal> journals;
+    private final long epoch = System.currentTimeMillis();
+    private final CsvCacheSnapshotFiles snapshotFiles;
+    private final CsvWriteAheadLog writeAheadLog;
+    //The sequence of the last logged block that readers can see. Blocks are logged
+    //before they are committed, so the log itself can be ahead of the caches.
+    private volatile long committedSequence;
+    //The caches as they were when their snapshots were last written. Guarded by this.
+    private final Map<String, CsvCache> snapshotCaches = new HashMap<String, CsvCache>();
+    private final Map<String, Long> snapshotVersions = new HashMap<String, Long>();
+    private ScheduledExecutorService snapshotScheduler;
     
 	public CacheLayer(SubscribeLayer sourceLayer) {
+		this(sourceLayer, new CsvLineStoreHeapFactory());
+	}
+	
+	/**
+	 * @param csvLineStoreFactory chooses whether the cached lines are kept on or off heap
+	 */
+	public CacheLayer(SubscribeLayer sourceLayer, CsvLineStoreFactory csvLineStoreFactory) {
+		this(sourceLayer, csvLineStoreFactory, null, null);
+	}
+	
+	/**
+	 * @param snapshotFiles where the cache is snapshotted to and restarted from, or null
+	 * @param writeAheadLog where committed blocks are logged, or null. Only used with snapshots,
+	 *                      which are what allow the log to be compacted.
+	 */
+	public CacheLayer(SubscribeLayer sourceLayer, CsvLineStoreFactory csvLineStoreFactory,
+			          CsvCacheSnapshotFiles snapshotFiles, CsvWriteAheadLog writeAheadLog) {
+		this.csvLineStoreFactory = csvLineStoreFactory;
+		this.snapshotFiles = snapshotFiles != null && snapshotFiles.isEnabled() ? snapshotFiles : null;
+		if(writeAheadLog != null && writeAheadLog.isEnabled() && this.snapshotFiles == null) {
+			log.warn("Not using the write-ahead log because snapshots are turned off");
+		}
+		this.writeAheadLog = this.snapshotFiles != null && writeAheadLog != null && writeAheadLog.isEnabled() ? writeAheadLog : null;
+		//Everything logged before now is either replayed or superseded by the initial load
+		this.committedSequence = this.writeAheadLog == null ? 0 : this.writeAheadLog.getSequence();
 		caches = new HashMap<String, CsvDataSourceCache>(sourceLayer.getEntityIds().size());
 		this.entityIds = sourceLayer.getEntityIds();
+		journals = createJournals(entityIds);
 		for(String entityId : sourceLayer.getEntityIds()) {
 			CsvDataSourceCache cache = new CsvDataSourceCache(entityId);
 			caches.put(entityId, cache);
 		}
 		
 		CsvCacheFactoryInitialLoad initialLoad = new CsvCacheFactoryInitialLoad();
+		if(startFromSnapshots(sourceLayer, initialLoad)) {
+			return;
+		}
 		try {
 			initialLoad.start(entityIds);
 			for(String entityId : entityIds) {
@@ -49,8 +121,12 @@ public class CacheLayer extends AbstractSubscribeLayer {
 	}
 	
 	public CacheLayer(SubscribeLayer sourceLayer, Collection<String> entityIds) {
+		this.csvLineStoreFactory = new CsvLineStoreHeapFactory();
+		this.snapshotFiles = null;
+		this.writeAheadLog = null;
 		caches = new HashMap<String, CsvDataSourceCache>(entityIds.size());
 		this.entityIds = new TreeSet<String>(entityIds);
+		journals = createJournals(entityIds);
 		for(String entityId : entityIds) {
 			CsvDataSourceCache cache = new CsvDataSourceCache(entityId);
 			caches.put(entityId, cache);
@@ -60,6 +136,243 @@ public class CacheLayer extends AbstractSubscribeLayer {
 		sourceLayer.getAllCsvLinesAndSubscribe(entityIds, initialLoad);
 	}
 	
+	/**
+	 * Serves the snapshots straight away if every entity has one that matches the source,
+	 * then reloads everything from the source in the background. Blocks in the write-ahead
+	 * log that are newer than a snapshot are applied to it first.
+	 * 
+	 * @return false if the cache has to be loaded from the source instead
+	 */
+	private boolean startFromSnapshots(SubscribeLayer sourceLayer, CsvCacheFactoryInitialLoad initialLoad) {
+		if(snapshotFiles == null) {
+			return false;
+		}
+		if(!(sourceLayer instanceof UpdatableLayer)) {
+			log.info("Not starting from snapshots because the source layer can't be reloaded to bring them up to date");
+			return false;
+		}
+		
+		final Map<String, CsvCache> csvCaches = new HashMap<String, CsvCache>(entityIds.size());
+		Map<String, Long> snapshotSequences = new HashMap<String, Long>(entityIds.size());
+		for(String entityId : entityIds) {
+			CsvCacheSnapshotFiles.Snapshot snapshot = snapshotFiles.read(entityId, sourceLayer.getColumnNamesCsv(entityId),
+					                                                     csvLineStoreFactory.createEmptyStore(entityId));
+			if(snapshot == null) {
+				log.info("No usable snapshot for entity {}, loading all entities from the source", entityId);
+				return false;
+			}
+			log.info("Read snapshot of {} lines for entity {} taken at sequence {}",
+					 snapshot.getCsvCache().size(), entityId, snapshot.getSequence());
+			csvCaches.put(entityId, snapshot.getCsvCache());
+			snapshotSequences.put(entityId, snapshot.getSequence());
+		}
+		
+		if(writeAheadLog != null) {
+			final int[] blocks = new int[1];
+			writeAheadLog.replay(snapshotSequences, new CsvWriteAheadLog.Replay() {
+				private CsvCache csvCache;
+				
+				@Override
+				public void startBlock(long sequence, String entityId, boolean bulk) {
+					csvCache = csvCaches.get(entityId);
+					if(bulk) {
+						//The logged block replaces every line
+						csvCache = new CsvCache(entityId, csvCache.getColumnNamesCsv(), null, csvLineStoreFactory.createEmptyStore(entityId));
+						csvCache.startBulkLoad();
+						csvCaches.put(entityId, csvCache);
+					}
+				}
+				
+				@Override
+				public void change(String id, CsvLine csvLine) {
+					if(csvLine == null) {
+						csvCache.removeId(id);
+					} else {
+						csvCache.updateLine(csvLine);
+					}
+				}
+				
+				@Override
+				public void finishBlock() {
+					csvCache.commit();
+					blocks[0]++;
+				}
+			});
+			log.info("Applied {} blocks from the write-ahead log to the snapshots", blocks[0]);
+		}
+		
+		synchronized(csvCacheMonitor) {
+			for(Entry<String, CsvCache> csvCache : csvCaches.entrySet()) {
+				caches.get(csvCache.getKey()).csvCache = csvCache.getValue();
+			}
+			csvCacheMonitor.notify();
+		}
+		initialLoad.localCsvCache.putAll(csvCaches);
+		sourceLayer.subscribe(entityIds, initialLoad);
+		
+		final UpdatableLayer updatableLayer = (UpdatableLayer)sourceLayer;
+		Thread reconcile = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					updatableLayer.reloadAll();
+					log.info("Caches started from snapshots have been reloaded from the source");
+				} catch(Exception ex) {
+					log.error("Could not reload caches started from snapshots; they may be stale", ex);
+				}
+			}
+		}, "cacheSnapshotReconcile");
+		reconcile.setDaemon(true);
+		reconcile.start();
+		return true;
+	}
+	
+	/**
+	 * How often to write snapshots of entities that have changed. Only has an effect
+	 * when the layer has been given somewhere to keep snapshot files.
+	 */
+	public synchronized void setSnapshotIntervalSeconds(int snapshotIntervalSeconds) {
+		if(snapshotScheduler != null) {
+			snapshotScheduler.shutdown();
+			snapshotScheduler = null;
+		}
+		if(snapshotFiles == null || snapshotIntervalSeconds <= 0) {
+			return;
+		}
+		snapshotScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "cacheSnapshotWriter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		snapshotScheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					writeSnapshots();
+				} catch(RuntimeException ex) {
+					log.error("Could not write cache snapshots", ex);
+				}
+			}
+		}, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Writes a snapshot of every entity that has changed since its last snapshot,
+	 * then deletes the write-ahead log segments that every snapshot covers.
+	 * 
+	 * @return the number of snapshots written
+	 */
+	@ManagedOperation
+	public synchronized int writeSnapshots() {
+		if(snapshotFiles == null) {
+			return 0;
+		}
+		int written = 0;
+		long coveredSequence = Long.MAX_VALUE;
+		for(CsvDataSourceCache cache : caches.values()) {
+			String entityId = cache.getEntityId();
+			//Read first so that the snapshot holds at least the blocks up to this sequence.
+			//Blocks committed after it may be in the snapshot too, but replaying one
+			//that's already in the snapshot does no harm.
+			long sequence = committedSequence;
+			CsvCache csvCache = cache.csvCache;
+			if(csvCache == null) {
+				coveredSequence = 0;
+				continue;
+			}
+			long version = csvCache.getVersion();
+			if(csvCache == snapshotCaches.get(entityId) && snapshotVersions.get(entityId) == version) {
+				//Nothing has been logged for the entity since its snapshot
+				coveredSequence = Math.min(coveredSequence, sequence);
+				continue;
+			}
+			try {
+				snapshotFiles.write(csvCache, sequence);
+			} catch(IOException ex) {
+				throw new RuntimeException("Could not write snapshot of entity " + entityId, ex);
+			}
+			snapshotCaches.put(entityId, csvCache);
+			snapshotVersions.put(entityId, version);
+			coveredSequence = Math.min(coveredSequence, sequence);
+			written++;
+		}
+		if(writeAheadLog != null && coveredSequence != Long.MAX_VALUE) {
+			writeAheadLog.compact(coveredSequence);
+		}
+		log.debug("Wrote {} cache snapshots", written);
+		return written;
+	}
+	
+	private static Map<String, CsvJournal> createJournals(Collection<String> entityIds) {
+		Map<String, CsvJournal> journals = new HashMap<String, CsvJournal>(entityIds.size());
+		for(String entityId : entityIds) {
+			journals.put(entityId, new CsvJournal());
+		}
+		return journals;
+	}
+	
+	/**
+	 * The number of recent blocks per entity that can be replayed.
+	 */
+	public void setJournalMaxBlocks(int journalMaxBlocks) {
+		for(CsvJournal journal : journals.values()) {
+			journal.setMaxBlocks(journalMaxBlocks);
+		}
+	}
+	
+	/**
+	 * The number of changed lines per entity that the journal may hold.
+	 */
+	public void setJournalMaxLines(int journalMaxLines) {
+		for(CsvJournal journal : journals.values()) {
+			journal.setMaxLines(journalMaxLines);
+		}
+	}
+	
+	@Override
+	public long getEpoch() {
+		return epoch;
+	}
+	
+	@Override
+	public long getSequence(String entityId) {
+		return journals.get(entityId).getSequence();
+	}
+	
+	@Override
+	public ReplayResult replaySince(String entityId, long epoch, long sequence, LineCallback callback) {
+		CsvJournal journal = journals.get(entityId);
+		SortedMap<String, CsvLine> changes;
+		long currentSequence;
+		//The changes and the sequence they bring the subscriber up to must match
+		synchronized(journal) {
+			changes = epoch == this.epoch ? journal.changesSince(sequence) : null;
+			currentSequence = journal.getSequence();
+		}
+		if(changes == null) {
+			log.info("Cannot replay entity {} from {}:{}, now at {}:{}", entityId, epoch, sequence, this.epoch, currentSequence);
+			return new ReplayResult(false, this.epoch, currentSequence);
+		}
+		
+		String columnNamesCsv = getColumnNamesCsv(entityId);
+		try {
+			for(Entry<String, CsvLine> change : changes.entrySet()) {
+				if(change.getValue() == null) {
+					callback.processRemove(entityId, columnNamesCsv, change.getKey());
+				} else {
+					callback.processUpdate(entityId, columnNamesCsv, change.getValue());
+				}
+			}
+		} catch (CsvUpdateBlockException ex) {
+			throw new RuntimeException(ex);
+		}
+		log.info("Replayed {} changes to entity {} from sequence {} to {}", changes.size(), entityId, sequence, currentSequence);
+		return new ReplayResult(true, this.epoch, currentSequence);
+	}
+	
     @Override
 	public SortedSet<String> getEntityIds() {
     	return entityIds;
@@ -124,41 +437,141 @@ public class CacheLayer extends AbstractSubscribeLayer {
     	//Either points to a local cache where we're preparing a refresh
     	//or points to the main csvCache that's in operation.
     	private Map<String, CsvCache> localCsvCache = new HashMap<String, CsvCache>();
+    	//Entities replaced by a bulk update in the current block
+    	private Set<String> bulkUpdates = new HashSet<String>();
+    	//Ids of entities and groups being refreshed in the current block that haven't been
+    	//sent again, which are removed when the block finishes
+    	private Map<String, Set<String>> refreshRemovals = new HashMap<String, Set<String>>();
     	
+    	/**
+    	 * Lines that haven't changed go no further.
+    	 */
     	@Override
     	public void processUpdate(String entityId, String columnNamesCsv, CsvLine csvLine) throws CsvUpdateBlockException { 
-    		localCsvCache.get(entityId).updateLine(csvLine);
-    		composite.processUpdate(entityId, columnNamesCsv, csvLine);
+    		keepRefreshedId(entityId, csvLine.getId());
+    		if(localCsvCache.get(entityId).updateLineIfChanged(csvLine)) {
+    			composite.processUpdate(entityId, columnNamesCsv, csvLine);
+    		}
     	}
     	
     	@Override
     	public void processRemove(String entityId, String columnNamesCsv, String id) throws CsvUpdateBlockException {
-    		localCsvCache.get(entityId).removeId(id);
-    		composite.processRemove(entityId, columnNamesCsv, id);
+    		keepRefreshedId(entityId, id);
+    		if(localCsvCache.get(entityId).removeId(id)) {
+    			composite.processRemove(entityId, columnNamesCsv, id);
+    		}
+    	}
+    	
+    	private void keepRefreshedId(String entityId, String id) {
+    		if(!refreshRemovals.isEmpty()) {
+    			Set<String> removals = refreshRemovals.get(entityId);
+    			if(removals != null) {
+    				removals.remove(id);
+    			}
+    		}
     	}
     	
+    	/**
+    	 * A cache that's already loaded with the same columns is refreshed in place, so
+    	 * subscribers only see what has changed. Otherwise a new cache is prepared and
+    	 * swapped in when the block finishes.
+    	 */
     	@Override
     	public void startBulkUpdate(String entityId, String columnNamesCsv) throws CsvUpdateBlockException {
+    		final CsvCache current = localCsvCache.get(entityId);
+    		if(current != null && current.getColumnNamesCsv().equals(columnNamesCsv) && !bulkUpdates.contains(entityId)) {
+    			log.debug("Refreshing entity {}, which has {} lines", entityId, current.size());
+    			final Set<String> removals = refreshRemovals(entityId);
+    			current.visitAll(new LineCallback() {
+    				@Override
+    				public void processUpdate(String entityId, String columnNamesCsv, CsvLine csvLine) {
+    					removals.add(csvLine.getId());
+    				}
+    				
+    				@Override
+    				public void processRemove(String entityId, String columnNamesCsv, String id) {
+    				}
+    			});
+    			return;
+    		}
+    		
     		log.debug("Initialising local CsvCache with columns {} with context {}.", columnNamesCsv);
-    		localCsvCache.put(entityId, new CsvCache(entityId, columnNamesCsv));
+    		CsvCache csvCache = new CsvCache(entityId, columnNamesCsv, null, csvLineStoreFactory.createEmptyStore(entityId));
+    		csvCache.startBulkLoad();
+    		localCsvCache.put(entityId, csvCache);
+    		refreshRemovals.remove(entityId);
+    		bulkUpdates.add(entityId);
     		composite.startBulkUpdate(entityId, columnNamesCsv);
     	}
     	
+    	/**
+    	 * The block is logged, and synced unless the log only syncs periodically, before
+    	 * any of it is published. If it can't be logged, it is rolled back and subscribers
+    	 * see it cancelled. The entities logged before the failure stay in the log, which
+    	 * is no worse than the source having sent them on their own.
+    	 */
     	@Override
     	public void finish() throws CsvUpdateBlockException {
+    		removeIdsNotRefreshed();
+    		long sequence = 0;
+    		if(writeAheadLog != null) {
+    			try {
+    				sequence = logBlock();
+    			} catch(RuntimeException ex) {
+    				cancel();
+    				throw ex;
+    			}
+    		}
     		for(CsvDataSourceCache cache : caches.values()) {
     			String entityId = cache.getEntityId();
-	    		if(localCsvCache.get(entityId) != cache.csvCache) {
+    			CsvCache csvCache = localCsvCache.get(entityId);
+    			if(csvCache != null) {
+    				//Publishes this block's changes to readers in one go
+    				SortedMap<String, CsvLine> changes = csvCache.commit();
+    				if(bulkUpdates.contains(entityId)) {
+    					journals.get(entityId).reset();
+    				} else if(!changes.isEmpty()) {
+    					journals.get(entityId).append(changes);
+    				}
+    			}
+	    		if(csvCache != cache.csvCache) {
 		    		log.debug("Refresh completed.");
 		    		synchronized(csvCacheMonitor) {
-		    			cache.csvCache = localCsvCache.get(entityId);
+		    			cache.csvCache = csvCache;
 		    			csvCacheMonitor.notify();
 		    		}
 	    		}
     		}
+    		if(sequence > 0) {
+    			committedSequence = sequence;
+    		}
+    		bulkUpdates.clear();
     		composite.finish();
     	}
     	
+    	/**
+    	 * @return the sequence of the last entity logged, or 0 if nothing changed
+    	 */
+    	private long logBlock() {
+    		long sequence = 0;
+    		for(CsvDataSourceCache cache : caches.values()) {
+    			String entityId = cache.getEntityId();
+    			CsvCache csvCache = localCsvCache.get(entityId);
+    			if(csvCache == null) {
+    				continue;
+    			}
+    			if(bulkUpdates.contains(entityId)) {
+    				sequence = writeAheadLog.appendBulk(entityId, csvCache.getBulkLoadLines());
+    				continue;
+    			}
+    			SortedMap<String, CsvLine> changes = csvCache.getPendingChanges();
+    			if(!changes.isEmpty()) {
+    				sequence = writeAheadLog.append(entityId, false, changes);
+    			}
+    		}
+    		return sequence;
+    	}
+    	
     	@Override
     	public void cancel() {
     		for(CsvDataSourceCache cache : caches.values()) {
@@ -170,7 +583,13 @@ public class CacheLayer extends AbstractSubscribeLayer {
 		    			csvCacheMonitor.notify();
 		    		}
 	    		}
+	    		if(cache.csvCache != null) {
+	    			//Readers never saw this block's changes, so they can simply be dropped
+	    			cache.csvCache.rollback();
+	    		}
     		}
+    		bulkUpdates.clear();
+    		refreshRemovals.clear();
     		composite.cancel();
     	}
     	
@@ -179,9 +598,38 @@ public class CacheLayer extends AbstractSubscribeLayer {
     		composite.start(entityIds);
     	}
     	
+    	/**
+    	 * The lines that follow are every member of the group. Subscribers aren't told
+    	 * about the group; instead the members that aren't sent again are passed on as
+    	 * removals when the block finishes, so they see an ordinary block of changes.
+    	 */
     	@Override
     	public void startBulkUpdateForGroup(String entityId, String group, String idWithinGroup) throws CsvUpdateBlockException {
-    		throw new UnsupportedOperationException("Group updates not yet supported.");
+    		Set<String> members = localCsvCache.get(entityId).getGroupIds(group, idWithinGroup);
+    		log.debug("Refreshing group {}={} of entity {}, which has {} members", group, idWithinGroup, entityId, members.size());
+    		refreshRemovals(entityId).addAll(members);
+    	}
+    	
+    	private Set<String> refreshRemovals(String entityId) {
+    		Set<String> removals = refreshRemovals.get(entityId);
+    		if(removals == null) {
+    			removals = new LinkedHashSet<String>();
+    			refreshRemovals.put(entityId, removals);
+    		}
+    		return removals;
+    	}
+    	
+    	private void removeIdsNotRefreshed() throws CsvUpdateBlockException {
+    		for(Entry<String, Set<String>> entry : refreshRemovals.entrySet()) {
+    			String entityId = entry.getKey();
+    			CsvCache csvCache = localCsvCache.get(entityId);
+    			for(String id : entry.getValue()) {
+    				if(csvCache.removeId(id)) {
+    					composite.processRemove(entityId, csvCache.getColumnNamesCsv(), id);
+    				}
+    			}
+    		}
+    		refreshRemovals.clear();
     	}
     }	
 }
@@ -1,10 +1,13 @@
 package org.commacq.cache.csv;
 
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.SortedSet;
 import java.util.TreeMap;
 
 import javax.annotation.concurrent.ThreadSafe;
@@ -15,24 +18,38 @@ import org.commacq.CsvUpdateBlockException;
 import org.commacq.LineCallback;
 
 /**
- * Contains a linked list of CSV lines that can be traversed and written
- * to an output stream quickly in order.
+ * Contains CSV lines that can be traversed and written to an output
+ * stream quickly. The lines are kept in a pluggable CsvLineStore, which
+ * is either a sorted map on the heap or off-heap storage.
  * 
  * The first column must be labelled "id".
  * 
+ * Readers always see a complete, immutable snapshot of the cache. Updates
+ * and removals are staged by the writer and only become visible to readers
+ * when the update block is committed, at which point a new version of the
+ * snapshot is published in a single volatile write. Readers never take a
+ * lock and can iterate a snapshot while the next version is being prepared.
+ * 
  * Keeps track of the header fields and makes sure the fields get added
  * in the correct order on each line.
  * 
- * Has the additional responsibility of maintaining a map for groups,
- * mapping each value within a group to a set of CsvLines.
+ * Has the additional responsibility of indexing the lines by their group values,
+ * so that the members of a group can be found without scanning the cache. The
+ * index is part of each snapshot and is kept up to date as blocks are committed.
+ * 
+ * An empty cache can instead be loaded in bulk, in which case the lines are written
+ * straight into a new store rather than being staged on the heap first.
  */
 @ThreadSafe
 public final class CsvCache {
 
 	private final String entityId;
-	private final SortedMap<String, CsvLine> linesIdMap = new TreeMap<String, CsvLine>();
-	private final List<String> groups;
-	private final Map<String, Map<String, CsvLine>> groupsMap = new HashMap<String, Map<String,CsvLine>>();
+	private volatile CsvCacheSnapshot snapshot;
+	//Changes made by the writer since the last commit, with null marking a removal. Guarded by pendingLock.
+	private SortedMap<String, CsvLine> pendingChanges = new TreeMap<String, CsvLine>();
+	//The store being loaded in bulk instead, if any. Guarded by pendingLock.
+	private CsvLineStore.Builder bulkLoad;
+	private final Object pendingLock = new Object();
 	private final String columnNamesCsv;
 	
 	public CsvCache(final String entityId, final String columnNamesCsv) {
@@ -40,12 +57,20 @@ public final class CsvCache {
 	}
 	
 	public CsvCache(final String entityId, String columnNamesCsv, final List<String> groups) {
+		this(entityId, columnNamesCsv, groups, new CsvLineStoreHeap());
+	}
+	
+	/**
+	 * @param groups the groups to index, or null to index every group found on the lines
+	 * @param store where the committed lines are kept, which must be empty
+	 */
+	public CsvCache(final String entityId, String columnNamesCsv, final List<String> groups, final CsvLineStore store) {
 		this.entityId = entityId;
 		Validate.notEmpty(columnNamesCsv);
 		Validate.isTrue(columnNamesCsv.startsWith("id,"), "id must be the first specified column: %s", columnNamesCsv);
 		
 		this.columnNamesCsv = columnNamesCsv;
-		this.groups = groups;
+		this.snapshot = new CsvCacheSnapshot(store, groups == null ? null : new HashSet<String>(groups));
 	}
 	
 	public String getEntityId() {
@@ -56,42 +81,202 @@ public final class CsvCache {
 		return columnNamesCsv;
 	}
 	
+	/**
+	 * Writes the lines staged until the next commit straight into a new store,
+	 * which the commit then publishes in place of the empty one. Used for the
+	 * initial load, where staging every line on the heap would need as much
+	 * memory again as the store itself.
+	 * 
+	 * @throws IllegalStateException if the cache isn't empty
+	 */
+	public void startBulkLoad() {
+		synchronized(pendingLock) {
+			Validate.validState(snapshot.size() == 0 && pendingChanges.isEmpty() && bulkLoad == null,
+					            "Only an empty cache can be loaded in bulk: %s", entityId);
+			bulkLoad = snapshot.builder();
+		}
+	}
+	
+	public boolean isBulkLoading() {
+		synchronized(pendingLock) {
+			return bulkLoad != null;
+		}
+	}
+	
 	/**
 	 * The result set must have the columns defined in the same
 	 * order as in the header. This is not checked.
 	 * 
+	 * The update is not visible to readers until {@link #commit()} is called.
+	 * 
 	 * @return previous value that was in the cache or null if this is a new entry
 	 */
 	public CsvLine updateLine(final CsvLine csvLine) {
-		synchronized(linesIdMap) {
-			CsvLine previous = linesIdMap.put(csvLine.getId(), csvLine);
+		synchronized(pendingLock) {
+			CsvLine previous = getPendingLine(csvLine.getId());
+			stage(csvLine);
 			return previous;
 		}
 	}
 	
+	/**
+	 * Stages the line unless it is identical to the line it would replace, including
+	 * its group values. Lines of different lengths are told apart without comparing
+	 * their contents.
+	 * 
+	 * @return false if the line is unchanged, in which case nothing is staged
+	 */
+	public boolean updateLineIfChanged(final CsvLine csvLine) {
+		synchronized(pendingLock) {
+			CsvLine previous = getPendingLine(csvLine.getId());
+			if(previous != null && isSame(previous, csvLine)) {
+				return false;
+			}
+			stage(csvLine);
+			return true;
+		}
+	}
+	
+	private static boolean isSame(CsvLine previous, CsvLine csvLine) {
+		if(previous.isUtf8() && csvLine.isUtf8() && previous.getCsvLineUtf8().length != csvLine.getCsvLineUtf8().length) {
+			return false;
+		}
+		return previous.contentEquals(csvLine) && groupValues(previous).equals(groupValues(csvLine));
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Map<String, String> groupValues(CsvLine csvLine) {
+		return csvLine.getGroupValues() == null ? Collections.EMPTY_MAP : csvLine.getGroupValues();
+	}
+	
+	/**
+	 * The removal is not visible to readers until {@link #commit()} is called.
+	 * 
+	 * @return false if the id isn't there, in which case nothing is staged
+	 */
 	public boolean removeId(String id) {
-		synchronized(linesIdMap) {
-			return linesIdMap.remove(id) != null;
+		synchronized(pendingLock) {
+			CsvLine previous = getPendingLine(id);
+			if(previous == null) {
+				return false;
+			}
+			if(bulkLoad != null) {
+				bulkLoad.remove(id);
+			} else {
+				pendingChanges.put(id, null);
+			}
+			return true;
 		}
 	}
 	
+	private void stage(CsvLine csvLine) {
+		if(bulkLoad != null) {
+			bulkLoad.put(csvLine.compact());
+		} else {
+			pendingChanges.put(csvLine.getId(), csvLine.compact());
+		}
+	}
+	
+	private CsvLine getPendingLine(String id) {
+		if(bulkLoad != null) {
+			return bulkLoad.get(id);
+		}
+		if(pendingChanges.containsKey(id)) {
+			return pendingChanges.get(id);
+		}
+		return snapshot.getLine(id);
+	}
+	
+	/**
+	 * Publishes the changes made since the last commit as a new version
+	 * of the cache. Called once at the end of each update block.
+	 * 
+	 * @return the changes that were published, with null marking a removal,
+	 *         or nothing for a bulk load, whose lines are all new
+	 */
+	public SortedMap<String, CsvLine> commit() {
+		synchronized(pendingLock) {
+			if(bulkLoad != null) {
+				CsvLineStore store = bulkLoad.build();
+				bulkLoad = null;
+				snapshot = snapshot.load(store);
+				return Collections.unmodifiableSortedMap(new TreeMap<String, CsvLine>());
+			}
+			if(pendingChanges.isEmpty()) {
+				return Collections.unmodifiableSortedMap(new TreeMap<String, CsvLine>());
+			}
+			SortedMap<String, CsvLine> changes = pendingChanges;
+			pendingChanges = new TreeMap<String, CsvLine>();
+			snapshot = snapshot.apply(changes);
+			return Collections.unmodifiableSortedMap(changes);
+		}
+	}
+	
+	/**
+	 * The changes that {@link #commit()} would publish, with null marking a removal.
+	 * Only for the writer, which mustn't stage anything else while it holds them.
+	 * Empty for a bulk load; see {@link #getBulkLoadLines()}.
+	 */
+	public SortedMap<String, CsvLine> getPendingChanges() {
+		synchronized(pendingLock) {
+			return Collections.unmodifiableSortedMap(pendingChanges);
+		}
+	}
+	
+	/**
+	 * The lines loaded in bulk so far, in no particular order. Only for the writer,
+	 * which mustn't stage anything else while it iterates them.
+	 * 
+	 * @throws IllegalStateException if the cache isn't being loaded in bulk
+	 */
+	public Iterator<CsvLine> getBulkLoadLines() {
+		synchronized(pendingLock) {
+			Validate.validState(bulkLoad != null, "Not being loaded in bulk: %s", entityId);
+			return bulkLoad.iterator();
+		}
+	}
+	
+	/**
+	 * Discards the changes made since the last commit, including a bulk load.
+	 */
+	public void rollback() {
+		synchronized(pendingLock) {
+			pendingChanges.clear();
+			bulkLoad = null;
+		}
+	}
+	
+	/**
+	 * Incremented every time a commit publishes changes.
+	 */
+	public long getVersion() {
+		return snapshot.getVersion();
+	}
+	
 	public int size() {
-		return linesIdMap.size();
+		return snapshot.size();
+	}
+	
+	/**
+	 * The version readers currently see, for callers that need its size
+	 * and lines to agree.
+	 */
+	CsvCacheSnapshot getSnapshot() {
+		return snapshot;
 	}
 		
 	public CsvLine getLine(final String id) {
-	    return linesIdMap.get(id);
+	    return snapshot.getLine(id);
 	}
 	
 	public void visitAll(LineCallback callback) throws CsvUpdateBlockException {
-		for(CsvLine csvLine : linesIdMap.values()) {
-			callback.processUpdate(entityId, columnNamesCsv, csvLine);
-		}
+		snapshot.visitAll(entityId, columnNamesCsv, callback);
 	}
 	
 	public void visitIds(LineCallback callback, Collection<String> ids) {
+		CsvCacheSnapshot current = snapshot;
 		for(String id : ids) {
-			CsvLine csvLine = linesIdMap.get(id);
+			CsvLine csvLine = current.getLine(id);
 			if(csvLine != null) {
 				try {
 					callback.processUpdate(entityId, columnNamesCsv, csvLine);
@@ -102,11 +287,19 @@ public final class CsvCache {
 		}
 	}
 	
+	/**
+	 * The ids of the lines whose value for the group is idWithinGroup, as committed.
+	 */
+	public SortedSet<String> getGroupIds(String group, String idWithinGroup) {
+		return snapshot.getGroupIds(group, idWithinGroup);
+	}
+	
 	public void visitGroup(LineCallback callback, String group, String idWithinGroup) {
-		Map<String, CsvLine> groupContents = groupsMap.get(group);
-		for(CsvLine csvLine : groupContents.values()) {
+		CsvCacheSnapshot current = snapshot;
+		for(String id : current.getGroupIds(group, idWithinGroup)) {
+			CsvLine csvLine = current.getLine(id);
 			try {
-				callback.processUpdate(entityId, idWithinGroup, csvLine);
+				callback.processUpdate(entityId, columnNamesCsv, csvLine);
 			} catch (CsvUpdateBlockException ex) {
 				throw new RuntimeException(ex);
 			}
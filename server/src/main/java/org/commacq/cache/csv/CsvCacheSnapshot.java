@@ -0,0 +1,200 @@
+package org.commacq.cache.csv;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+
+import javax.annotation.concurrent.Immutable;
+
+import org.commacq.CsvLine;
+import org.commacq.CsvUpdateBlockException;
+import org.commacq.LineCallback;
+
+/**
+ * An immutable, versioned view of the lines held by a CsvCache.
+ *
+ * The lines are held in a large base store plus a small delta containing the
+ * changes made since the delta was last merged into the base. Neither is modified
+ * once the snapshot has been published, so readers can look up and iterate
+ * a snapshot without locking while the writer prepares the next version.
+ *
+ * A null value in the delta marks an id that has been removed.
+ * 
+ * Each version carries a CsvGroupIndex of the lines it holds.
+ */
+@Immutable
+final class CsvCacheSnapshot {
+
+	/**
+	 * The delta is merged into the base once it grows past this size or the
+	 * size the base store asks for, whichever is larger. Each published block
+	 * copies the delta, so keeping it small keeps the cost of a block
+	 * proportional to the number of changes rather than to the size of the cache.
+	 */
+	static final int MIN_COMPACTION_THRESHOLD = 4096;
+
+	private final long version;
+	private final CsvLineStore base;
+	private final SortedMap<String, CsvLine> delta;
+	private final int size;
+	private final CsvGroupIndex groupIndex;
+
+	/**
+	 * @param base an empty store
+	 * @param indexedGroups the groups to index, or null for every group found on the lines
+	 */
+	CsvCacheSnapshot(CsvLineStore base, Set<String> indexedGroups) {
+		this(0, base, emptyMap(), base.size(), new CsvGroupIndex(indexedGroups));
+	}
+
+	private CsvCacheSnapshot(long version, CsvLineStore base, SortedMap<String, CsvLine> delta, int size, CsvGroupIndex groupIndex) {
+		this.version = version;
+		this.base = base;
+		this.delta = delta;
+		this.size = size;
+		this.groupIndex = groupIndex;
+	}
+
+	long getVersion() {
+		return version;
+	}
+
+	int size() {
+		return size;
+	}
+
+	SortedSet<String> getGroupIds(String group, String value) {
+		return groupIndex.getIds(group, value);
+	}
+
+	CsvLine getLine(String id) {
+		CsvLine csvLine = delta.get(id);
+		if(csvLine != null || delta.containsKey(id)) {
+			return csvLine;
+		}
+		return base.get(id);
+	}
+
+	/**
+	 * Visits every line. If the base store is sorted, the base and delta are merged
+	 * so that the lines are visited in id order. Otherwise the base lines that
+	 * haven't been replaced are visited first, followed by the delta.
+	 */
+	void visitAll(String entityId, String columnNamesCsv, LineCallback callback) throws CsvUpdateBlockException {
+		if(!base.isSorted()) {
+			Iterator<CsvLine> baseIterator = base.iterator();
+			while(baseIterator.hasNext()) {
+				CsvLine csvLine = baseIterator.next();
+				if(!delta.containsKey(csvLine.getId())) {
+					callback.processUpdate(entityId, columnNamesCsv, csvLine);
+				}
+			}
+			for(CsvLine csvLine : delta.values()) {
+				if(csvLine != null) {
+					callback.processUpdate(entityId, columnNamesCsv, csvLine);
+				}
+			}
+			return;
+		}
+
+		Iterator<CsvLine> baseIterator = base.iterator();
+		Iterator<Entry<String, CsvLine>> deltaIterator = delta.entrySet().iterator();
+		CsvLine baseLine = next(baseIterator);
+		Entry<String, CsvLine> deltaEntry = next(deltaIterator);
+		while(baseLine != null || deltaEntry != null) {
+			int comparison;
+			if(baseLine == null) {
+				comparison = 1;
+			} else if(deltaEntry == null) {
+				comparison = -1;
+			} else {
+				comparison = baseLine.getId().compareTo(deltaEntry.getKey());
+			}
+
+			if(comparison < 0) {
+				callback.processUpdate(entityId, columnNamesCsv, baseLine);
+				baseLine = next(baseIterator);
+			} else {
+				if(deltaEntry.getValue() != null) {
+					callback.processUpdate(entityId, columnNamesCsv, deltaEntry.getValue());
+				}
+				if(comparison == 0) {
+					//The delta entry shadows the base entry
+					baseLine = next(baseIterator);
+				}
+				deltaEntry = next(deltaIterator);
+			}
+		}
+	}
+
+	/**
+	 * Produces the next version of the snapshot. This snapshot is left untouched.
+	 *
+	 * @param changes the lines updated in the block, with null marking a removal
+	 */
+	CsvCacheSnapshot apply(SortedMap<String, CsvLine> changes) {
+		int threshold = Math.max(MIN_COMPACTION_THRESHOLD, base.getMaxDeltaSize());
+		CsvGroupIndex newGroupIndex = groupIndex.apply(this, changes);
+		if(delta.isEmpty() && changes.size() > threshold) {
+			//Typically the initial load; no point building up a delta first
+			CsvLineStore newBase = base.merge(changes);
+			return new CsvCacheSnapshot(version + 1, newBase, emptyMap(), newBase.size(), newGroupIndex);
+		}
+
+		SortedMap<String, CsvLine> newDelta = new TreeMap<String, CsvLine>(delta);
+		int newSize = size;
+		for(Entry<String, CsvLine> change : changes.entrySet()) {
+			String id = change.getKey();
+			CsvLine csvLine = change.getValue();
+			boolean present = getLine(id) != null;
+			if(csvLine != null) {
+				newDelta.put(id, csvLine);
+				if(!present) {
+					newSize++;
+				}
+			} else {
+				if(base.get(id) != null) {
+					newDelta.put(id, null);
+				} else {
+					newDelta.remove(id);
+				}
+				if(present) {
+					newSize--;
+				}
+			}
+		}
+
+		if(newDelta.size() <= threshold) {
+			return new CsvCacheSnapshot(version + 1, base, Collections.unmodifiableSortedMap(newDelta), newSize, newGroupIndex);
+		}
+		return new CsvCacheSnapshot(version + 1, base.merge(newDelta), emptyMap(), newSize, newGroupIndex);
+	}
+
+	/**
+	 * Starts a new base store for {@link #load(CsvLineStore)}. This snapshot is left untouched.
+	 */
+	CsvLineStore.Builder builder() {
+		return base.builder();
+	}
+
+	/**
+	 * Produces the next version of the snapshot from a store built in bulk, which
+	 * replaces every line. The group index is rebuilt from the new store.
+	 */
+	CsvCacheSnapshot load(CsvLineStore newBase) {
+		return new CsvCacheSnapshot(version + 1, newBase, emptyMap(), newBase.size(), groupIndex.load(newBase));
+	}
+
+	private static SortedMap<String, CsvLine> emptyMap() {
+		return Collections.unmodifiableSortedMap(new TreeMap<String, CsvLine>());
+	}
+
+	private static <T> T next(Iterator<T> iterator) {
+		return iterator.hasNext() ? iterator.next() : null;
+	}
+
+}
@@ -0,0 +1,248 @@
+package org.commacq.cache.csv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.commons.lang3.StringUtils;
+import org.commacq.CsvLine;
+import org.commacq.CsvUpdateBlockException;
+import org.commacq.LineCallback;
+
+/**
+ * Writes the contents of each CsvCache to a file in a directory, and reads them back
+ * so that a restarted server can serve queries before it has reloaded from the database.
+ * 
+ * Each entity has its own file, {entityId}.snapshot, written to a temporary file and
+ * then renamed over the old one. The file holds:
+ * 
+ * <pre>
+ * int      magic "CCQS"
+ * int      format version
+ * UTF      entity id
+ * UTF      column names
+ * long     sequence of the last write-ahead log block known to be included
+ * int      number of lines
+ * lines    id (UTF), number of group values (short), then name (UTF), present (boolean)
+ *          and value (UTF) for each, then the length of the line (int) and its UTF-8 bytes
+ * long     CRC32 of everything before it
+ * </pre>
+ * 
+ * Files are read back as a stream, however large they are, and ignored if they
+ * are damaged or their columns no longer match the data source.
+ */
+@Slf4j
+public class CsvCacheSnapshotFiles {
+
+	private static final int MAGIC = 0x43435153;
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".snapshot";
+	
+	private final File directory;
+	
+	/**
+	 * @param directory blank to turn snapshots off
+	 */
+	public CsvCacheSnapshotFiles(String directory) {
+		this.directory = StringUtils.isBlank(directory) ? null : new File(directory);
+	}
+	
+	public boolean isEnabled() {
+		return directory != null;
+	}
+	
+	File getFile(String entityId) {
+		return new File(directory, entityId + SUFFIX);
+	}
+	
+	/**
+	 * @param sequence the sequence of the last write-ahead log block known to be included,
+	 *                 or 0 if there isn't a log
+	 */
+	public void write(CsvCache csvCache, long sequence) throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create snapshot directory: " + directory);
+		}
+		String entityId = csvCache.getEntityId();
+		File file = getFile(entityId);
+		File temporaryFile = new File(directory, entityId + SUFFIX + ".tmp");
+		
+		FileOutputStream fileOutput = new FileOutputStream(temporaryFile);
+		try {
+			CheckedOutputStream checkedOutput = new CheckedOutputStream(new BufferedOutputStream(fileOutput, 256 * 1024), new CRC32());
+			final DataOutputStream output = new DataOutputStream(checkedOutput);
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeUTF(entityId);
+			output.writeUTF(csvCache.getColumnNamesCsv());
+			output.writeLong(sequence);
+			CsvCacheSnapshot snapshot = csvCache.getSnapshot();
+			output.writeInt(snapshot.size());
+			snapshot.visitAll(entityId, csvCache.getColumnNamesCsv(), new LineCallback() {
+				@Override
+				public void processUpdate(String entityId, String columnNamesCsv, CsvLine csvLine) throws CsvUpdateBlockException {
+					try {
+						writeLine(output, csvLine);
+					} catch(IOException ex) {
+						throw new RuntimeException(ex);
+					}
+				}
+				
+				@Override
+				public void processRemove(String entityId, String columnNamesCsv, String id) throws CsvUpdateBlockException {
+				}
+			});
+			
+			output.flush();
+			output.writeLong(checkedOutput.getChecksum().getValue());
+			output.flush();
+			fileOutput.getFD().sync();
+		} catch(CsvUpdateBlockException ex) {
+			throw new IOException(ex);
+		} catch(RuntimeException ex) {
+			if(ex.getCause() instanceof IOException) {
+				throw (IOException)ex.getCause();
+			}
+			throw ex;
+		} finally {
+			fileOutput.close();
+		}
+		
+		if(!temporaryFile.renameTo(file)) {
+			throw new IOException("Could not replace snapshot file: " + file);
+		}
+	}
+	
+	static void writeLine(DataOutputStream output, CsvLine csvLine) throws IOException {
+		output.writeUTF(csvLine.getId());
+		Map<String, String> groupValues = csvLine.getGroupValues();
+		if(groupValues == null) {
+			output.writeShort(0);
+		} else {
+			output.writeShort(groupValues.size());
+			for(Entry<String, String> groupValue : groupValues.entrySet()) {
+				output.writeUTF(groupValue.getKey());
+				output.writeBoolean(groupValue.getValue() != null);
+				if(groupValue.getValue() != null) {
+					output.writeUTF(groupValue.getValue());
+				}
+			}
+		}
+		byte[] utf8 = csvLine.getCsvLineUtf8();
+		output.writeInt(utf8.length);
+		output.write(utf8);
+	}
+	
+	/**
+	 * Anything wrong with the file, including it being too big to read, means there
+	 * isn't a usable snapshot, so that the entity is loaded from the source instead.
+	 * 
+	 * @return the snapshot, loaded into a cache using the given store,
+	 *         or null if there isn't a usable one
+	 */
+	public Snapshot read(String entityId, String columnNamesCsv, CsvLineStore emptyStore) {
+		File file = getFile(entityId);
+		if(!file.isFile()) {
+			return null;
+		}
+		try {
+			FileInputStream fileInput = new FileInputStream(file);
+			try {
+				return read(file, new BufferedInputStream(fileInput, 256 * 1024), entityId, columnNamesCsv, emptyStore);
+			} finally {
+				fileInput.close();
+			}
+		} catch(IOException ex) {
+			log.warn("Could not read snapshot " + file, ex);
+			return null;
+		} catch(RuntimeException ex) {
+			log.warn("Could not read snapshot " + file, ex);
+			return null;
+		}
+	}
+	
+	/**
+	 * Reads the file in a single pass, checking the checksum at the end.
+	 */
+	private static Snapshot read(File file, InputStream fileInput, String entityId, String columnNamesCsv, CsvLineStore emptyStore) throws IOException {
+		CheckedInputStream checkedInput = new CheckedInputStream(fileInput, new CRC32());
+		DataInputStream input = new DataInputStream(checkedInput);
+		if(input.readInt() != MAGIC || input.readInt() != VERSION) {
+			log.warn("Not a snapshot that can be read, ignoring it: {}", file);
+			return null;
+		}
+		String snapshotEntityId = input.readUTF();
+		String snapshotColumnNamesCsv = input.readUTF();
+		if(!entityId.equals(snapshotEntityId) || !columnNamesCsv.equals(snapshotColumnNamesCsv)) {
+			log.warn("Snapshot of {} with columns {} doesn't match the data source, ignoring it: {}",
+					 snapshotEntityId, snapshotColumnNamesCsv, file);
+			return null;
+		}
+		long sequence = input.readLong();
+		int lineCount = input.readInt();
+		
+		CsvCache csvCache = new CsvCache(entityId, columnNamesCsv, null, emptyStore);
+		csvCache.startBulkLoad();
+		for(int i = 0; i < lineCount; i++) {
+			csvCache.updateLine(readLine(input));
+		}
+		
+		//Read around the checksum, which doesn't cover itself
+		long checksum = checkedInput.getChecksum().getValue();
+		if(new DataInputStream(fileInput).readLong() != checksum || fileInput.read() != -1) {
+			log.warn("Snapshot is damaged, ignoring it: {}", file);
+			return null;
+		}
+		csvCache.commit();
+		return new Snapshot(csvCache, sequence);
+	}
+	
+	@SuppressWarnings("unchecked")
+	static CsvLine readLine(DataInputStream input) throws IOException {
+		String id = input.readUTF();
+		int groupCount = input.readShort();
+		Map<String, String> groupValues = Collections.EMPTY_MAP;
+		if(groupCount > 0) {
+			groupValues = new HashMap<String, String>(groupCount * 2);
+			for(int i = 0; i < groupCount; i++) {
+				String group = input.readUTF();
+				groupValues.put(group, input.readBoolean() ? input.readUTF() : null);
+			}
+		}
+		int length = input.readInt();
+		if(length < 0) {
+			throw new IOException("Negative line length");
+		}
+		byte[] utf8 = new byte[length];
+		input.readFully(utf8);
+		return new CsvLine(id, utf8, groupValues);
+	}
+	
+	@Getter
+	public static final class Snapshot {
+		private final CsvCache csvCache;
+		private final long sequence;
+		
+		Snapshot(CsvCache csvCache, long sequence) {
+			this.csvCache = csvCache;
+			this.sequence = sequence;
+		}
+	}
+	
+}
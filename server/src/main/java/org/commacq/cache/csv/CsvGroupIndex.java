@@ -0,0 +1,178 @@
+package org.commacq.cache.csv;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import javax.annotation.concurrent.Immutable;
+
+import org.commacq.CsvLine;
+
+/**
+ * The ids of the lines within each group, indexed by group and then by the
+ * value of the group, taken from the group values on each line.
+ * 
+ * Like the rest of a CsvCacheSnapshot the index is never modified once published.
+ * Applying a block copies the maps and sets that the block touches and shares
+ * everything else with the previous version, so the cost of a block is
+ * proportional to the size of the groups it changes rather than the whole index.
+ */
+@Immutable
+final class CsvGroupIndex {
+
+	private final Set<String> indexedGroups;
+	private final Map<String, Map<String, SortedSet<String>>> groups;
+	
+	/**
+	 * @param indexedGroups the groups to index, or null for every group found on the lines
+	 */
+	CsvGroupIndex(Set<String> indexedGroups) {
+		this(indexedGroups, Collections.<String, Map<String, SortedSet<String>>>emptyMap());
+	}
+	
+	private CsvGroupIndex(Set<String> indexedGroups, Map<String, Map<String, SortedSet<String>>> groups) {
+		this.indexedGroups = indexedGroups;
+		this.groups = groups;
+	}
+	
+	/**
+	 * @return the ids of the lines with the given value for the group, in id order
+	 */
+	SortedSet<String> getIds(String group, String value) {
+		Map<String, SortedSet<String>> values = groups.get(group);
+		SortedSet<String> ids = values == null ? null : values.get(value);
+		return ids == null ? Collections.unmodifiableSortedSet(new TreeSet<String>()) : Collections.unmodifiableSortedSet(ids);
+	}
+	
+	/**
+	 * @param before the snapshot the changes are being applied to
+	 * @param changes the lines updated in the block, with null marking a removal
+	 */
+	CsvGroupIndex apply(CsvCacheSnapshot before, SortedMap<String, CsvLine> changes) {
+		Builder builder = null;
+		for(Entry<String, CsvLine> change : changes.entrySet()) {
+			String id = change.getKey();
+			Map<String, String> oldValues = groupValues(before.getLine(id));
+			Map<String, String> newValues = groupValues(change.getValue());
+			if(oldValues.equals(newValues)) {
+				continue;
+			}
+			if(builder == null) {
+				builder = new Builder();
+			}
+			for(Entry<String, String> oldValue : oldValues.entrySet()) {
+				String value = oldValue.getValue();
+				if(value != null && !value.equals(newValues.get(oldValue.getKey()))) {
+					builder.remove(oldValue.getKey(), value, id);
+				}
+			}
+			for(Entry<String, String> newValue : newValues.entrySet()) {
+				String value = newValue.getValue();
+				if(value != null && !value.equals(oldValues.get(newValue.getKey()))) {
+					builder.add(newValue.getKey(), value, id);
+				}
+			}
+		}
+		return builder == null ? this : new CsvGroupIndex(indexedGroups, builder.groups);
+	}
+	
+	/**
+	 * Indexes every line in the store from scratch, for a store that was
+	 * loaded in bulk rather than through {@link #apply}.
+	 */
+	CsvGroupIndex load(CsvLineStore store) {
+		CsvGroupIndex empty = new CsvGroupIndex(indexedGroups);
+		Builder builder = empty.new Builder();
+		Iterator<CsvLine> iterator = store.iterator();
+		while(iterator.hasNext()) {
+			CsvLine csvLine = iterator.next();
+			for(Entry<String, String> value : groupValues(csvLine).entrySet()) {
+				if(value.getValue() != null) {
+					builder.add(value.getKey(), value.getValue(), csvLine.getId());
+				}
+			}
+		}
+		return new CsvGroupIndex(indexedGroups, builder.groups);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Map<String, String> groupValues(CsvLine csvLine) {
+		if(csvLine == null || csvLine.getGroupValues() == null) {
+			return Collections.EMPTY_MAP;
+		}
+		return csvLine.getGroupValues();
+	}
+	
+	/**
+	 * Copies each part of the index the first time the block changes it.
+	 */
+	private final class Builder {
+		private final Map<String, Map<String, SortedSet<String>>> groups = new HashMap<String, Map<String, SortedSet<String>>>(CsvGroupIndex.this.groups);
+		private final Set<String> copiedGroups = new HashSet<String>();
+		private final Set<SortedSet<String>> copiedIds = Collections.newSetFromMap(new IdentityHashMap<SortedSet<String>, Boolean>());
+		
+		void add(String group, String value, String id) {
+			if(indexedGroups != null && !indexedGroups.contains(group)) {
+				return;
+			}
+			Map<String, SortedSet<String>> values = values(group);
+			SortedSet<String> ids = values.get(value);
+			if(ids == null) {
+				ids = new TreeSet<String>();
+				copiedIds.add(ids);
+				values.put(value, ids);
+			} else if(!copiedIds.contains(ids)) {
+				ids = new TreeSet<String>(ids);
+				copiedIds.add(ids);
+				values.put(value, ids);
+			}
+			ids.add(id);
+		}
+		
+		void remove(String group, String value, String id) {
+			if(!groups.containsKey(group)) {
+				return;
+			}
+			Map<String, SortedSet<String>> values = values(group);
+			SortedSet<String> ids = values.get(value);
+			if(ids == null || !ids.contains(id)) {
+				return;
+			}
+			if(ids.size() == 1) {
+				values.remove(value);
+				if(values.isEmpty()) {
+					groups.remove(group);
+				}
+				return;
+			}
+			if(!copiedIds.contains(ids)) {
+				ids = new TreeSet<String>(ids);
+				copiedIds.add(ids);
+				values.put(value, ids);
+			}
+			ids.remove(id);
+		}
+		
+		private Map<String, SortedSet<String>> values(String group) {
+			Map<String, SortedSet<String>> values = groups.get(group);
+			if(values == null) {
+				values = new HashMap<String, SortedSet<String>>();
+				groups.put(group, values);
+				copiedGroups.add(group);
+			} else if(copiedGroups.add(group)) {
+				values = new HashMap<String, SortedSet<String>>(values);
+				groups.put(group, values);
+			}
+			return values;
+		}
+	}
+	
+}
@@ -0,0 +1,111 @@
+package org.commacq.cache.csv;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.commacq.CsvLine;
+
+/**
+ * The sequence number of an entity in a CacheLayer along with the changes made
+ * by its most recent blocks, so that they can be replayed to a subscriber that
+ * has fallen behind.
+ * 
+ * The journal holds at most maxBlocks blocks and maxLines changed lines; the oldest
+ * blocks are dropped to make room. A bulk update can't be expressed as a list of
+ * changes, so it empties the journal.
+ */
+@ThreadSafe
+final class CsvJournal {
+
+	static final int DEFAULT_MAX_BLOCKS = 1000;
+	static final int DEFAULT_MAX_LINES = 100000;
+	
+	private final ArrayDeque<Block> blocks = new ArrayDeque<Block>();
+	private long sequence = 0;
+	//Replay is possible from any sequence from here up to the current one
+	private long oldestReplayable = 0;
+	private int lines = 0;
+	private volatile int maxBlocks = DEFAULT_MAX_BLOCKS;
+	private volatile int maxLines = DEFAULT_MAX_LINES;
+	
+	void setMaxBlocks(int maxBlocks) {
+		this.maxBlocks = maxBlocks;
+	}
+	
+	void setMaxLines(int maxLines) {
+		this.maxLines = maxLines;
+	}
+	
+	synchronized long getSequence() {
+		return sequence;
+	}
+	
+	/**
+	 * @param changes the lines committed by the block, with null marking a removal;
+	 *                kept by the journal, so must not be modified afterwards
+	 * @return the block's sequence number
+	 */
+	synchronized long append(SortedMap<String, CsvLine> changes) {
+		sequence++;
+		blocks.addLast(new Block(sequence, changes));
+		lines += changes.size();
+		while(!blocks.isEmpty() && (blocks.size() > maxBlocks || lines > maxLines)) {
+			Block dropped = blocks.removeFirst();
+			lines -= dropped.changes.size();
+			oldestReplayable = dropped.sequence;
+		}
+		return sequence;
+	}
+	
+	/**
+	 * Records a bulk update, after which nothing before it can be replayed.
+	 */
+	synchronized long reset() {
+		sequence++;
+		blocks.clear();
+		lines = 0;
+		oldestReplayable = sequence;
+		return sequence;
+	}
+	
+	/**
+	 * @return the net changes made by the blocks after the given sequence, in id order,
+	 *         or null if the journal doesn't go back that far
+	 */
+	synchronized SortedMap<String, CsvLine> changesSince(long since) {
+		if(since < oldestReplayable || since > sequence) {
+			return null;
+		}
+		SortedMap<String, CsvLine> changes = new TreeMap<String, CsvLine>();
+		Iterator<Block> iterator = blocks.descendingIterator();
+		while(iterator.hasNext()) {
+			Block block = iterator.next();
+			if(block.sequence <= since) {
+				break;
+			}
+			//Walking backwards, so the first change seen for an id is the latest
+			for(Map.Entry<String, CsvLine> change : block.changes.entrySet()) {
+				if(!changes.containsKey(change.getKey())) {
+					changes.put(change.getKey(), change.getValue());
+				}
+			}
+		}
+		return changes;
+	}
+	
+	private static final class Block {
+		final long sequence;
+		final SortedMap<String, CsvLine> changes;
+		
+		Block(long sequence, SortedMap<String, CsvLine> changes) {
+			this.sequence = sequence;
+			this.changes = changes;
+		}
+	}
+	
+}
@@ -0,0 +1,73 @@
+package org.commacq.cache.csv;
+
+import java.util.Iterator;
+import java.util.SortedMap;
+
+import org.commacq.CsvLine;
+
+/**
+ * Holds the committed lines of a CsvCache.
+ * 
+ * A store is never modified once it has been created. Merging changes
+ * in produces a new store, which may share storage with the old one, so
+ * that readers of the old store are unaffected by the merge.
+ */
+public interface CsvLineStore {
+
+	int size();
+	
+	/**
+	 * @return the line or null if the id is not present
+	 */
+	CsvLine get(String id);
+	
+	/**
+	 * @return true if the iterator returns lines in id order
+	 */
+	boolean isSorted();
+	
+	Iterator<CsvLine> iterator();
+	
+	/**
+	 * The number of uncompacted changes it is worth holding on heap
+	 * in front of this store before merging them in.
+	 */
+	int getMaxDeltaSize();
+	
+	/**
+	 * @param changes the lines to add or replace, with null marking a removal
+	 * @return a new store with the changes applied
+	 */
+	CsvLineStore merge(SortedMap<String, CsvLine> changes);
+	
+	/**
+	 * Starts the next version of the store, which lines are written into one at a
+	 * time rather than being collected on the heap first. Like a merge, this store
+	 * is left untouched.
+	 */
+	Builder builder();
+	
+	/**
+	 * Only used by the thread that created it, until {@link #build()} is called.
+	 */
+	interface Builder {
+		
+		/**
+		 * @return the line written so far, or null if the id is not present
+		 */
+		CsvLine get(String id);
+		
+		void put(CsvLine csvLine);
+		
+		void remove(String id);
+		
+		/**
+		 * The lines written so far, which mustn't be changed while they're being visited.
+		 */
+		Iterator<CsvLine> iterator();
+		
+		CsvLineStore build();
+		
+	}
+	
+}
@@ -0,0 +1,10 @@
+package org.commacq.cache.csv;
+
+/**
+ * Chooses where a CsvCache keeps its lines.
+ */
+public interface CsvLineStoreFactory {
+
+	CsvLineStore createEmptyStore(String entityId);
+	
+}
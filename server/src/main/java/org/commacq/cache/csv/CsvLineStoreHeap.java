@@ -0,0 +1,104 @@
+package org.commacq.cache.csv;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.annotation.concurrent.Immutable;
+
+import org.commacq.CsvLine;
+
+/**
+ * Keeps the lines on the Java heap in a sorted map.
+ */
+@Immutable
+public final class CsvLineStoreHeap implements CsvLineStore {
+
+	private final SortedMap<String, CsvLine> lines;
+	
+	public CsvLineStoreHeap() {
+		this(new TreeMap<String, CsvLine>());
+	}
+	
+	private CsvLineStoreHeap(SortedMap<String, CsvLine> lines) {
+		this.lines = Collections.unmodifiableSortedMap(lines);
+	}
+	
+	@Override
+	public int size() {
+		return lines.size();
+	}
+	
+	@Override
+	public CsvLine get(String id) {
+		return lines.get(id);
+	}
+	
+	@Override
+	public boolean isSorted() {
+		return true;
+	}
+	
+	@Override
+	public Iterator<CsvLine> iterator() {
+		return lines.values().iterator();
+	}
+	
+	/**
+	 * Merging copies the whole map, so allow the delta to grow with the size of the store.
+	 */
+	@Override
+	public int getMaxDeltaSize() {
+		return lines.size() / 16;
+	}
+	
+	@Override
+	public CsvLineStore merge(SortedMap<String, CsvLine> changes) {
+		CsvLineStore.Builder builder = builder();
+		for(Entry<String, CsvLine> entry : changes.entrySet()) {
+			if(entry.getValue() == null) {
+				builder.remove(entry.getKey());
+			} else {
+				builder.put(entry.getValue());
+			}
+		}
+		return builder.build();
+	}
+	
+	/**
+	 * Copies the whole map, as a merge does.
+	 */
+	@Override
+	public CsvLineStore.Builder builder() {
+		final SortedMap<String, CsvLine> newLines = new TreeMap<String, CsvLine>(lines);
+		return new CsvLineStore.Builder() {
+			@Override
+			public CsvLine get(String id) {
+				return newLines.get(id);
+			}
+			
+			@Override
+			public void put(CsvLine csvLine) {
+				newLines.put(csvLine.getId(), csvLine);
+			}
+			
+			@Override
+			public void remove(String id) {
+				newLines.remove(id);
+			}
+			
+			@Override
+			public Iterator<CsvLine> iterator() {
+				return Collections.unmodifiableCollection(newLines.values()).iterator();
+			}
+			
+			@Override
+			public CsvLineStore build() {
+				return new CsvLineStoreHeap(newLines);
+			}
+		};
+	}
+	
+}
@@ -0,0 +1,10 @@
+package org.commacq.cache.csv;
+
+public class CsvLineStoreHeapFactory implements CsvLineStoreFactory {
+
+	@Override
+	public CsvLineStore createEmptyStore(String entityId) {
+		return new CsvLineStoreHeap();
+	}
+	
+}
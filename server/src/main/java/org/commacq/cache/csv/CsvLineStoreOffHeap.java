@@ -0,0 +1,519 @@
+package org.commacq.cache.csv;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+
+import javax.annotation.concurrent.Immutable;
+
+import org.commacq.CsvLine;
+
+/**
+ * Keeps the lines outside of the Java heap.
+ *
+ * Each line is written once as a UTF-8 record into large direct ByteBuffer
+ * slabs and is found through an open-addressing table of slab addresses,
+ * whose pages are carved out of the same slabs. The heap cost is a few objects
+ * per thousand lines, so heap use no longer grows in step with the number of
+ * rows and the garbage collector has almost nothing to trace.
+ *
+ * Records and table pages are never modified once a version has been built.
+ * A merge appends the changed lines to the shared slabs and copies only the
+ * table pages that it touches, also into the slabs, leaving the previous version
+ * intact for anyone still reading it. Direct memory is only ever allocated a slab
+ * at a time. Superseded records and pages are reclaimed by copying the live ones
+ * into fresh slabs once they take up more than half of the space, and the old
+ * slabs are freed once no earlier version refers to them.
+ *
+ * Lines are visited in table order rather than id order.
+ */
+@Immutable
+public final class CsvLineStoreOffHeap implements CsvLineStore {
+
+	static final int DEFAULT_SLAB_SIZE_BYTES = 64 * 1024 * 1024;
+
+	/**
+	 * Merging copies one table page per changed line in the worst case,
+	 * so the delta is kept to a fixed size regardless of the number of lines.
+	 */
+	private static final int MAX_DELTA_SIZE = 4096;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	//Each table slot holds the record address followed by the hash of the id
+	private static final int SLOT_BYTES = 16;
+	private static final int PAGE_SHIFT = 10;
+	private static final int PAGE_SLOTS = 1 << PAGE_SHIFT;
+	private static final int PAGE_MASK = PAGE_SLOTS - 1;
+	private static final int PAGE_BYTES = PAGE_SLOTS * SLOT_BYTES;
+
+	private static final long EMPTY = 0L;
+	private static final long TOMBSTONE = -1L;
+
+	private final Slabs slabs;
+	private final ByteBuffer[] slabArray; //The slabs that existed when this version was created
+	private final ByteBuffer[] pages;
+	private final int mask;
+	private final int size;
+	private final int usedSlots; //Live entries plus tombstones
+	private final long liveBytes;
+
+	public CsvLineStoreOffHeap(int slabSizeBytes) {
+		this(new Slabs(slabSizeBytes));
+	}
+
+	private CsvLineStoreOffHeap(Slabs slabs) {
+		this(slabs, new ByteBuffer[] {slabs.allocatePage()}, 0, 0, 0);
+	}
+
+	private CsvLineStoreOffHeap(Slabs slabs, ByteBuffer[] pages, int size, int usedSlots, long liveBytes) {
+		this.slabs = slabs;
+		this.slabArray = slabs.array;
+		this.pages = pages;
+		this.mask = pages.length * PAGE_SLOTS - 1;
+		this.size = size;
+		this.usedSlots = usedSlots;
+		this.liveBytes = liveBytes;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public CsvLine get(String id) {
+		int slot = find(pages, mask, slabArray, hash(id), id.getBytes(UTF8));
+		if(slot < 0) {
+			return null;
+		}
+		return readLine(slabArray, readAddress(pages, slot));
+	}
+
+	@Override
+	public boolean isSorted() {
+		return false;
+	}
+
+	@Override
+	public Iterator<CsvLine> iterator() {
+		return new Iterator<CsvLine>() {
+			private int slot = advance(0);
+
+			private int advance(int from) {
+				for(int i = from; i <= mask; i++) {
+					long address = readAddress(pages, i);
+					if(address != EMPTY && address != TOMBSTONE) {
+						return i;
+					}
+				}
+				return -1;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return slot >= 0;
+			}
+
+			@Override
+			public CsvLine next() {
+				if(slot < 0) {
+					throw new NoSuchElementException();
+				}
+				CsvLine csvLine = readLine(slabArray, readAddress(pages, slot));
+				slot = advance(slot + 1);
+				return csvLine;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public int getMaxDeltaSize() {
+		return MAX_DELTA_SIZE;
+	}
+
+	/**
+	 * Must only be called on the latest version of the store, which is
+	 * guaranteed by CsvCache only ever merging into its current snapshot.
+	 */
+	@Override
+	public CsvLineStore merge(SortedMap<String, CsvLine> changes) {
+		Builder builder = new Builder(this);
+		for(Entry<String, CsvLine> entry : changes.entrySet()) {
+			if(entry.getValue() == null) {
+				builder.remove(entry.getKey());
+			} else {
+				builder.put(entry.getValue());
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Must only be called on the latest version of the store, as for {@link #merge(SortedMap)}.
+	 * The lines go straight into the slabs.
+	 */
+	@Override
+	public CsvLineStore.Builder builder() {
+		return new Builder(this);
+	}
+
+	/**
+	 * Collects the changes for the next version, copying table pages
+	 * the first time they are written to.
+	 */
+	private static final class Builder implements CsvLineStore.Builder {
+
+		private Slabs slabs;
+		private ByteBuffer[] pages;
+		private boolean[] copied;
+		private int mask;
+		private int size;
+		private int usedSlots;
+		private long liveBytes;
+
+		Builder(CsvLineStoreOffHeap store) {
+			slabs = store.slabs;
+			pages = store.pages.clone();
+			copied = new boolean[pages.length];
+			mask = store.mask;
+			size = store.size;
+			usedSlots = store.usedSlots;
+			liveBytes = store.liveBytes;
+		}
+
+		@Override
+		public CsvLine get(String id) {
+			int slot = find(pages, mask, slabs.array, hash(id), id.getBytes(UTF8));
+			if(slot < 0) {
+				return null;
+			}
+			return readLine(slabs.array, readAddress(pages, slot));
+		}
+
+		@Override
+		public void put(CsvLine csvLine) {
+			byte[] idBytes = csvLine.getId().getBytes(UTF8);
+			int hash = hash(csvLine.getId());
+			int slot = find(pages, mask, slabs.array, hash, idBytes);
+			long address = slabs.append(idBytes, csvLine.getCsvLineUtf8(), csvLine.getGroupValues());
+			liveBytes += slabs.recordLength(address);
+			if(slot >= 0) {
+				liveBytes -= slabs.recordLength(readAddress(pages, slot));
+				writeSlot(slot, address, hash);
+			} else {
+				slot = -(slot + 1);
+				if(readAddress(pages, slot) == EMPTY) {
+					usedSlots++;
+				}
+				writeSlot(slot, address, hash);
+				size++;
+				if(usedSlots > (mask + 1) / 4 * 3) {
+					rebuild();
+				}
+			}
+		}
+
+		@Override
+		public void remove(String id) {
+			int slot = find(pages, mask, slabs.array, hash(id), id.getBytes(UTF8));
+			if(slot >= 0) {
+				liveBytes -= slabs.recordLength(readAddress(pages, slot));
+				writeSlot(slot, TOMBSTONE, 0);
+				size--;
+			}
+		}
+
+		/**
+		 * Reads the table as it stands, without copying it.
+		 */
+		@Override
+		public Iterator<CsvLine> iterator() {
+			return new CsvLineStoreOffHeap(slabs, pages, size, usedSlots, liveBytes).iterator();
+		}
+
+		@Override
+		public CsvLineStoreOffHeap build() {
+			if(mostlySuperseded()) {
+				rebuild();
+			}
+			return new CsvLineStoreOffHeap(slabs, pages, size, usedSlots, liveBytes);
+		}
+
+		private void writeSlot(int slot, long address, int hash) {
+			int page = slot >>> PAGE_SHIFT;
+			if(!copied[page]) {
+				ByteBuffer copy = slabs.allocatePage();
+				ByteBuffer source = pages[page].duplicate();
+				source.clear();
+				copy.put(source);
+				pages[page] = copy;
+				copied[page] = true;
+			}
+			int offset = (slot & PAGE_MASK) * SLOT_BYTES;
+			pages[page].putLong(offset, address);
+			pages[page].putInt(offset + 8, hash);
+		}
+
+		/**
+		 * True if superseded records and table pages take up more than half of the slabs.
+		 */
+		private boolean mostlySuperseded() {
+			long liveTableBytes = (long)pages.length * PAGE_BYTES;
+			return slabs.allocatedBytes > (liveBytes + liveTableBytes) * 2 + slabs.slabSize;
+		}
+
+		/**
+		 * Rehashes into a table sized for the live entries, dropping tombstones.
+		 * If the slabs are mostly superseded records and pages, the live records
+		 * are also copied into fresh slabs, along with the new table, so that the
+		 * old ones can be freed once no earlier version refers to them.
+		 */
+		private void rebuild() {
+			int capacity = PAGE_SLOTS;
+			while(capacity < size * 2) {
+				capacity <<= 1;
+			}
+			boolean rewrite = mostlySuperseded();
+			Slabs oldSlabs = slabs;
+			ByteBuffer[] oldPages = pages;
+			int oldMask = mask;
+
+			if(rewrite) {
+				slabs = new Slabs(oldSlabs.slabSize);
+			}
+			pages = new ByteBuffer[capacity >>> PAGE_SHIFT];
+			copied = new boolean[pages.length];
+			for(int i = 0; i < pages.length; i++) {
+				pages[i] = slabs.allocatePage();
+				copied[i] = true;
+			}
+			mask = capacity - 1;
+			usedSlots = size;
+
+			for(int oldSlot = 0; oldSlot <= oldMask; oldSlot++) {
+				long address = readAddress(oldPages, oldSlot);
+				if(address == EMPTY || address == TOMBSTONE) {
+					continue;
+				}
+				int hash = readHash(oldPages, oldSlot);
+				if(rewrite) {
+					address = slabs.copy(oldSlabs, address);
+				}
+				int slot = hash & mask;
+				while(readAddress(pages, slot) != EMPTY) {
+					slot = (slot + 1) & mask;
+				}
+				writeSlot(slot, address, hash);
+			}
+		}
+
+	}
+
+	/**
+	 * Append-only record storage shared by all versions of a store.
+	 * Only the writer calls the mutating methods.
+	 *
+	 * Record layout: record length, id length, id, line length, line,
+	 * number of group values, then a name and value for each group.
+	 * Lengths are ints and strings are UTF-8; a null group value has length -1.
+	 */
+	private static final class Slabs {
+
+		private final int slabSize;
+		private ByteBuffer[] array = new ByteBuffer[0]; //Replaced, never modified, when a slab is added
+		private int position; //Within the last slab
+		private long allocatedBytes;
+
+		Slabs(int slabSize) {
+			this.slabSize = slabSize;
+		}
+
+		long append(byte[] id, byte[] line, Map<String, String> groupValues) {
+			if(groupValues == null) {
+				groupValues = Collections.emptyMap();
+			}
+			int length = 16 + id.length + line.length;
+			byte[][] groupBytes = new byte[groupValues.size() * 2][];
+			int i = 0;
+			for(Entry<String, String> entry : groupValues.entrySet()) {
+				groupBytes[i++] = entry.getKey().getBytes(UTF8);
+				groupBytes[i++] = entry.getValue() == null ? null : entry.getValue().getBytes(UTF8);
+			}
+			for(byte[] bytes : groupBytes) {
+				length += 4 + (bytes == null ? 0 : bytes.length);
+			}
+
+			ByteBuffer buffer = allocate(length);
+			long address = address(buffer);
+			buffer.putInt(length);
+			putBytes(buffer, id);
+			putBytes(buffer, line);
+			buffer.putInt(groupValues.size());
+			for(byte[] bytes : groupBytes) {
+				putBytes(buffer, bytes);
+			}
+			return address;
+		}
+
+		long copy(Slabs source, long sourceAddress) {
+			int length = source.recordLength(sourceAddress);
+			ByteBuffer record = source.array[slabIndex(sourceAddress)].duplicate();
+			record.position(offset(sourceAddress));
+			record.limit(offset(sourceAddress) + length);
+			ByteBuffer buffer = allocate(length);
+			long address = address(buffer);
+			buffer.put(record);
+			return address;
+		}
+
+		/**
+		 * @return a zeroed table page, which shares the slab's memory
+		 */
+		ByteBuffer allocatePage() {
+			ByteBuffer buffer = allocate(PAGE_BYTES);
+			buffer.limit(buffer.position() + PAGE_BYTES);
+			return buffer.slice();
+		}
+
+		int recordLength(long address) {
+			return array[slabIndex(address)].getInt(offset(address));
+		}
+
+		/**
+		 * @return a buffer positioned at the start of the allocated space
+		 */
+		private ByteBuffer allocate(int length) {
+			if(array.length == 0 || position + length > array[array.length - 1].capacity()) {
+				ByteBuffer[] newArray = new ByteBuffer[array.length + 1];
+				System.arraycopy(array, 0, newArray, 0, array.length);
+				newArray[array.length] = ByteBuffer.allocateDirect(Math.max(slabSize, length));
+				array = newArray;
+				position = 0;
+			}
+			ByteBuffer buffer = array[array.length - 1].duplicate();
+			buffer.position(position);
+			position += length;
+			allocatedBytes += length;
+			return buffer;
+		}
+
+		/**
+		 * @param buffer freshly allocated in the last slab
+		 */
+		private long address(ByteBuffer buffer) {
+			return ((long)array.length << 32) | buffer.position();
+		}
+
+		private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+			if(bytes == null) {
+				buffer.putInt(-1);
+			} else {
+				buffer.putInt(bytes.length);
+				buffer.put(bytes);
+			}
+		}
+	}
+
+	private static int hash(String id) {
+		int hash = id.hashCode() * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	//Addresses hold the slab number plus one in the top half so that they are never EMPTY
+	private static int slabIndex(long address) {
+		return (int)(address >>> 32) - 1;
+	}
+
+	private static int offset(long address) {
+		return (int)address;
+	}
+
+	private static long readAddress(ByteBuffer[] pages, int slot) {
+		return pages[slot >>> PAGE_SHIFT].getLong((slot & PAGE_MASK) * SLOT_BYTES);
+	}
+
+	private static int readHash(ByteBuffer[] pages, int slot) {
+		return pages[slot >>> PAGE_SHIFT].getInt((slot & PAGE_MASK) * SLOT_BYTES + 8);
+	}
+
+	/**
+	 * @return the slot holding the id, or -(slot + 1) for the slot it should be inserted into
+	 */
+	private static int find(ByteBuffer[] pages, int mask, ByteBuffer[] slabArray, int hash, byte[] id) {
+		int firstTombstone = -1;
+		int slot = hash & mask;
+		while(true) {
+			long address = readAddress(pages, slot);
+			if(address == EMPTY) {
+				return -((firstTombstone >= 0 ? firstTombstone : slot) + 1);
+			}
+			if(address == TOMBSTONE) {
+				if(firstTombstone < 0) {
+					firstTombstone = slot;
+				}
+			} else if(readHash(pages, slot) == hash && idEquals(slabArray, address, id)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private static boolean idEquals(ByteBuffer[] slabArray, long address, byte[] id) {
+		ByteBuffer slab = slabArray[slabIndex(address)];
+		int offset = offset(address) + 4;
+		if(slab.getInt(offset) != id.length) {
+			return false;
+		}
+		offset += 4;
+		for(int i = 0; i < id.length; i++) {
+			if(slab.get(offset + i) != id[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The line is handed out as UTF-8 bytes, so writing it to a stream
+	 * involves no decoding.
+	 */
+	private static CsvLine readLine(ByteBuffer[] slabArray, long address) {
+		ByteBuffer record = slabArray[slabIndex(address)].duplicate();
+		record.position(offset(address) + 4);
+		String id = readString(record);
+		byte[] line = new byte[record.getInt()];
+		record.get(line);
+		int groupCount = record.getInt();
+		if(groupCount == 0) {
+			return new CsvLine(id, line, Collections.<String, String>emptyMap());
+		}
+		Map<String, String> groupValues = new HashMap<String, String>(groupCount * 2);
+		for(int i = 0; i < groupCount; i++) {
+			groupValues.put(readString(record), readString(record));
+		}
+		return new CsvLine(id, line, Collections.unmodifiableMap(groupValues));
+	}
+
+	private static String readString(ByteBuffer record) {
+		int length = record.getInt();
+		if(length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		record.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+}
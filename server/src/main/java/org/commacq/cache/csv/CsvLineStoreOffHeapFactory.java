@@ -0,0 +1,24 @@
+package org.commacq.cache.csv;
+
+/**
+ * Keeps each entity's lines in direct memory. Size -XX:MaxDirectMemorySize
+ * to hold roughly twice the UTF-8 size of the cached data.
+ */
+public class CsvLineStoreOffHeapFactory implements CsvLineStoreFactory {
+
+	private final int slabSizeBytes;
+	
+	public CsvLineStoreOffHeapFactory() {
+		this(CsvLineStoreOffHeap.DEFAULT_SLAB_SIZE_BYTES);
+	}
+	
+	public CsvLineStoreOffHeapFactory(int slabSizeBytes) {
+		this.slabSizeBytes = slabSizeBytes;
+	}
+	
+	@Override
+	public CsvLineStore createEmptyStore(String entityId) {
+		return new CsvLineStoreOffHeap(slabSizeBytes);
+	}
+	
+}
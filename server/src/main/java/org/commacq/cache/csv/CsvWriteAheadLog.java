@@ -0,0 +1,606 @@
+package org.commacq.cache.csv;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.commons.lang3.StringUtils;
+import org.commacq.CsvLine;
+
+/**
+ * An append-only log of the blocks committed to the cache, so that a restarted server
+ * can bring its snapshots up to date before it starts serving them.
+ * 
+ * Every block is given the next sequence number in the log, which carries on across
+ * restarts. A block is written as a run of records, so that however many lines it
+ * holds (a bulk load of a whole entity, say) no record is larger than about
+ * MAX_RECORD_BYTES. Each record holds:
+ * 
+ * <pre>
+ * int      length of the rest of the record, after the checksum
+ * int      CRC32 of the rest of the record
+ * byte     type: start, changes or commit
+ * long     sequence of the block
+ * start    entity id (UTF), then true (boolean) if the block replaced every line of the entity
+ * changes  number of changes (int), then id (UTF), present (boolean) and, for an update,
+ *          the line as written to snapshots, for each
+ * commit   number of changes in the whole block (int)
+ * </pre>
+ * 
+ * Records are written to the end of the current segment file, which is named after
+ * the first sequence in it. A new segment is started, between blocks, once the current
+ * one reaches maxSegmentBytes, and whole segments are deleted once snapshots cover them.
+ * Segments are read back as a stream, so neither they nor blocks have a size limit.
+ * 
+ * By default the file is forced to disk after every block, before the block is
+ * published. With periodicSyncMillis set, a background thread forces the file at most
+ * that often instead, which costs far less than a sync per block. This isn't group
+ * commit: nothing waits for the sync, so subscribers can hear about a block before it
+ * is on disk. Blocks written since the last sync survive the process dying, but not
+ * the machine.
+ * 
+ * A block that was only partly written when the process died, or whose commit record
+ * is missing, is cut off the end of its segment when the log is next opened.
+ */
+@Slf4j
+@ThreadSafe
+public class CsvWriteAheadLog {
+
+	private static final String SUFFIX = ".wal";
+	private static final int HEADER_BYTES = 8;
+	
+	private static final byte START = 1;
+	private static final byte CHANGES = 2;
+	private static final byte COMMIT = 3;
+	
+	/**
+	 * The changes of a block are split across records once a record reaches this size.
+	 */
+	static final int MAX_RECORD_BYTES = 1024 * 1024;
+	//After the header, the type and the sequence
+	private static final int CHANGE_COUNT_OFFSET = HEADER_BYTES + 9;
+	
+	/**
+	 * Handed each logged block in sequence order by {@link CsvWriteAheadLog#replay},
+	 * a change at a time.
+	 */
+	public interface Replay {
+		void startBlock(long sequence, String entityId, boolean bulk);
+		/**
+		 * @param csvLine null for a removal
+		 */
+		void change(String id, CsvLine csvLine);
+		void finishBlock();
+	}
+	
+	private final File directory;
+	private final Object lock = new Object();
+	
+	//Guarded by lock
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private FileChannel channel;
+	private long sequence;
+	private boolean dirty;
+	private final RecordOutput record = new RecordOutput();
+	
+	@Setter
+	private volatile long maxSegmentBytes = 64 * 1024 * 1024;
+	private volatile long periodicSyncMillis;
+	private ScheduledExecutorService syncScheduler;
+	
+	/**
+	 * Opens the log, recovering from a partly written block if necessary.
+	 * 
+	 * @param directory blank to turn the log off
+	 */
+	public CsvWriteAheadLog(String directory) {
+		this.directory = StringUtils.isBlank(directory) ? null : new File(directory);
+		if(this.directory == null) {
+			return;
+		}
+		try {
+			open();
+		} catch(IOException ex) {
+			throw new RuntimeException("Could not open write-ahead log in " + directory, ex);
+		}
+	}
+	
+	public boolean isEnabled() {
+		return directory != null;
+	}
+	
+	private void open() throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create write-ahead log directory: " + directory);
+		}
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SUFFIX);
+			}
+		});
+		//Zero padded names sort in sequence order
+		Arrays.sort(files);
+		for(File file : files) {
+			SegmentReader reader = new SegmentReader(file, file.length(), null);
+			long validBytes = reader.read();
+			if(validBytes < file.length()) {
+				log.warn("Cutting {} bytes of partly written blocks off the end of {}", file.length() - validBytes, file);
+				RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+				try {
+					randomAccessFile.setLength(validBytes);
+				} finally {
+					randomAccessFile.close();
+				}
+			}
+			if(reader.lastSequence == 0) {
+				delete(file);
+				continue;
+			}
+			segments.add(new Segment(file, reader.lastSequence, validBytes));
+			sequence = reader.lastSequence;
+		}
+		log.info("Opened write-ahead log in {} with {} segments up to sequence {}", directory, segments.size(), sequence);
+	}
+	
+	/**
+	 * How often a background thread forces the file to disk, or 0 to force the file after
+	 * every block. Blocks are not held back until they have been synced.
+	 */
+	public synchronized void setPeriodicSyncMillis(long periodicSyncMillis) {
+		this.periodicSyncMillis = periodicSyncMillis;
+		if(syncScheduler != null) {
+			syncScheduler.shutdown();
+			syncScheduler = null;
+		}
+		if(periodicSyncMillis <= 0) {
+			return;
+		}
+		syncScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "writeAheadLogSync");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		syncScheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sync();
+				} catch(RuntimeException ex) {
+					log.error("Could not sync write-ahead log", ex);
+				}
+			}
+		}, periodicSyncMillis, periodicSyncMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * The sequence of the last block logged.
+	 */
+	public long getSequence() {
+		synchronized(lock) {
+			return sequence;
+		}
+	}
+	
+	/**
+	 * @param bulk true if the changes replace everything previously held for the entity
+	 * @param changes the lines updated in the block, with null marking a removal
+	 * @return the sequence given to the block
+	 */
+	public long append(String entityId, boolean bulk, SortedMap<String, CsvLine> changes) {
+		return append(entityId, bulk, changes.entrySet().iterator());
+	}
+	
+	/**
+	 * Logs a bulk block from the lines themselves, which are written out as they are
+	 * read, so the block never has to be collected on the heap.
+	 * 
+	 * @param lines every line held for the entity once the block is committed
+	 * @return the sequence given to the block
+	 */
+	public long appendBulk(String entityId, final Iterator<CsvLine> lines) {
+		return append(entityId, true, new Iterator<Entry<String, CsvLine>>() {
+			@Override
+			public boolean hasNext() {
+				return lines.hasNext();
+			}
+			
+			@Override
+			public Entry<String, CsvLine> next() {
+				CsvLine csvLine = lines.next();
+				return new SimpleImmutableEntry<String, CsvLine>(csvLine.getId(), csvLine);
+			}
+			
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		});
+	}
+	
+	private long append(String entityId, boolean bulk, Iterator<Entry<String, CsvLine>> changes) {
+		synchronized(lock) {
+			long next = sequence + 1;
+			long blockStart = -1;
+			try {
+				if(channel == null || channel.size() >= maxSegmentBytes) {
+					roll(next);
+				}
+				blockStart = channel.position();
+				
+				record.start(START, next);
+				record.output.writeUTF(entityId);
+				record.output.writeBoolean(bulk);
+				record.writeTo(channel);
+				
+				int count = 0;
+				int total = 0;
+				record.startChanges(next);
+				while(changes.hasNext()) {
+					Entry<String, CsvLine> change = changes.next();
+					if(record.size() >= MAX_RECORD_BYTES) {
+						record.writeChanges(channel, count);
+						count = 0;
+						record.startChanges(next);
+					}
+					record.output.writeUTF(change.getKey());
+					record.output.writeBoolean(change.getValue() != null);
+					if(change.getValue() != null) {
+						CsvCacheSnapshotFiles.writeLine(record.output, change.getValue());
+					}
+					count++;
+					total++;
+				}
+				if(count > 0) {
+					record.writeChanges(channel, count);
+				}
+				
+				record.start(COMMIT, next);
+				record.output.writeInt(total);
+				record.writeTo(channel);
+				
+				if(periodicSyncMillis <= 0) {
+					channel.force(false);
+				} else {
+					dirty = true;
+				}
+			} catch(IOException ex) {
+				abandon(blockStart);
+				throw new RuntimeException("Could not write to write-ahead log", ex);
+			}
+			sequence = next;
+			Segment segment = segments.get(segments.size() - 1);
+			segment.lastSequence = next;
+			try {
+				segment.committedBytes = channel.position();
+			} catch(IOException ex) {
+				throw new RuntimeException("Could not write to write-ahead log", ex);
+			}
+			return next;
+		}
+	}
+	
+	/**
+	 * Cuts a block that couldn't be written in full off the end of the segment, so
+	 * that the blocks logged after it can be read back.
+	 */
+	private void abandon(long blockStart) {
+		if(blockStart < 0) {
+			return;
+		}
+		try {
+			channel.truncate(blockStart);
+			channel.position(blockStart);
+		} catch(IOException ex) {
+			log.error("Could not remove partly written block from write-ahead log", ex);
+		}
+	}
+	
+	/**
+	 * Forces every block logged so far to disk. The log can carry on being written to
+	 * while the sync is in progress.
+	 */
+	public void sync() {
+		FileChannel syncChannel;
+		synchronized(lock) {
+			if(!dirty) {
+				return;
+			}
+			dirty = false;
+			syncChannel = channel;
+		}
+		try {
+			syncChannel.force(false);
+		} catch(ClosedChannelException ex) {
+			//Rolled to a new segment, which forced the old one first
+		} catch(IOException ex) {
+			throw new RuntimeException("Could not sync write-ahead log", ex);
+		}
+	}
+	
+	private void roll(long firstSequence) throws IOException {
+		if(channel != null) {
+			channel.force(false);
+			channel.close();
+		}
+		File file = new File(directory, String.format("%019d", firstSequence) + SUFFIX);
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		channel.position(channel.size());
+		segments.add(new Segment(file, firstSequence - 1, channel.size()));
+		log.info("Started write-ahead log segment {}", file);
+	}
+	
+	/**
+	 * Deletes the segments that only hold blocks up to the given sequence. The segment
+	 * currently being written to is kept.
+	 * 
+	 * @return the number of segments deleted
+	 */
+	public int compact(long coveredSequence) {
+		int deleted = 0;
+		synchronized(lock) {
+			Iterator<Segment> iterator = segments.iterator();
+			while(iterator.hasNext()) {
+				Segment segment = iterator.next();
+				boolean current = channel != null && !iterator.hasNext();
+				if(current || segment.lastSequence > coveredSequence) {
+					break;
+				}
+				delete(segment.file);
+				iterator.remove();
+				deleted++;
+			}
+		}
+		if(deleted > 0) {
+			log.info("Deleted {} write-ahead log segments covered by snapshots up to sequence {}", deleted, coveredSequence);
+		}
+		return deleted;
+	}
+	
+	/**
+	 * Hands over the blocks logged for each entity after the given sequence,
+	 * in the order they were logged. Only blocks committed before the replay
+	 * started are read.
+	 * 
+	 * @param fromSequences the sequence each entity is already up to; entities not
+	 *                      in the map are skipped
+	 */
+	public void replay(final Map<String, Long> fromSequences, final Replay replay) {
+		Map<File, Long> files = new LinkedHashMap<File, Long>();
+		synchronized(lock) {
+			for(Segment segment : segments) {
+				files.put(segment.file, segment.committedBytes);
+			}
+		}
+		Replay filtered = new Replay() {
+			private boolean wanted;
+			
+			@Override
+			public void startBlock(long sequence, String entityId, boolean bulk) {
+				Long fromSequence = fromSequences.get(entityId);
+				wanted = fromSequence != null && sequence > fromSequence;
+				if(wanted) {
+					replay.startBlock(sequence, entityId, bulk);
+				}
+			}
+			
+			@Override
+			public void change(String id, CsvLine csvLine) {
+				if(wanted) {
+					replay.change(id, csvLine);
+				}
+			}
+			
+			@Override
+			public void finishBlock() {
+				if(wanted) {
+					replay.finishBlock();
+				}
+			}
+		};
+		try {
+			for(Entry<File, Long> file : files.entrySet()) {
+				long validBytes = new SegmentReader(file.getKey(), file.getValue(), filtered).read();
+				if(validBytes < file.getValue()) {
+					throw new IOException("Write-ahead log segment damaged at byte " + validBytes + ": " + file.getKey());
+				}
+			}
+		} catch(IOException ex) {
+			throw new RuntimeException("Could not replay write-ahead log", ex);
+		}
+	}
+	
+	private static void delete(File file) {
+		if(!file.delete()) {
+			log.warn("Could not delete write-ahead log segment {}", file);
+		}
+	}
+	
+	private static final class Segment {
+		final File file;
+		long lastSequence;
+		long committedBytes;
+		
+		Segment(File file, long lastSequence, long committedBytes) {
+			this.file = file;
+			this.lastSequence = lastSequence;
+			this.committedBytes = committedBytes;
+		}
+	}
+	
+	/**
+	 * Builds one record at a time, reusing its buffer.
+	 */
+	private static final class RecordOutput {
+		private final ExposedByteArrayOutputStream bytes = new ExposedByteArrayOutputStream();
+		final DataOutputStream output = new DataOutputStream(bytes);
+		
+		void start(byte type, long sequence) throws IOException {
+			bytes.reset();
+			output.writeLong(0); //Header, filled in by writeTo
+			output.writeByte(type);
+			output.writeLong(sequence);
+		}
+		
+		/**
+		 * The number of changes goes before them, so it is patched in by writeChanges.
+		 */
+		void startChanges(long sequence) throws IOException {
+			start(CHANGES, sequence);
+			output.writeInt(0);
+		}
+		
+		int size() {
+			return bytes.size();
+		}
+		
+		void writeChanges(FileChannel channel, int count) throws IOException {
+			output.flush();
+			ByteBuffer.wrap(bytes.buffer()).putInt(CHANGE_COUNT_OFFSET, count);
+			writeTo(channel);
+		}
+		
+		void writeTo(FileChannel channel) throws IOException {
+			output.flush();
+			ByteBuffer buffer = ByteBuffer.wrap(bytes.buffer(), 0, bytes.size());
+			CRC32 crc = new CRC32();
+			crc.update(bytes.buffer(), HEADER_BYTES, bytes.size() - HEADER_BYTES);
+			buffer.putInt(0, bytes.size() - HEADER_BYTES);
+			buffer.putInt(4, (int)crc.getValue());
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	}
+	
+	private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+		ExposedByteArrayOutputStream() {
+			super(8192);
+		}
+		
+		byte[] buffer() {
+			return buf;
+		}
+	}
+	
+	/**
+	 * Reads a segment from the start as a stream, checking each record, and hands
+	 * over the blocks that were committed.
+	 */
+	private static final class SegmentReader {
+		private final File file;
+		private final long limit;
+		private final Replay replay;
+		
+		long lastSequence;
+		private byte[] payload = new byte[8192];
+		
+		/**
+		 * @param limit the number of bytes to read
+		 * @param replay null to only find the last committed block
+		 */
+		SegmentReader(File file, long limit, Replay replay) {
+			this.file = file;
+			this.limit = limit;
+			this.replay = replay;
+		}
+		
+		/**
+		 * @return the number of bytes taken up by complete, undamaged blocks
+		 */
+		long read() throws IOException {
+			DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+			try {
+				long position = 0;
+				long committed = 0;
+				long blockSequence = 0;
+				while(position + HEADER_BYTES <= limit) {
+					int length = input.readInt();
+					int checksum = input.readInt();
+					if(length < 9 || length > limit - position - HEADER_BYTES) {
+						break;
+					}
+					if(payload.length < length) {
+						payload = new byte[Math.max(length, payload.length * 2)];
+					}
+					input.readFully(payload, 0, length);
+					CRC32 crc = new CRC32();
+					crc.update(payload, 0, length);
+					if((int)crc.getValue() != checksum) {
+						break;
+					}
+					position += HEADER_BYTES + length;
+					
+					DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload, 0, length));
+					byte type = record.readByte();
+					long recordSequence = record.readLong();
+					if(type == START) {
+						if(blockSequence != 0) {
+							break;
+						}
+						blockSequence = recordSequence;
+						if(replay != null) {
+							replay.startBlock(recordSequence, record.readUTF(), record.readBoolean());
+						}
+					} else if(type == CHANGES && recordSequence == blockSequence) {
+						if(replay != null) {
+							int count = record.readInt();
+							for(int i = 0; i < count; i++) {
+								String id = record.readUTF();
+								replay.change(id, record.readBoolean() ? CsvCacheSnapshotFiles.readLine(record) : null);
+							}
+						}
+					} else if(type == COMMIT && recordSequence == blockSequence) {
+						if(replay != null) {
+							replay.finishBlock();
+						}
+						lastSequence = blockSequence;
+						blockSequence = 0;
+						committed = position;
+					} else {
+						break;
+					}
+				}
+				return committed;
+			} catch(EOFException ex) {
+				throw new IOException("Write-ahead log segment shorter than expected: " + file, ex);
+			} finally {
+				input.close();
+			}
+		}
+	}
+	
+}
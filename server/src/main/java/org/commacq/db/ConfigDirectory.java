@@ -2,12 +2,14 @@ package org.commacq.db;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 
 import org.apache.commons.io.IOUtils;
@@ -26,6 +28,11 @@ public final class ConfigDirectory {
 	private static final String SQL_SUFFIX = ".sql";
 	private static final String GROUPS_SUFFIX = ".groups.txt";
 	private static final String ID_COLUMNS_SUFFIX = ".compositeId";	
+	private static final String PROPERTIES_SUFFIX = ".properties";
+	
+	private static final String FETCH_SIZE_PROPERTY = "fetchSize";
+	private static final String PARTITION_COLUMN_PROPERTY = "partitionColumn";
+	private static final String PARTITIONS_PROPERTY = "partitions";
 	
 	
 	private ConfigDirectory() {
@@ -83,12 +90,59 @@ public final class ConfigDirectory {
 				idColumns = null;
 			}
 			
-			configs.put(entityId, new EntityConfig(entityId, sql, groups, idColumns));
+			EntityConfig entityConfig = new EntityConfig(entityId, sql, groups, idColumns);
+			
+			Resource propertiesResource = resource.createRelative("./" + entityId + PROPERTIES_SUFFIX);
+			if(propertiesResource.exists()) {
+				applyProperties(entityConfig, propertiesResource);
+			}
+			
+			configs.put(entityId, entityConfig);
 			
 		}
 		return Collections.unmodifiableMap(configs);
 	}
 	
+	/**
+	 * Optional tuning of how the entity is loaded, for example:
+	 * <pre>
+	 * fetchSize=5000
+	 * partitionColumn=id
+	 * partitions=8
+	 * </pre>
+	 * 
+	 * Each partition is queried on its own connection, so the partitions don't share a
+	 * snapshot of the table. The partition column should be one whose value doesn't change,
+	 * such as the id. A row whose partition column moves, during the load, from a range
+	 * that hasn't been read yet into one that has already been read is missed until it is
+	 * next updated.
+	 */
+	private static void applyProperties(EntityConfig entityConfig, Resource propertiesResource) throws IOException {
+		Properties properties = new Properties();
+		InputStream inputStream = propertiesResource.getInputStream();
+		try {
+			properties.load(inputStream);
+		} finally {
+			inputStream.close();
+		}
+		
+		String fetchSize = StringUtils.strip(properties.getProperty(FETCH_SIZE_PROPERTY));
+		if(StringUtils.isNotBlank(fetchSize)) {
+			entityConfig.setFetchSize(Integer.parseInt(fetchSize));
+		}
+		String partitionColumn = StringUtils.strip(properties.getProperty(PARTITION_COLUMN_PROPERTY));
+		if(StringUtils.isNotBlank(partitionColumn)) {
+			entityConfig.setPartitionColumn(partitionColumn);
+		}
+		String partitions = StringUtils.strip(properties.getProperty(PARTITIONS_PROPERTY));
+		if(StringUtils.isNotBlank(partitions)) {
+			entityConfig.setPartitions(Integer.parseInt(partitions));
+		}
+		if(entityConfig.getPartitions() > 1 && entityConfig.getPartitionColumn() == null) {
+			throw new RuntimeException("Partitions specified without a " + PARTITION_COLUMN_PROPERTY + " in resource: " + propertiesResource);
+		}
+	}
+	
 	private static String extractEntityId(String filename) {
 		return filename.substring(0, filename.length() - 4);
 	}
@@ -1,11 +1,27 @@
 package org.commacq.db;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.DataSource;
 
 import lombok.Getter;
+import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
@@ -14,7 +30,9 @@ import org.commacq.CompositeIdEncodingEscaped;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
 import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.SqlProvider;
 
 /**
  * Wraps a SQL data source and provides methods to get at entity data based on
@@ -26,12 +44,32 @@ import org.springframework.jdbc.core.ResultSetExtractor;
 @Slf4j
 public class DataSourceAccess {
 
+    /**
+     * Size of the pool shared by all the entities that load in partitions.
+     * Each thread holds a connection for as long as its partition takes to load.
+     */
+    public static final int DEFAULT_PARTITION_THREADS = 4;
+    
+    /**
+     * The most ids that {@link #getResultSetForMultipleRows(EntityConfig, ResultSetExtractor, Collection)}
+     * will look up in one statement.
+     */
+    public static final int MAX_IDS_PER_QUERY = EntityQueries.MAX_IN_LIST_SIZE;
+    
     private final JdbcTemplate jdbcTemplate;
     
     @Getter
     @Setter
     private CompositeIdEncoding encoding = new CompositeIdEncodingEscaped();
     
+    @Getter
+    @Setter
+    private int partitionThreads = DEFAULT_PARTITION_THREADS;
+    
+    private ExecutorService partitionExecutor;
+    
+    private final ConcurrentMap<String, EntityQueries> entityQueries = new ConcurrentHashMap<String, EntityQueries>();
+    
     public DataSourceAccess(DataSource dataSource) {
         this.jdbcTemplate = new JdbcTemplate(dataSource);        
     }
@@ -41,7 +79,7 @@ public class DataSourceAccess {
     public <T> T getResultSetForAllRows(EntityConfig entityConfig, ResultSetExtractor<T> resultSetExtractor) throws DataAccessException {
     	try {
     		//Debug hint - put a breakpoint on your ResultSetExtractor's extractData method. You're about to disappear into Spring...
-	    	T result = jdbcTemplate.query(entityConfig.getSql(), resultSetExtractor);
+	    	T result = jdbcTemplate.query(new StreamingStatementCreator(entityConfig, entityConfig.getSql()), resultSetExtractor);
 	    	return result;
         } catch(DataAccessException ex) {
             log.error("Error creating entity: {} - error is: {}", entityConfig.getEntityId(), ex.getMessage());
@@ -49,43 +87,124 @@ public class DataSourceAccess {
         }
     }
     
+    /**
+     * Splits the values of the entity's partition column into contiguous, inclusive
+     * ranges, one per partition. Rows with a null partition column belong to the first range.
+     * There is always at least one range, even if the query returns no rows.
+     */
+    public List<long[]> getPartitionRanges(EntityConfig entityConfig) throws DataAccessException {
+    	StringBuilder sql = new StringBuilder();
+    	String column = entityConfig.getPartitionColumn();
+    	sql.append("select min(nest.\"").append(column).append("\"), max(nest.\"").append(column).append("\") from (")
+    	   .append(entityConfig.getSql()).append(") as nest");
+    	
+        String sqlString = sql.toString();
+        log.debug("Executing SQL: {}", sqlString);
+    	
+    	long[] bounds;
+    	try {
+    		bounds = jdbcTemplate.query(sqlString, new ResultSetExtractor<long[]>() {
+    			@Override
+    			public long[] extractData(ResultSet rs) throws SQLException, DataAccessException {
+    				if(!rs.next()) {
+    					return null;
+    				}
+    				long min = rs.getLong(1);
+    				if(rs.wasNull()) {
+    					return null;
+    				}
+    				return new long[] {min, rs.getLong(2)};
+    			}
+    		});
+    	} catch(DataAccessException ex) {
+            log.error("Error finding the range of partition column {} for entity: {}", column, entityConfig.getEntityId());
+            throw ex;
+    	}
+    	
+    	if(bounds == null) {
+    		//Only nulls, or no rows at all. An empty range still picks up the nulls.
+    		return Collections.singletonList(new long[] {0, -1});
+    	}
+    	return splitRange(bounds[0], bounds[1], entityConfig.getPartitions());
+    }
     
-    public <T> T getResultSetForSingleRow(EntityConfig entityConfig, ResultSetExtractor<T> resultSetExtractor, String id) throws DataAccessException {
+    static List<long[]> splitRange(long min, long max, int partitions) {
+    	long size = max - min + 1;
+    	if(size <= 0 || partitions <= 1) {
+    		//Either a single partition or a range so wide that its size overflows
+    		return Collections.singletonList(new long[] {min, max});
+    	}
+    	long count = Math.min(partitions, size);
+    	long step = size / count + (size % count == 0 ? 0 : 1);
+    	List<long[]> ranges = new ArrayList<long[]>((int)count);
+    	for(long lower = min; lower <= max && lower >= min; lower += step) {
+    		ranges.add(new long[] {lower, Math.min(max, lower + step - 1)});
+    	}
+    	return ranges;
+    }
+    
+    /**
+     * @param range inclusive bounds from {@link #getPartitionRanges(EntityConfig)}
+     */
+    public <T> T getResultSetForPartition(EntityConfig entityConfig, ResultSetExtractor<T> resultSetExtractor, long[] range, boolean includeNulls) throws DataAccessException {
         StringBuilder sql = new StringBuilder();
+        String column = entityConfig.getPartitionColumn();
+        sql.append("select nest.* from (").append(entityConfig.getSql()).append(") as nest ")
+           .append("where (nest.\"").append(column).append("\" >= ? and nest.\"").append(column).append("\" <= ?)");
+        if(includeNulls) {
+        	sql.append(" or nest.\"").append(column).append("\" is null");
+        }
         
-        sql.append("select nest.* from (").append(entityConfig.getSql()).append(") as nest ");
+        String sqlString = sql.toString();
+        log.debug("Executing SQL: {} for range {} to {}", sqlString, range[0], range[1]);
         
+        try {
+        	return jdbcTemplate.query(new StreamingStatementCreator(entityConfig, sqlString, range[0], range[1]), resultSetExtractor);
+        } catch(DataAccessException ex) {
+            log.error("Error loading partition {} to {} of entity: {} - error is: {}", range[0], range[1], entityConfig.getEntityId(), ex.getMessage());
+            throw ex;
+        }
+    }
+    
+    /**
+     * Runs the partition queries of every entity, so that the number
+     * of connections used for partitioned loads stays bounded.
+     */
+    public synchronized ExecutorService getPartitionExecutor() {
+    	if(partitionExecutor == null) {
+    		partitionExecutor = Executors.newFixedThreadPool(partitionThreads, new ThreadFactory() {
+    			private final AtomicInteger threadNumber = new AtomicInteger();
+    			@Override
+    			public Thread newThread(Runnable runnable) {
+    				Thread thread = new Thread(runnable, "partitionLoad-" + threadNumber.incrementAndGet());
+    				thread.setDaemon(true);
+    				return thread;
+    			}
+    		});
+    	}
+    	return partitionExecutor;
+    }
+    
+    public <T> T getResultSetForSingleRow(EntityConfig entityConfig, ResultSetExtractor<T> resultSetExtractor, String id) throws DataAccessException {
+        String[] components;
         if(entityConfig.getCompositeIdColumns() == null) {
-	        //TODO probably best to cache this "nest" string arrangement
-	        sql.append("where nest.\"id\" = '").append(id).append("'");
+        	components = new String[] {id};
         } else {
-        	String[] components = encoding.parseCompositeIdComponents(id);
+        	components = encoding.parseCompositeIdComponents(id);
         	int numberOfColumns = entityConfig.getCompositeIdColumns().size();
         	if(components.length != numberOfColumns) {
         		throw new RuntimeException("id can't be parsed into " + numberOfColumns + " components: " + id);
         	}
-        	
-        	sql.append("where ");
-        	
-        	for(int i = 0; i < numberOfColumns; i++) {
-        		sql.append("nest.\"")
-        		   .append(entityConfig.getCompositeIdColumns().get(i))
-        		   .append("\" = '")
-        		   .append(components[i])
-        		   .append("'");
-        		
-        		if(i != numberOfColumns - 1) {
-        			sql.append(" and ");
-        		}
-        	}
         }
         
-        String sqlString = sql.toString();
-        log.debug("Executing SQL: {}", sqlString);
+        EntityQueries queries = getQueries(entityConfig);
+        String sqlString = queries.getSingleRowSql();
+        Object[] args = queries.singleRowArgs(components);
+        log.debug("Executing SQL: {} with id {}", sqlString, id);
         
         try {
         	//Debug hint - put a breakpoint on your ResultSetExtractor's extractData method. You're about to disappear into Spring...
-        	return jdbcTemplate.query(sqlString, resultSetExtractor);
+        	return jdbcTemplate.query(sqlString, args, resultSetExtractor);
         } catch(IncorrectResultSizeDataAccessException ex) {
         	return null;
         } catch(DataAccessException ex) {
@@ -96,11 +215,7 @@ public class DataSourceAccess {
     }
     
     public <METADATA> METADATA getColumnMetadata(EntityConfig entityConfig, ResultSetExtractor<METADATA> resultSetExtractor) throws DataAccessException {
-        StringBuilder sql = new StringBuilder();
-        sql.append("select nest.* from (").append(entityConfig.getSql()).append(") as nest ")
-           .append("where 1 = 2"); //Won't return any rows
-        
-        String sqlString = sql.toString();
+        String sqlString = EntityQueries.getMetadataSql(entityConfig);
         log.debug("Executing SQL: {}", sqlString);
         
         try {
@@ -113,21 +228,17 @@ public class DataSourceAccess {
     }    
     
     public <T> T getResultSetForGroup(EntityConfig entityConfig, ResultSetExtractor<T> resultSetExtractor, String group, String idWithinGroup) throws DataAccessException {
-    	if(!entityConfig.getGroups().contains(group)) {
+        EntityQueries queries = getQueries(entityConfig);
+        String sqlString = queries.getGroupSql(group);
+    	if(sqlString == null) {
     		throw new RuntimeException("Group " + group + " has not been declared in a .groups.txt file alongside the .sql file");
     	}
     	
-        StringBuilder sql = new StringBuilder();
-        //TODO probably best to cache this "nest" string arrangement
-        sql.append("select nest.* from (").append(entityConfig.getSql()).append(") as nest ")
-           .append("where nest.\"" + group + "\" = '").append(idWithinGroup).append("'");
-        
-        String sqlString = sql.toString();
-        log.debug("Executing SQL: {}", sqlString);
+        log.debug("Executing SQL: {} with group value {}", sqlString, idWithinGroup);
         
         try {
         	//Debug hint - put a breakpoint on your ResultSetExtractor's extractData method. You're about to disappear into Spring...
-        	return jdbcTemplate.query(sqlString, resultSetExtractor);
+        	return jdbcTemplate.query(sqlString, queries.groupArgs(group, idWithinGroup), resultSetExtractor);
         } catch(IncorrectResultSizeDataAccessException ex) {
         	return null;
         } catch(DataAccessException ex) {
@@ -137,29 +248,19 @@ public class DataSourceAccess {
         }
     }
 
+    /**
+     * @param ids no more than {@link #MAX_IDS_PER_QUERY}; split larger collections up
+     */
     public <T> T getResultSetForMultipleRows(final EntityConfig entityConfig, final ResultSetExtractor<T> resultSetExtractor, final Collection<String> ids) throws DataAccessException {        
-        StringBuilder sql = new StringBuilder();
-        //TODO probably best to cache this "nest" string arrangement
-        sql.append("select nest.* from (").append(entityConfig.getSql()).append(") as nest ")
-           .append("where nest.\"id\" in (");
-        
-        Iterator<String> idsIterator = ids.iterator();
-        appendId(sql, idsIterator);
-        
-        while(idsIterator.hasNext()) {
-            sql.append(",");
-            appendId(sql, idsIterator);
-        }
-        
-        sql.append(")");
-                
-        String sqlString = sql.toString();
-        log.debug("Executing SQL: {}", sqlString);
+        EntityQueries queries = getQueries(entityConfig);
+        String sqlString = queries.getInListSql(ids.size());
+        Object[] args = queries.inListArgs(ids, ids.size());
+        log.debug("Executing SQL with {} ids: {}", ids.size(), sqlString);
         
         try {
         	//Debug hint - put a breakpoint on your ResultSetExtractor's extractData method or use debug step filters.
         	//You're about to disappear into Spring...
-        	return jdbcTemplate.query(sqlString, resultSetExtractor);
+        	return jdbcTemplate.query(sqlString, args, resultSetExtractor);
         } catch(DataAccessException ex) {
             String message = "Error executing SQL with 'in' clause";
             log.error(message, ex);
@@ -167,8 +268,66 @@ public class DataSourceAccess {
         }
     }
     
-    private void appendId(StringBuilder builder, Iterator<String> idsIterator) {
-        builder.append("'").append(idsIterator.next()).append("'");
+    /**
+     * The SQL for an entity is only built once, along with the types of its
+     * columns for binding ids. Keyed on the entity id but rebuilt if a different
+     * EntityConfig turns up for the same entity.
+     */
+    private EntityQueries getQueries(EntityConfig entityConfig) {
+    	EntityQueries queries = entityQueries.get(entityConfig.getEntityId());
+    	if(queries == null || queries.getEntityConfig() != entityConfig) {
+    		queries = new EntityQueries(entityConfig, getColumnMetadata(entityConfig, new ResultSetExtractor<Map<String, Integer>>() {
+    			@Override
+    			public Map<String, Integer> extractData(ResultSet rs) throws SQLException, DataAccessException {
+    				ResultSetMetaData metaData = rs.getMetaData();
+    				Map<String, Integer> columnTypes = new HashMap<String, Integer>();
+    				for(int i = 1; i <= metaData.getColumnCount(); i++) {
+    					columnTypes.put(metaData.getColumnLabel(i), metaData.getColumnType(i));
+    				}
+    				return columnTypes;
+    			}
+    		}));
+    		entityQueries.put(entityConfig.getEntityId(), queries);
+    	}
+    	return queries;
+    }
+    
+    /**
+     * Forward-only, read-only statement using the entity's fetch size so that drivers
+     * which support it stream the rows rather than buffering the whole result.
+     * Note that some drivers, such as PostgreSQL's, only stream when auto-commit is off.
+     */
+    @RequiredArgsConstructor
+    private static final class StreamingStatementCreator implements PreparedStatementCreator, SqlProvider {
+    	
+    	private final EntityConfig entityConfig;
+    	private final String sql;
+    	private final Object[] args;
+    	
+    	StreamingStatementCreator(EntityConfig entityConfig, String sql) {
+    		this(entityConfig, sql, new Object[0]);
+    	}
+    	
+    	StreamingStatementCreator(EntityConfig entityConfig, String sql, long lower, long upper) {
+    		this(entityConfig, sql, new Object[] {lower, upper});
+    	}
+    	
+    	@Override
+    	public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+    		PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    		if(entityConfig.getFetchSize() > 0) {
+    			statement.setFetchSize(entityConfig.getFetchSize());
+    		}
+    		for(int i = 0; i < args.length; i++) {
+    			statement.setObject(i + 1, args[i]);
+    		}
+    		return statement;
+    	}
+    	
+    	@Override
+    	public String getSql() {
+    		return sql;
+    	}
     }
     
 }
@@ -16,6 +16,19 @@ public final class EntityConfig {
 	private final Set<String> groups;
 	private final List<String> compositeIdColumns;
 	
+	/**
+	 * Rows fetched from the database per round trip when loading;
+	 * 0 leaves it to the driver.
+	 */
+	private int fetchSize;
+	
+	/**
+	 * Numeric column used to split the initial load into ranges that
+	 * are queried concurrently. null to load with a single query.
+	 */
+	private String partitionColumn;
+	private int partitions = 1;
+	
 	@SuppressWarnings("unchecked")
 	public EntityConfig(String entityId, String sql) {
 		this(entityId, sql, Collections.EMPTY_SET, null);
@@ -0,0 +1,170 @@
+package org.commacq.db;
+
+import java.sql.Types;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.concurrent.Immutable;
+
+import lombok.Getter;
+
+import org.springframework.jdbc.core.SqlParameterValue;
+
+/**
+ * The SQL that DataSourceAccess runs for an entity, built once from the
+ * EntityConfig. Each statement wraps the entity's query as
+ * "select nest.* from (...) as nest" and restricts it using bind parameters,
+ * so the text of a statement doesn't change from one call to the next and
+ * the database and driver statement caches can do their job.
+ * 
+ * Lookups of several ids use an "in" list with one of a small number of
+ * sizes. The ids are padded out to the next size by repeating the last one.
+ * 
+ * Ids and group values arrive as text. They are bound with the JDBC type of
+ * their column, found from the metadata query, so that the driver converts
+ * them. Databases that type bind parameters strictly, such as PostgreSQL,
+ * won't compare a varchar parameter with an integer column.
+ */
+@Immutable
+final class EntityQueries {
+
+	static final int[] IN_LIST_SIZES = {1, 8, 64, 512};
+	static final int MAX_IN_LIST_SIZE = IN_LIST_SIZES[IN_LIST_SIZES.length - 1];
+	
+	@Getter
+	private final EntityConfig entityConfig;
+	@Getter
+	private final String singleRowSql;
+	private final String[] inListSql;
+	private final Map<String, String> groupSql;
+	private final Map<String, Integer> columnTypes;
+	
+	/**
+	 * @param columnTypes the java.sql.Types of the entity's columns by name;
+	 *                    columns that are missing are bound as text
+	 */
+	EntityQueries(EntityConfig entityConfig, Map<String, Integer> columnTypes) {
+		this.entityConfig = entityConfig;
+		this.columnTypes = Collections.unmodifiableMap(new HashMap<String, Integer>(columnTypes));
+		String nest = nest(entityConfig);
+		
+		StringBuilder sql = new StringBuilder(nest).append("where ");
+		List<String> compositeIdColumns = entityConfig.getCompositeIdColumns();
+		if(compositeIdColumns == null) {
+			sql.append("nest.\"id\" = ?");
+		} else {
+			for(int i = 0; i < compositeIdColumns.size(); i++) {
+				if(i > 0) {
+					sql.append(" and ");
+				}
+				sql.append("nest.\"").append(compositeIdColumns.get(i)).append("\" = ?");
+			}
+		}
+		singleRowSql = sql.toString();
+		
+		inListSql = new String[IN_LIST_SIZES.length];
+		for(int i = 0; i < IN_LIST_SIZES.length; i++) {
+			sql = new StringBuilder(nest).append("where nest.\"id\" in (?");
+			for(int j = 1; j < IN_LIST_SIZES[i]; j++) {
+				sql.append(",?");
+			}
+			inListSql[i] = sql.append(")").toString();
+		}
+		
+		Map<String, String> groupSql = new HashMap<String, String>();
+		for(String group : entityConfig.getGroups()) {
+			groupSql.put(group, nest + "where nest.\"" + group + "\" = ?");
+		}
+		this.groupSql = Collections.unmodifiableMap(groupSql);
+	}
+	
+	private static String nest(EntityConfig entityConfig) {
+		return "select nest.* from (" + entityConfig.getSql() + ") as nest ";
+	}
+	
+	static String getMetadataSql(EntityConfig entityConfig) {
+		return nest(entityConfig) + "where 1 = 2"; //Won't return any rows
+	}
+	
+	/**
+	 * @return null if the group isn't declared for the entity
+	 */
+	String getGroupSql(String group) {
+		return groupSql.get(group);
+	}
+	
+	/**
+	 * The smallest "in" list statement that can hold the given number of ids.
+	 */
+	String getInListSql(int numberOfIds) {
+		return inListSql[inListSizeIndex(numberOfIds)];
+	}
+	
+	/**
+	 * @param components the id, or the parts of a composite id in the order of its columns
+	 */
+	Object[] singleRowArgs(String[] components) {
+		List<String> compositeIdColumns = entityConfig.getCompositeIdColumns();
+		Object[] args = new Object[components.length];
+		for(int i = 0; i < components.length; i++) {
+			args[i] = bind(compositeIdColumns == null ? "id" : compositeIdColumns.get(i), components[i]);
+		}
+		return args;
+	}
+	
+	/**
+	 * The ids as bind parameters for {@link #getInListSql(int)}, padded by repeating the last id.
+	 */
+	Object[] inListArgs(Iterable<String> ids, int numberOfIds) {
+		Object[] args = new Object[IN_LIST_SIZES[inListSizeIndex(numberOfIds)]];
+		int i = 0;
+		for(String id : ids) {
+			args[i++] = bind("id", id);
+		}
+		for(; i < args.length; i++) {
+			args[i] = args[i - 1];
+		}
+		return args;
+	}
+	
+	Object[] groupArgs(String group, String idWithinGroup) {
+		return new Object[] {bind(group, idWithinGroup)};
+	}
+	
+	/**
+	 * Text columns take the value as it is. Anything else is converted by the driver.
+	 */
+	private Object bind(String column, String value) {
+		Integer type = columnTypes.get(column);
+		if(type == null) {
+			return value;
+		}
+		switch(type) {
+		case Types.CHAR:
+		case Types.VARCHAR:
+		case Types.LONGVARCHAR:
+		case Types.NCHAR:
+		case Types.NVARCHAR:
+		case Types.LONGNVARCHAR:
+		case Types.CLOB:
+		case Types.NCLOB:
+			return value;
+		default:
+			return new SqlParameterValue(type, value);
+		}
+	}
+	
+	private static int inListSizeIndex(int numberOfIds) {
+		if(numberOfIds <= 0 || numberOfIds > MAX_IN_LIST_SIZE) {
+			throw new IllegalArgumentException("Can look up between 1 and " + MAX_IN_LIST_SIZE + " ids at a time, not " + numberOfIds);
+		}
+		int index = 0;
+		while(IN_LIST_SIZES[index] < numberOfIds) {
+			index++;
+		}
+		return index;
+	}
+	
+}
@@ -3,6 +3,7 @@ package org.commacq.db;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -17,58 +18,52 @@ public class RowExtractor {
 	
 	public static final StringColumnValueConverter stringColumnValueConverter = new StringColumnValueConverter();
 
+	/**
+	 * Works out the layout of the columns once per query, for use with every row.
+	 */
+	public RowPlan createRowPlan(EntityConfig entityConfig, ResultSetMetaData metaData) throws SQLException {
+		return new RowPlan(entityConfig, metaData);
+	}
+	
 	public <RowObjectType> RowObjectType extractRow(EntityConfig entityConfig, ResultSet result, RowFactory<RowObjectType> rowFactory) throws SQLException {
-        ResultSetMetaData metaData = result.getMetaData();
-        int columnCount = metaData.getColumnCount();
-        
-        if(columnCount <= 0) {
-        	throw new SQLException("No columns to consider");
-        }
-        
-        int startFromColumn;
-        if(entityConfig.getCompositeIdColumns() != null) {
-        	//Haven't calculated the id yet; will have to prefix it to the line afterwards
-        	startFromColumn = 1;
-        } else {
-        	String idValue = stringColumnValueConverter.getColumnValue(result, metaData.getColumnType(1), 1);
+		return extractRow(createRowPlan(entityConfig, result.getMetaData()), result, rowFactory);
+	}
+	
+	public <RowObjectType> RowObjectType extractRow(RowPlan plan, ResultSet result, RowFactory<RowObjectType> rowFactory) throws SQLException {
+        if(plan.compositeIdColumns == null) {
+        	String idValue = stringColumnValueConverter.getColumnValue(result, plan.columnTypes[1], 1);
         	rowFactory.setId(idValue);
-        	
-        	startFromColumn = 2; //We've already processed column 1: id.
         }
         
-        Map<String, String> groupValues = new HashMap<String, String>(entityConfig.getGroups().size());
-        
-        Map<String, String> compositeKeyValues = null;
-        if(entityConfig.getCompositeIdColumns() != null) {
-        	compositeKeyValues = new HashMap<String, String>(entityConfig.getCompositeIdColumns().size());
+        //Only the group and composite id columns are needed as Strings
+        String[] stringValues = null;
+        if(plan.groupColumns.length > 0 || plan.compositeIdColumns != null) {
+        	stringValues = new String[plan.columnCount + 1];
         }
         
-        for (int i = startFromColumn; i <= metaData.getColumnCount(); i++) {
-        	String columnLabel = metaData.getColumnLabel(i);
-			String columnValue = stringColumnValueConverter.getColumnValue(result, metaData.getColumnType(i), i);
-			rowFactory.addValue(columnLabel, columnValue);
-			
-			if(entityConfig.getGroups().contains(columnLabel)) {
-				groupValues.put(columnLabel, columnValue);
-			}
-			if(compositeKeyValues != null) {
-				if(entityConfig.getCompositeIdColumns().contains(columnLabel)) {
-					compositeKeyValues.put(columnLabel, columnValue);
-				}
-			}
+        for (int i = plan.firstValueColumn; i <= plan.columnCount; i++) {
+        	if(!plan.stringValueRequired[i]) {
+        		//Nothing else needs the value, so let the factory read it however it likes
+        		rowFactory.addValue(plan.columnLabels[i], result, i);
+        		continue;
+        	}
+        	
+			String columnValue = stringColumnValueConverter.getColumnValue(result, plan.columnTypes[i], i);
+			rowFactory.addValue(plan.columnLabels[i], columnValue);
+			stringValues[i] = columnValue;
         }
         
-        rowFactory.setGroupValues(groupValues);
+        rowFactory.setGroupValues(groupValues(plan, stringValues));
         
-        if(compositeKeyValues != null) {
-        	String[] components = new String[entityConfig.getCompositeIdColumns().size()];
-        	int index = 0;
-        	for(String compositeColumn : entityConfig.getCompositeIdColumns()) {
-        		String value = compositeKeyValues.get(compositeColumn);
+        if(plan.compositeIdColumns != null) {
+        	String[] components = new String[plan.compositeIdColumns.length];
+        	for(int index = 0; index < components.length; index++) {
+        		int column = plan.compositeIdColumns[index];
+        		String value = stringValues[column];
         		if(value == null) {
-        			throw new RuntimeException("Null value in composite key column: " + compositeColumn);
+        			throw new RuntimeException("Null value in composite key column: " + plan.columnLabels[column]);
         		}
-        		components[index++] = value;
+        		components[index] = value;
         	}
         	String id = compositeIdEncoding.createCompositeId(components);
         	
@@ -78,4 +73,16 @@ public class RowExtractor {
 		return rowFactory.getObject();
 	}
 	
+	@SuppressWarnings("unchecked")
+	private static Map<String, String> groupValues(RowPlan plan, String[] stringValues) {
+		if(plan.groupColumns.length == 0) {
+			return Collections.EMPTY_MAP;
+		}
+		Map<String, String> groupValues = new HashMap<String, String>(plan.groupColumns.length * 2);
+		for(int column : plan.groupColumns) {
+			groupValues.put(plan.columnLabels[column], stringValues[column]);
+		}
+		return groupValues;
+	}
+	
 }
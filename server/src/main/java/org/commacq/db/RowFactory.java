@@ -1,11 +1,18 @@
 package org.commacq.db;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.Map;
 
 public interface RowFactory<RowObjectType> {
 
 	void setId(String idValue);
 	void addValue(String columnName, String value);
+	/**
+	 * Adds a value by reading it straight from the current row, which lets
+	 * the factory skip the intermediate String where it has a better way.
+	 */
+	void addValue(String columnName, ResultSet result, int columnIndex) throws SQLException;
 	void setGroupValues(Map<String, String> groupValues);
 	
 	RowObjectType getObject();
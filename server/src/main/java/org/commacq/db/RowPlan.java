@@ -0,0 +1,111 @@
+package org.commacq.db;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.concurrent.Immutable;
+
+import lombok.Getter;
+
+/**
+ * Everything RowExtractor needs to know about the columns of a result set,
+ * worked out once per query from the ResultSetMetaData and the EntityConfig.
+ * 
+ * Some drivers go back to the server for metadata, and the extraction loop
+ * runs for every cell of every row, so the loop only ever indexes into
+ * these arrays. All the arrays are indexed by JDBC column index, starting
+ * at 1, or hold JDBC column indexes.
+ */
+@Immutable
+public final class RowPlan {
+
+	@Getter
+	private final EntityConfig entityConfig;
+	final int columnCount;
+	final String[] columnLabels;
+	final int[] columnTypes;
+	
+	/**
+	 * 2 if the id is column 1, or 1 if the id is made up from a composite
+	 * of columns and the first column is a value like any other.
+	 */
+	final int firstValueColumn;
+	
+	/**
+	 * Columns whose value is needed as a String, for the groups or composite id,
+	 * as well as being added to the row.
+	 */
+	final boolean[] stringValueRequired;
+	
+	final int[] groupColumns;
+	
+	/**
+	 * In the order that the components of the composite id are declared;
+	 * null if the entity does not have a composite id.
+	 */
+	final int[] compositeIdColumns;
+
+	RowPlan(EntityConfig entityConfig, ResultSetMetaData metaData) throws SQLException {
+		this.entityConfig = entityConfig;
+		columnCount = metaData.getColumnCount();
+		if(columnCount <= 0) {
+			throw new SQLException("No columns to consider");
+		}
+		
+		columnLabels = new String[columnCount + 1];
+		columnTypes = new int[columnCount + 1];
+		stringValueRequired = new boolean[columnCount + 1];
+		for(int i = 1; i <= columnCount; i++) {
+			columnLabels[i] = metaData.getColumnLabel(i);
+			columnTypes[i] = metaData.getColumnType(i);
+		}
+		
+		List<String> compositeIdColumnNames = entityConfig.getCompositeIdColumns();
+		//Haven't calculated the id yet if it's composite; will have to prefix it to the line afterwards
+		firstValueColumn = compositeIdColumnNames != null ? 1 : 2;
+		
+		List<Integer> groups = new ArrayList<Integer>(entityConfig.getGroups().size());
+		for(int i = firstValueColumn; i <= columnCount; i++) {
+			if(entityConfig.getGroups().contains(columnLabels[i])) {
+				groups.add(i);
+				stringValueRequired[i] = true;
+			}
+		}
+		groupColumns = toArray(groups);
+		
+		if(compositeIdColumnNames != null) {
+			compositeIdColumns = new int[compositeIdColumnNames.size()];
+			int index = 0;
+			for(String compositeColumn : compositeIdColumnNames) {
+				int column = indexOf(compositeColumn);
+				if(column < 0) {
+					throw new SQLException("Composite id column not contained in the query results: " + compositeColumn);
+				}
+				compositeIdColumns[index++] = column;
+				stringValueRequired[column] = true;
+			}
+		} else {
+			compositeIdColumns = null;
+		}
+	}
+	
+	private int indexOf(String columnLabel) {
+		for(int i = 1; i <= columnCount; i++) {
+			if(columnLabels[i].equals(columnLabel)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	private static int[] toArray(List<Integer> list) {
+		int[] array = new int[list.size()];
+		for(int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+	
+}
@@ -0,0 +1,313 @@
+package org.commacq.db.csv;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.text.DecimalFormat;
+import java.text.FieldPosition;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.commacq.db.RowExtractor;
+
+/**
+ * Appends the value of one column of the current row straight onto a CSV line,
+ * in exactly the format StringColumnValueConverter produces.
+ *
+ * A writer is chosen for each column once per query, from the ResultSetMetaData,
+ * so the per-row work is a virtual call. Numbers, booleans, dates and timestamps
+ * are appended without creating intermediate Strings and never need escaping.
+ * Only character columns go through the escaping path.
+ *
+ * Writers hold scratch state such as a Calendar, so a plan must only be used
+ * by the thread running the query.
+ */
+@NotThreadSafe
+public abstract class CsvColumnWriter {
+
+	public static final char COMMA = ',';
+	public static final char QUOTE = '"';
+	public static final String EMPTY_STRING = "\"\"";
+
+	/**
+	 * Nothing is appended for a null value.
+	 */
+	public abstract void write(ResultSet result, int columnIndex, StringBuilder builder) throws SQLException;
+
+	/**
+	 * @return an array indexed by JDBC column index; element 0 is unused
+	 */
+	public static CsvColumnWriter[] createPlan(ResultSetMetaData metaData) throws SQLException {
+		int columnCount = metaData.getColumnCount();
+		CsvColumnWriter[] plan = new CsvColumnWriter[columnCount + 1];
+		for(int i = 1; i <= columnCount; i++) {
+			plan[i] = forColumnType(metaData.getColumnType(i));
+		}
+		return plan;
+	}
+
+	public static CsvColumnWriter forColumnType(int columnType) throws SQLException {
+		switch (columnType)
+		{
+			case Types.BOOLEAN:
+			case Types.BIT:
+				return new BooleanWriter();
+			case Types.BIGINT:
+				return new LongWriter();
+			case Types.INTEGER:
+			case Types.TINYINT:
+			case Types.SMALLINT:
+				return new IntegerWriter();
+			case Types.DOUBLE:
+			case Types.FLOAT:
+				return new DoubleWriter();
+			case Types.DECIMAL:
+			case Types.REAL:
+			case Types.NUMERIC:
+				return new BigDecimalWriter();
+			case Types.DATE:
+				return new DateWriter();
+			case Types.TIME:
+				return new TimeWriter();
+			case Types.TIMESTAMP:
+				return new TimestampWriter();
+			case Types.NVARCHAR:
+			case Types.NCHAR:
+			case Types.LONGNVARCHAR:
+			case Types.LONGVARCHAR:
+			case Types.VARCHAR:
+			case Types.CHAR:
+				return new CharacterWriter();
+			case Types.NCLOB:
+			case Types.CLOB:
+				return new ConvertedStringWriter(columnType);
+			default:
+				throw new SQLException("Unsupported type: " + columnType);
+		}
+	}
+
+	/**
+	 * Escapes in the same way as StringEscapeUtils.escapeCsv, without creating
+	 * a new String. Empty strings are quoted to tell them apart from null.
+	 */
+	public static void appendEscaped(StringBuilder builder, String value) {
+		if(value == null) {
+			//nulls end up as separators with nothing inbetween ,,
+			return;
+		}
+
+		if(value.isEmpty()) {
+			builder.append(EMPTY_STRING);
+			return;
+		}
+
+		int length = value.length();
+		boolean quote = false;
+		for(int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if(c == COMMA || c == QUOTE || c == '\r' || c == '\n') {
+				quote = true;
+				break;
+			}
+		}
+		if(!quote) {
+			builder.append(value);
+			return;
+		}
+
+		builder.append(QUOTE);
+		for(int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if(c == QUOTE) {
+				builder.append(QUOTE);
+			}
+			builder.append(c);
+		}
+		builder.append(QUOTE);
+	}
+
+	private static void appendPadded(StringBuilder builder, int value, int width) {
+		if(value < 0) {
+			builder.append('-');
+			value = -value;
+		}
+		for(int limit = 10, digits = 1; digits < width; limit *= 10, digits++) {
+			if(value < limit) {
+				builder.append('0');
+			}
+		}
+		builder.append(value);
+	}
+
+	private static final class CharacterWriter extends CsvColumnWriter {
+		@Override
+		public void write(ResultSet result, int columnIndex, StringBuilder builder) throws SQLException {
+			appendEscaped(builder, result.getString(columnIndex));
+		}
+	}
+
+	/**
+	 * Types that have to be read into a String anyway, such as CLOBs.
+	 */
+	private static final class ConvertedStringWriter extends CsvColumnWriter {
+		private final int columnType;
+
+		ConvertedStringWriter(int columnType) {
+			this.columnType = columnType;
+		}
+
+		@Override
+		public void write(ResultSet result, int columnIndex, StringBuilder builder) throws SQLException {
+			appendEscaped(builder, RowExtractor.stringColumnValueConverter.getColumnValue(result, columnType, columnIndex));
+		}
+	}
+
+	/**
+	 * JDBC reports null booleans as false, which is what has always been written.
+	 */
+	private static final class BooleanWriter extends CsvColumnWriter {
+		@Override
+		public void write(ResultSet result, int columnIndex, StringBuilder builder) throws SQLException {
+			builder.append(result.getBoolean(columnIndex));
+		}
+	}
+
+	private static final class IntegerWriter extends CsvColumnWriter {
+		@Override
+		public void write(ResultSet result, int columnIndex, StringBuilder builder) throws SQLException {
+			int value = result.getInt(columnIndex);
+			if(!result.wasNull()) {
+				builder.append(value);
+			}
+		}
+	}
+
+	private static final class LongWriter extends CsvColumnWriter {
+		@Override
+		public void write(ResultSet result, int columnIndex, StringBuilder builder) throws SQLException {
+			long value = result.getLong(columnIndex);
+			if(!result.wasNull()) {
+				builder.append(value);
+			}
+		}
+	}
+
+	/**
+	 * Formats into a reused buffer rather than a new String.
+	 */
+	private static final class DoubleWriter extends CsvColumnWriter {
+		private final DecimalFormat decimalUpTo20Places = new DecimalFormat("0.####################");
+		private final StringBuffer buffer = new StringBuffer(32);
+		private final FieldPosition fieldPosition = new FieldPosition(0);
+
+		@Override
+		public void write(ResultSet result, int columnIndex, StringBuilder builder) throws SQLException {
+			buffer.setLength(0);
+			decimalUpTo20Places.format(result.getDouble(columnIndex), buffer, fieldPosition);
+			builder.append(buffer);
+		}
+	}
+
+	/**
+	 * BigDecimal has no way of printing itself without a String,
+	 * but the result never needs escaping.
+	 */
+	private static final class BigDecimalWriter extends CsvColumnWriter {
+		@Override
+		public void write(ResultSet result, int columnIndex, StringBuilder builder) throws SQLException {
+			BigDecimal value = result.getBigDecimal(columnIndex);
+			if(value != null) {
+				builder.append(value.toString());
+			}
+		}
+	}
+
+	/**
+	 * yyyy-MM-dd in the default time zone. Joda's ISO chronology has always been used
+	 * for dates, so the calendar is Gregorian all the way back rather than Julian before 1582.
+	 */
+	private static final class DateWriter extends CsvColumnWriter {
+		private final GregorianCalendar calendar = new GregorianCalendar();
+		
+		DateWriter() {
+			calendar.setGregorianChange(new Date(Long.MIN_VALUE));
+		}
+
+		@Override
+		public void write(ResultSet result, int columnIndex, StringBuilder builder) throws SQLException {
+			java.sql.Date date = result.getDate(columnIndex);
+			if(date != null) {
+				calendar.setTimeInMillis(date.getTime());
+				appendPadded(builder, calendar.get(Calendar.YEAR), 4);
+				builder.append('-');
+				appendPadded(builder, calendar.get(Calendar.MONTH) + 1, 2);
+				builder.append('-');
+				appendPadded(builder, calendar.get(Calendar.DAY_OF_MONTH), 2);
+			}
+		}
+	}
+
+	/**
+	 * HH:mm:ss in the default time zone.
+	 */
+	private static final class TimeWriter extends CsvColumnWriter {
+		private final Calendar calendar = Calendar.getInstance();
+
+		@Override
+		public void write(ResultSet result, int columnIndex, StringBuilder builder) throws SQLException {
+			java.sql.Time time = result.getTime(columnIndex);
+			if(time != null) {
+				calendar.setTimeInMillis(time.getTime());
+				appendPadded(builder, calendar.get(Calendar.HOUR_OF_DAY), 2);
+				builder.append(':');
+				appendPadded(builder, calendar.get(Calendar.MINUTE), 2);
+				builder.append(':');
+				appendPadded(builder, calendar.get(Calendar.SECOND), 2);
+			}
+		}
+	}
+
+	/**
+	 * yyyy-MM-dd'T'HH:mm:ss.SSSZ in the default time zone.
+	 */
+	private static final class TimestampWriter extends CsvColumnWriter {
+		private final Calendar calendar = Calendar.getInstance();
+
+		@Override
+		public void write(ResultSet result, int columnIndex, StringBuilder builder) throws SQLException {
+			java.sql.Timestamp timestamp = result.getTimestamp(columnIndex);
+			if(timestamp != null) {
+				calendar.setTimeInMillis(timestamp.getTime());
+				appendPadded(builder, calendar.get(Calendar.YEAR), 4);
+				builder.append('-');
+				appendPadded(builder, calendar.get(Calendar.MONTH) + 1, 2);
+				builder.append('-');
+				appendPadded(builder, calendar.get(Calendar.DAY_OF_MONTH), 2);
+				builder.append('T');
+				appendPadded(builder, calendar.get(Calendar.HOUR_OF_DAY), 2);
+				builder.append(':');
+				appendPadded(builder, calendar.get(Calendar.MINUTE), 2);
+				builder.append(':');
+				appendPadded(builder, calendar.get(Calendar.SECOND), 2);
+				builder.append('.');
+				appendPadded(builder, calendar.get(Calendar.MILLISECOND), 3);
+
+				int offsetMinutes = (calendar.get(Calendar.ZONE_OFFSET) + calendar.get(Calendar.DST_OFFSET)) / 60000;
+				if(offsetMinutes < 0) {
+					builder.append('-');
+					offsetMinutes = -offsetMinutes;
+				} else {
+					builder.append('+');
+				}
+				appendPadded(builder, offsetMinutes / 60, 2);
+				appendPadded(builder, offsetMinutes % 60, 2);
+			}
+		}
+	}
+
+}
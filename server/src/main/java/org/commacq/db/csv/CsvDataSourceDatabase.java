@@ -5,7 +5,13 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -16,6 +22,7 @@ import org.commacq.CsvUpdateBlockException;
 import org.commacq.LineCallback;
 import org.commacq.db.DataSourceAccess;
 import org.commacq.db.EntityConfig;
+import org.commacq.db.RowPlan;
 import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.ResultSetExtractor;
 
@@ -35,6 +42,9 @@ import org.springframework.jdbc.core.ResultSetExtractor;
 @Slf4j
 public class CsvDataSourceDatabase implements CsvDataSource {
 
+	private static final int PARTITION_BATCH_SIZE = 1000;
+	private static final int BATCHES_QUEUED_PER_PARTITION = 4;
+
     private final EntityConfig entityConfig;
     private final DataSourceAccess dataSourceAccess;
     
@@ -52,9 +62,64 @@ public class CsvDataSourceDatabase implements CsvDataSource {
     
     @Override
     public void getAllCsvLines(LineCallback callback) {
+    	if(entityConfig.getPartitionColumn() != null && entityConfig.getPartitions() > 1) {
+    		getAllCsvLinesPartitioned(callback);
+    		return;
+    	}
     	dataSourceAccess.getResultSetForAllRows(entityConfig, new CsvListFactory(callback, null));
     }
     
+    /**
+     * Queries each range of the partition column on the DataSourceAccess's partition pool.
+     * The lines are marshalled on the pool threads and handed back in batches through a
+     * bounded queue, so the callback is only ever called from this thread, as it would be
+     * for a single query, and the loaders stall rather than buffering the whole entity
+     * if the callback can't keep up.
+     * 
+     * If any partition fails, the load is cancelled and this thread stops reading at once.
+     * Partitions that haven't started never run, and the loaders that have started give
+     * up on the queue rather than waiting for room in it.
+     */
+    private void getAllCsvLinesPartitioned(LineCallback callback) {
+    	List<long[]> ranges = dataSourceAccess.getPartitionRanges(entityConfig);
+    	log.info("Loading entity {} in {} partitions", entityConfig.getEntityId(), ranges.size());
+    	
+    	PartitionQueue queue = new PartitionQueue(ranges.size() * BATCHES_QUEUED_PER_PARTITION);
+    	List<Future<?>> futures = new ArrayList<Future<?>>(ranges.size());
+    	for(int i = 0; i < ranges.size(); i++) {
+    		futures.add(dataSourceAccess.getPartitionExecutor().submit(new PartitionLoader(ranges.get(i), i == 0, queue)));
+    	}
+    	
+    	int partitionsRemaining = ranges.size();
+    	try {
+	    	while(partitionsRemaining > 0) {
+	    		PartitionBatch batch = queue.take();
+	    		if(batch.lines == null) {
+	    			partitionsRemaining--;
+	    			if(batch.exception != null) {
+	    				throw batch.exception;
+	    			}
+	    			continue;
+	    		}
+	    		for(CsvLine csvLine : batch.lines) {
+	    			callback.processUpdate(entityConfig.getEntityId(), batch.columnNamesCsv, csvLine);
+	    		}
+	    	}
+    	} catch(InterruptedException ex) {
+    		Thread.currentThread().interrupt();
+    		throw new RuntimeException("Interrupted while loading entity: " + entityConfig.getEntityId(), ex);
+    	} catch(CsvUpdateBlockException ex) {
+    		throw new RuntimeException(ex);
+    	} finally {
+    		if(partitionsRemaining > 0) {
+    			queue.cancel();
+    			for(Future<?> future : futures) {
+    				future.cancel(true);
+    			}
+    		}
+    	}
+    }
+    
     @Override
     public void getCsvLine(String id, LineCallback callback) {
         dataSourceAccess.getResultSetForSingleRow(entityConfig, new CsvListFactory(callback, Collections.singleton(id)), id);
@@ -62,7 +127,25 @@ public class CsvDataSourceDatabase implements CsvDataSource {
 
     @Override
     public void getCsvLines(final Collection<String> ids, LineCallback callback) {     
-        dataSourceAccess.getResultSetForMultipleRows(entityConfig, new CsvListFactory(callback, ids), ids);
+    	if(ids.isEmpty()) {
+    		return;
+    	}
+    	if(ids.size() <= DataSourceAccess.MAX_IDS_PER_QUERY) {
+    		dataSourceAccess.getResultSetForMultipleRows(entityConfig, new CsvListFactory(callback, ids), ids);
+    		return;
+    	}
+    	
+    	List<String> chunk = new ArrayList<String>(DataSourceAccess.MAX_IDS_PER_QUERY);
+    	for(String id : ids) {
+    		chunk.add(id);
+    		if(chunk.size() == DataSourceAccess.MAX_IDS_PER_QUERY) {
+    			dataSourceAccess.getResultSetForMultipleRows(entityConfig, new CsvListFactory(callback, chunk), chunk);
+    			chunk = new ArrayList<String>(DataSourceAccess.MAX_IDS_PER_QUERY);
+    		}
+    	}
+    	if(!chunk.isEmpty()) {
+    		dataSourceAccess.getResultSetForMultipleRows(entityConfig, new CsvListFactory(callback, chunk), chunk);
+    	}
     }
     
     @Override
@@ -87,6 +170,120 @@ public class CsvDataSourceDatabase implements CsvDataSource {
     	return columnNamesCsv;
     }
     
+    /**
+     * A batch of lines loaded from one partition, or, with null lines,
+     * the marker that the partition has finished.
+     */
+    @RequiredArgsConstructor
+    private static final class PartitionBatch {
+    	private final String columnNamesCsv;
+    	private final List<CsvLine> lines;
+    	private final RuntimeException exception;
+    }
+    
+    /**
+     * The batches of one partitioned load. Once the load is cancelled, nobody reads
+     * the queue any more, so the loaders stop offering batches instead of waiting.
+     */
+    private static final class PartitionQueue {
+    	private static final long OFFER_MILLIS = 100;
+    	
+    	private final BlockingQueue<PartitionBatch> queue;
+    	private volatile boolean cancelled;
+    	
+    	PartitionQueue(int capacity) {
+    		queue = new ArrayBlockingQueue<PartitionBatch>(capacity);
+    	}
+    	
+    	PartitionBatch take() throws InterruptedException {
+    		return queue.take();
+    	}
+    	
+    	void cancel() {
+    		cancelled = true;
+    		queue.clear();
+    	}
+    	
+    	/**
+    	 * Keeps trying through interrupts until the batch is queued or the load is cancelled.
+    	 * 
+    	 * @return false if the load has been cancelled
+    	 */
+    	boolean put(PartitionBatch batch) {
+    		boolean interrupted = false;
+    		try {
+    			while(!cancelled) {
+    				try {
+    					if(queue.offer(batch, OFFER_MILLIS, TimeUnit.MILLISECONDS)) {
+    						return true;
+    					}
+    				} catch(InterruptedException ex) {
+    					interrupted = true;
+    				}
+    			}
+    			return false;
+    		} finally {
+    			if(interrupted) {
+    				Thread.currentThread().interrupt();
+    			}
+    		}
+    	}
+    }
+    
+    @RequiredArgsConstructor
+    private final class PartitionLoader implements Runnable, LineCallback {
+    	
+    	private final long[] range;
+    	private final boolean includeNulls;
+    	private final PartitionQueue queue;
+    	
+    	private String columnNamesCsv;
+    	private List<CsvLine> lines = new ArrayList<CsvLine>(PARTITION_BATCH_SIZE);
+    	
+    	@Override
+    	public void run() {
+    		RuntimeException exception = null;
+    		try {
+    			dataSourceAccess.getResultSetForPartition(entityConfig, new CsvListFactory(this, null), range, includeNulls);
+    			flush();
+    		} catch(RuntimeException ex) {
+    			exception = ex;
+    		} catch(CsvUpdateBlockException ex) {
+    			exception = new RuntimeException(ex);
+    		} finally {
+    			//Must arrive unless the load has been cancelled, or the reader waits forever
+    			queue.put(new PartitionBatch(null, null, exception));
+    		}
+    	}
+    	
+    	@Override
+    	public void processUpdate(String entityId, String columnNamesCsv, CsvLine csvLine) throws CsvUpdateBlockException {
+    		this.columnNamesCsv = columnNamesCsv;
+    		lines.add(csvLine);
+    		if(lines.size() >= PARTITION_BATCH_SIZE) {
+    			flush();
+    		}
+    	}
+    	
+    	/**
+    	 * A partition is queried without a list of expected ids, so nothing is ever removed.
+    	 */
+    	@Override
+    	public void processRemove(String entityId, String columnNamesCsv, String id) throws CsvUpdateBlockException {
+    		log.warn("Ignoring removal of id {} while loading a partition of entity {}", id, entityId);
+    	}
+    	
+    	private void flush() throws CsvUpdateBlockException {
+    		if(lines.isEmpty()) {
+    			return;
+    		}
+    		if(!queue.put(new PartitionBatch(columnNamesCsv, lines, null))) {
+    			throw new CsvUpdateBlockException("Partition load cancelled");
+    		}
+    		lines = new ArrayList<CsvLine>(PARTITION_BATCH_SIZE);
+    	}
+    }
+    
     /**
      * Convert a resultset row into a CsvLine, line by line.
      */
@@ -130,15 +327,17 @@ public class CsvDataSourceDatabase implements CsvDataSource {
     			columnNamesCsv = "id," + columnNamesCsv;
     		}
     		
-    		List<String> copyOfIds = null;
+    		Set<String> copyOfIds = null;
     		if(ids != null) {
-    			copyOfIds = new ArrayList<String>(ids);
+    			copyOfIds = new LinkedHashSet<String>(ids);
     		}
     		
     		String entityId = entityConfig.getEntityId();
+    		RowPlan rowPlan = csvParser.createRowPlan(entityConfig, result.getMetaData());
+    		CsvColumnWriter[] columnWriters = csvParser.createColumnWriters(result.getMetaData());
     		
     		while(result.next()) {    			
-    			CsvLine csvLine = csvParser.toCsvLine(result, entityConfig);
+    			CsvLine csvLine = csvParser.toCsvLine(result, rowPlan, columnWriters);
 					callback.processUpdate(entityId, columnNamesCsv, csvLine);
     			if(ids != null) {
     				copyOfIds.remove(csvLine.getId());
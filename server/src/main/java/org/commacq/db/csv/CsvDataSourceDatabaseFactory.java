@@ -6,6 +6,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 
 import org.commacq.CsvDataSource;
 import org.commacq.db.DataSourceAccess;
@@ -20,7 +21,21 @@ import org.commacq.layer.Layer;
 @RequiredArgsConstructor
 public class CsvDataSourceDatabaseFactory {
 	
+	/**
+	 * Default size at which coalesced untrusted updates are published early,
+	 * matching the largest multi-row lookup that DataSourceAccess makes.
+	 */
+	public static final int DEFAULT_UNTRUSTED_COALESCE_MAX_IDS = DataSourceAccess.MAX_IDS_PER_QUERY;
+	
 	private final DataSourceAccess dataSourceAccess;
+	
+	/**
+	 * 0, the default, publishes each untrusted update as it arrives.
+	 */
+	@Setter
+	private long untrustedCoalesceMillis = 0;
+	@Setter
+	private int untrustedCoalesceMaxIds = DEFAULT_UNTRUSTED_COALESCE_MAX_IDS;
 
 	public Layer create(Map<String, EntityConfig> entityConfigs) {
 		
@@ -29,7 +44,9 @@ public class CsvDataSourceDatabaseFactory {
 			CsvDataSourceDatabase source = new CsvDataSourceDatabase(dataSourceAccess, entry.getValue());
 			sources.add(source);
 		}
-		return new DataSourceCollectionLayer(sources);
+		DataSourceCollectionLayer layer = new DataSourceCollectionLayer(sources);
+		layer.setUntrustedCoalescing(untrustedCoalesceMillis, untrustedCoalesceMaxIds);
+		return layer;
 	}
 	
 }
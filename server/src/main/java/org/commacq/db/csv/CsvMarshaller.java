@@ -9,13 +9,13 @@ import java.util.TreeSet;
 
 import javax.annotation.concurrent.ThreadSafe;
 
-import org.apache.commons.lang3.StringEscapeUtils;
 import org.commacq.CompositeIdEncoding;
 import org.commacq.CompositeIdEncodingEscaped;
 import org.commacq.CsvLine;
 import org.commacq.db.EntityConfig;
 import org.commacq.db.RowExtractor;
 import org.commacq.db.RowFactory;
+import org.commacq.db.RowPlan;
 
 /**
  * So, why choose to write yet another implementation
@@ -74,9 +74,30 @@ public class CsvMarshaller {
 	};
 	
 	public CsvLine toCsvLine(ResultSet result, EntityConfig entityConfig) throws SQLException {
-		RowFactory<CsvLine> rowFactory = new RowFactoryCsv(stringBuilder.get());
+		ResultSetMetaData metaData = result.getMetaData();
+		return toCsvLine(result, createRowPlan(entityConfig, metaData), createColumnWriters(metaData));
+	}
+	
+	/**
+	 * @param rowPlan created once per query by {@link #createRowPlan(EntityConfig, ResultSetMetaData)}
+	 * @param columnWriters created once per query by {@link #createColumnWriters(ResultSetMetaData)}
+	 */
+	public CsvLine toCsvLine(ResultSet result, RowPlan rowPlan, CsvColumnWriter[] columnWriters) throws SQLException {
+		RowFactory<CsvLine> rowFactory = new RowFactoryCsv(stringBuilder.get(), columnWriters);
 		
-		return rowExtractor.extractRow(entityConfig, result, rowFactory);
+		return rowExtractor.extractRow(rowPlan, result, rowFactory);
+	}
+	
+	public RowPlan createRowPlan(EntityConfig entityConfig, ResultSetMetaData metaData) throws SQLException {
+		return rowExtractor.createRowPlan(entityConfig, metaData);
+	}
+	
+	/**
+	 * Picks a type-specific writer for each column. The plan belongs
+	 * to the thread running the query.
+	 */
+	public CsvColumnWriter[] createColumnWriters(ResultSetMetaData metaData) throws SQLException {
+		return CsvColumnWriter.createPlan(metaData);
 	}
 	
 	/**
@@ -105,27 +126,14 @@ public class CsvMarshaller {
 	}
 	
 	
-	public static final String EMPTY_STRING = "\"\"";
+	public static final String EMPTY_STRING = CsvColumnWriter.EMPTY_STRING;
 	
 	/**
 	 * Adds the CSV entry, escaping where required. Does not add a comma.
 	 * @return the String that was appended
 	 */
 	protected void appendEscapedCsvEntry(final StringBuilder builder, final String value) {
-		if(value == null) {
-			//nulls end up as separators with nothing inbetween ,,
-			return;
-		}
-		
-		if(value.isEmpty()) {
-			//Empty string is treated as a special case to differentiate
-			//it from null. It's quoted.
-			builder.append(EMPTY_STRING);
-			return;
-		}
-		
-		String escapedString = StringEscapeUtils.escapeCsv(value);
-		builder.append(escapedString);		
+		CsvColumnWriter.appendEscaped(builder, value);
 	}
 	
 }
\ No newline at end of file
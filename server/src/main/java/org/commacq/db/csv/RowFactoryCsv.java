@@ -1,5 +1,7 @@
 package org.commacq.db.csv;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.Map;
 
 import lombok.Getter;
@@ -14,10 +16,11 @@ import org.commacq.db.RowFactory;
 public class RowFactoryCsv implements RowFactory<CsvLine> {
 
 	public static final char COMMA = ',';
-	public static final String EMPTY_STRING = "\"\"";
+	public static final String EMPTY_STRING = CsvColumnWriter.EMPTY_STRING;
 	
 	private String id;
 	private final StringBuilder builder;
+	private final CsvColumnWriter[] columnWriters;
 	
 	@Getter
 	@Setter
@@ -29,9 +32,16 @@ public class RowFactoryCsv implements RowFactory<CsvLine> {
 		appendEscapedCsvEntry(builder, columnValue);
 	}
 
+	@Override
+	public void addValue(String columnName, ResultSet result, int columnIndex) throws SQLException {
+		builder.append(COMMA);
+		columnWriters[columnIndex].write(result, columnIndex, builder);
+	}
+
 	@Override
 	public CsvLine getObject() {
-		return new CsvLine(id, builder.toString(), groupValues);
+		//Encoded once here; the bytes are what gets cached and written out
+		return CsvLine.utf8(id, builder, groupValues);
 	}
 	
 	@Override
@@ -45,20 +55,7 @@ public class RowFactoryCsv implements RowFactory<CsvLine> {
 	 * @return the String that was appended
 	 */
 	protected void appendEscapedCsvEntry(final StringBuilder builder, final String value) {
-		if(value == null) {
-			//nulls end up as separators with nothing inbetween ,,
-			return;
-		}
-		
-		if(value.isEmpty()) {
-			//Empty string is treated as a special case to differentiate
-			//it from null. It's quoted.
-			builder.append(EMPTY_STRING);
-			return;
-		}
-		
-		String escapedString = StringEscapeUtils.escapeCsv(value);
-		builder.append(escapedString);		
+		CsvColumnWriter.appendEscaped(builder, value);
 	}
 	
 }
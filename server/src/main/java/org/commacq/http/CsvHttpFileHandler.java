@@ -8,7 +8,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import lombok.extern.slf4j.Slf4j;
 
-import org.commacq.CsvLineCallbackWriter;
+import org.commacq.CsvLineCallbackOutputStream;
 import org.commacq.layer.Layer;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
@@ -39,7 +39,7 @@ public class CsvHttpFileHandler extends AbstractHandler {
 			return;
 		}
 		
-		response.setContentType("text/csv");
+		response.setContentType("text/csv;charset=UTF-8");
 		response.setHeader("Content-disposition", "attachment; filename=" + entityId + ".csv");
 		
 		//response.setHeader("Cache-Control", "must-revalidate");
@@ -49,7 +49,8 @@ public class CsvHttpFileHandler extends AbstractHandler {
 		//TODO - Keep track of the total content length of the cache at any one time
 		//so that we can indicate to the user how many percent of the way through
 		//the file download they are.
-		CsvLineCallbackWriter writer = new CsvLineCallbackWriter(response.getWriter(), layer.getColumnNamesCsv(entityId));
+		//Lines are copied to the socket as the UTF-8 bytes they're cached as
+		CsvLineCallbackOutputStream writer = new CsvLineCallbackOutputStream(response.getOutputStream(), layer.getColumnNamesCsv(entityId));
 		
 		layer.getAllCsvLines(entityId, writer);
 		
@@ -1,8 +1,11 @@
 package org.commacq.jms;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
@@ -15,26 +18,89 @@ import lombok.extern.slf4j.Slf4j;
 import org.commacq.CsvLine;
 import org.commacq.BlockCallback;
 import org.commacq.CsvUpdateBlockException;
+import org.commacq.layer.AbstractSubscribeLayer;
+import org.commacq.layer.ReplayLayer;
 import org.commacq.layer.SubscribeLayer;
 import org.springframework.jms.core.JmsTemplate;
 import org.springframework.jms.core.MessageCreator;
 
 /**
  * Maintains the outbound broadcast topics and organises the sending of broadcast updates.
+ * 
+ * A block bigger than maxMessageChars is sent as a sequence of chunks, each a complete
+ * CSV text with the header row, sharing a blockSequence and numbered by chunkIndex.
+ * The last one has lastChunk set. Clients apply the chunks as a single block once they
+ * have them all. If the block is cancelled after chunks have been sent, a message
+ * with cancelBlock set tells the clients to throw them away.
+ * 
+ * If packDelayMillis is set, small blocks that aren't bulk updates are held back for
+ * up to that long, or until packMaxChars is reached, and sent together in one message.
+ * 
+ * If the layer is a ReplayLayer, the message holding the end of a block is stamped
+ * with the layer's sequence for the entity as of that block, and with its epoch, so that
+ * clients know where to resume from. The sequence is read when the block finishes,
+ * so it is only stamped when the layer calls the handler directly rather than through
+ * a subscriber queue.
+ * 
+ * With the "deflate" encoding, messages are sent compressed (see CsvMessageEncoding).
+ * maxMessageChars still counts the uncompressed text. Only turn this on once every client
+ * of the broadcast topics can decode it.
  */
 @Slf4j
 public class JmsOutboundHandler implements BlockCallback {
 
+	public static final int DEFAULT_MAX_MESSAGE_CHARS = 4 * 1024 * 1024;
+	public static final int DEFAULT_PACK_MAX_CHARS = 64 * 1024;
+	
+	private static ScheduledExecutorService packScheduler;
+	
     private final JmsTemplate jmsTemplate;
     private final SubscribeLayer layer;
     private final String broadcastTopic;
     private final String entityId;
     
-    private final StringWriter currentText = new StringWriter();
-    private final PrintWriter currentWriter = new PrintWriter(currentText);
+    private final int maxMessageChars;
+    private final long packDelayMillis;
+    private final int packMaxChars;
+    private final String encoding;
+    private final ReplayLayer replayLayer; //null if messages aren't stamped
+    
+    /**
+     * Header row, then any finished blocks waiting to be packed, then the current block from blockStart
+     */
+    private final StringBuilder currentText = new StringBuilder();
+    private String header;
+    private int blockStart;
+    private boolean inBlock = false;
     private boolean bulkUpdate = false;
+    
+    private long blockSequence = 0;
+    private int chunkIndex = 0;
+    //The layer's sequence as of the last block to finish
+    private long finishedSequence = -1;
+    private ScheduledFuture<?> packFlush;
+    
+    private final Runnable flushPacked = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				flushPackedBlocks();
+			} catch(RuntimeException ex) {
+				log.error("Could not send packed updates to topic " + broadcastTopic, ex);
+			}
+		}
+	};
 
     public JmsOutboundHandler(ConnectionFactory connectionFactory, SubscribeLayer layer, String entityId, String broadcastTopic) {
+    	this(connectionFactory, layer, entityId, broadcastTopic, DEFAULT_MAX_MESSAGE_CHARS, 0, DEFAULT_PACK_MAX_CHARS, null);
+    }
+    
+    /**
+     * @param packDelayMillis 0 to send every block as soon as it finishes
+     * @param encoding null for plain text, or "deflate"
+     */
+    public JmsOutboundHandler(ConnectionFactory connectionFactory, SubscribeLayer layer, String entityId, String broadcastTopic,
+    		                  int maxMessageChars, long packDelayMillis, int packMaxChars, String encoding) {
         jmsTemplate = new JmsTemplate(connectionFactory);
         jmsTemplate.setPubSubDomain(true);
         
@@ -42,67 +108,224 @@ public class JmsOutboundHandler implements BlockCallback {
         this.entityId = entityId;
         
         this.broadcastTopic = broadcastTopic;
+        this.maxMessageChars = maxMessageChars;
+        this.packDelayMillis = packDelayMillis;
+        this.packMaxChars = Math.min(packMaxChars, maxMessageChars);
+        this.encoding = encoding;
+        this.replayLayer = getReplayLayer(layer);
         
         //use of "this" should be the last line in the constructor
         layer.subscribe(entityId, this);
     }
     
     @Override
-    public void finish() throws CsvUpdateBlockException {    	
-        jmsTemplate.send(broadcastTopic, new MessageCreator() {
-            @Override
-            public Message createMessage(Session session) throws JMSException {
-                TextMessage textMessage = session.createTextMessage();
-                textMessage.setStringProperty(MessageFields.entityId, entityId);
-                textMessage.setBooleanProperty(MessageFields.bulkUpdate, bulkUpdate);
-                
-                String payload = currentText.toString();
-                
-                textMessage.setText(payload);
-                
-                log.info("Sending message to topic {}", broadcastTopic);
-                
-                return textMessage;
-            }
-        });
-    	
-    	resetTheBuffer();
+    public synchronized void start(Collection<String> entityIds) throws CsvUpdateBlockException {
+    	String columnNamesCsv = layer.getColumnNamesCsv(entityId);
+    	if(!columnNamesCsv.equals(header)) {
+    		//Packed blocks can only share a message if they share a header
+    		sendPendingBlocks();
+    		header = columnNamesCsv;
+    		currentText.setLength(0);
+    		appendLine(header);
+    	}
+    	blockStart = currentText.length();
+    	inBlock = true;
+    	chunkIndex = 0;
     }
     
     @Override
-    public void start(Collection<String> entityIds) throws CsvUpdateBlockException {
-    	currentWriter.println(layer.getColumnNamesCsv(entityId));
+    public synchronized void startBulkUpdate(String entityId, String columnNamesCsv) throws CsvUpdateBlockException {
+    	//A bulk update travels on its own, never packed with other blocks
+    	sendPendingBlocks();
+    	bulkUpdate = true;
     }
     
     @Override
-    public void cancel() {
-    	//When batching is introduced, cancelling may need to send a message.
-    	resetTheBuffer();
+    public synchronized void startBulkUpdateForGroup(String entityId, String group, String idWithinGroup) throws CsvUpdateBlockException {
+    	//Not yet supported
     }
     
-    private void resetTheBuffer() {
-    	currentText.getBuffer().setLength(0);
-    	bulkUpdate = false;    	
+    @Override
+    public synchronized void processUpdate(String entityId, String columnNamesCsv, CsvLine csvLine) throws CsvUpdateBlockException {
+    	appendLine(csvLine.getCsvLine());
+    	sendChunkIfFull();
     }
     
     @Override
-    public void processUpdate(String entityId, String columnNamesCsv, CsvLine csvLine) throws CsvUpdateBlockException {
-    	currentWriter.println(csvLine.getCsvLine());
+    public synchronized void processRemove(String entityId, String columnNamesCsv, String id) throws CsvUpdateBlockException {
+    	appendLine(id);
+    	sendChunkIfFull();
     }
     
     @Override
-    public void processRemove(String entityId, String columnNamesCsv, String id) throws CsvUpdateBlockException {
-    	currentWriter.println(id);
+    public synchronized void finish() throws CsvUpdateBlockException {
+    	inBlock = false;
+    	if(replayLayer != null) {
+    		finishedSequence = replayLayer.getSequence(entityId);
+    	}
+    	boolean somethingToSend = bulkUpdate || currentText.length() > headerLength();
+    	
+    	if(chunkIndex > 0) {
+    		send(true);
+    	} else if(bulkUpdate || packDelayMillis <= 0 || currentText.length() >= packMaxChars) {
+    		if(somethingToSend) {
+    			send(true);
+    		}
+    	} else if(packFlush == null && somethingToSend) {
+    		packFlush = getPackScheduler().schedule(flushPacked, packDelayMillis, TimeUnit.MILLISECONDS);
+    	}
+    	bulkUpdate = false;
     }
     
     @Override
-    public void startBulkUpdate(String entityId, String columnNamesCsv) throws CsvUpdateBlockException {
-    	bulkUpdate = true;
+    public synchronized void cancel() {
+    	inBlock = false;
+    	bulkUpdate = false;
+    	if(chunkIndex > 0) {
+    		sendCancel(blockSequence);
+    		blockSequence++;
+    		chunkIndex = 0;
+    		resetToHeader();
+    		return;
+    	}
+    	//Keep any finished blocks that are waiting to be packed
+    	currentText.setLength(blockStart);
     }
     
-    @Override
-    public void startBulkUpdateForGroup(String entityId, String group, String idWithinGroup) throws CsvUpdateBlockException {
-    	//Not yet supported
+    private void appendLine(String line) {
+    	currentText.append(line).append('\n');
+    }
+    
+    private void sendChunkIfFull() {
+    	if(currentText.length() < maxMessageChars) {
+    		return;
+    	}
+    	//Finished blocks mustn't be caught up in the chunks of a block that could still be cancelled
+    	sendPendingBlocks();
+    	if(currentText.length() >= maxMessageChars) {
+    		send(false);
+    	}
+    }
+    
+    /**
+     * Sends the finished blocks that are waiting to be packed, if any,
+     * leaving the current block in the buffer.
+     */
+    private void sendPendingBlocks() {
+    	if(header == null) {
+    		return;
+    	}
+    	int pendingEnd = inBlock ? blockStart : currentText.length();
+    	if(pendingEnd <= headerLength()) {
+    		return;
+    	}
+    	String currentBlock = currentText.substring(pendingEnd);
+    	currentText.setLength(pendingEnd);
+    	//Packed blocks are never bulk updates
+    	boolean currentBulkUpdate = bulkUpdate;
+    	bulkUpdate = false;
+    	send(true);
+    	bulkUpdate = currentBulkUpdate;
+    	currentText.append(currentBlock);
+    }
+    
+    private int headerLength() {
+    	return header.length() + 1;
+    }
+    
+    private synchronized void flushPackedBlocks() {
+    	packFlush = null;
+    	sendPendingBlocks();
+    }
+    
+    /**
+     * Sends the buffer, leaving just the header row in it.
+     */
+    private void send(final boolean lastChunk) {
+    	if(packFlush != null) {
+    		packFlush.cancel(false);
+    		packFlush = null;
+    	}
+    	
+    	final String payload = currentText.toString();
+    	final long sequence = blockSequence;
+    	final int index = chunkIndex;
+    	final boolean bulk = bulkUpdate;
+    	final long layerSequence = lastChunk ? finishedSequence : -1;
+        jmsTemplate.send(broadcastTopic, new MessageCreator() {
+            @Override
+            public Message createMessage(Session session) throws JMSException {
+                Message message = CsvMessageEncoding.createMessage(session, payload, encoding);
+                message.setStringProperty(MessageFields.entityId, entityId);
+                message.setBooleanProperty(MessageFields.bulkUpdate, bulk);
+                message.setLongProperty(MessageFields.blockSequence, sequence);
+                message.setIntProperty(MessageFields.chunkIndex, index);
+                message.setBooleanProperty(MessageFields.lastChunk, lastChunk);
+                if(layerSequence >= 0) {
+                	message.setLongProperty(MessageFields.sequenceEpoch, replayLayer.getEpoch());
+                	message.setLongProperty(MessageFields.sequence, layerSequence);
+                }
+                
+                log.info("Sending message to topic {}", broadcastTopic);
+                
+                return message;
+            }
+        });
+        
+        if(lastChunk) {
+        	blockSequence++;
+        	chunkIndex = 0;
+        } else {
+        	chunkIndex++;
+        }
+        resetToHeader();
+    }
+    
+    private void sendCancel(final long sequence) {
+    	jmsTemplate.send(broadcastTopic, new MessageCreator() {
+    		@Override
+    		public Message createMessage(Session session) throws JMSException {
+    			TextMessage textMessage = session.createTextMessage();
+    			textMessage.setStringProperty(MessageFields.entityId, entityId);
+    			textMessage.setLongProperty(MessageFields.blockSequence, sequence);
+    			textMessage.setBooleanProperty(MessageFields.cancelBlock, true);
+    			
+    			log.info("Sending cancellation of block {} to topic {}", sequence, broadcastTopic);
+    			
+    			return textMessage;
+    		}
+    	});
+    }
+    
+    private void resetToHeader() {
+    	currentText.setLength(0);
+    	appendLine(header);
+    	blockStart = currentText.length();
+    }
+    
+    private ReplayLayer getReplayLayer(SubscribeLayer layer) {
+    	if(!(layer instanceof ReplayLayer)) {
+    		return null;
+    	}
+    	if(layer instanceof AbstractSubscribeLayer && ((AbstractSubscribeLayer)layer).getSubscriberQueueCapacity() > 0) {
+    		log.warn("Subscriber queues are in use, so broadcasts to {} won't carry sequence numbers and clients will have to reload after a reconnect", broadcastTopic);
+    		return null;
+    	}
+    	return (ReplayLayer)layer;
+    }
+    
+    private static synchronized ScheduledExecutorService getPackScheduler() {
+    	if(packScheduler == null) {
+    		packScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    			@Override
+    			public Thread newThread(Runnable runnable) {
+    				Thread thread = new Thread(runnable, "jmsOutboundPacker");
+    				thread.setDaemon(true);
+    				return thread;
+    			}
+    		});
+    	}
+    	return packScheduler;
     }
     
 }
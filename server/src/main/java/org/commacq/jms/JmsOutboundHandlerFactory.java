@@ -5,15 +5,23 @@ import java.util.Map;
 
 import javax.jms.ConnectionFactory;
 
+import lombok.Setter;
+
 import org.commacq.layer.SubscribeLayer;
 
 public class JmsOutboundHandlerFactory {
 	
+	@Setter private int maxMessageChars = JmsOutboundHandler.DEFAULT_MAX_MESSAGE_CHARS;
+	@Setter private long packDelayMillis = 0;
+	@Setter private int packMaxChars = JmsOutboundHandler.DEFAULT_PACK_MAX_CHARS;
+	@Setter private String encoding;
+	
 	public Map<String, JmsOutboundHandler> create(ConnectionFactory connectionFactory, SubscribeLayer layer, String broadcastTopicPattern) {
 		Map<String, JmsOutboundHandler> handlers = new HashMap<String, JmsOutboundHandler>();
 		for(String entityId : layer.getEntityIds()) {
 			String broadcastTopic = String.format(broadcastTopicPattern, entityId);
-			handlers.put(entityId, new JmsOutboundHandler(connectionFactory, layer, entityId, broadcastTopic));
+			handlers.put(entityId, new JmsOutboundHandler(connectionFactory, layer, entityId, broadcastTopic,
+					                                      maxMessageChars, packDelayMillis, packMaxChars, encoding));
 		}
 		return handlers;
 	}
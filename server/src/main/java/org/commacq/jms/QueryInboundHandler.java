@@ -1,5 +1,7 @@
 package org.commacq.jms;
 
+import java.util.Arrays;
+
 import javax.jms.InvalidDestinationException;
 import javax.jms.JMSException;
 import javax.jms.Message;
@@ -9,8 +11,14 @@ import javax.jms.TextMessage;
 
 import lombok.extern.slf4j.Slf4j;
 
+import org.commacq.CsvLine;
 import org.commacq.CsvLineCallbackStringWriter;
+import org.commacq.CsvLineProjection;
+import org.commacq.CsvUpdateBlockException;
+import org.commacq.LineCallback;
 import org.commacq.layer.Layer;
+import org.commacq.layer.ReplayLayer;
+import org.commacq.layer.ReplayResult;
 import org.springframework.jms.listener.SessionAwareMessageListener;
 
 /**
@@ -26,6 +34,15 @@ import org.springframework.jms.listener.SessionAwareMessageListener;
  * the layer contains and then get them all. To request the list of entityIds, the command is "listEntityIds".
  * The request message from the client contains an entityId property to specify which entity is required.
  * It supports a "columnNamesOnly" attribute if the client just wants to get hold of the header information.
+ * If the request has an "acceptEncoding" property of "deflate", the reply is compressed (see CsvMessageEncoding).
+ * If the request has a "columns" property, a comma separated list of column names, only the id
+ * and those columns are sent, and the header matches.
+ * If the request has a "streamChunkChars" property, an initial load is sent as a stream of messages
+ * of about that size, numbered by "chunkIndex", with "endOfStream" set on the last one.
+ * 
+ * The "replay" command asks for the changes to an entity since the "sequenceEpoch" and "sequence"
+ * on the request. The reply says whether they could be "replayed", and gives the epoch and sequence
+ * that the client is now up to. If not, the client has to load the whole entity again.
  */
 @Slf4j
 public class QueryInboundHandler implements SessionAwareMessageListener<Message> {
@@ -86,16 +103,47 @@ public class QueryInboundHandler implements SessionAwareMessageListener<Message>
 			return;
 		}
 		
+		//Clients that can decode compressed replies say so on the request
+		String encoding = message.getStringProperty(MessageFields.acceptEncoding);
+		
+		String columns = message.getStringProperty(MessageFields.columns);
+		CsvLineProjection projection = null;
+		if(columns != null) {
+			try {
+				projection = CsvLineProjection.forColumns(layer.getColumnNamesCsv(entityId), Arrays.asList(columns.split(",")));
+			} catch(IllegalArgumentException ex) {
+				log.warn("Cannot project entity {}: {}", entityId, ex.getMessage());
+				TextMessage outputMessage = session.createTextMessage();
+				outputMessage.setJMSCorrelationID(message.getJMSCorrelationID());
+				outputMessage.setStringProperty("error", ex.getMessage());
+				session.createProducer(message.getJMSReplyTo()).send(outputMessage);
+				return;
+			}
+		}
+		
+		if(MessageFields.command_replay.equals(command)) {
+			replay(message, session, entityId, projection, encoding);
+			return;
+		}
+		
+		if(message.propertyExists(MessageFields.streamChunkChars) && !message.getBooleanProperty(MessageFields.columnNamesOnly)) {
+			int streamChunkChars = message.getIntProperty(MessageFields.streamChunkChars);
+			if(streamChunkChars > 0) {
+				streamReply(message, session, entityId, projection, streamChunkChars, encoding);
+				return;
+			}
+		}
+		
 		String text;
 		if(message.getBooleanProperty(MessageFields.columnNamesOnly)) {
-			text = layer.getColumnNamesCsv(entityId);
+			text = projection == null ? layer.getColumnNamesCsv(entityId) : projection.getColumnNamesCsv();
 		} else {			
 			CsvLineCallbackStringWriter writer = writerThreadLocal.get();
-			layer.getAllCsvLines(entityId, writer);
+			layer.getAllCsvLines(entityId, project(projection, writer));
 			text = writer.toString();
 		}
 		
-		TextMessage outputMessage = session.createTextMessage(text);
+		Message outputMessage = CsvMessageEncoding.createMessage(session, text, encoding);
 		outputMessage.setJMSCorrelationID(message.getJMSCorrelationID());
 		
 		MessageProducer messageProducer;
@@ -111,4 +159,83 @@ public class QueryInboundHandler implements SessionAwareMessageListener<Message>
 		log.info("Completed query for entity {}", entityId);
 	}
 	
+	/**
+	 * Sends the entity in chunks straight from the layer, so the reply
+	 * is never held in memory as a single String.
+	 */
+	private void streamReply(Message message, Session session, String entityId, CsvLineProjection projection,
+			                 int streamChunkChars, String encoding) throws JMSException {
+		MessageProducer messageProducer;
+		try {
+			messageProducer = session.createProducer(message.getJMSReplyTo());
+		} catch(InvalidDestinationException ex) {
+			log.warn("Cannot send reply; client has gone away: {}", message.getJMSReplyTo());
+			return;
+		}
+		
+		String columnNamesCsv = projection == null ? layer.getColumnNamesCsv(entityId) : projection.getColumnNamesCsv();
+		QueryReplyStreamer streamer = new QueryReplyStreamer(session, messageProducer, message.getJMSCorrelationID(),
+				                                             columnNamesCsv, streamChunkChars, encoding);
+		try {
+			layer.getAllCsvLines(entityId, project(projection, streamer));
+		} catch(RuntimeException ex) {
+			log.error("Query for entity " + entityId + " failed after " + streamer.getChunkIndex() + " chunks", ex);
+			streamer.sendError("Query failed: " + ex.getMessage());
+			return;
+		}
+		streamer.finish();
+		
+		log.info("Completed query for entity {} in {} chunks", entityId, streamer.getChunkIndex());
+	}
+	
+	/**
+	 * The layer only ever hands over lines of the entity that was asked for.
+	 */
+	private static LineCallback project(final CsvLineProjection projection, final LineCallback callback) {
+		if(projection == null) {
+			return callback;
+		}
+		return new LineCallback() {
+			@Override
+			public void processUpdate(String entityId, String columnNamesCsv, CsvLine csvLine) throws CsvUpdateBlockException {
+				callback.processUpdate(entityId, projection.getColumnNamesCsv(), projection.project(csvLine));
+			}
+			
+			@Override
+			public void processRemove(String entityId, String columnNamesCsv, String id) throws CsvUpdateBlockException {
+				callback.processRemove(entityId, projection.getColumnNamesCsv(), id);
+			}
+		};
+	}
+	
+	private void replay(Message message, Session session, String entityId, CsvLineProjection projection, String encoding) throws JMSException {
+		long epoch = message.getLongProperty(MessageFields.sequenceEpoch);
+		long sequence = message.getLongProperty(MessageFields.sequence);
+		
+		CsvLineCallbackStringWriter writer = writerThreadLocal.get();
+		ReplayResult result;
+		if(layer instanceof ReplayLayer) {
+			result = ((ReplayLayer)layer).replaySince(entityId, epoch, sequence, project(projection, writer));
+		} else {
+			result = new ReplayResult(false, 0, 0);
+		}
+		
+		Message outputMessage = CsvMessageEncoding.createMessage(session, writer.toString(), encoding);
+		outputMessage.setJMSCorrelationID(message.getJMSCorrelationID());
+		outputMessage.setBooleanProperty(MessageFields.replayed, result.isReplayed());
+		outputMessage.setLongProperty(MessageFields.sequenceEpoch, result.getEpoch());
+		outputMessage.setLongProperty(MessageFields.sequence, result.getSequence());
+		
+		MessageProducer messageProducer;
+		try {
+			messageProducer = session.createProducer(message.getJMSReplyTo());
+		} catch(InvalidDestinationException ex) {
+			log.warn("Cannot send reply; client has gone away: {}", message.getJMSReplyTo());
+			return;
+		}
+		messageProducer.send(outputMessage);
+		
+		log.info("Completed replay for entity {} from sequence {}: {}", entityId, sequence, result);
+	}
+	
 }
@@ -0,0 +1,106 @@
+package org.commacq.jms;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.commacq.CsvLine;
+import org.commacq.CsvUpdateBlockException;
+import org.commacq.LineCallback;
+
+/**
+ * Sends the reply to a query as a stream of messages of up to maxChunkChars each,
+ * rather than as a single message holding the whole entity.
+ * 
+ * Every chunk is a complete CSV text with the header row, numbered by chunkIndex.
+ * The last one has endOfStream set, and may have no lines at all. If the query fails
+ * part way through, the last message carries an error property instead.
+ */
+@Slf4j
+class QueryReplyStreamer implements LineCallback {
+
+	private final Session session;
+	private final MessageProducer producer;
+	private final String correlationId;
+	private final String header;
+	private final int maxChunkChars;
+	private final String encoding;
+	
+	private final StringBuilder chunk;
+	@Getter
+	private int chunkIndex = 0;
+	
+	QueryReplyStreamer(Session session, MessageProducer producer, String correlationId,
+			           String header, int maxChunkChars, String encoding) {
+		this.session = session;
+		this.producer = producer;
+		this.correlationId = correlationId;
+		this.header = header;
+		this.maxChunkChars = maxChunkChars;
+		this.encoding = encoding;
+		
+		chunk = new StringBuilder(Math.min(maxChunkChars, 1024 * 1024) + 1024);
+		startChunk();
+	}
+	
+	@Override
+	public void processUpdate(String entityId, String columnNamesCsv, CsvLine csvLine) throws CsvUpdateBlockException {
+		chunk.append(csvLine.getCsvLine()).append('\n');
+		sendIfFull();
+	}
+	
+	@Override
+	public void processRemove(String entityId, String columnNamesCsv, String id) throws CsvUpdateBlockException {
+		chunk.append(id).append('\n');
+		sendIfFull();
+	}
+	
+	/**
+	 * Sends whatever is left, marked as the end of the stream.
+	 */
+	void finish() throws JMSException {
+		send(true);
+	}
+	
+	void sendError(String error) throws JMSException {
+		Message message = session.createTextMessage();
+		message.setJMSCorrelationID(correlationId);
+		message.setIntProperty(MessageFields.chunkIndex, chunkIndex);
+		message.setBooleanProperty(MessageFields.endOfStream, true);
+		message.setStringProperty("error", error);
+		producer.send(message);
+	}
+	
+	private void sendIfFull() {
+		if(chunk.length() < maxChunkChars) {
+			return;
+		}
+		try {
+			send(false);
+		} catch(JMSException ex) {
+			throw new RuntimeException("Could not send reply chunk " + chunkIndex, ex);
+		}
+	}
+	
+	private void send(boolean endOfStream) throws JMSException {
+		Message message = CsvMessageEncoding.createMessage(session, chunk.toString(), encoding);
+		message.setJMSCorrelationID(correlationId);
+		message.setIntProperty(MessageFields.chunkIndex, chunkIndex);
+		message.setBooleanProperty(MessageFields.endOfStream, endOfStream);
+		producer.send(message);
+		
+		log.debug("Sent reply chunk {}", chunkIndex);
+		chunkIndex++;
+		startChunk();
+	}
+	
+	private void startChunk() {
+		chunk.setLength(0);
+		chunk.append(header).append('\n');
+	}
+	
+}
@@ -1,7 +1,6 @@
 package org.commacq.jms;
 
 import java.io.IOException;
-import java.io.StringReader;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
@@ -15,10 +14,9 @@ import javax.jms.TextMessage;
 import lombok.extern.slf4j.Slf4j;
 
 import org.commacq.CsvTextBlockToCallback;
+import org.commacq.CsvTokenizer;
 import org.commacq.CsvUpdateBlockException;
 import org.commacq.layer.UpdatableLayer;
-import org.supercsv.io.CsvListReader;
-import org.supercsv.prefs.CsvPreference;
 
 /**
  * A single listener processes updates, directing them to the relevant
@@ -30,6 +28,9 @@ import org.supercsv.prefs.CsvPreference;
  * Updates that arrive with just the id column specified are by default
  * treaded as untrusted. Updates arrive with many columns specified are
  * by default trusted.
+ * 
+ * Updates with a single column that isn't id name a group, and each line is a
+ * value of that group whose members are all reloaded from the data source.
  */
 @Slf4j
 public class UpdateInboundHandler implements MessageListener {
@@ -108,17 +109,18 @@ public class UpdateInboundHandler implements MessageListener {
     }
     
     private void handlePayload(final String entityId, final String csvHeaderAndBody) {
-    	CsvListReader parser = new CsvListReader(new StringReader(csvHeaderAndBody), CsvPreference.STANDARD_PREFERENCE);
+    	CsvTokenizer tokenizer = new CsvTokenizer().reset(csvHeaderAndBody);
     	try {
-	    	String[] header = parser.getHeader(true);
+	    	tokenizer.nextLine();
 	    	
-	    	if(header.length == 1 && header[0].equals("id")) {
+	    	//The header may be quoted, so compare its unquoted text
+	    	String firstHeading = tokenizer.getField(0);
+	    	if(tokenizer.getFieldCount() == 1 && "id".equals(firstHeading)) {
 	    		log.info("Update for entity {} contains a list of ids", entityId);
-	    		List<String> line;
 	    		try {
 	    			layer.start(Collections.singleton(entityId));
-					while((line = parser.read()) != null) {
-						layer.updateUntrusted(entityId, line.get(0));
+					while(tokenizer.nextLine()) {
+						layer.updateUntrusted(entityId, tokenizer.getField(0));
 					}
 					layer.finish();
 				} catch(CsvUpdateBlockException ex) {
@@ -126,21 +128,31 @@ public class UpdateInboundHandler implements MessageListener {
 				}
 	    		return;
 	    	}
+	    	
+	    	if(tokenizer.getFieldCount() == 1) {
+	    		String group = firstHeading;
+	    		log.info("Update for entity {} contains values of group {} to reload", entityId, group);
+	    		try {
+	    			layer.start(Collections.singleton(entityId));
+	    			while(tokenizer.nextLine()) {
+	    				layer.reloadGroup(entityId, group, tokenizer.getField(0));
+	    			}
+	    			layer.finish();
+	    		} catch(CsvUpdateBlockException ex) {
+	    			throw new RuntimeException(ex);
+	    		}
+	    		return;
+	    	}
 	    	log.info("Update for entity {} contains ids and column headings", entityId);
 	    	
+	    	//Carries on from the header that has already been read
 	    	layer.start(Collections.singleton(entityId));
-	    	csvTextBlockToCallback.presentTextBlockToCsvLineCallback(entityId, csvHeaderAndBody, layer);
+	    	csvTextBlockToCallback.presentTokenizedLinesToCsvLineCallback(entityId, tokenizer, layer);
 	    	layer.finish();
     	} catch (IOException ex) {				
 			throw new RuntimeException("Couldn't parse CSV", ex);
     	} catch (CsvUpdateBlockException ex) {				
     		throw new RuntimeException("Couldn't parse CSV", ex);
-    	} finally {
-			try {
-				parser.close();
-			} catch (IOException ex) {
-				log.warn("Error closing CSV parser", ex);
-			}
     	}
     	
     }
@@ -0,0 +1,91 @@
+package org.commacq.cache.csv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.commacq.CsvLine;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CsvCacheSnapshotFilesTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void testWriteAndRead() throws Exception {
+		CsvCacheSnapshotFiles snapshotFiles = new CsvCacheSnapshotFiles(folder.getRoot().getPath());
+		assertTrue(snapshotFiles.isEnabled());
+		
+		Map<String, String> groupValues = new HashMap<String, String>();
+		groupValues.put("currency", "GBP");
+		groupValues.put("region", null);
+		CsvCache csvCache = new CsvCache("test", "id,name");
+		csvCache.updateLine(new CsvLine("1", "1,ABC"));
+		csvCache.updateLine(new CsvLine("2", "2,\"D,éF\"".getBytes(CsvLine.UTF8), groupValues));
+		csvCache.commit();
+		snapshotFiles.write(csvCache, 7);
+		
+		CsvCacheSnapshotFiles.Snapshot snapshot = snapshotFiles.read("test", "id,name", new CsvLineStoreHeap());
+		assertEquals(7, snapshot.getSequence());
+		CsvCache read = snapshot.getCsvCache();
+		assertEquals(2, read.size());
+		assertEquals(new CsvLine("1", "1,ABC"), read.getLine("1"));
+		assertEquals("2,\"D,éF\"", read.getLine("2").getCsvLine());
+		assertEquals(groupValues, read.getLine("2").getGroupValues());
+	}
+	
+	@Test
+	public void testDamagedSnapshotIgnored() throws Exception {
+		CsvCacheSnapshotFiles snapshotFiles = new CsvCacheSnapshotFiles(folder.getRoot().getPath());
+		CsvCache csvCache = new CsvCache("test", "id,name");
+		csvCache.updateLine(new CsvLine("1", "1,ABC"));
+		csvCache.commit();
+		snapshotFiles.write(csvCache, 1);
+		
+		File file = snapshotFiles.getFile("test");
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		randomAccessFile.seek(file.length() - 10);
+		randomAccessFile.write('X');
+		randomAccessFile.close();
+		
+		assertNull(snapshotFiles.read("test", "id,name", new CsvLineStoreHeap()));
+	}
+	
+	@Test
+	public void testTruncatedSnapshotIgnored() throws Exception {
+		CsvCacheSnapshotFiles snapshotFiles = new CsvCacheSnapshotFiles(folder.getRoot().getPath());
+		CsvCache csvCache = new CsvCache("test", "id,name");
+		csvCache.updateLine(new CsvLine("1", "1,ABC"));
+		csvCache.updateLine(new CsvLine("2", "2,DEF"));
+		csvCache.commit();
+		snapshotFiles.write(csvCache, 1);
+		
+		File file = snapshotFiles.getFile("test");
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		randomAccessFile.setLength(file.length() - 12);
+		randomAccessFile.close();
+		
+		assertNull(snapshotFiles.read("test", "id,name", new CsvLineStoreHeap()));
+	}
+	
+	@Test
+	public void testChangedColumnsIgnored() throws Exception {
+		CsvCacheSnapshotFiles snapshotFiles = new CsvCacheSnapshotFiles(folder.getRoot().getPath());
+		CsvCache csvCache = new CsvCache("test", "id,name");
+		csvCache.commit();
+		snapshotFiles.write(csvCache, 0);
+		
+		assertEquals(0, snapshotFiles.read("test", "id,name", new CsvLineStoreHeap()).getCsvCache().size());
+		assertNull(snapshotFiles.read("test", "id,name,description", new CsvLineStoreHeap()));
+		assertNull(snapshotFiles.read("other", "id,name", new CsvLineStoreHeap()));
+	}
+	
+}
@@ -0,0 +1,217 @@
+package org.commacq.cache.csv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.commacq.CsvLine;
+import org.commacq.CsvLineCallbackListImpl;
+import org.commacq.CsvUpdateBlockException;
+import org.junit.Test;
+
+/**
+ * Tests that readers of the cache only ever see committed snapshots.
+ */
+public class CsvCacheTest {
+
+	private final CsvCache csvCache = new CsvCache("test", "id,name");
+
+	@Test
+	public void testChangesNotVisibleUntilCommit() {
+		csvCache.updateLine(new CsvLine("1", "1,ABC"));
+		assertNull(csvCache.getLine("1"));
+		assertEquals(0, csvCache.size());
+
+		csvCache.commit();
+		assertEquals(new CsvLine("1", "1,ABC"), csvCache.getLine("1"));
+		assertEquals(1, csvCache.size());
+		assertEquals(1, csvCache.getVersion());
+
+		assertTrue(csvCache.removeId("1"));
+		assertEquals(new CsvLine("1", "1,ABC"), csvCache.getLine("1"));
+
+		csvCache.commit();
+		assertNull(csvCache.getLine("1"));
+		assertEquals(0, csvCache.size());
+		assertEquals(2, csvCache.getVersion());
+	}
+
+	@Test
+	public void testUpdateReturnsPendingValue() {
+		assertNull(csvCache.updateLine(new CsvLine("1", "1,ABC")));
+		assertEquals(new CsvLine("1", "1,ABC"), csvCache.updateLine(new CsvLine("1", "1,DEF")));
+		assertFalse(csvCache.removeId("2"));
+	}
+
+	@Test
+	public void testRollback() {
+		csvCache.updateLine(new CsvLine("1", "1,ABC"));
+		csvCache.commit();
+
+		csvCache.updateLine(new CsvLine("1", "1,DEF"));
+		csvCache.updateLine(new CsvLine("2", "2,GHI"));
+		csvCache.rollback();
+		csvCache.commit();
+
+		assertEquals(new CsvLine("1", "1,ABC"), csvCache.getLine("1"));
+		assertNull(csvCache.getLine("2"));
+		assertEquals(1, csvCache.getVersion());
+	}
+
+	@Test
+	public void testVisitAllMergesInIdOrder() throws CsvUpdateBlockException {
+		csvCache.updateLine(new CsvLine("1", "1,A"));
+		csvCache.updateLine(new CsvLine("3", "3,C"));
+		csvCache.updateLine(new CsvLine("5", "5,E"));
+		csvCache.commit();
+
+		csvCache.updateLine(new CsvLine("2", "2,B"));
+		csvCache.updateLine(new CsvLine("3", "3,CC"));
+		csvCache.removeId("5");
+		csvCache.commit();
+
+		CsvLineCallbackListImpl callback = new CsvLineCallbackListImpl();
+		csvCache.visitAll(callback);
+
+		List<CsvLine> expected = new ArrayList<CsvLine>();
+		expected.add(new CsvLine("1", "1,A"));
+		expected.add(new CsvLine("2", "2,B"));
+		expected.add(new CsvLine("3", "3,CC"));
+		assertEquals(expected, callback.getUpdateList());
+		assertEquals(3, csvCache.size());
+	}
+
+	@Test
+	public void testIterationUnaffectedByConcurrentCommit() throws CsvUpdateBlockException {
+		for(int i = 0; i < 10; i++) {
+			csvCache.updateLine(new CsvLine(String.valueOf(i), i + ",X"));
+		}
+		csvCache.commit();
+
+		final List<CsvLine> visited = new ArrayList<CsvLine>();
+		csvCache.visitAll(new CsvLineCallbackListImpl() {
+			@Override
+			public void processUpdate(String entityId, String columnNamesCsv, CsvLine csvLine) {
+				visited.add(csvLine);
+				//Writer publishes a new version part way through the iteration
+				csvCache.removeId("9");
+				csvCache.updateLine(new CsvLine("99", "99,Y"));
+				csvCache.commit();
+			}
+		});
+
+		assertEquals(10, visited.size());
+		assertEquals(new CsvLine("9", "9,X"), visited.get(9));
+		assertNull(csvCache.getLine("9"));
+		assertEquals(10, csvCache.size());
+	}
+
+	@Test
+	public void testCompaction() throws CsvUpdateBlockException {
+		int lines = CsvCacheSnapshot.MIN_COMPACTION_THRESHOLD * 3;
+		for(int i = 0; i < lines; i++) {
+			csvCache.updateLine(new CsvLine(String.valueOf(i), i + ",X"));
+			if(i % 2 == 1) {
+				csvCache.removeId(String.valueOf(i - 1));
+			}
+			csvCache.commit();
+		}
+
+		assertEquals(lines / 2, csvCache.size());
+		CsvLineCallbackListImpl callback = new CsvLineCallbackListImpl();
+		csvCache.visitAll(callback);
+		assertEquals(lines / 2, callback.getUpdateList().size());
+		assertNull(csvCache.getLine("0"));
+		assertEquals(new CsvLine("1", "1,X"), csvCache.getLine("1"));
+	}
+	
+	@Test
+	public void testGroupIndex() throws CsvUpdateBlockException {
+		csvCache.updateLine(new CsvLine("1", "1,A", Collections.singletonMap("portfolio", "P1")));
+		csvCache.updateLine(new CsvLine("2", "2,B", Collections.singletonMap("portfolio", "P1")));
+		csvCache.updateLine(new CsvLine("3", "3,C", Collections.singletonMap("portfolio", "P2")));
+		assertTrue("Not visible until commit", csvCache.getGroupIds("portfolio", "P1").isEmpty());
+		csvCache.commit();
+		SortedSet<String> p1Before = csvCache.getGroupIds("portfolio", "P1");
+		assertEquals(new TreeSet<String>(Arrays.asList("1", "2")), p1Before);
+		
+		csvCache.updateLine(new CsvLine("2", "2,B", Collections.singletonMap("portfolio", "P2")));
+		csvCache.removeId("1");
+		csvCache.commit();
+		assertTrue(csvCache.getGroupIds("portfolio", "P1").isEmpty());
+		assertEquals(new TreeSet<String>(Arrays.asList("2", "3")), csvCache.getGroupIds("portfolio", "P2"));
+		assertEquals("Earlier versions are untouched", 2, p1Before.size());
+		
+		CsvLineCallbackListImpl callback = new CsvLineCallbackListImpl();
+		csvCache.visitGroup(callback, "portfolio", "P2");
+		assertEquals(2, callback.getUpdateList().size());
+		assertEquals("3,C", callback.getUpdateList().get(1).getCsvLine());
+	}
+
+	
+	@Test
+	public void testBulkLoad() {
+		csvCache.startBulkLoad();
+		assertNull(csvCache.updateLine(new CsvLine("1", "1,A", Collections.singletonMap("portfolio", "P1"))));
+		csvCache.updateLine(new CsvLine("2", "2,B", Collections.singletonMap("portfolio", "P1")));
+		assertEquals(new CsvLine("2", "2,B", Collections.singletonMap("portfolio", "P1")), csvCache.updateLine(new CsvLine("2", "2,BB", Collections.singletonMap("portfolio", "P2"))));
+		assertFalse(csvCache.updateLineIfChanged(new CsvLine("2", "2,BB", Collections.singletonMap("portfolio", "P2"))));
+		csvCache.updateLine(new CsvLine("3", "3,C"));
+		assertTrue(csvCache.removeId("3"));
+		assertFalse(csvCache.removeId("4"));
+		assertTrue("Logged as lines rather than changes", csvCache.getPendingChanges().isEmpty());
+		assertEquals(2, count(csvCache.getBulkLoadLines()));
+		assertNull("Not visible until commit", csvCache.getLine("1"));
+		
+		assertTrue(csvCache.commit().isEmpty());
+		assertFalse(csvCache.isBulkLoading());
+		assertEquals(2, csvCache.size());
+		assertEquals(1, csvCache.getVersion());
+		assertEquals("2,BB", csvCache.getLine("2").getCsvLine());
+		assertEquals(new TreeSet<String>(Arrays.asList("1")), csvCache.getGroupIds("portfolio", "P1"));
+		assertEquals(new TreeSet<String>(Arrays.asList("2")), csvCache.getGroupIds("portfolio", "P2"));
+		
+		//Later blocks are staged as usual
+		csvCache.removeId("1");
+		assertEquals(1, csvCache.getPendingChanges().size());
+		csvCache.commit();
+		assertTrue(csvCache.getGroupIds("portfolio", "P1").isEmpty());
+	}
+	
+	@Test
+	public void testBulkLoadRollback() {
+		csvCache.startBulkLoad();
+		csvCache.updateLine(new CsvLine("1", "1,A"));
+		csvCache.rollback();
+		assertFalse(csvCache.isBulkLoading());
+		csvCache.commit();
+		assertEquals(0, csvCache.size());
+		assertEquals(0, csvCache.getVersion());
+	}
+	
+	@Test(expected=IllegalStateException.class)
+	public void testBulkLoadOnlyIntoEmptyCache() {
+		csvCache.updateLine(new CsvLine("1", "1,A"));
+		csvCache.commit();
+		csvCache.startBulkLoad();
+	}
+	
+	private static int count(Iterator<CsvLine> iterator) {
+		int count = 0;
+		while(iterator.hasNext()) {
+			iterator.next();
+			count++;
+		}
+		return count;
+	}
+
+}
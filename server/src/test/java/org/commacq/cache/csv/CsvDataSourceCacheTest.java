@@ -1,6 +1,13 @@
 package org.commacq.cache.csv;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType.H2;
@@ -15,6 +22,7 @@ import org.commacq.db.DataSourceAccess;
 import org.commacq.db.EntityConfig;
 import org.commacq.db.csv.CsvDataSourceDatabase;
 import org.commacq.layer.DataSourceCollectionLayer;
+import org.commacq.layer.ReplayResult;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -84,4 +92,105 @@ public class CsvDataSourceCacheTest {
 		
 	}
 
+	@Test
+	public void testReplaySince() throws SQLException, CsvUpdateBlockException {
+		long sequence = cacheLayer.getSequence("test");
+		long epoch = cacheLayer.getEpoch();
+		
+		dataSource.getConnection().prepareStatement("update TestTable set \"name\"='XYZ' where \"id\"='2'").executeUpdate();
+		databaseLayer.start(Collections.singleton("test"));
+		databaseLayer.updateUntrusted("test", "2");
+		databaseLayer.finish();
+		dataSource.getConnection().prepareStatement("delete from TestTable where \"id\"='1'").executeUpdate();
+		databaseLayer.start(Collections.singleton("test"));
+		databaseLayer.updateUntrusted("test", "1");
+		databaseLayer.finish();
+		assertEquals(sequence + 2, cacheLayer.getSequence("test"));
+		
+		ReplayResult result = cacheLayer.replaySince("test", epoch, sequence, callback);
+		assertTrue(result.isReplayed());
+		assertEquals(sequence + 2, result.getSequence());
+		verify(callback).processRemove("test", "id,name", "1");
+		verify(callback).processUpdate("test", "id,name", new CsvLine("2", "2,XYZ"));
+		verifyNoMoreInteractions(callback);
+		reset(callback);
+		
+		//A reload that finds nothing new doesn't move the sequence on
+		databaseLayer.reload("test");
+		assertEquals(sequence + 2, cacheLayer.getSequence("test"));
+		
+		//A reload is sent on as the lines that changed, so it can be replayed
+		dataSource.getConnection().prepareStatement("update TestTable set \"name\"='DEF' where \"id\"='2'").executeUpdate();
+		databaseLayer.reload("test");
+		result = cacheLayer.replaySince("test", epoch, sequence + 2, callback);
+		assertTrue(result.isReplayed());
+		assertEquals(sequence + 3, result.getSequence());
+		verify(callback).processUpdate("test", "id,name", new CsvLine("2", "2,DEF"));
+		verifyNoMoreInteractions(callback);
+		reset(callback);
+		
+		assertFalse(cacheLayer.replaySince("test", epoch + 1, sequence + 3, callback).isReplayed());
+		assertTrue(cacheLayer.replaySince("test", epoch, sequence + 3, callback).isReplayed());
+		verifyNoMoreInteractions(callback);
+	}
+	
+	@Test
+	public void testUnchangedLinesAreSuppressed() throws SQLException, CsvUpdateBlockException {
+		cacheLayer.getAllCsvLinesAndSubscribe("test", callback);
+		reset(callback);
+		
+		//Nothing has changed in the database
+		databaseLayer.start(Collections.singleton("test"));
+		databaseLayer.updateUntrusted("test", "1");
+		databaseLayer.finish();
+		databaseLayer.reload("test");
+		verify(callback, never()).processUpdate(anyString(), anyString(), any(CsvLine.class));
+		verify(callback, never()).processRemove(anyString(), anyString(), anyString());
+		verify(callback, never()).startBulkUpdate(anyString(), anyString());
+		
+		dataSource.getConnection().prepareStatement("update TestTable set \"name\"='XYZ' where \"id\"='2'").executeUpdate();
+		dataSource.getConnection().prepareStatement("delete from TestTable where \"id\"='1'").executeUpdate();
+		databaseLayer.reload("test");
+		verify(callback).processUpdate("test", "id,name", new CsvLine("2", "2,XYZ"));
+		verify(callback).processRemove("test", "id,name", "1");
+		verify(callback, never()).startBulkUpdate(anyString(), anyString());
+		
+		cacheLayer.getCsvLine("test", "1", callback);
+		verify(callback, times(2)).processRemove("test", "id,name", "1");
+	}
+	
+	@Test
+	public void testReloadGroup() throws SQLException, CsvUpdateBlockException {
+		EntityConfig entityConfig = new EntityConfig("grouped", "select \"id\", \"name\" from TestTable", Collections.singleton("name"));
+		DataSourceCollectionLayer groupedLayer = new DataSourceCollectionLayer(new CsvDataSourceDatabase(new DataSourceAccess(dataSource), entityConfig));
+		CacheLayer groupedCache = new CacheLayer(groupedLayer);
+		groupedCache.getCsvLinesForGroup("grouped", "name", "ABC", callback);
+		verify(callback).processUpdate("grouped", "id,name", new CsvLine("1", "1,ABC", Collections.singletonMap("name", "ABC")));
+		verifyNoMoreInteractions(callback);
+		reset(callback);
+		
+		dataSource.getConnection().prepareStatement("update TestTable set \"name\"='XYZ' where \"id\"='1'").executeUpdate();
+		dataSource.getConnection().prepareStatement("insert into TestTable (\"id\", \"name\") values ('3', 'ABC')").executeUpdate();
+		dataSource.getConnection().prepareStatement("update TestTable set \"name\"='GHI' where \"id\"='2'").executeUpdate();
+		groupedCache.subscribe(callback);
+		groupedLayer.start(Collections.singleton("grouped"));
+		groupedLayer.reloadGroup("grouped", "name", "ABC");
+		groupedLayer.finish();
+		
+		//Only the group is refreshed; the change to 2 hasn't been picked up
+		verify(callback).start(Collections.singleton("grouped"));
+		verify(callback).processUpdate("grouped", "id,name", new CsvLine("3", "3,ABC", Collections.singletonMap("name", "ABC")));
+		verify(callback).processRemove("grouped", "id,name", "1");
+		verify(callback).finish();
+		verifyNoMoreInteractions(callback);
+		reset(callback);
+		
+		groupedCache.getCsvLinesForGroup("grouped", "name", "ABC", callback);
+		verify(callback).processUpdate("grouped", "id,name", new CsvLine("3", "3,ABC", Collections.singletonMap("name", "ABC")));
+		verifyNoMoreInteractions(callback);
+		reset(callback);
+		groupedCache.getCsvLine("grouped", "2", callback);
+		verify(callback).processUpdate("grouped", "id,name", new CsvLine("2", "2,DEF", Collections.singletonMap("name", "DEF")));
+	}
+
 }
@@ -0,0 +1,80 @@
+package org.commacq.cache.csv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.commacq.CsvLine;
+import org.junit.Test;
+
+public class CsvJournalTest {
+
+	private final CsvJournal journal = new CsvJournal();
+	
+	@Test
+	public void testNetChanges() {
+		journal.append(changes(new CsvLine("1", "1,ABC"), new CsvLine("2", "2,DEF")));
+		journal.append(changes(new CsvLine("1", "1,GHI")));
+		journal.append(removals("2"));
+		assertEquals(3, journal.getSequence());
+		
+		SortedMap<String, CsvLine> changes = journal.changesSince(1);
+		assertEquals(2, changes.size());
+		assertEquals(new CsvLine("1", "1,GHI"), changes.get("1"));
+		assertNull(changes.get("2"));
+		
+		assertEquals(3, journal.changesSince(0).size() + 1);
+		assertEquals(0, journal.changesSince(3).size());
+		assertNull("Can't replay from the future", journal.changesSince(4));
+	}
+	
+	@Test
+	public void testOldestBlocksDropped() {
+		journal.setMaxBlocks(2);
+		journal.append(changes(new CsvLine("1", "1,ABC")));
+		journal.append(changes(new CsvLine("2", "2,DEF")));
+		journal.append(changes(new CsvLine("3", "3,GHI")));
+		
+		assertNull(journal.changesSince(0));
+		assertEquals(2, journal.changesSince(1).size());
+	}
+	
+	@Test
+	public void testLineLimit() {
+		journal.setMaxLines(2);
+		journal.append(changes(new CsvLine("1", "1,ABC")));
+		journal.append(changes(new CsvLine("2", "2,DEF"), new CsvLine("3", "3,GHI")));
+		
+		assertNull(journal.changesSince(0));
+		assertEquals(2, journal.changesSince(1).size());
+	}
+	
+	@Test
+	public void testReset() {
+		journal.append(changes(new CsvLine("1", "1,ABC")));
+		assertEquals(2, journal.reset());
+		journal.append(changes(new CsvLine("2", "2,DEF")));
+		
+		assertNull(journal.changesSince(1));
+		assertEquals(1, journal.changesSince(2).size());
+	}
+	
+	private static SortedMap<String, CsvLine> changes(CsvLine... csvLines) {
+		SortedMap<String, CsvLine> changes = new TreeMap<String, CsvLine>();
+		for(CsvLine csvLine : csvLines) {
+			changes.put(csvLine.getId(), csvLine);
+		}
+		return changes;
+	}
+	
+	private static SortedMap<String, CsvLine> removals(String... ids) {
+		SortedMap<String, CsvLine> changes = new TreeMap<String, CsvLine>();
+		for(String id : ids) {
+			changes.put(id, null);
+		}
+		return changes;
+	}
+	
+}
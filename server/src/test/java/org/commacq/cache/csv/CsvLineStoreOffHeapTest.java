@@ -0,0 +1,152 @@
+package org.commacq.cache.csv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.commacq.CsvLine;
+import org.commacq.CsvLineCallbackListImpl;
+import org.commacq.CsvUpdateBlockException;
+import org.junit.Test;
+
+public class CsvLineStoreOffHeapTest {
+
+	private CsvLineStore store = new CsvLineStoreOffHeap(1024);
+
+	@Test
+	public void testPutUpdateRemove() {
+		store = merge(store, new CsvLine("1", "1,ABC"), new CsvLine("2", "2,DEF"));
+		assertEquals(2, store.size());
+		assertEquals(new CsvLine("1", "1,ABC"), store.get("1"));
+
+		store = merge(store, new CsvLine("1", "1,\u00C4B\u00C7"));
+		assertEquals(2, store.size());
+		assertEquals(new CsvLine("1", "1,\u00C4B\u00C7"), store.get("1"));
+
+		store = remove(store, "2", "3");
+		assertEquals(1, store.size());
+		assertNull(store.get("2"));
+	}
+
+	@Test
+	public void testPreviousVersionUnaffectedByMerge() {
+		CsvLineStore first = merge(store, new CsvLine("1", "1,ABC"));
+		CsvLineStore second = merge(first, new CsvLine("1", "1,DEF"), new CsvLine("2", "2,GHI"));
+		CsvLineStore third = remove(second, "1");
+
+		assertEquals(new CsvLine("1", "1,ABC"), first.get("1"));
+		assertNull(first.get("2"));
+		assertEquals(new CsvLine("1", "1,DEF"), second.get("1"));
+		assertNull(third.get("1"));
+		assertEquals(1, first.size());
+		assertEquals(2, second.size());
+		assertEquals(1, third.size());
+	}
+
+	@Test
+	public void testGroupValues() {
+		Map<String, String> groupValues = new HashMap<String, String>();
+		groupValues.put("currency", "GBP");
+		groupValues.put("region", null);
+		store = merge(store, new CsvLine("1", "1,ABC,GBP,", groupValues));
+		assertEquals(groupValues, store.get("1").getGroupValues());
+	}
+
+	@Test
+	public void testGrowAndReclaim() {
+		int lines = 5000;
+		for(int round = 0; round < 3; round++) {
+			SortedMap<String, CsvLine> changes = new TreeMap<String, CsvLine>();
+			for(int i = 0; i < lines; i++) {
+				changes.put(String.valueOf(i), new CsvLine(String.valueOf(i), i + ",round" + round));
+			}
+			store = store.merge(changes);
+		}
+		SortedMap<String, CsvLine> removals = new TreeMap<String, CsvLine>();
+		for(int i = 0; i < lines; i += 2) {
+			removals.put(String.valueOf(i), null);
+		}
+		store = store.merge(removals);
+
+		assertEquals(lines / 2, store.size());
+		assertEquals(new CsvLine("4999", "4999,round2"), store.get("4999"));
+		assertNull(store.get("4998"));
+
+		Set<String> ids = new HashSet<String>();
+		Iterator<CsvLine> iterator = store.iterator();
+		while(iterator.hasNext()) {
+			CsvLine csvLine = iterator.next();
+			assertEquals(csvLine.getId() + ",round2", csvLine.getCsvLine());
+			ids.add(csvLine.getId());
+		}
+		assertEquals(lines / 2, ids.size());
+		assertFalse(ids.contains("0"));
+	}
+
+	@Test
+	public void testCsvCacheOffHeap() throws CsvUpdateBlockException {
+		CsvCache csvCache = new CsvCache("test", "id,name", null, store);
+		csvCache.updateLine(new CsvLine("1", "1,ABC"));
+		csvCache.updateLine(new CsvLine("2", "2,DEF"));
+		csvCache.commit();
+		csvCache.removeId("1");
+		csvCache.commit();
+
+		CsvLineCallbackListImpl callback = new CsvLineCallbackListImpl();
+		csvCache.visitAll(callback);
+		assertEquals(1, callback.getUpdateList().size());
+		assertEquals(new CsvLine("2", "2,DEF"), csvCache.getLine("2"));
+	}
+
+	@Test
+	public void testCsvCacheBulkLoadOffHeap() throws CsvUpdateBlockException {
+		CsvCache csvCache = new CsvCache("test", "id,name", null, store);
+		csvCache.startBulkLoad();
+		int lines = 1000;
+		for(int i = 0; i < lines; i++) {
+			csvCache.updateLine(new CsvLine(String.valueOf(i), i + ",X"));
+		}
+		csvCache.updateLine(new CsvLine("0", "0,Y"));
+		csvCache.removeId("1");
+		Set<String> ids = new HashSet<String>();
+		Iterator<CsvLine> iterator = csvCache.getBulkLoadLines();
+		while(iterator.hasNext()) {
+			ids.add(iterator.next().getId());
+		}
+		assertEquals(lines - 1, ids.size());
+		assertEquals(0, store.size());
+		csvCache.commit();
+
+		assertEquals(lines - 1, csvCache.size());
+		assertEquals(new CsvLine("0", "0,Y"), csvCache.getLine("0"));
+		assertNull(csvCache.getLine("1"));
+		CsvLineCallbackListImpl callback = new CsvLineCallbackListImpl();
+		csvCache.visitAll(callback);
+		assertEquals(lines - 1, callback.getUpdateList().size());
+	}
+
+	private static CsvLineStore merge(CsvLineStore store, CsvLine... csvLines) {
+		SortedMap<String, CsvLine> changes = new TreeMap<String, CsvLine>();
+		for(CsvLine csvLine : csvLines) {
+			changes.put(csvLine.getId(), csvLine);
+		}
+		return store.merge(changes);
+	}
+
+	private static CsvLineStore remove(CsvLineStore store, String... ids) {
+		SortedMap<String, CsvLine> changes = new TreeMap<String, CsvLine>();
+		for(String id : ids) {
+			changes.put(id, null);
+		}
+		return store.merge(changes);
+	}
+
+}
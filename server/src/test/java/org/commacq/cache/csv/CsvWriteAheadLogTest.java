@@ -0,0 +1,268 @@
+package org.commacq.cache.csv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang3.StringUtils;
+import org.commacq.BlockCallback;
+import org.commacq.CsvLine;
+import org.commacq.CsvLineCallbackListImpl;
+import org.commacq.CsvUpdateBlockException;
+import org.commacq.layer.SubscribeLayer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class CsvWriteAheadLogTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void testReplayAfterReopening() {
+		CsvWriteAheadLog writeAheadLog = new CsvWriteAheadLog(folder.getRoot().getPath());
+		assertTrue(writeAheadLog.isEnabled());
+		assertEquals(1, writeAheadLog.append("a", true, changes(new CsvLine("1", "1,ABC"), new CsvLine("2", "2,DEF"))));
+		assertEquals(2, writeAheadLog.append("b", false, changes(new CsvLine("1", "1,XYZ"))));
+		SortedMap<String, CsvLine> removal = new TreeMap<String, CsvLine>();
+		removal.put("2", null);
+		assertEquals(3, writeAheadLog.append("a", false, removal));
+		
+		CsvWriteAheadLog reopened = new CsvWriteAheadLog(folder.getRoot().getPath());
+		assertEquals(3, reopened.getSequence());
+		Map<String, Long> fromSequences = new HashMap<String, Long>();
+		fromSequences.put("a", 0L);
+		fromSequences.put("b", 2L);
+		List<Block> blocks = replay(reopened, fromSequences);
+		assertEquals(2, blocks.size());
+		assertEquals(1, blocks.get(0).sequence);
+		assertTrue(blocks.get(0).bulk);
+		assertEquals(new CsvLine("2", "2,DEF"), blocks.get(0).changes.get("2"));
+		assertEquals(3, blocks.get(1).sequence);
+		assertFalse(blocks.get(1).bulk);
+		assertTrue(blocks.get(1).changes.containsKey("2"));
+		assertNull(blocks.get(1).changes.get("2"));
+		
+		assertEquals(4, reopened.append("a", false, changes(new CsvLine("3", "3,GHI"))));
+	}
+	
+	@Test
+	public void testPartlyWrittenRecordCutOff() throws Exception {
+		CsvWriteAheadLog writeAheadLog = new CsvWriteAheadLog(folder.getRoot().getPath());
+		writeAheadLog.append("a", false, changes(new CsvLine("1", "1,ABC")));
+		writeAheadLog.append("a", false, changes(new CsvLine("2", "2,DEF")));
+		
+		File segment = folder.getRoot().listFiles()[0];
+		RandomAccessFile randomAccessFile = new RandomAccessFile(segment, "rw");
+		randomAccessFile.setLength(segment.length() - 3);
+		randomAccessFile.close();
+		
+		CsvWriteAheadLog reopened = new CsvWriteAheadLog(folder.getRoot().getPath());
+		assertEquals(1, reopened.getSequence());
+		Map<String, Long> fromSequences = new HashMap<String, Long>();
+		fromSequences.put("a", 0L);
+		assertEquals(1, replay(reopened, fromSequences).size());
+		assertEquals(2, reopened.append("a", false, changes(new CsvLine("2", "2,DEF"))));
+	}
+	
+	@Test
+	public void testSegmentsRolledAndCompacted() {
+		CsvWriteAheadLog writeAheadLog = new CsvWriteAheadLog(folder.getRoot().getPath());
+		writeAheadLog.setMaxSegmentBytes(1);
+		writeAheadLog.setPeriodicSyncMillis(60000);
+		for(int i = 1; i <= 4; i++) {
+			writeAheadLog.append("a", false, changes(new CsvLine(Integer.toString(i), i + ",ABC")));
+		}
+		assertEquals(4, folder.getRoot().listFiles().length);
+		writeAheadLog.sync();
+		
+		assertEquals(2, writeAheadLog.compact(2));
+		assertEquals(2, folder.getRoot().listFiles().length);
+		assertEquals("The segment being written to is kept", 1, writeAheadLog.compact(4));
+		
+		Map<String, Long> fromSequences = new HashMap<String, Long>();
+		fromSequences.put("a", 0L);
+		List<Block> blocks = replay(writeAheadLog, fromSequences);
+		assertEquals(1, blocks.size());
+		assertEquals(4, blocks.get(0).sequence);
+	}
+	
+	@Test
+	public void testLargeBlockSplitAcrossRecords() {
+		CsvWriteAheadLog writeAheadLog = new CsvWriteAheadLog(folder.getRoot().getPath());
+		SortedMap<String, CsvLine> changes = new TreeMap<String, CsvLine>();
+		String padding = StringUtils.repeat('x', 100);
+		int lines = 3 * CsvWriteAheadLog.MAX_RECORD_BYTES / 100;
+		for(int i = 0; i < lines; i++) {
+			changes.put(Integer.toString(i), new CsvLine(Integer.toString(i), i + "," + padding));
+		}
+		writeAheadLog.append("a", true, changes);
+		writeAheadLog.append("a", false, changes(new CsvLine("1", "1,ABC")));
+		
+		Map<String, Long> fromSequences = new HashMap<String, Long>();
+		fromSequences.put("a", 0L);
+		List<Block> blocks = replay(new CsvWriteAheadLog(folder.getRoot().getPath()), fromSequences);
+		assertEquals(2, blocks.size());
+		assertEquals(changes, blocks.get(0).changes);
+		assertEquals(new CsvLine("1", "1,ABC"), blocks.get(1).changes.get("1"));
+	}
+	
+	@Test
+	public void testBlockWithoutCommitCutOff() throws Exception {
+		CsvWriteAheadLog writeAheadLog = new CsvWriteAheadLog(folder.getRoot().getPath());
+		writeAheadLog.append("a", false, changes(new CsvLine("1", "1,ABC")));
+		File segment = folder.getRoot().listFiles()[0];
+		long firstBlockBytes = segment.length();
+		SortedMap<String, CsvLine> changes = new TreeMap<String, CsvLine>();
+		for(int i = 0; i < 20000; i++) {
+			changes.put(Integer.toString(i), new CsvLine(Integer.toString(i), i + "," + StringUtils.repeat('x', 100)));
+		}
+		writeAheadLog.append("a", false, changes);
+		
+		//Leaves whole records of the second block, but not its commit
+		RandomAccessFile randomAccessFile = new RandomAccessFile(segment, "rw");
+		randomAccessFile.setLength(firstBlockBytes + CsvWriteAheadLog.MAX_RECORD_BYTES + 1000);
+		randomAccessFile.close();
+		
+		CsvWriteAheadLog reopened = new CsvWriteAheadLog(folder.getRoot().getPath());
+		assertEquals(1, reopened.getSequence());
+		assertEquals(firstBlockBytes, segment.length());
+	}
+	
+	/**
+	 * Nothing is published until the block has been logged, so a block that can't be
+	 * logged is cancelled for subscribers and the cache carries on as it was.
+	 */
+	@Test
+	public void testCacheLayerCancelsBlockThatCannotBeLogged() throws Exception {
+		final AtomicBoolean failing = new AtomicBoolean();
+		CsvWriteAheadLog writeAheadLog = new CsvWriteAheadLog(folder.newFolder("log").getPath()) {
+			@Override
+			public long append(String entityId, boolean bulk, SortedMap<String, CsvLine> changes) {
+				if(failing.get()) {
+					throw new RuntimeException("Disk full");
+				}
+				return super.append(entityId, bulk, changes);
+			}
+		};
+		final BlockCallback[] source = new BlockCallback[1];
+		SubscribeLayer sourceLayer = mock(SubscribeLayer.class);
+		when(sourceLayer.getEntityIds()).thenReturn(new TreeSet<String>(Collections.singleton("test")));
+		when(sourceLayer.getColumnNamesCsv("test")).thenReturn("id,name");
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				source[0] = (BlockCallback)invocation.getArguments()[0];
+				source[0].processUpdate("test", "id,name", new CsvLine("1", "1,ABC"));
+				return null;
+			}
+		}).when(sourceLayer).getAllCsvLinesAndSubscribe(any(BlockCallback.class));
+		
+		CacheLayer cacheLayer = new CacheLayer(sourceLayer, new CsvLineStoreHeapFactory(),
+				new CsvCacheSnapshotFiles(folder.newFolder("snapshots").getPath()), writeAheadLog);
+		BlockCallback subscriber = mock(BlockCallback.class);
+		cacheLayer.getAllCsvLinesAndSubscribe("test", subscriber);
+		
+		failing.set(true);
+		source[0].start(Collections.singleton("test"));
+		source[0].processUpdate("test", "id,name", new CsvLine("1", "1,XYZ"));
+		try {
+			source[0].finish();
+			fail("Expected the block to fail");
+		} catch(RuntimeException ex) {
+			assertEquals("Disk full", ex.getMessage());
+		}
+		verify(subscriber).cancel();
+		verify(subscriber, never()).finish();
+		assertEquals(new CsvLine("1", "1,ABC"), getCsvLine(cacheLayer, "1"));
+		
+		//The layer's lock has been given up, so another thread can publish
+		failing.set(false);
+		Thread publisher = new Thread() {
+			@Override
+			public void run() {
+				try {
+					source[0].start(Collections.singleton("test"));
+					source[0].processUpdate("test", "id,name", new CsvLine("1", "1,DEF"));
+					source[0].finish();
+				} catch(CsvUpdateBlockException ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		};
+		publisher.start();
+		publisher.join(5000);
+		assertEquals(new CsvLine("1", "1,DEF"), getCsvLine(cacheLayer, "1"));
+		verify(subscriber).finish();
+	}
+	
+	private static CsvLine getCsvLine(CacheLayer cacheLayer, String id) {
+		CsvLineCallbackListImpl callback = new CsvLineCallbackListImpl();
+		cacheLayer.getCsvLine("test", id, callback);
+		return callback.getUpdateList().get(0);
+	}
+	
+	private static List<Block> replay(CsvWriteAheadLog writeAheadLog, Map<String, Long> fromSequences) {
+		final List<Block> blocks = new ArrayList<Block>();
+		writeAheadLog.replay(fromSequences, new CsvWriteAheadLog.Replay() {
+			@Override
+			public void startBlock(long sequence, String entityId, boolean bulk) {
+				blocks.add(new Block(sequence, bulk, new TreeMap<String, CsvLine>()));
+			}
+			
+			@Override
+			public void change(String id, CsvLine csvLine) {
+				blocks.get(blocks.size() - 1).changes.put(id, csvLine);
+			}
+			
+			@Override
+			public void finishBlock() {
+			}
+		});
+		return blocks;
+	}
+	
+	private static SortedMap<String, CsvLine> changes(CsvLine... csvLines) {
+		SortedMap<String, CsvLine> changes = new TreeMap<String, CsvLine>();
+		for(CsvLine csvLine : csvLines) {
+			changes.put(csvLine.getId(), csvLine);
+		}
+		return changes;
+	}
+	
+	private static final class Block {
+		final long sequence;
+		final boolean bulk;
+		final SortedMap<String, CsvLine> changes;
+		
+		Block(long sequence, boolean bulk, SortedMap<String, CsvLine> changes) {
+			this.sequence = sequence;
+			this.bulk = bulk;
+			this.changes = changes;
+		}
+	}
+	
+}
@@ -1,10 +1,12 @@
 package org.commacq.db;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import org.junit.Test;
@@ -28,6 +30,25 @@ public class ConfigDirectoryTest {
 		assertEquals(Collections.singleton("country"), config.get("holidayWithGroups").getGroups());
 	}
 	
+	@Test
+	public void testEntityProperties() throws IOException {
+		Map<String, EntityConfig> config = ConfigDirectory.parseEntityConfigsFromResource("classpath:/org/commacq/db/partitioned-sql");
+		
+		EntityConfig entityConfig = config.get("partitioned");
+		assertEquals(500, entityConfig.getFetchSize());
+		assertEquals("seq", entityConfig.getPartitionColumn());
+		assertEquals(4, entityConfig.getPartitions());
+	}
 	
+	@Test
+	public void testSplitRange() {
+		List<long[]> ranges = DataSourceAccess.splitRange(1, 10, 4);
+		assertEquals(4, ranges.size());
+		assertArrayEquals(new long[] {1, 3}, ranges.get(0));
+		assertArrayEquals(new long[] {10, 10}, ranges.get(3));
+		
+		assertEquals(2, DataSourceAccess.splitRange(5, 6, 8).size());
+		assertEquals(1, DataSourceAccess.splitRange(Long.MIN_VALUE, Long.MAX_VALUE, 8).size());
+	}
 
 }
\ No newline at end of file
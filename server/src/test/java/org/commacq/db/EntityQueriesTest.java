@@ -0,0 +1,33 @@
+package org.commacq.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.jdbc.core.SqlParameterValue;
+
+public class EntityQueriesTest {
+
+	@Test
+	public void testArgsBoundWithColumnTypes() {
+		Map<String, Integer> columnTypes = new HashMap<String, Integer>();
+		columnTypes.put("id", Types.INTEGER);
+		columnTypes.put("region", Types.VARCHAR);
+		EntityQueries queries = new EntityQueries(new EntityConfig("test", "select * from TestTable", Collections.singleton("region")), columnTypes);
+		
+		Object[] args = queries.inListArgs(Arrays.asList("1", "2"), 2);
+		assertEquals(8, args.length);
+		assertEquals(Types.INTEGER, ((SqlParameterValue)args[0]).getSqlType());
+		assertEquals("2", ((SqlParameterValue)args[1]).getValue());
+		assertSame(args[1], args[7]);
+		assertEquals(Types.INTEGER, ((SqlParameterValue)queries.singleRowArgs(new String[] {"1"})[0]).getSqlType());
+		assertEquals("London", queries.groupArgs("region", "London")[0]);
+	}
+	
+}
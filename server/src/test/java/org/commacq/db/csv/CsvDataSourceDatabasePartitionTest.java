@@ -0,0 +1,131 @@
+package org.commacq.db.csv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType.H2;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.commacq.CsvLine;
+import org.commacq.CsvLineCallbackListImpl;
+import org.commacq.CsvUpdateBlockException;
+import org.commacq.db.DataSourceAccess;
+import org.commacq.db.EntityConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+
+public class CsvDataSourceDatabasePartitionTest {
+	
+	private EmbeddedDatabase dataSource;
+	private EntityConfig entityConfig;
+	private CsvDataSourceDatabase csvDataSourceDatabase;
+	
+	@Before
+	public void setupDataSource() {
+		EmbeddedDatabaseBuilder builder = new EmbeddedDatabaseBuilder();
+		dataSource = builder.setType(H2).addScript("classpath:/org/commacq/db/csv/test-partitioned.sql").build();
+		
+		DataSourceAccess dataSourceAccess = new DataSourceAccess(dataSource);
+		entityConfig = new EntityConfig("partitioned", "select \"id\", \"seq\", \"name\" from PartitionedTable");
+		entityConfig.setFetchSize(100);
+		entityConfig.setPartitionColumn("seq");
+		entityConfig.setPartitions(4);
+		csvDataSourceDatabase = new CsvDataSourceDatabase(dataSourceAccess, entityConfig);
+	}
+	
+	@After
+	public void tearDownDataSource() {
+		dataSource.shutdown();
+	}
+	
+	@Test
+	public void testAllLinesLoadedOnCallingThread() throws CsvUpdateBlockException {
+		final Thread callingThread = Thread.currentThread();
+		CsvLineCallbackListImpl callback = new CsvLineCallbackListImpl() {
+			@Override
+			public void processUpdate(String entityId, String columnNamesCsv, CsvLine csvLine) throws CsvUpdateBlockException {
+				assertTrue(Thread.currentThread() == callingThread);
+				super.processUpdate(entityId, columnNamesCsv, csvLine);
+			}
+		};
+		
+		csvDataSourceDatabase.getAllCsvLines(callback);
+		
+		Set<String> ids = new HashSet<String>();
+		for(CsvLine csvLine : callback.getUpdateList()) {
+			ids.add(csvLine.getId());
+		}
+		assertEquals(2501, callback.getUpdateList().size());
+		assertEquals(2501, ids.size());
+		assertTrue(ids.contains("nullSeq"));
+		assertEquals("id,seq,name", callback.getColumnNamesCsv());
+	}
+
+	/**
+	 * With a single thread, the partitions after the failing one are still waiting
+	 * to start when the load is cancelled, so they never run.
+	 */
+	@Test(timeout=10000)
+	public void testFailedPartitionWithMorePartitionsThanThreads() throws CsvUpdateBlockException {
+		final AtomicBoolean failed = new AtomicBoolean();
+		DataSourceAccess dataSourceAccess = new DataSourceAccess(dataSource) {
+			@Override
+			public <T> T getResultSetForPartition(EntityConfig entityConfig, ResultSetExtractor<T> resultSetExtractor, long[] range, boolean includeNulls) {
+				if(includeNulls && failed.compareAndSet(false, true)) {
+					throw new RuntimeException("Partition failed");
+				}
+				return super.getResultSetForPartition(entityConfig, resultSetExtractor, range, includeNulls);
+			}
+		};
+		dataSourceAccess.setPartitionThreads(1);
+		csvDataSourceDatabase = new CsvDataSourceDatabase(dataSourceAccess, entityConfig);
+		
+		try {
+			csvDataSourceDatabase.getAllCsvLines(new CsvLineCallbackListImpl());
+			fail("Expected the load to fail");
+		} catch(RuntimeException ex) {
+			assertEquals("Partition failed", ex.getMessage());
+		}
+		assertLoadsAgain(dataSourceAccess);
+	}
+	
+	/**
+	 * The callback stops reading with the queue full, so the running loader has to give up on it.
+	 */
+	@Test(timeout=10000)
+	public void testFailedCallbackWithMorePartitionsThanThreads() throws CsvUpdateBlockException {
+		DataSourceAccess dataSourceAccess = new DataSourceAccess(dataSource);
+		dataSourceAccess.setPartitionThreads(1);
+		csvDataSourceDatabase = new CsvDataSourceDatabase(dataSourceAccess, entityConfig);
+		
+		try {
+			csvDataSourceDatabase.getAllCsvLines(new CsvLineCallbackListImpl() {
+				@Override
+				public void processUpdate(String entityId, String columnNamesCsv, CsvLine csvLine) throws CsvUpdateBlockException {
+					throw new CsvUpdateBlockException("Callback failed");
+				}
+			});
+			fail("Expected the load to fail");
+		} catch(RuntimeException ex) {
+			assertTrue(ex.getCause() instanceof CsvUpdateBlockException);
+		}
+		assertLoadsAgain(dataSourceAccess);
+	}
+	
+	/**
+	 * The pool's only thread must have been given back.
+	 */
+	private void assertLoadsAgain(DataSourceAccess dataSourceAccess) {
+		CsvLineCallbackListImpl callback = new CsvLineCallbackListImpl();
+		new CsvDataSourceDatabase(dataSourceAccess, entityConfig).getAllCsvLines(callback);
+		assertEquals(2501, callback.getUpdateList().size());
+	}
+
+}
@@ -9,12 +9,15 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType.H2;
 
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 import org.commacq.CsvLine;
+import org.commacq.CsvLineCallbackListImpl;
 import org.commacq.BlockCallback;
 import org.commacq.CsvUpdateBlockException;
 import org.commacq.db.DataSourceAccess;
@@ -130,4 +133,47 @@ public class CsvDataSourceDatabaseTest {
 		verifyNoMoreInteractions(callback);
 		reset(callback);
 	}
+	
+	@Test
+	public void testGetCsvLinesBindsIds() throws CsvUpdateBlockException {
+		List<String> ids = new ArrayList<String>();
+		ids.add("2");
+		ids.add("1' or '1'='1");
+		for(int i = 3; i < 600; i++) {
+			ids.add(String.valueOf(i));
+		}
+		
+		CsvLineCallbackListImpl listCallback = new CsvLineCallbackListImpl();
+		csvDataSourceDatabase.getCsvLines(ids, listCallback);
+		
+		assertEquals(Collections.singletonList(new CsvLine("2", "2,DEF")), listCallback.getUpdateList());
+		assertEquals(ids.size() - 1, listCallback.getRemoveList().size());
+		assertEquals("1' or '1'='1", listCallback.getRemoveList().get(0));
+	}
+	
+	@Test
+	public void testNumericIdAndGroupColumns() throws SQLException {
+		Connection connection = dataSource.getConnection();
+		try {
+			connection.prepareStatement("create table NumericTable (\"id\" int, \"region\" int, \"name\" varchar(20))").executeUpdate();
+			connection.prepareStatement("insert into NumericTable values (1, 10, 'ABC'), (2, 10, 'DEF'), (3, 20, 'GHI')").executeUpdate();
+		} finally {
+			connection.close();
+		}
+		EntityConfig entityConfig = new EntityConfig("numeric", "select \"id\", \"region\", \"name\" from NumericTable",
+				                                     Collections.singleton("region"));
+		CsvDataSourceDatabase numeric = new CsvDataSourceDatabase(new DataSourceAccess(dataSource), entityConfig);
+		
+		CsvLineCallbackListImpl listCallback = new CsvLineCallbackListImpl();
+		numeric.getCsvLine("3", listCallback);
+		numeric.getCsvLines(Arrays.asList("1", "4"), listCallback);
+		numeric.getCsvLinesForGroup("region", "10", listCallback);
+		
+		List<String> ids = new ArrayList<String>();
+		for(CsvLine csvLine : listCallback.getUpdateList()) {
+			ids.add(csvLine.getId());
+		}
+		assertEquals(Arrays.asList("3", "1", "1", "2"), ids);
+		assertEquals(Collections.singletonList("4"), listCallback.getRemoveList());
+	}
 }
@@ -0,0 +1,91 @@
+package org.commacq.db.csv;
+
+import static org.junit.Assert.assertEquals;
+import static org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType.H2;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.commacq.db.EntityConfig;
+import org.commacq.db.RowExtractor;
+import org.commacq.db.RowPlan;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+
+public class CsvMarshallerTest {
+	
+	private EmbeddedDatabase dataSource;
+	private CsvMarshaller csvMarshaller = new CsvMarshaller();
+	
+	@Before
+	public void setupDataSource() {
+		EmbeddedDatabaseBuilder builder = new EmbeddedDatabaseBuilder();
+		dataSource = builder.setType(H2).addScript("classpath:/org/commacq/db/csv/test-types.sql").build();
+	}
+	
+	@After
+	public void tearDownDataSource() {
+		dataSource.shutdown();
+	}
+	
+	@Test
+	public void testColumnWritersMatchStringConversion() throws SQLException {
+		EntityConfig entityConfig = new EntityConfig("types", "select * from TypesTable order by \"id\"");
+		Connection connection = dataSource.getConnection();
+		try {
+			Statement statement = connection.createStatement();
+			ResultSet result = statement.executeQuery(entityConfig.getSql());
+			RowPlan rowPlan = csvMarshaller.createRowPlan(entityConfig, result.getMetaData());
+			CsvColumnWriter[] columnWriters = csvMarshaller.createColumnWriters(result.getMetaData());
+			int rows = 0;
+			while(result.next()) {
+				String expected = convertViaStrings(result);
+				assertEquals(expected, csvMarshaller.toCsvLine(result, rowPlan, columnWriters).getCsvLine());
+				rows++;
+			}
+			assertEquals(3, rows);
+		} finally {
+			connection.close();
+		}
+	}
+	
+	@Test
+	public void testAppendEscaped() {
+		assertEquals("", escape(null));
+		assertEquals("\"\"", escape(""));
+		assertEquals("ABC", escape("ABC"));
+		assertEquals("\"A,B\"", escape("A,B"));
+		assertEquals("\"A\"\"B\"", escape("A\"B"));
+		assertEquals("\"A\nB\"", escape("A\nB"));
+	}
+	
+	private static String escape(String value) {
+		StringBuilder builder = new StringBuilder();
+		CsvColumnWriter.appendEscaped(builder, value);
+		return builder.toString();
+	}
+	
+	private static String convertViaStrings(ResultSet result) throws SQLException {
+		ResultSetMetaData metaData = result.getMetaData();
+		StringBuilder builder = new StringBuilder();
+		for(int i = 1; i <= metaData.getColumnCount(); i++) {
+			if(i > 1) {
+				builder.append(',');
+			}
+			String value = RowExtractor.stringColumnValueConverter.getColumnValue(result, metaData.getColumnType(i), i);
+			if(value == null) {
+				continue;
+			}
+			builder.append(value.isEmpty() ? "\"\"" : StringEscapeUtils.escapeCsv(value));
+		}
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,160 @@
+package org.commacq.jms;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.commacq.CsvLine;
+import org.commacq.CsvUpdateBlockException;
+import org.commacq.layer.ReplayLayer;
+import org.commacq.layer.SubscribeLayer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+@RunWith(MockitoJUnitRunner.class)
+public class JmsOutboundHandlerTest {
+
+	@Mock private ConnectionFactory connectionFactory;
+	@Mock private Connection connection;
+	@Mock private Session session;
+	@Mock private MessageProducer producer;
+	@Mock private SubscribeLayer layer;
+	
+	private final List<TextMessage> messages = new ArrayList<TextMessage>();
+	
+	@Before
+	public void setup() throws Exception {
+		when(connectionFactory.createConnection()).thenReturn(connection);
+		when(connection.createSession(anyBoolean(), anyInt())).thenReturn(session);
+		when(session.createProducer(any(Destination.class))).thenReturn(producer);
+		when(session.createTextMessage()).thenAnswer(new Answer<TextMessage>() {
+			@Override
+			public TextMessage answer(InvocationOnMock invocation) {
+				TextMessage message = mock(TextMessage.class);
+				messages.add(message);
+				return message;
+			}
+		});
+		when(layer.getColumnNamesCsv("testEntity")).thenReturn("id,name");
+	}
+	
+	@Test
+	public void testSmallBlockIsOneMessage() throws Exception {
+		JmsOutboundHandler handler = new JmsOutboundHandler(connectionFactory, layer, "testEntity", "topic");
+		handler.start(Collections.singleton("testEntity"));
+		handler.processUpdate("testEntity", "id,name", new CsvLine("1", "1,ABC"));
+		handler.processRemove("testEntity", "id,name", "2");
+		handler.finish();
+		
+		assertEquals(1, messages.size());
+		verify(messages.get(0)).setText("id,name\n1,ABC\n2\n");
+		verify(messages.get(0)).setIntProperty(MessageFields.chunkIndex, 0);
+		verify(messages.get(0)).setBooleanProperty(MessageFields.lastChunk, true);
+	}
+	
+	@Test
+	public void testLargeBlockIsChunked() throws Exception {
+		JmsOutboundHandler handler = new JmsOutboundHandler(connectionFactory, layer, "testEntity", "topic", 20, 0, 20, null);
+		handler.start(Collections.singleton("testEntity"));
+		handler.processUpdate("testEntity", "id,name", new CsvLine("1", "1,ABCDEF"));
+		handler.processUpdate("testEntity", "id,name", new CsvLine("2", "2,GHIJKL"));
+		handler.processUpdate("testEntity", "id,name", new CsvLine("3", "3,MNOPQR"));
+		handler.finish();
+		
+		assertEquals(2, messages.size());
+		verify(messages.get(0)).setText("id,name\n1,ABCDEF\n2,GHIJKL\n");
+		verify(messages.get(0)).setLongProperty(MessageFields.blockSequence, 0);
+		verify(messages.get(0)).setIntProperty(MessageFields.chunkIndex, 0);
+		verify(messages.get(0)).setBooleanProperty(MessageFields.lastChunk, false);
+		verify(messages.get(1)).setText("id,name\n3,MNOPQR\n");
+		verify(messages.get(1)).setLongProperty(MessageFields.blockSequence, 0);
+		verify(messages.get(1)).setIntProperty(MessageFields.chunkIndex, 1);
+		verify(messages.get(1)).setBooleanProperty(MessageFields.lastChunk, true);
+	}
+	
+	@Test
+	public void testCancelAfterChunkSent() throws Exception {
+		JmsOutboundHandler handler = new JmsOutboundHandler(connectionFactory, layer, "testEntity", "topic", 20, 0, 20, null);
+		handler.start(Collections.singleton("testEntity"));
+		handler.processUpdate("testEntity", "id,name", new CsvLine("1", "1,ABCDEF"));
+		handler.processUpdate("testEntity", "id,name", new CsvLine("2", "2,GHIJKL"));
+		handler.cancel();
+		
+		assertEquals(2, messages.size());
+		verify(messages.get(1)).setBooleanProperty(MessageFields.cancelBlock, true);
+		verify(messages.get(1)).setLongProperty(MessageFields.blockSequence, 0);
+	}
+	
+	@Test
+	public void testSmallBlocksArePacked() throws Exception {
+		JmsOutboundHandler handler = new JmsOutboundHandler(connectionFactory, layer, "testEntity", "topic", 1000, 50, 1000, null);
+		sendBlock(handler, new CsvLine("1", "1,ABC"));
+		sendBlock(handler, new CsvLine("2", "2,DEF"));
+		
+		verify(producer, timeout(2000)).send(any(Message.class));
+		assertEquals(1, messages.size());
+		verify(messages.get(0)).setText("id,name\n1,ABC\n2,DEF\n");
+		verify(messages.get(0)).setBooleanProperty(MessageFields.bulkUpdate, false);
+	}
+	
+	@Test
+	public void testBulkUpdateIsNotPacked() throws Exception {
+		JmsOutboundHandler handler = new JmsOutboundHandler(connectionFactory, layer, "testEntity", "topic", 1000, 60000, 1000, null);
+		sendBlock(handler, new CsvLine("1", "1,ABC"));
+		
+		handler.start(Collections.singleton("testEntity"));
+		handler.startBulkUpdate("testEntity", "id,name");
+		handler.processUpdate("testEntity", "id,name", new CsvLine("2", "2,DEF"));
+		handler.finish();
+		
+		assertEquals(2, messages.size());
+		verify(messages.get(0)).setText("id,name\n1,ABC\n");
+		verify(messages.get(0)).setBooleanProperty(MessageFields.bulkUpdate, false);
+		verify(messages.get(1)).setText("id,name\n2,DEF\n");
+		verify(messages.get(1)).setBooleanProperty(MessageFields.bulkUpdate, true);
+	}
+	
+	@Test
+	public void testSequenceStamped() throws Exception {
+		ReplayLayer replayLayer = mock(ReplayLayer.class);
+		when(replayLayer.getColumnNamesCsv("testEntity")).thenReturn("id,name");
+		when(replayLayer.getEpoch()).thenReturn(1234L);
+		when(replayLayer.getSequence("testEntity")).thenReturn(7L);
+		
+		JmsOutboundHandler handler = new JmsOutboundHandler(connectionFactory, replayLayer, "testEntity", "topic");
+		sendBlock(handler, new CsvLine("1", "1,ABC"));
+		
+		assertEquals(1, messages.size());
+		verify(messages.get(0)).setLongProperty(MessageFields.sequenceEpoch, 1234L);
+		verify(messages.get(0)).setLongProperty(MessageFields.sequence, 7L);
+	}
+	
+	private static void sendBlock(JmsOutboundHandler handler, CsvLine csvLine) throws CsvUpdateBlockException {
+		handler.start(Collections.singleton("testEntity"));
+		handler.processUpdate("testEntity", "id,name", csvLine);
+		handler.finish();
+	}
+	
+}
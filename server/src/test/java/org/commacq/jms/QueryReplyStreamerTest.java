@@ -0,0 +1,87 @@
+package org.commacq.jms;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.commacq.CsvLine;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+@RunWith(MockitoJUnitRunner.class)
+public class QueryReplyStreamerTest {
+
+	@Mock private Session session;
+	@Mock private MessageProducer producer;
+	
+	private final List<TextMessage> messages = new ArrayList<TextMessage>();
+	
+	@Before
+	public void setup() throws Exception {
+		when(session.createTextMessage()).thenAnswer(new Answer<TextMessage>() {
+			@Override
+			public TextMessage answer(InvocationOnMock invocation) {
+				TextMessage message = mock(TextMessage.class);
+				messages.add(message);
+				return message;
+			}
+		});
+	}
+	
+	@Test
+	public void testChunksAndEndOfStream() throws Exception {
+		QueryReplyStreamer streamer = new QueryReplyStreamer(session, producer, "correlation", "id,name", 20, null);
+		streamer.processUpdate("testEntity", "id,name", new CsvLine("1", "1,ABCDEF"));
+		streamer.processUpdate("testEntity", "id,name", new CsvLine("2", "2,GHIJKL"));
+		streamer.processUpdate("testEntity", "id,name", new CsvLine("3", "3,MNOPQR"));
+		streamer.finish();
+		
+		assertEquals(2, messages.size());
+		verify(messages.get(0)).setText("id,name\n1,ABCDEF\n2,GHIJKL\n");
+		verify(messages.get(0)).setJMSCorrelationID("correlation");
+		verify(messages.get(0)).setIntProperty(MessageFields.chunkIndex, 0);
+		verify(messages.get(0)).setBooleanProperty(MessageFields.endOfStream, false);
+		verify(messages.get(1)).setText("id,name\n3,MNOPQR\n");
+		verify(messages.get(1)).setIntProperty(MessageFields.chunkIndex, 1);
+		verify(messages.get(1)).setBooleanProperty(MessageFields.endOfStream, true);
+		verify(producer).send(messages.get(0));
+		verify(producer).send(messages.get(1));
+	}
+	
+	@Test
+	public void testEmptyEntity() throws Exception {
+		QueryReplyStreamer streamer = new QueryReplyStreamer(session, producer, "correlation", "id,name", 20, null);
+		streamer.finish();
+		
+		assertEquals(1, messages.size());
+		verify(messages.get(0)).setText("id,name\n");
+		verify(messages.get(0)).setBooleanProperty(MessageFields.endOfStream, true);
+	}
+	
+	@Test
+	public void testError() throws Exception {
+		QueryReplyStreamer streamer = new QueryReplyStreamer(session, producer, "correlation", "id,name", 20, null);
+		streamer.processUpdate("testEntity", "id,name", new CsvLine("1", "1,ABCDEF"));
+		streamer.processUpdate("testEntity", "id,name", new CsvLine("2", "2,GHIJKL"));
+		streamer.sendError("Query failed");
+		
+		assertEquals(2, messages.size());
+		verify(messages.get(1)).setStringProperty("error", "Query failed");
+		verify(messages.get(1)).setIntProperty(MessageFields.chunkIndex, 1);
+		verify(messages.get(1)).setBooleanProperty(MessageFields.endOfStream, true);
+	}
+	
+}
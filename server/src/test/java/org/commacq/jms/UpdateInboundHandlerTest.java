@@ -49,6 +49,22 @@ public class UpdateInboundHandlerTest {
         verifyNoMoreInteractions(layer);
     }
     
+    @Test
+    public void testTextMessageWithQuotedId() throws JMSException, CsvUpdateBlockException {
+        TextMessage textMessage = mock(TextMessage.class);
+        when(textMessage.getStringProperty("entityId")).thenReturn("testEntity");
+        when(textMessage.getText()).thenReturn(
+                "\"id\"" + "\n" +
+                "abc"
+        );
+        
+        handler.onMessage(textMessage);
+        verify(layer).start(Collections.singleton("testEntity"));
+        verify(layer).updateUntrusted("testEntity", "abc");
+        verify(layer).finish();
+        verifyNoMoreInteractions(layer);
+    }
+    
     @Test
     public void testMapMessageWithId() throws JMSException, CsvUpdateBlockException {
         MapMessage mapMessage = mock(MapMessage.class);
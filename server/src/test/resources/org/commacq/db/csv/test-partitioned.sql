@@ -0,0 +1,8 @@
+create table PartitionedTable (
+  "id" varchar(20),
+  "seq" int,
+  "name" varchar(255)
+);
+
+insert into PartitionedTable select x, x, 'name' || x from system_range(1, 2500);
+insert into PartitionedTable ("id", "seq", "name") values ('nullSeq', null, 'no sequence');
@@ -0,0 +1,19 @@
+create table TypesTable (
+  "id" varchar(20),
+  "text" varchar(255),
+  "flag" boolean,
+  "small" smallint,
+  "count" int,
+  "big" bigint,
+  "ratio" double,
+  "amount" decimal(20,4),
+  "day" date,
+  "at" time,
+  "stamp" timestamp,
+  "notes" clob
+);
+
+insert into TypesTable values ('1', 'plain', true, 3, -42, 9000000000, 1.25, 12.5000, '2014-03-09', '07:05:03', '2014-03-09 23:59:58.007', 'some notes');
+insert into TypesTable values ('2', 'a,"quoted" value', false, -7, 0, -1, 0.000001, -0.0001, '0999-12-31', '23:00:00', '1970-01-01 00:00:00.000', 'line one
+line two');
+insert into TypesTable values ('3', '', null, null, null, null, null, null, null, null, null, null);
@@ -0,0 +1,2 @@
+--File is here to support unit test of entity properties
+select "id", "seq", "name" from PartitionedTable